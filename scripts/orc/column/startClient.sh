@@ -7,6 +7,8 @@ PROPS=""
 ## PROPS="-Dcawd.client.host=1270.0.1 $PROPS"
 ## PROPS="-Dcawd.client.port=2000 $PROPS"
 ## PROPS="-Dcawd.client.input=/tmp/client $PROPS"
+## both sides need this one, each data stream of a column is a chunk of its own
+## PROPS="-Dcawd.orc.streamChunks=true $PROPS"
 PROPS="-Dcawd.client.filters=.orc $PROPS"
 PROPS="-Dcawd.streamer.type=vmware.speedup.cawd.orc.net.ColumnBasedORCStreamer $PROPS"
 ## log file...
@@ -0,0 +1,9 @@
+#!/bin/bash
+
+#############
+## add some general properties here
+#############
+export BASE_DIR="../../.."
+export MAIN_JAR="$BASE_DIR/ColumnarAwareDedup.jar"
+export CLASS_PATH="$BASE_DIR/deps/*"
+
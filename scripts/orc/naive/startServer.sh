@@ -7,6 +7,11 @@ PROPS=""
 ## PROPS="-Dcawd.server.host=1270.0.1 $PROPS"
 ## PROPS="-Dcawd.server.port=2000 $PROPS"
 ## PROPS="-Dcawd.server.outputFolder=/tmp/server $PROPS"
+## index what is already in the output folder before accepting connections
+## PROPS="-Dcawd.server.warmStart=true $PROPS"
+## seed the stores from snapshots when starting, and write them when exiting
+## PROPS="-Dcawd.server.snapshot.import=/tmp/server-snapshot -Dcawd.server.snapshot.export=/tmp/server-snapshot $PROPS"
+## PROPS="-Dcawd.store.dir=/tmp/server-store $PROPS"
 PROPS="-Dcawd.receiver.type=vmware.speedup.cawd.orc.net.NaiveORCReceiver $PROPS"
 ## log file...
 LOG_PROPS="-Dlog4j.configurationFile=$BASE_DIR/conf/server-default.xml"
@@ -7,6 +7,22 @@ PROPS=""
 ## PROPS="-Dcawd.client.host=1270.0.1 $PROPS"
 ## PROPS="-Dcawd.client.port=2000 $PROPS"
 PROPS="-Dcawd.client.input=/home/castuardo/Desktop/none-all-orc $PROPS"
+## both sides need this one, the server then publishes a filter of its signatures
+## PROPS="-Dcawd.stripecol.filter=true $PROPS"
+## both sides need this one too, queries carry 8 byte signature prefixes and whole signatures are only compared on a match
+## PROPS="-Dcawd.stripecol.shortSignatures=true $PROPS"
+## and this one, large columns the server misses go in content defined pieces (cawd.cdc.minSize/avgSize/maxSize)
+## PROPS="-Dcawd.stripecol.cdc=true -Dcawd.stripecol.cdc.minColumn=65536 $PROPS"
+## and this one, each stripe is negotiated in a single exchange (stripe and column signatures together)
+## PROPS="-Dcawd.stripecol.manifest=true $PROPS"
+## both sides need this one, each data stream of a column is a chunk of its own
+## PROPS="-Dcawd.orc.streamChunks=true $PROPS"
+## threads signing stripes, and how many stripes they read ahead of the transfer (each one is kept in memory)
+## PROPS="-Dcawd.streamer.hashThreads=8 -Dcawd.streamer.hashAhead=4 $PROPS"
+## map stripes instead of reading them, they are signed in place and only misses are copied
+## PROPS="-Dcawd.streamer.mmap=true $PROPS"
+## keep chunks and signatures of sent files here, so unchanged files are not parsed or signed again
+## PROPS="-Dcawd.streamer.signatureCache=/tmp/cawd-signatures $PROPS"
 PROPS="-Dcawd.stripecol.warmupCount=0 $PROPS"
 PROPS="-Dcawd.client.filters=.orc $PROPS"
 PROPS="-Dcawd.streamer.type=vmware.speedup.cawd.orc.net.StripePlusColumnORCStreamer $PROPS"
@@ -7,6 +7,32 @@ PROPS=""
 ## PROPS="-Dcawd.server.host=1270.0.1 $PROPS"
 ## PROPS="-Dcawd.server.port=2000 $PROPS"
 ## PROPS="-Dcawd.server.outputFolder=/tmp/server $PROPS"
+## index what is already in the output folder before accepting connections
+## PROPS="-Dcawd.server.warmStart=true $PROPS"
+## seed the stores from snapshots when starting, and write them when exiting
+## PROPS="-Dcawd.server.snapshot.import=/tmp/server-snapshot -Dcawd.server.snapshot.export=/tmp/server-snapshot $PROPS"
+## PROPS="-Dcawd.store.dir=/tmp/server-store $PROPS"
+## PROPS="-Dcawd.store.capacity=4294967296 $PROPS"
+## with a capacity, what does not fit on heap can go off heap and then to local disk
+## PROPS="-Dcawd.store.offHeapCapacity=17179869184 -Dcawd.store.coldDir=/tmp/server-cold $PROPS"
+## and the disk tier can be bounded too, the oldest chunks in it are dropped first
+## PROPS="-Dcawd.store.coldCapacity=68719476736 $PROPS"
+## keep chunk content compressed in the stores (a persistent store keeps the setting it was created with)
+## PROPS="-Dcawd.store.compress=true $PROPS"
+## and on java 9 or later the compressor needs this one too
+## PROPS="--add-opens java.base/java.nio=ALL-UNNAMED $PROPS"
+## how chunks are signed (sha1, sha256 or murmur3), clients switch to what the server uses
+## PROPS="-Dcawd.signature=murmur3 $PROPS"
+## both sides need this one, the server then publishes a filter of its signatures
+## PROPS="-Dcawd.stripecol.filter=true $PROPS"
+## both sides need this one too, queries carry 8 byte signature prefixes and whole signatures are only compared on a match
+## PROPS="-Dcawd.stripecol.shortSignatures=true $PROPS"
+## and this one, large columns the server misses go in content defined pieces (cawd.cdc.minSize/avgSize/maxSize)
+## PROPS="-Dcawd.stripecol.cdc=true -Dcawd.stripecol.cdc.minColumn=65536 $PROPS"
+## and this one, each stripe is negotiated in a single exchange (stripe and column signatures together)
+## PROPS="-Dcawd.stripecol.manifest=true $PROPS"
+## both sides need this one, each data stream of a column is a chunk of its own
+## PROPS="-Dcawd.orc.streamChunks=true $PROPS"
 PROPS="-Dcawd.stripecol.warmupCount=0 $PROPS"
 PROPS="-Dcawd.receiver.type=vmware.speedup.cawd.orc.net.StripePlusColumnORCReceiver $PROPS"
 ## log file...
@@ -0,0 +1,21 @@
+#########
+## source the env first
+#########
+source environment.sh
+## server properties, if not set default values will be used...
+PROPS=""
+## PROPS="-Dcawd.server.host=1270.0.1 $PROPS"
+## PROPS="-Dcawd.server.port=2000 $PROPS"
+## PROPS="-Dcawd.server.outputFolder=/tmp/server $PROPS"
+## index what is already in the output folder before accepting connections
+## PROPS="-Dcawd.server.warmStart=true $PROPS"
+## seed the stores from snapshots when starting, and write them when exiting
+## PROPS="-Dcawd.server.snapshot.import=/tmp/server-snapshot -Dcawd.server.snapshot.export=/tmp/server-snapshot $PROPS"
+## PROPS="-Dcawd.store.dir=/tmp/server-store $PROPS"
+PROPS="-Dcawd.receiver.type=vmware.speedup.cawd.parquet.net.HierarchicalParquetReceiver $PROPS"
+## log file...
+LOG_PROPS="-Dlog4j.configurationFile=$BASE_DIR/conf/server-default.xml"
+## main class
+MAIN="vmware.speedup.cawd.main.ParquetServerMain"
+## now start the server...
+java $JVM_ARGS -cp $MAIN_JAR:$CLASS_PATH $PROPS $LOG_PROPS $MAIN
@@ -9,6 +9,12 @@ PROPS=""
 ## PROPS="-Dcawd.client.input=/tmp/client $PROPS"
 PROPS="-Dcawd.client.input=/home/administrator/dedup-data/tpcds10.parquet/ $PROPS"
 PROPS="-Dcawd.client.filters=.parquet $PROPS"
+## split data pages v2 into levels and values (both sides)
+## PROPS="-Dcawd.parquet.levelChunks=true $PROPS"
+## dedup each dictionary page once per session, then only reference it (both sides)
+## PROPS="-Dcawd.parquet.sessionDictionaries=true $PROPS"
+## and how many bytes of them a session keeps, the least recently used go first (both sides)
+## PROPS="-Dcawd.parquet.sessionDictionaries.capacity=67108864 $PROPS"
 PROPS="-Dcawd.streamer.type=vmware.speedup.cawd.parquet.net.NaiveParquetStreamer $PROPS"
 ## log file...
 LOG_PROPS="-Dlog4j.configurationFile=$BASE_DIR/conf/client-default.xml"
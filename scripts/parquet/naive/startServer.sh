@@ -7,6 +7,17 @@ PROPS=""
 ## PROPS="-Dcawd.server.host=1270.0.1 $PROPS"
 ## PROPS="-Dcawd.server.port=2000 $PROPS"
 ## PROPS="-Dcawd.server.outputFolder=/tmp/server $PROPS"
+## index what is already in the output folder before accepting connections
+## PROPS="-Dcawd.server.warmStart=true $PROPS"
+## seed the stores from snapshots when starting, and write them when exiting
+## PROPS="-Dcawd.server.snapshot.import=/tmp/server-snapshot -Dcawd.server.snapshot.export=/tmp/server-snapshot $PROPS"
+## PROPS="-Dcawd.store.dir=/tmp/server-store $PROPS"
+## split data pages v2 into levels and values (both sides)
+## PROPS="-Dcawd.parquet.levelChunks=true $PROPS"
+## dedup each dictionary page once per session, then only reference it (both sides)
+## PROPS="-Dcawd.parquet.sessionDictionaries=true $PROPS"
+## and how many bytes of them a session keeps, the least recently used go first (both sides)
+## PROPS="-Dcawd.parquet.sessionDictionaries.capacity=67108864 $PROPS"
 PROPS="-Dcawd.receiver.type=vmware.speedup.cawd.parquet.net.NaiveParquetReceiver $PROPS"
 ## log file...
 LOG_PROPS="-Dlog4j.configurationFile=$BASE_DIR/conf/server-default.xml"
@@ -3,6 +3,7 @@ package vmware.speedup.cawd.common;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public class BytesUtil {   
 	 
@@ -54,6 +55,13 @@ public class BytesUtil {
 			is.readFully(bb, 0, size);
 			return bb;
 		}
+	 
+	 // like System.arraycopy, from a buffer (whose position does not move). The offset is from its position
+	 public static void copy(ByteBuffer source, int offset, byte[] target, int targetOffset, int length) {
+		 ByteBuffer from = source.duplicate();
+		 from.position(source.position() + offset);
+		 from.get(target, targetOffset, length);
+	 }
 	
 }
 
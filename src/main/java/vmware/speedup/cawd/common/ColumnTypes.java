@@ -1,12 +1,20 @@
 package vmware.speedup.cawd.common;
 
+import org.apache.orc.TypeDescription;
+
 public class ColumnTypes {
 
 	public static enum ORCColumnType {
 		Double,
 		Float,
 		String,
-		Other;
+		Other,
+		// compound columns (keep new ones at the end, signature caches store ordinals)
+		Struct,
+		List,
+		Map,
+		Union,
+		Decimal;
 		
 		public static ORCColumnType getTypeByName(String name) {
 			switch(name) {
@@ -16,6 +24,22 @@ public class ColumnTypes {
 				default       : return Other;
 			}
 		}
+		
+		public static ORCColumnType getTypeByCategory(TypeDescription.Category category) {
+			switch(category) {
+				case DOUBLE  : return Double;
+				case FLOAT   : return Float;
+				case STRING  :
+				case CHAR    :
+				case VARCHAR : return String;
+				case DECIMAL : return Decimal;
+				case STRUCT  : return Struct;
+				case LIST    : return List;
+				case MAP     : return Map;
+				case UNION   : return Union;
+				default      : return Other;
+			}
+		}
 	}
 	
 }
@@ -105,6 +105,50 @@ public class TransferStats {
 			SmallColumn,
 			StripeSize,
 			FooterSize,
+			EvictedChunks,
+			EvictedBytes,
+			EvictionMiss,
+			FilteredQuery,
+			FilterBytes,
+			TierDemotion,
+			WarmTierHit,
+			ColdTierHit,
+			StoredContentBytes,
+			RawContentBytes,
+			WarmStartFiles,
+			WarmStartBytes,
+			WarmStartTime,
+			SignatureWait,
+			ShortQuery,
+			ShortQueryConfirm,
+			ShortQueryCollision,
+			SubchunkHit,
+			SubchunkMiss,
+			PresentStreamHit,
+			PresentStreamMiss,
+			DataStreamHit,
+			DataStreamMiss,
+			LengthStreamHit,
+			LengthStreamMiss,
+			DictionaryStreamHit,
+			DictionaryStreamMiss,
+			SecondaryStreamHit,
+			SecondaryStreamMiss,
+			OtherStreamHit,
+			OtherStreamMiss,
+			RowGroupHit,
+			RowGroupMiss,
+			PageHit,
+			PageMiss,
+			RepetitionLevelsHit,
+			RepetitionLevelsMiss,
+			DefinitionLevelsHit,
+			DefinitionLevelsMiss,
+			DataValuesHit,
+			DataValuesMiss,
+			DictionaryPageHit,
+			DictionaryPageMiss,
+			SessionDictionaryHit,
 		}
 		
 		public enum Unit {
@@ -126,6 +170,14 @@ public class TransferStats {
 			this.ocurrences = 1;
 		}
 		
+		public Type getType() {
+			return type;
+		}
+		
+		public double getValue() {
+			return value;
+		}
+		
 		public double percentile(double percentile) {
 		    int index = (int) Math.ceil(percentile / 100.0 * values.size());
 		    return values.get(index-1);
@@ -0,0 +1,152 @@
+package vmware.speedup.cawd.dedup;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+// Snapshot of what a chunk store keeps, so a new receiver can start from what another one learned instead of
+// learning it again over the network. Both sides stream, so a snapshot is written and loaded at disk speed. It
+// looks like <magic-long><version-int><signatureSize-int><nameSize-int><name><record>...<-1-int><count-long><crc-long>
+// where each record is <payloadSize-int><signature><payload> and the crc covers all the records. Payloads are
+// what the store writes to its log (see IndexedChunkStore.encode()). Recipes only keep the signatures of
+// their links, so they go with snapshots of the stores that keep those.
+public class ChunkStoreSnapshot {
+
+	private static final long MAGIC = 0x43415744534e4150L;
+	private static final int VERSION = 1;
+	private static final int END = -1;
+
+	public static class Writer implements Closeable {
+
+		private DataOutputStream os = null;
+		private CRC32 crc = new CRC32();
+		private long count = 0;
+		private int signatureSize = 0;
+
+		public Writer(OutputStream os, String name, int signatureSize) throws IOException {
+			this.os = new DataOutputStream(os);
+			this.signatureSize = signatureSize;
+			byte[] nameBytes = name.getBytes("UTF-8");
+			this.os.writeLong(MAGIC);
+			this.os.writeInt(VERSION);
+			this.os.writeInt(signatureSize);
+			this.os.writeInt(nameBytes.length);
+			this.os.write(nameBytes);
+		}
+
+		public void write(byte[] signature, byte[] payload) throws IOException {
+			if(signature.length != signatureSize) {
+				throw new IOException("Expected signatures of " + signatureSize + " bytes, got " + signature.length);
+			}
+			os.writeInt(payload.length);
+			os.write(signature);
+			os.write(payload);
+			crc.update(signature);
+			crc.update(payload);
+			++count;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		// writes the trailer, the stream stays open
+		@Override
+		public void close() throws IOException {
+			os.writeInt(END);
+			os.writeLong(count);
+			os.writeLong(crc.getValue());
+			os.flush();
+		}
+
+	}
+
+	public static class Reader implements Closeable {
+
+		private DataInputStream is = null;
+		private CRC32 crc = new CRC32();
+		private long count = 0;
+		private String name = null;
+		private byte[] signature = null;
+		private byte[] payload = null;
+
+		public Reader(InputStream is, int signatureSize) throws IOException {
+			this.is = new DataInputStream(is);
+			if(this.is.readLong() != MAGIC) {
+				throw new IOException("Not a chunk store snapshot");
+			}
+			int version = this.is.readInt();
+			if(version != VERSION) {
+				throw new IOException("Unsupported snapshot version " + version + ", expected " + VERSION);
+			}
+			int size = this.is.readInt();
+			if(size != signatureSize) {
+				throw new IOException("Snapshot has signatures of " + size + " bytes, expected " + signatureSize);
+			}
+			byte[] nameBytes = new byte[this.is.readInt()];
+			this.is.readFully(nameBytes);
+			this.name = new String(nameBytes, "UTF-8");
+			this.signature = new byte[signatureSize];
+		}
+
+		// the name of the store that wrote it
+		public String getName() {
+			return name;
+		}
+
+		// moves to the next record. Returns false at the end, once the trailer checks
+		public boolean next() throws IOException {
+			try {
+				int size = is.readInt();
+				if(size == END) {
+					long expectedCount = is.readLong();
+					long expectedCrc = is.readLong();
+					if(expectedCount != count || expectedCrc != crc.getValue()) {
+						throw new IOException("Snapshot is corrupt, read " + count + " records of " + expectedCount);
+					}
+					return false;
+				}
+				if(size < 0) {
+					throw new IOException("Snapshot is corrupt, bad record size " + size);
+				}
+				// a new array each time, the store keeps it
+				signature = new byte[signature.length];
+				is.readFully(signature);
+				payload = new byte[size];
+				is.readFully(payload);
+			}
+			catch(EOFException e) {
+				throw new IOException("Snapshot is truncated after " + count + " records", e);
+			}
+			crc.update(signature);
+			crc.update(payload);
+			++count;
+			return true;
+		}
+
+		public byte[] getSignature() {
+			return signature;
+		}
+
+		public byte[] getPayload() {
+			return payload;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		// the stream stays open
+		@Override
+		public void close() throws IOException {
+
+		}
+
+	}
+
+}
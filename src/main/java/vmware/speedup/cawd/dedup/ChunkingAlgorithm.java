@@ -1,8 +1,9 @@
 package vmware.speedup.cawd.dedup;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
 import java.util.List;
 
 
@@ -10,17 +11,87 @@ public abstract class ChunkingAlgorithm<T extends ChunkingAlgorithm.Chunk> {
 	
 	public abstract List<T> eagerChunking(String fileName) throws IOException;
 	
+	// chunks of a file in file order, found as they are asked for, so callers can work on the first ones
+	// before the whole file is parsed. Callers close it when they are done (or give up)
+	public interface ChunkIterator<T> extends Closeable {
+		boolean hasNext() throws IOException;
+		T next() throws IOException;
+	}
+	
+	// algorithms that can find chunks one at a time override this one, by default we just walk the eager list
+	public ChunkIterator<T> lazyChunking(String fileName) throws IOException {
+		return iterate(eagerChunking(fileName));
+	}
+	
+	public static <T> ChunkIterator<T> iterate(List<T> chunks) {
+		final Iterator<T> iterator = chunks.iterator();
+		return new ChunkIterator<T>() {
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+			@Override
+			public T next() throws IOException {
+				if(!iterator.hasNext()) {
+					throw new IOException("No more chunks");
+				}
+				return iterator.next();
+			}
+			@Override
+			public void close() {}
+		};
+	}
+	
+	// same chunks, and every chunk we give away is appended to seen too
+	public static <T> ChunkIterator<T> recording(final ChunkIterator<T> chunks, final List<T> seen) {
+		return new ChunkIterator<T>() {
+			@Override
+			public boolean hasNext() throws IOException {
+				return chunks.hasNext();
+			}
+			@Override
+			public T next() throws IOException {
+				T chunk = chunks.next();
+				seen.add(chunk);
+				return chunk;
+			}
+			@Override
+			public void close() throws IOException {
+				chunks.close();
+			}
+		};
+	}
+	
+	// every SignatureProvider gives signatures of this size
 	public static final int SHA1_SIZE = 20; 
 	
-	public byte[] naiveSHA1(byte[] buffer) throws NoSuchAlgorithmException {
-		MessageDigest md = MessageDigest.getInstance("SHA-1"); 
-		return md.digest(buffer);
+	private SignatureProvider signatures = null;
+	
+	// cawd.signature picks the provider, streamers switch to the one of the receiver when they connect
+	public SignatureProvider getSignatureProvider() throws NoSuchAlgorithmException {
+		if(signatures == null) {
+			signatures = SignatureProvider.getDefault();
+		}
+		return signatures;
+	}
+	
+	public void setSignatureProvider(SignatureProvider signatures) {
+		this.signatures = signatures;
+	}
+	
+	public byte[] signature(byte[] buffer) throws NoSuchAlgorithmException {
+		return getSignatureProvider().sign(buffer);
 	}
 	
 	public static abstract class Chunk {
 		
 		public abstract int doHashCode();
 		public abstract boolean doEquals(Object other);
+
+		public abstract byte[] getSignature();
+		public abstract void setSignature(byte[] signature);
+		public abstract byte[] getContent();
+		public abstract void setContent(byte[] content);
 		
 		@Override
 		public int hashCode() {
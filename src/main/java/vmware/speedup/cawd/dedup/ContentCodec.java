@@ -0,0 +1,141 @@
+package vmware.speedup.cawd.dedup;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.airlift.compress.Compressor;
+import io.airlift.compress.Decompressor;
+import io.airlift.compress.lz4.Lz4Compressor;
+import io.airlift.compress.lz4.Lz4Decompressor;
+import io.airlift.compress.zstd.ZstdCompressor;
+import io.airlift.compress.zstd.ZstdDecompressor;
+
+// Compresses chunk content at rest, picking the codec for each chunk from an order-0 entropy estimate over a
+// sample of its bytes (in bits per byte):
+//   - at or above cawd.store.compress.rawEntropy (7.5) the content is already compressed (or random), we keep it raw
+//   - at or below cawd.store.compress.lz4Entropy (6.0) it is redundant enough for lz4, which is the cheapest to undo
+//   - in between, zstd, since its entropy coder gains where lz4 finds few matches
+// Content that does not shrink by at least 1/16 is kept raw too. Stored content looks like <codec-byte><content>
+// for raw content and <codec-byte><rawSize-int><compressed> otherwise. Compressors keep state, so each thread
+// has its own.
+public class ContentCodec {
+
+	public static final String COMPRESS = "cawd.store.compress";
+
+	private static final byte RAW = 0;
+	private static final byte LZ4 = 1;
+	private static final byte ZSTD = 2;
+	private static final int SAMPLE_SIZE = 4096;
+	private static final int HEADER_SIZE = 1 + Integer.BYTES;
+
+	private double rawEntropy = 0;
+	private double lz4Entropy = 0;
+	private AtomicLong rawBytes = new AtomicLong();
+	private AtomicLong storedBytes = new AtomicLong();
+	private AtomicLong[] chunksByCodec = new AtomicLong[] {new AtomicLong(), new AtomicLong(), new AtomicLong()};
+
+	private static final ThreadLocal<Compressor[]> compressors = new ThreadLocal<Compressor[]>() {
+		@Override
+		protected Compressor[] initialValue() {
+			return new Compressor[] {null, new Lz4Compressor(), new ZstdCompressor()};
+		}
+	};
+
+	private static final ThreadLocal<Decompressor[]> decompressors = new ThreadLocal<Decompressor[]>() {
+		@Override
+		protected Decompressor[] initialValue() {
+			return new Decompressor[] {null, new Lz4Decompressor(), new ZstdDecompressor()};
+		}
+	};
+
+	public ContentCodec() {
+		this(Double.valueOf(System.getProperty("cawd.store.compress.rawEntropy", "7.5")),
+				Double.valueOf(System.getProperty("cawd.store.compress.lz4Entropy", "6.0")));
+	}
+
+	public ContentCodec(double rawEntropy, double lz4Entropy) {
+		this.rawEntropy = rawEntropy;
+		this.lz4Entropy = lz4Entropy;
+	}
+
+	// bits per byte of a sample of the content, spread over all of it
+	public static double entropy(byte[] content) {
+		if(content.length == 0) {
+			return 0;
+		}
+		int[] counts = new int[256];
+		int step = Math.max(1, content.length / SAMPLE_SIZE);
+		int sampled = 0;
+		for(int i = 0; i < content.length; i += step) {
+			++counts[content[i] & 0xff];
+			++sampled;
+		}
+		double entropy = 0;
+		for(int count : counts) {
+			if(count > 0) {
+				double p = (double)count / sampled;
+				entropy -= p * Math.log(p);
+			}
+		}
+		return entropy / Math.log(2);
+	}
+
+	public byte[] compress(byte[] content) {
+		double entropy = entropy(content);
+		byte codec = entropy >= rawEntropy? RAW : entropy <= lz4Entropy? LZ4 : ZSTD;
+		byte[] stored = null;
+		if(codec != RAW) {
+			Compressor compressor = compressors.get()[codec];
+			byte[] buffer = new byte[HEADER_SIZE + compressor.maxCompressedLength(content.length)];
+			int size = compressor.compress(content, 0, content.length, buffer, HEADER_SIZE, buffer.length - HEADER_SIZE);
+			if(HEADER_SIZE + size <= content.length - content.length / 16) {
+				buffer[0] = codec;
+				buffer[1] = (byte)(content.length >>> 24);
+				buffer[2] = (byte)(content.length >>> 16);
+				buffer[3] = (byte)(content.length >>> 8);
+				buffer[4] = (byte)content.length;
+				stored = Arrays.copyOf(buffer, HEADER_SIZE + size);
+			}
+			else {
+				codec = RAW;
+			}
+		}
+		if(codec == RAW) {
+			stored = new byte[1 + content.length];
+			stored[0] = RAW;
+			System.arraycopy(content, 0, stored, 1, content.length);
+		}
+		rawBytes.addAndGet(content.length);
+		storedBytes.addAndGet(stored.length);
+		chunksByCodec[codec].incrementAndGet();
+		return stored;
+	}
+
+	public byte[] decompress(byte[] stored) {
+		byte codec = stored[0];
+		if(codec == RAW) {
+			return Arrays.copyOfRange(stored, 1, stored.length);
+		}
+		int size = ((stored[1] & 0xff) << 24) | ((stored[2] & 0xff) << 16) | ((stored[3] & 0xff) << 8) | (stored[4] & 0xff);
+		byte[] content = new byte[size];
+		decompressors.get()[codec].decompress(stored, HEADER_SIZE, stored.length - HEADER_SIZE, content, 0, size);
+		return content;
+	}
+
+	// raw bytes we were given since we started
+	public long getRawBytes() {
+		return rawBytes.get();
+	}
+
+	// and what they took once compressed
+	public long getStoredBytes() {
+		return storedBytes.get();
+	}
+
+	@Override
+	public String toString() {
+		return "raw=" + chunksByCodec[RAW].get() + ", lz4=" + chunksByCodec[LZ4].get() + ", zstd=" + chunksByCodec[ZSTD].get()
+				+ ", " + storedBytes.get() + "/" + rawBytes.get() + " bytes";
+	}
+
+}
@@ -0,0 +1,107 @@
+package vmware.speedup.cawd.dedup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+// Content defined chunking with a gear hash, as FastCDC does it: no cut point before cawd.cdc.minSize (2KB),
+// a forced one at cawd.cdc.maxSize (64KB), and normalized chunking around cawd.cdc.avgSize (8KB), that is, a
+// mask with more bits before the average size and one with fewer bits after it, so sizes gather around the
+// average. Masks take the top bits of the hash, which depend on the last 64 bytes we saw. Cut points only
+// depend on the content around them, so an edit only moves the cut points next to it and the pieces before
+// and after it keep their signatures.
+// The gear table comes from a fixed seed, so every process cuts the same content in the same places.
+public class FastCDC {
+
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x63617764L);
+		for(int i = 0; i < GEAR.length; ++i) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	private int minSize = 0;
+	private int avgSize = 0;
+	private int maxSize = 0;
+	private long smallMask = 0;
+	private long largeMask = 0;
+
+	public FastCDC() {
+		this(Integer.valueOf(System.getProperty("cawd.cdc.minSize", "2048")),
+				Integer.valueOf(System.getProperty("cawd.cdc.avgSize", "8192")),
+				Integer.valueOf(System.getProperty("cawd.cdc.maxSize", "65536")));
+	}
+
+	public FastCDC(int minSize, int avgSize, int maxSize) {
+		if(minSize <= 0 || minSize > avgSize || avgSize > maxSize) {
+			throw new IllegalArgumentException("Bad chunk sizes: min=" + minSize + ", avg=" + avgSize + ", max=" + maxSize);
+		}
+		this.minSize = minSize;
+		this.avgSize = avgSize;
+		this.maxSize = maxSize;
+		// normalization level 2
+		int bits = 31 - Integer.numberOfLeadingZeros(avgSize);
+		this.smallMask = -1L << (64 - Math.min(63, bits + 2));
+		this.largeMask = -1L << (64 - Math.max(1, bits - 2));
+	}
+
+	// size of the chunk starting at offset, for content that ends at end
+	public int nextChunk(ByteBuffer content, int offset, int end) {
+		int remaining = end - offset;
+		if(remaining <= minSize) {
+			return remaining;
+		}
+		int limit = Math.min(remaining, maxSize);
+		int normal = Math.min(limit, avgSize);
+		long hash = 0;
+		int i = minSize;
+		for(; i < normal; ++i) {
+			hash = (hash << 1) + GEAR[content.get(offset + i) & 0xff];
+			if((hash & smallMask) == 0) {
+				return i + 1;
+			}
+		}
+		for(; i < limit; ++i) {
+			hash = (hash << 1) + GEAR[content.get(offset + i) & 0xff];
+			if((hash & largeMask) == 0) {
+				return i + 1;
+			}
+		}
+		return limit;
+	}
+
+	// sizes of the chunks of what remains in the buffer, which is left as it was
+	public int[] chunkSizes(ByteBuffer content) {
+		int[] sizes = new int[Math.max(16, content.remaining() / avgSize * 2)];
+		int count = 0;
+		int offset = content.position();
+		while(offset < content.limit()) {
+			int size = nextChunk(content, offset, content.limit());
+			if(count == sizes.length) {
+				int[] larger = new int[sizes.length * 2];
+				System.arraycopy(sizes, 0, larger, 0, count);
+				sizes = larger;
+			}
+			sizes[count++] = size;
+			offset += size;
+		}
+		int[] result = new int[count];
+		System.arraycopy(sizes, 0, result, 0, count);
+		return result;
+	}
+
+	public int[] chunkSizes(byte[] content) {
+		return chunkSizes(ByteBuffer.wrap(content));
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public String toString() {
+		return "min=" + minSize + ", avg=" + avgSize + ", max=" + maxSize;
+	}
+
+}
@@ -0,0 +1,759 @@
+package vmware.speedup.cawd.dedup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import vmware.speedup.cawd.common.TransferStats;
+import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+
+// Chunk store that keeps its signatures in an off heap SignatureIndex. The index maps each signature to the
+// position of the chunk in a plain list, so lookups never need to build a key chunk. Named stores can also
+// be persistent: when cawd.store.dir is set, chunks go to <dir>/<name>.log (a MappedChunkLog), the index
+// maps signatures to record ids and it is rebuilt from the log when the store is opened again.
+// Stores are thread safe. Signatures are spread over cawd.store.stripes lock stripes, each one with its own
+// index, chunks and eviction policy, so threads working on different stripes never wait for each other.
+// Lookups only take a read lock, except in bounded stores (a hit moves the chunk in the policy), and an
+// insert checks for the signature under the write lock, so concurrent inserts keep a single copy.
+// In memory stores can be bounded in bytes (cawd.store.capacity, or cawd.store.<name>.capacity for a single
+// store). Bounded stores evict with W-TinyLFU and remember what they evicted, so we can tell how many misses
+// the bound cost us. What they evict can go down to LowerTiers instead of leaving the store.
+// Content can also be shared (shareContent()), compressed (compressContent()) and exported (exportSnapshot()).
+public abstract class IndexedChunkStore<T extends ChunkingAlgorithm.Chunk, K extends ChunkingAlgorithm<T>> extends ColumnarChunkStore<T, K> {
+
+	private static final Logger logger = LogManager.getLogger(IndexedChunkStore.class);
+
+	public static final String STORE_DIR = "cawd.store.dir";
+	public static final String STORE_CAPACITY = "cawd.store.capacity";
+	public static final String STORE_STRIPES = "cawd.store.stripes";
+	public static final String STORE_OFF_HEAP_CAPACITY = "cawd.store.offHeapCapacity";
+	public static final String STORE_COLD_DIR = "cawd.store.coldDir";
+	public static final String STORE_COLD_CAPACITY = "cawd.store.coldCapacity";
+
+	private static final int MAX_STRIPES = 256;
+	// bounded stripes smaller than this would turn away large chunks
+	private static final long MIN_STRIPE_CAPACITY = 64L << 20;
+
+	private String name = null;
+	private Stripe[] stripes = null;
+	private int stripeMask = 0;
+	private MappedChunkLog log = null;
+	private RefCountedBlobStore blobs = null;
+	private long capacity = 0;
+	// only for tiered stores
+	private LowerTiers tiers = null;
+	// only when content is compressed
+	private ContentCodec codec = null;
+
+	// one lock stripe. A signature always lands in the same one
+	private class Stripe {
+
+		private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		private SignatureIndex index = null;
+		private List<T> chunks = null;
+		// only for bounded stores
+		private WindowTinyLfuPolicy policy = null;
+		private SignatureIndex evicted = null;
+		private int[] freePositions = new int[0];
+		private int numFreePositions = 0;
+		private long lookups = 0;
+		private long evictions = 0;
+		private long evictedBytes = 0;
+		private long evictionMisses = 0;
+		// only for tiered stores
+		private LowerTiers.Part tiers = null;
+
+		private Stripe(int initialCapacity) {
+			this.index = new SignatureIndex(ChunkingAlgorithm.SHA1_SIZE, initialCapacity);
+		}
+
+		// lookups in bounded stripes update the policy, so they cannot share the lock
+		private Lock lookupLock() {
+			return policy != null? lock.writeLock() : lock.readLock();
+		}
+
+		private void bound(long capacity) {
+			this.policy = new WindowTinyLfuPolicy(capacity, new WindowTinyLfuPolicy.EvictionListener() {
+				@Override
+				public void onEviction(int position, int weight) {
+					evict(position, weight);
+				}
+			});
+			this.evicted = new SignatureIndex(ChunkingAlgorithm.SHA1_SIZE, 64);
+		}
+
+		private void addTiers(long warmCapacity) {
+			this.tiers = IndexedChunkStore.this.tiers.addPart(lock, warmCapacity, new LowerTiers.Listener() {
+				@Override
+				public void onDropped(byte[] signature) {
+					forget(signature);
+				}
+			});
+		}
+
+		private boolean inLowerTier(byte[] signature, int offset) {
+			return tiers != null && tiers.contains(signature, offset);
+		}
+
+		private boolean inLowerTier(ByteBuffer signature, int offset) {
+			return tiers != null && tiers.contains(signature, offset);
+		}
+
+		// moves a chunk the heap let go one tier down. Returns false if it could not go anywhere
+		private boolean demote(byte[] signature, byte[] payload) {
+			return tiers != null && tiers.demote(signature, payload);
+		}
+
+		// brings a chunk from a lower tier back to the heap. Returns null if no tier has it
+		private T promote(byte[] signature) {
+			byte[] payload = tiers.promote(signature);
+			if(payload == null) {
+				return null;
+			}
+			// lower tiers hold what the heap held, so there is nothing to compress again
+			T chunk = decode(signature, payload);
+			keep(signature, chunk, SignatureIndex.NOT_FOUND);
+			return plain(chunk);
+		}
+
+		private T put(byte[] signature, T chunk, boolean replace) {
+			int position = index.get(signature);
+			if(position != SignatureIndex.NOT_FOUND && !replace) {
+				return chunks != null? plain(chunks.get(position)) : chunk;
+			}
+			if(position == SignatureIndex.NOT_FOUND && inLowerTier(signature, 0)) {
+				if(!replace) {
+					return promote(signature);
+				}
+				tiers.drop(signature);
+			}
+			if(chunk.getSignature() == null) {
+				chunk.setSignature(signature);
+			}
+			if(codec == null) {
+				keep(signature, chunk, position);
+				return chunk;
+			}
+			keep(signature, compact(codec, chunk), position);
+			return chunk;
+		}
+
+		// keeps the chunk as it is (compressed already, if we compress) at this position, or at a new one
+		private void keep(byte[] signature, T chunk, int position) {
+			if(log == null && blobs != null) {
+				retainContent(blobs, chunk);
+			}
+			if(log != null) {
+				try {
+					index.put(signature, log.append(signature, encode(chunk)));
+				}
+				catch(IOException e) {
+					// the store is a cache, so losing a chunk is not fatal
+					logger.error("Could not append chunk to log, chunk will not be stored", e);
+				}
+			}
+			else if(position != SignatureIndex.NOT_FOUND) {
+				if(blobs != null) {
+					releaseContent(blobs, chunks.get(position));
+				}
+				chunks.set(position, chunk);
+				if(policy != null) {
+					policy.update(position, weigh(chunk));
+				}
+			}
+			else if(policy == null) {
+				index.put(signature, chunks.size());
+				chunks.add(chunk);
+			}
+			else {
+				int weight = weigh(chunk);
+				if(weight > policy.getMaximumBytes()) {
+					if(!demote(signature, encode(chunk))) {
+						logger.debug("Chunk of {} bytes is larger than a stripe of store {}, not keeping it", weight, name);
+					}
+					if(blobs != null) {
+						releaseContent(blobs, chunk);
+					}
+					return;
+				}
+				if(numFreePositions > 0) {
+					position = freePositions[--numFreePositions];
+					chunks.set(position, chunk);
+				}
+				else {
+					position = chunks.size();
+					chunks.add(chunk);
+				}
+				index.put(signature, position);
+				evicted.remove(signature);
+				policy.add(position, WindowTinyLfuPolicy.keyOf(signature, 0), weight);
+			}
+		}
+
+		private void evict(int position, int weight) {
+			T chunk = chunks.get(position);
+			index.remove(chunk.getSignature());
+			chunks.set(position, null);
+			if(blobs != null) {
+				releaseContent(blobs, chunk);
+			}
+			if(numFreePositions == freePositions.length) {
+				freePositions = Arrays.copyOf(freePositions, Math.max(16, freePositions.length * 2));
+			}
+			freePositions[numFreePositions++] = position;
+			++evictions;
+			evictedBytes += weight;
+			if(!demote(chunk.getSignature(), encode(chunk))) {
+				forget(chunk.getSignature());
+			}
+		}
+
+		// the chunk left the store for good
+		private void forget(byte[] signature) {
+			// we only need to remember about as many evictions as we keep chunks
+			if(evicted.size() > Math.max(64, index.size())) {
+				evicted = new SignatureIndex(ChunkingAlgorithm.SHA1_SIZE, 64);
+			}
+			evicted.putIfAbsent(signature, 0);
+		}
+
+		private T chunkAt(int position) {
+			if(position == SignatureIndex.NOT_FOUND) {
+				return null;
+			}
+			if(log != null) {
+				return plain(decode(log.readSignature(position), log.readPayload(position)));
+			}
+			return plain(chunks.get(position));
+		}
+
+		private void countLookup(int position, long key, boolean wasEvicted) {
+			++lookups;
+			if(position != SignatureIndex.NOT_FOUND) {
+				policy.onHit(position);
+			}
+			else {
+				policy.onMiss(key);
+				if(wasEvicted) {
+					++evictionMisses;
+				}
+			}
+		}
+
+		private T find(byte[] buffer, int offset) {
+			int position = index.get(buffer, offset);
+			T promoted = null;
+			if(position == SignatureIndex.NOT_FOUND && inLowerTier(buffer, offset)) {
+				promoted = promote(Arrays.copyOfRange(buffer, offset, offset + ChunkingAlgorithm.SHA1_SIZE));
+				position = index.get(buffer, offset);
+			}
+			if(policy != null) {
+				countLookup(position, WindowTinyLfuPolicy.keyOf(buffer, offset),
+						promoted == null && position == SignatureIndex.NOT_FOUND && evicted.get(buffer, offset) != SignatureIndex.NOT_FOUND);
+			}
+			return promoted != null? promoted : chunkAt(position);
+		}
+
+		private T find(ByteBuffer buffer, int offset) {
+			int position = index.get(buffer, offset);
+			T promoted = null;
+			if(position == SignatureIndex.NOT_FOUND && inLowerTier(buffer, offset)) {
+				byte[] signature = new byte[ChunkingAlgorithm.SHA1_SIZE];
+				for(int i = 0; i < signature.length; ++i) {
+					signature[i] = buffer.get(offset + i);
+				}
+				promoted = promote(signature);
+				position = index.get(buffer, offset);
+			}
+			if(policy != null) {
+				countLookup(position, WindowTinyLfuPolicy.keyOf(buffer, offset),
+						promoted == null && position == SignatureIndex.NOT_FOUND && evicted.get(buffer, offset) != SignatureIndex.NOT_FOUND);
+			}
+			return promoted != null? promoted : chunkAt(position);
+		}
+
+		private int size() {
+			return index.size() + (tiers != null? tiers.size() : 0);
+		}
+
+	}
+
+	public IndexedChunkStore() {
+		this.name = getClass().getSimpleName();
+		createStripes(true);
+	}
+
+	public IndexedChunkStore(String name) {
+		this.name = name;
+		if(Boolean.valueOf(System.getProperty(ContentCodec.COMPRESS, "false"))) {
+			this.codec = new ContentCodec();
+		}
+		String dir = System.getProperty(STORE_DIR);
+		if(dir == null) {
+			createStripes(true);
+			long capacity = Long.valueOf(System.getProperty("cawd.store." + name + ".capacity", System.getProperty(STORE_CAPACITY, "0")));
+			if(capacity > 0) {
+				setCapacity(capacity);
+				long offHeapCapacity = Long.valueOf(System.getProperty("cawd.store." + name + ".offHeapCapacity",
+						System.getProperty(STORE_OFF_HEAP_CAPACITY, "0")));
+				String coldDir = System.getProperty(STORE_COLD_DIR);
+				// what the heap evicts goes to off heap slabs and/or a cold log, when there are any
+				if(offHeapCapacity > 0 || coldDir != null) {
+					long coldCapacity = Long.valueOf(System.getProperty("cawd.store." + name + ".coldCapacity",
+							System.getProperty(STORE_COLD_CAPACITY, "0")));
+					addTiers(offHeapCapacity, coldDir != null? new File(coldDir, name + ".cold.log") : null, coldCapacity);
+				}
+			}
+			return;
+		}
+		createStripes(false);
+		File file = new File(dir, name + ".log");
+		try {
+			this.log = new MappedChunkLog(file, ChunkingAlgorithm.SHA1_SIZE, codec != null? MappedChunkLog.COMPRESSED : 0);
+			// the log knows how its content was written, whatever cawd.store.compress says this time
+			boolean compressed = (log.getFlags() & MappedChunkLog.COMPRESSED) != 0;
+			if(compressed != (codec != null)) {
+				logger.warn("Store {} was written with {}compressed content, keeping it that way", file, compressed? "" : "un");
+				this.codec = compressed? new ContentCodec() : null;
+			}
+			for(int id = 0; id < log.size(); ++id) {
+				// later records win, same as when they were added
+				byte[] signature = log.readSignature(id);
+				stripeFor(signature, 0).index.put(signature, id);
+			}
+			logger.info("Opened store {} with {} chunks ({} records)", file, size(), log.size());
+		}
+		catch(IOException e) {
+			throw new IllegalStateException("Could not open chunk log " + file, e);
+		}
+	}
+
+	private void createStripes(boolean inMemory) {
+		createStripes(inMemory, Integer.valueOf(System.getProperty(STORE_STRIPES, "16")));
+	}
+
+	private void createStripes(boolean inMemory, int wanted) {
+		int numStripes = Integer.highestOneBit(Math.max(1, Math.min(MAX_STRIPES, wanted)));
+		int initialCapacity = Integer.valueOf(System.getProperty("cawd.store.initialCapacity", "1024"));
+		// there are no arrays of a generic inner class, but stripes are looked up on every call so we keep one
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Stripe[] created = (Stripe[])new IndexedChunkStore.Stripe[numStripes];
+		this.stripes = created;
+		for(int i = 0; i < numStripes; ++i) {
+			stripes[i] = new Stripe(Math.max(16, initialCapacity / numStripes));
+			if(inMemory) {
+				stripes[i].chunks = new ArrayList<T>();
+			}
+		}
+		this.stripeMask = numStripes - 1;
+	}
+
+	// the index hashes the first bytes of the signature, so we pick the stripe with the last one
+	private Stripe stripeFor(byte[] signature, int offset) {
+		return stripes[signature[offset + ChunkingAlgorithm.SHA1_SIZE - 1] & stripeMask];
+	}
+
+	private Stripe stripeFor(ByteBuffer signature, int offset) {
+		return stripes[signature.get(offset + ChunkingAlgorithm.SHA1_SIZE - 1) & stripeMask];
+	}
+
+	// bounds the store to this many bytes of content, split evenly over the stripes. Only for in memory
+	// stores, and it has to be set before adding chunks
+	public void setCapacity(long capacity) {
+		if(log != null || size() > 0) {
+			throw new IllegalStateException("Capacity can only be set on empty, in memory stores");
+		}
+		long fits = Math.max(1, capacity / MIN_STRIPE_CAPACITY);
+		if(fits < stripes.length) {
+			createStripes(true, (int)fits);
+		}
+		for(Stripe stripe : stripes) {
+			stripe.bound(Math.max(1, capacity / stripes.length));
+		}
+		this.capacity = capacity;
+		logger.info("Store {} bounded to {} bytes over {} stripes", name, capacity, stripes.length);
+	}
+
+	// adds an off heap tier of this many bytes (if any) and a cold tier in this file (if any) under the heap.
+	// Only for bounded stores, and it has to be done before adding chunks
+	public void addTiers(long offHeapCapacity, File coldFile) {
+		addTiers(offHeapCapacity, coldFile, 0);
+	}
+
+	// same as above, with a cold log of at most (about) this many bytes, or unbounded when it is 0
+	public void addTiers(long offHeapCapacity, File coldFile, long coldCapacity) {
+		if(capacity == 0 || size() > 0) {
+			throw new IllegalStateException("Tiers can only be added to empty, bounded stores");
+		}
+		this.tiers = new LowerTiers(name, offHeapCapacity, coldFile, coldCapacity);
+		for(Stripe stripe : stripes) {
+			stripe.addTiers(tiers.getOffHeapCapacity() / stripes.length);
+		}
+		logger.info("Store {} tiered: {} bytes on heap, {}", name, capacity, tiers);
+	}
+
+	private void compactColdIfFull() {
+		if(tiers != null) {
+			tiers.compactColdIfFull();
+		}
+	}
+
+	// keeps content compressed with this codec from now on, so capacities, tiers and logs count compressed
+	// bytes, and we hand out plain copies. It has to be set before adding chunks, and stores that share
+	// content have to use the same setting
+	public void compressContent(ContentCodec codec) {
+		if(size() > 0) {
+			throw new IllegalStateException("Only empty stores can start compressing their content");
+		}
+		if(log != null) {
+			log.setFlags(codec != null? MappedChunkLog.COMPRESSED : 0);
+		}
+		this.codec = codec;
+	}
+
+	// the copy of this chunk we keep when content is compressed. Stores with links have to override both
+	// this and expand()
+	protected T compact(ContentCodec codec, T chunk) {
+		return newChunk(chunk.getSignature(), compress(codec, chunk.getSignature(), chunk.getContent()));
+	}
+
+	protected T expand(ContentCodec codec, T chunk) {
+		return newChunk(chunk.getSignature(), codec.decompress(chunk.getContent()));
+	}
+
+	// compressed content for this signature. The same content compresses the same way, so if another
+	// entry shares it already we take that copy instead of compressing it again
+	protected byte[] compress(ContentCodec codec, byte[] signature, byte[] content) {
+		byte[] shared = blobs != null? blobs.get(signature) : null;
+		return shared != null? shared : codec.compress(content);
+	}
+
+	// what we hand out for a chunk we keep
+	private T plain(T chunk) {
+		return codec != null && chunk != null? expand(codec, chunk) : chunk;
+	}
+
+	// what a snapshot gets for a payload we keep, it has to load into stores that do not compress
+	private byte[] plainPayload(byte[] signature, byte[] payload) {
+		return codec != null? encode(expand(codec, decode(signature, payload))) : payload;
+	}
+
+	// content kept by this store goes through the given blob store from now on. Persistent stores
+	// keep their content in the log, so this does not apply to them
+	public void shareContent(RefCountedBlobStore blobs) {
+		if(log != null || size() > 0) {
+			throw new IllegalStateException("Only empty, in memory stores can share their content");
+		}
+		this.blobs = blobs;
+	}
+
+	// takes references on the blobs this chunk points to and makes the chunk use the shared copies.
+	// Stores with links have to override both this and releaseContent()
+	protected void retainContent(RefCountedBlobStore blobs, T chunk) {
+		chunk.setContent(blobs.retain(chunk.getSignature(), chunk.getContent()));
+	}
+
+	protected void releaseContent(RefCountedBlobStore blobs, T chunk) {
+		blobs.release(chunk.getSignature());
+	}
+
+	// builds a chunk back from what encode() wrote in the log
+	protected abstract T newChunk(byte[] signature, byte[] content);
+
+	// what goes to the log for this chunk. Stores that keep links have to override both this and decode()
+	protected byte[] encode(T chunk) {
+		return chunk.getContent();
+	}
+
+	protected T decode(byte[] signature, byte[] payload) {
+		return newChunk(signature, payload);
+	}
+
+	// what this chunk costs in a bounded store
+	protected int weigh(T chunk) {
+		return chunk.getContent().length;
+	}
+
+	// keeps the chunk under this signature, unless the signature is already there. Returns the chunk
+	// the store keeps, which can be the one that was already there
+	protected T putChunk(byte[] signature, T chunk) {
+		return putChunk(signature, chunk, false);
+	}
+
+	// same as above, but when replace is set the new chunk takes the place of the old one
+	protected T putChunk(byte[] signature, T chunk, boolean replace) {
+		Stripe stripe = stripeFor(signature, 0);
+		T kept = null;
+		stripe.lock.writeLock().lock();
+		try {
+			kept = stripe.put(signature, chunk, replace);
+		}
+		finally {
+			stripe.lock.writeLock().unlock();
+		}
+		compactColdIfFull();
+		return kept;
+	}
+
+	@Override
+	public T findChunkBySignature(byte[] signature) {
+		return findChunkBySignature(signature, 0);
+	}
+
+	public T findChunkBySignature(byte[] buffer, int offset) {
+		Stripe stripe = stripeFor(buffer, offset);
+		T found = null;
+		Lock lock = stripe.lookupLock();
+		lock.lock();
+		try {
+			found = stripe.find(buffer, offset);
+		}
+		finally {
+			lock.unlock();
+		}
+		compactColdIfFull();
+		return found;
+	}
+
+	// the signature is read from [offset, offset + SHA1_SIZE) of the buffer
+	public T findChunkBySignature(ByteBuffer buffer, int offset) {
+		Stripe stripe = stripeFor(buffer, offset);
+		T found = null;
+		Lock lock = stripe.lookupLock();
+		lock.lock();
+		try {
+			found = stripe.find(buffer, offset);
+		}
+		finally {
+			lock.unlock();
+		}
+		compactColdIfFull();
+		return found;
+	}
+
+	public int size() {
+		int size = 0;
+		for(Stripe stripe : stripes) {
+			stripe.lock.readLock().lock();
+			try {
+				size += stripe.size();
+			}
+			finally {
+				stripe.lock.readLock().unlock();
+			}
+		}
+		return size;
+	}
+
+	public long indexBytes() {
+		long bytes = 0;
+		for(Stripe stripe : stripes) {
+			stripe.lock.readLock().lock();
+			try {
+				bytes += stripe.index.offHeapBytes();
+				if(stripe.tiers != null) {
+					bytes += stripe.tiers.indexBytes();
+				}
+			}
+			finally {
+				stripe.lock.readLock().unlock();
+			}
+		}
+		return bytes;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isPersistent() {
+		return log != null;
+	}
+
+	// adds the signature of every chunk we keep to the filter
+	public void addSignaturesTo(final SignatureFilter filter) {
+		for(Stripe stripe : stripes) {
+			stripe.lock.readLock().lock();
+			try {
+				SignatureIndex.SignatureVisitor visitor = new SignatureIndex.SignatureVisitor() {
+					@Override
+					public void visit(ByteBuffer buffer, int offset) {
+						filter.add(buffer, offset);
+					}
+				};
+				stripe.index.forEach(visitor);
+				if(stripe.tiers != null) {
+					stripe.tiers.forEach(visitor);
+				}
+			}
+			finally {
+				stripe.lock.readLock().unlock();
+			}
+		}
+	}
+
+	// signatures of the chunks we keep (in any tier) that start with this prefix, which has to be at least
+	// 8 bytes long. Lookups here do not count as hits, and nothing moves between tiers
+	public List<byte[]> findSignaturesByPrefix(byte[] prefix) {
+		final List<byte[]> found = new ArrayList<byte[]>();
+		SignatureIndex.SignatureVisitor visitor = new SignatureIndex.SignatureVisitor() {
+			@Override
+			public void visit(ByteBuffer buffer, int offset) {
+				byte[] signature = new byte[ChunkingAlgorithm.SHA1_SIZE];
+				for(int i = 0; i < signature.length; ++i) {
+					signature[i] = buffer.get(offset + i);
+				}
+				found.add(signature);
+			}
+		};
+		// the stripe comes from the last byte, so any of them can have it
+		for(Stripe stripe : stripes) {
+			stripe.lock.readLock().lock();
+			try {
+				stripe.index.forEachWithPrefix(prefix, visitor);
+				if(stripe.tiers != null) {
+					stripe.tiers.forEachWithPrefix(prefix, visitor);
+				}
+			}
+			finally {
+				stripe.lock.readLock().unlock();
+			}
+		}
+		return found;
+	}
+
+	// adds eviction stats since the last call. EvictionMiss counts the lookups that missed a chunk we had
+	// evicted, that is, the hits the capacity bound cost us
+	public void collectStats(TransferStats stats) {
+		if(codec != null) {
+			logger.info("Store {} content: {}", name, codec);
+			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.StoredContentBytes, codec.getStoredBytes(), TransferStatValue.Unit.Bytes));
+			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.RawContentBytes, codec.getRawBytes(), TransferStatValue.Unit.Bytes));
+		}
+		if(capacity == 0) {
+			return;
+		}
+		long weightedSize = 0, chunks = 0, lookups = 0, evictions = 0, evictedBytes = 0, evictionMisses = 0;
+		for(Stripe stripe : stripes) {
+			stripe.lock.writeLock().lock();
+			try {
+				weightedSize += stripe.policy.getWeightedSize();
+				chunks += stripe.index.size();
+				lookups += stripe.lookups;
+				evictions += stripe.evictions;
+				evictedBytes += stripe.evictedBytes;
+				evictionMisses += stripe.evictionMisses;
+				stripe.lookups = stripe.evictions = stripe.evictedBytes = stripe.evictionMisses = 0;
+			}
+			finally {
+				stripe.lock.writeLock().unlock();
+			}
+		}
+		logger.info("Store {}: {}/{} bytes, {} chunks, {} evictions ({} bytes), {} of {} lookups missed evicted chunks",
+				name, weightedSize, capacity, chunks, evictions, evictedBytes, evictionMisses, lookups);
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.EvictedChunks, evictions, TransferStatValue.Unit.Count));
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.EvictedBytes, evictedBytes, TransferStatValue.Unit.Bytes));
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.EvictionMiss, evictionMisses, TransferStatValue.Unit.Count));
+		if(tiers != null) {
+			tiers.collectStats(stats);
+		}
+	}
+
+	// writes every chunk we keep, in any tier, to a snapshot. Stripes are locked one at a time, so chunks
+	// added while we export might or might not make it. Returns how many chunks we wrote
+	public long exportSnapshot(OutputStream os) throws IOException {
+		ChunkStoreSnapshot.Writer writer = new ChunkStoreSnapshot.Writer(os, name, ChunkingAlgorithm.SHA1_SIZE);
+		if(log != null) {
+			exportLog(writer);
+		}
+		for(Stripe stripe : stripes) {
+			stripe.lock.readLock().lock();
+			try {
+				if(stripe.chunks != null) {
+					for(T chunk : stripe.chunks) {
+						// bounded stores leave holes where they evicted
+						if(chunk != null) {
+							writer.write(chunk.getSignature(), encode(plain(chunk)));
+						}
+					}
+				}
+			}
+			finally {
+				stripe.lock.readLock().unlock();
+			}
+		}
+		if(tiers != null) {
+			final ChunkStoreSnapshot.Writer tierWriter = writer;
+			tiers.export(new LowerTiers.ChunkVisitor() {
+				@Override
+				public void visit(byte[] signature, byte[] payload) throws IOException {
+					tierWriter.write(signature, plainPayload(signature, payload));
+				}
+			});
+		}
+		writer.close();
+		logger.info("Exported {} chunks from store {}", writer.getCount(), name);
+		return writer.getCount();
+	}
+
+	// logs keep old records too, so we only write the ones the index points to
+	private void exportLog(ChunkStoreSnapshot.Writer writer) throws IOException {
+		for(int id = 0; id < log.size(); ++id) {
+			byte[] signature = log.readSignature(id);
+			Stripe stripe = stripeFor(signature, 0);
+			boolean current = false;
+			stripe.lock.readLock().lock();
+			try {
+				current = stripe.index.get(signature) == id;
+			}
+			finally {
+				stripe.lock.readLock().unlock();
+			}
+			if(current) {
+				writer.write(signature, plainPayload(signature, log.readPayload(id)));
+			}
+		}
+	}
+
+	// adds every chunk of the snapshot we do not have yet. Returns how many chunks the snapshot had
+	public long importSnapshot(InputStream is) throws IOException {
+		ChunkStoreSnapshot.Reader reader = new ChunkStoreSnapshot.Reader(is, ChunkingAlgorithm.SHA1_SIZE);
+		if(!reader.getName().equals(name)) {
+			logger.warn("Loading snapshot of store {} into store {}", reader.getName(), name);
+		}
+		while(reader.next()) {
+			putChunk(reader.getSignature(), decode(reader.getSignature(), reader.getPayload()));
+		}
+		reader.close();
+		flush();
+		logger.info("Imported {} chunks into store {}, it keeps {} now", reader.getCount(), name, size());
+		return reader.getCount();
+	}
+
+	// makes everything added so far survive a crash
+	public void flush() {
+		if(log != null) {
+			log.sync();
+		}
+	}
+
+	public void close() throws IOException {
+		if(log != null) {
+			log.close();
+		}
+		if(tiers != null) {
+			tiers.close();
+		}
+	}
+
+}
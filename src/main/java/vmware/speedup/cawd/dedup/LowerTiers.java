@@ -0,0 +1,445 @@
+package vmware.speedup.cawd.dedup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import vmware.speedup.cawd.common.TransferStats;
+import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+
+// What a bounded IndexedChunkStore keeps under its heap: off heap slabs, which have their own W-TinyLFU policy,
+// and under them a cold log on local disk. The heap demotes what its policy evicts, the slabs demote what theirs
+// evicts, and a hit down here promotes the chunk back to the heap, where it competes for space again. Chunks are
+// kept as the <signature><payload> the store encoded, we never look inside them.
+// The cold log is scratch space: it starts empty every time and it only grows while the store is open, unless
+// it is bounded: then, once it is over its capacity, we copy the newest chunks it still keeps (up to half the
+// capacity) to a new log and the older ones leave the store.
+// Each lock stripe of the store has a Part of its own, guarded by the lock of the stripe.
+class LowerTiers {
+
+	private static final Logger logger = LogManager.getLogger(LowerTiers.class);
+
+	// told when a chunk leaves the tiers for good
+	interface Listener {
+		void onDropped(byte[] signature);
+	}
+
+	// gets every chunk we keep, see export()
+	interface ChunkVisitor {
+		void visit(byte[] signature, byte[] payload) throws IOException;
+	}
+
+	private String name = null;
+	private OffHeapSlabs slabs = null;
+	private MappedChunkLog coldLog = null;
+	private File coldFile = null;
+	private long coldCapacity = 0;
+	private volatile boolean coldFull = false;
+	// taken before any stripe lock, by whoever replaces or reads the whole cold log
+	private Object coldCompaction = new Object();
+	private List<Part> parts = new ArrayList<Part>();
+
+	// the part of one lock stripe. Warm positions map to slab handles, whose blocks are <signature><payload>
+	class Part {
+
+		private ReentrantReadWriteLock lock = null;
+		private Listener listener = null;
+		private SignatureIndex warmIndex = null;
+		private WindowTinyLfuPolicy warmPolicy = null;
+		private long[] warmHandles = new long[0];
+		private int warmPositions = 0;
+		private int[] freeWarmPositions = new int[0];
+		private int numFreeWarmPositions = 0;
+		private SignatureIndex coldIndex = null;
+		private long warmHits = 0;
+		private long coldHits = 0;
+		private long demotions = 0;
+
+		private Part(ReentrantReadWriteLock lock, long warmCapacity, Listener listener) {
+			this.lock = lock;
+			this.listener = listener;
+			if(warmCapacity > 0) {
+				this.warmIndex = new SignatureIndex(ChunkingAlgorithm.SHA1_SIZE, 64);
+				this.warmPolicy = new WindowTinyLfuPolicy(warmCapacity, new WindowTinyLfuPolicy.EvictionListener() {
+					@Override
+					public void onEviction(int position, int weight) {
+						evictWarm(position);
+					}
+				});
+			}
+			if(coldLog != null) {
+				this.coldIndex = new SignatureIndex(ChunkingAlgorithm.SHA1_SIZE, 64);
+			}
+		}
+
+		boolean contains(byte[] signature, int offset) {
+			return (warmIndex != null && warmIndex.get(signature, offset) != SignatureIndex.NOT_FOUND)
+					|| (coldIndex != null && coldIndex.get(signature, offset) != SignatureIndex.NOT_FOUND);
+		}
+
+		boolean contains(ByteBuffer signature, int offset) {
+			return (warmIndex != null && warmIndex.get(signature, offset) != SignatureIndex.NOT_FOUND)
+					|| (coldIndex != null && coldIndex.get(signature, offset) != SignatureIndex.NOT_FOUND);
+		}
+
+		// keeps a chunk the heap let go one tier down. Returns false if it could not go anywhere
+		boolean demote(byte[] signature, byte[] payload) {
+			if(warmPolicy != null) {
+				long handle = slabs.allocate(signature.length + payload.length);
+				if(handle != OffHeapSlabs.NO_SPACE) {
+					slabs.write(handle, signature, payload);
+					int position = warmPositions;
+					if(numFreeWarmPositions > 0) {
+						position = freeWarmPositions[--numFreeWarmPositions];
+					}
+					else {
+						if(warmPositions == warmHandles.length) {
+							warmHandles = Arrays.copyOf(warmHandles, Math.max(16, warmHandles.length * 2));
+						}
+						++warmPositions;
+					}
+					warmHandles[position] = handle;
+					warmIndex.put(signature, position);
+					++demotions;
+					// this can send it (or others) further down right away
+					warmPolicy.add(position, WindowTinyLfuPolicy.keyOf(signature, 0), slabs.weigh(signature.length + payload.length));
+					return true;
+				}
+			}
+			return demoteCold(signature, payload);
+		}
+
+		private boolean demoteCold(byte[] signature, byte[] payload) {
+			if(coldIndex == null) {
+				return false;
+			}
+			try {
+				coldIndex.put(signature, coldLog.append(signature, payload));
+				++demotions;
+				if(coldCapacity > 0 && coldLog.bytes() > coldCapacity) {
+					// we hold a stripe lock, so someone else has to compact it
+					coldFull = true;
+				}
+				return true;
+			}
+			catch(IOException e) {
+				logger.error("Could not append chunk to cold log, chunk will not be stored", e);
+				return false;
+			}
+		}
+
+		// takes a chunk out of the warm tier and gives back its <signature><payload> block
+		private byte[] removeWarm(int position) {
+			long handle = warmHandles[position];
+			byte[] block = slabs.read(handle, 0, slabs.sizeOf(handle));
+			slabs.free(handle);
+			if(numFreeWarmPositions == freeWarmPositions.length) {
+				freeWarmPositions = Arrays.copyOf(freeWarmPositions, Math.max(16, freeWarmPositions.length * 2));
+			}
+			freeWarmPositions[numFreeWarmPositions++] = position;
+			return block;
+		}
+
+		private void evictWarm(int position) {
+			byte[] block = removeWarm(position);
+			byte[] signature = Arrays.copyOf(block, ChunkingAlgorithm.SHA1_SIZE);
+			warmIndex.remove(signature);
+			if(!demoteCold(signature, Arrays.copyOfRange(block, ChunkingAlgorithm.SHA1_SIZE, block.length))) {
+				listener.onDropped(signature);
+			}
+		}
+
+		// takes the chunk out of the tiers, so it can go back to the heap. Returns its payload, or null if no
+		// tier has it
+		byte[] promote(byte[] signature) {
+			int position = warmIndex != null? warmIndex.remove(signature) : SignatureIndex.NOT_FOUND;
+			if(position != SignatureIndex.NOT_FOUND) {
+				warmPolicy.remove(position);
+				byte[] block = removeWarm(position);
+				++warmHits;
+				return Arrays.copyOfRange(block, ChunkingAlgorithm.SHA1_SIZE, block.length);
+			}
+			position = coldIndex != null? coldIndex.remove(signature) : SignatureIndex.NOT_FOUND;
+			if(position == SignatureIndex.NOT_FOUND) {
+				return null;
+			}
+			// the record stays in the log, we just stop pointing at it
+			++coldHits;
+			return coldLog.readPayload(position);
+		}
+
+		// a replaced chunk must not come back from here
+		void drop(byte[] signature) {
+			int position = warmIndex != null? warmIndex.remove(signature) : SignatureIndex.NOT_FOUND;
+			if(position != SignatureIndex.NOT_FOUND) {
+				warmPolicy.remove(position);
+				removeWarm(position);
+			}
+			if(coldIndex != null) {
+				coldIndex.remove(signature);
+			}
+		}
+
+		int size() {
+			return (warmIndex != null? warmIndex.size() : 0) + (coldIndex != null? coldIndex.size() : 0);
+		}
+
+		long indexBytes() {
+			return (warmIndex != null? warmIndex.offHeapBytes() : 0) + (coldIndex != null? coldIndex.offHeapBytes() : 0);
+		}
+
+		void forEach(SignatureIndex.SignatureVisitor visitor) {
+			if(warmIndex != null) {
+				warmIndex.forEach(visitor);
+			}
+			if(coldIndex != null) {
+				coldIndex.forEach(visitor);
+			}
+		}
+
+		void forEachWithPrefix(byte[] prefix, SignatureIndex.SignatureVisitor visitor) {
+			if(warmIndex != null) {
+				warmIndex.forEachWithPrefix(prefix, visitor);
+			}
+			if(coldIndex != null) {
+				coldIndex.forEachWithPrefix(prefix, visitor);
+			}
+		}
+
+	}
+
+	// off heap slabs of this many bytes (if any) and a cold log in this file (if any) of at most (about)
+	// coldCapacity bytes, or unbounded when it is 0
+	LowerTiers(String name, long offHeapCapacity, File coldFile, long coldCapacity) {
+		this.name = name;
+		if(offHeapCapacity > 0) {
+			this.slabs = new OffHeapSlabs(offHeapCapacity);
+		}
+		if(coldFile != null) {
+			// whatever a previous run left there is of no use to us
+			coldFile.delete();
+			compactingFile(coldFile).delete();
+			this.coldFile = coldFile;
+			this.coldCapacity = coldCapacity;
+			try {
+				this.coldLog = new MappedChunkLog(coldFile, ChunkingAlgorithm.SHA1_SIZE);
+			}
+			catch(IOException e) {
+				throw new IllegalStateException("Could not open cold log " + coldFile, e);
+			}
+		}
+	}
+
+	long getOffHeapCapacity() {
+		return slabs != null? slabs.getCapacity() : 0;
+	}
+
+	// the part of a lock stripe, with this share of the off heap capacity
+	Part addPart(ReentrantReadWriteLock lock, long warmCapacity, Listener listener) {
+		Part part = new Part(lock, slabs != null? Math.max(1, warmCapacity) : 0, listener);
+		parts.add(part);
+		return part;
+	}
+
+	private static File compactingFile(File coldFile) {
+		return new File(coldFile.getPath() + ".compacting");
+	}
+
+	// parts only mark the cold log as full, since they are called with their stripe locked. Whoever holds no
+	// stripe lock calls this afterwards
+	void compactColdIfFull() {
+		if(!coldFull) {
+			return;
+		}
+		synchronized(coldCompaction) {
+			if(!coldFull) {
+				return;
+			}
+			for(Part part : parts) {
+				part.lock.writeLock().lock();
+			}
+			try {
+				compactCold();
+			}
+			finally {
+				coldFull = false;
+				for(Part part : parts) {
+					part.lock.writeLock().unlock();
+				}
+			}
+		}
+	}
+
+	// copies the newest records the parts still point to, up to half the capacity, to a new cold log that
+	// takes the place of the old one. Needs every part locked
+	private void compactCold() {
+		final List<Integer> ids = new ArrayList<Integer>();
+		final List<Part> owners = new ArrayList<Part>();
+		for(final Part part : parts) {
+			part.coldIndex.forEach(new SignatureIndex.SignatureVisitor() {
+				@Override
+				public void visit(ByteBuffer buffer, int offset) {
+					ids.add(part.coldIndex.get(buffer, offset));
+				}
+			});
+		}
+		Collections.sort(ids);
+		for(int id : ids) {
+			byte[] signature = coldLog.readSignature(id);
+			for(Part part : parts) {
+				if(part.coldIndex.get(signature) == id) {
+					owners.add(part);
+					break;
+				}
+			}
+		}
+		// records are appended as chunks come down, so the newest ones are at the end
+		int first = ids.size();
+		long kept = 0;
+		while(first > 0) {
+			long recordSize = Integer.BYTES * 2 + ChunkingAlgorithm.SHA1_SIZE + coldLog.readPayload(ids.get(first - 1)).length;
+			if(kept + recordSize > coldCapacity / 2) {
+				break;
+			}
+			kept += recordSize;
+			--first;
+		}
+		long before = coldLog.bytes();
+		File compacting = compactingFile(coldFile);
+		try {
+			MappedChunkLog next = new MappedChunkLog(compacting, ChunkingAlgorithm.SHA1_SIZE);
+			for(int i = first; i < ids.size(); ++i) {
+				next.append(coldLog.readSignature(ids.get(i)), coldLog.readPayload(ids.get(i)));
+			}
+			next.close();
+		}
+		catch(IOException e) {
+			logger.error("Could not compact cold log {}, it stays as it is", coldFile, e);
+			compacting.delete();
+			return;
+		}
+		// the ones we did not copy leave the store, the others get their new ids
+		for(int i = 0; i < ids.size(); ++i) {
+			byte[] signature = coldLog.readSignature(ids.get(i));
+			Part part = owners.get(i);
+			if(i < first) {
+				part.coldIndex.remove(signature);
+				part.listener.onDropped(signature);
+			}
+			else {
+				part.coldIndex.put(signature, i - first);
+			}
+		}
+		try {
+			coldLog.close();
+			if(!coldFile.delete() || !compacting.renameTo(coldFile)) {
+				throw new IOException("Could not replace " + coldFile + " with " + compacting);
+			}
+			coldLog = new MappedChunkLog(coldFile, ChunkingAlgorithm.SHA1_SIZE);
+			logger.info("Compacted cold log {} from {} to {} bytes, {} of {} chunks kept", coldFile, before, coldLog.bytes(),
+					ids.size() - first, ids.size());
+		}
+		catch(IOException e) {
+			// we do not know what is left on disk, so the cold tier starts over empty
+			logger.error("Could not replace cold log {}, dropping the cold tier", coldFile, e);
+			for(Part part : parts) {
+				part.coldIndex = new SignatureIndex(ChunkingAlgorithm.SHA1_SIZE, 64);
+			}
+			coldFile.delete();
+			try {
+				coldLog = new MappedChunkLog(coldFile, ChunkingAlgorithm.SHA1_SIZE);
+			}
+			catch(IOException again) {
+				throw new IllegalStateException("Could not open cold log " + coldFile, again);
+			}
+		}
+	}
+
+	// hands every chunk we keep to the visitor. Parts are locked one at a time, so chunks that move while we
+	// export might or might not make it
+	void export(ChunkVisitor visitor) throws IOException {
+		for(Part part : parts) {
+			part.lock.readLock().lock();
+			try {
+				for(int position = 0; position < part.warmPositions; ++position) {
+					long handle = part.warmHandles[position];
+					byte[] signature = slabs.read(handle, 0, ChunkingAlgorithm.SHA1_SIZE);
+					// free positions point to blocks someone else might be using now
+					if(part.warmIndex.get(signature) == position) {
+						visitor.visit(signature, slabs.read(handle, signature.length, slabs.sizeOf(handle) - signature.length));
+					}
+				}
+			}
+			finally {
+				part.lock.readLock().unlock();
+			}
+		}
+		if(coldLog == null) {
+			return;
+		}
+		// a compaction would take the log away under us
+		synchronized(coldCompaction) {
+			for(final Part part : parts) {
+				final List<Integer> ids = new ArrayList<Integer>();
+				part.lock.readLock().lock();
+				try {
+					part.coldIndex.forEach(new SignatureIndex.SignatureVisitor() {
+						@Override
+						public void visit(ByteBuffer buffer, int offset) {
+							ids.add(part.coldIndex.get(buffer, offset));
+						}
+					});
+				}
+				finally {
+					part.lock.readLock().unlock();
+				}
+				// records are never overwritten, and only a compaction drops them
+				for(int id : ids) {
+					visitor.visit(coldLog.readSignature(id), coldLog.readPayload(id));
+				}
+			}
+		}
+	}
+
+	// adds the stats of every part since the last call
+	void collectStats(TransferStats stats) {
+		long warmHits = 0, coldHits = 0, demotions = 0;
+		for(Part part : parts) {
+			part.lock.writeLock().lock();
+			try {
+				warmHits += part.warmHits;
+				coldHits += part.coldHits;
+				demotions += part.demotions;
+				part.warmHits = part.coldHits = part.demotions = 0;
+			}
+			finally {
+				part.lock.writeLock().unlock();
+			}
+		}
+		logger.info("Store {}: {} demotions, {} warm hits, {} cold hits, {} bytes off heap", name, demotions, warmHits, coldHits,
+				slabs != null? slabs.getAllocatedBytes() : 0);
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.TierDemotion, demotions, TransferStatValue.Unit.Count));
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.WarmTierHit, warmHits, TransferStatValue.Unit.Count));
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.ColdTierHit, coldHits, TransferStatValue.Unit.Count));
+	}
+
+	@Override
+	public String toString() {
+		return getOffHeapCapacity() + " bytes off heap, cold log " + coldFile + " (" + coldCapacity + " bytes)";
+	}
+
+	void close() throws IOException {
+		if(coldLog != null) {
+			coldLog.close();
+		}
+	}
+
+}
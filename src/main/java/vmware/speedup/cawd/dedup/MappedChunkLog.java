@@ -0,0 +1,278 @@
+package vmware.speedup.cawd.dedup;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Append only log of <signature, payload> records, mapped in fixed size segments. The file looks like
+// <header><record>...<record><0>, where the header is <magic-long><version-int><signatureSize-int>
+// <segmentSize-int><checkpoint-long><flags-int> and each record is
+// <payloadSize+1-int><signature><payload><crc-int> (so a zero always means the end, even for empty payloads).
+// The flags say how the payloads were written (e.g. COMPRESSED), so a reopen reads them back the same way.
+// Records never cross a segment; when one does not fit, we write a padding marker and move to the next
+// segment. Everything before the checkpoint was forced to disk, so on reopen we only verify the crc of
+// the records after it and cut the log at the first one that does not check.
+// Appends are serialized, reads are not: segments and offsets are only published once they are complete,
+// so a reader that got an id from an append (through some lock) always finds its record.
+public class MappedChunkLog implements Closeable {
+
+	private static final Logger logger = LogManager.getLogger(MappedChunkLog.class);
+
+	public static final String SEGMENT_SIZE = "cawd.store.segmentSize";
+	public static final String SYNC_BYTES = "cawd.store.syncBytes";
+	public static final int COMPRESSED = 1;
+
+	private static final long MAGIC = 0x4341574443484b4cL;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int CHECKPOINT_OFFSET = Long.BYTES + Integer.BYTES * 3;
+	private static final int FLAGS_OFFSET = CHECKPOINT_OFFSET + Long.BYTES;
+	private static final int PADDING = -1;
+
+	private File file = null;
+	private RandomAccessFile raf = null;
+	private FileChannel channel = null;
+	private int signatureSize = 0;
+	private int segmentSize = 0;
+	private int flags = 0;
+	private long syncBytes = 0;
+	private List<MappedByteBuffer> segments = new CopyOnWriteArrayList<MappedByteBuffer>();
+	private volatile LongBuffer offsets = null;
+	private volatile int records = 0;
+	private volatile long tail = 0;
+	private long checkpoint = 0;
+	private CRC32 crc = new CRC32();
+
+	public MappedChunkLog(File file, int signatureSize) throws IOException {
+		this(file, signatureSize, 0);
+	}
+
+	// the flags only apply to new logs, existing ones keep the flags they were created with
+	public MappedChunkLog(File file, int signatureSize, int flags) throws IOException {
+		this.file = file;
+		this.flags = flags;
+		this.signatureSize = signatureSize;
+		this.segmentSize = Integer.valueOf(System.getProperty(SEGMENT_SIZE, String.valueOf(1 << 30)));
+		this.syncBytes = Long.valueOf(System.getProperty(SYNC_BYTES, String.valueOf(64L << 20)));
+		this.offsets = ByteBuffer.allocateDirect(1024 * Long.BYTES).asLongBuffer();
+		if(file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+		boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+		this.raf = new RandomAccessFile(file, "rw");
+		this.channel = raf.getChannel();
+		if(exists) {
+			recover();
+		}
+		else {
+			mapSegment(0);
+			ByteBuffer header = segments.get(0);
+			header.putLong(0, MAGIC);
+			header.putInt(Long.BYTES, VERSION);
+			header.putInt(Long.BYTES + Integer.BYTES, signatureSize);
+			header.putInt(Long.BYTES + Integer.BYTES * 2, segmentSize);
+			header.putInt(FLAGS_OFFSET, flags);
+			tail = HEADER_SIZE;
+			sync();
+		}
+	}
+
+	private void recover() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		channel.read(header, 0);
+		if(header.getLong(0) != MAGIC || header.getInt(Long.BYTES) != VERSION) {
+			throw new IOException(file + " is not a chunk log (or has an unsupported version)");
+		}
+		if(header.getInt(Long.BYTES + Integer.BYTES) != signatureSize) {
+			throw new IOException(file + " holds signatures of " + header.getInt(Long.BYTES + Integer.BYTES) + " bytes, expected " + signatureSize);
+		}
+		// the segment size is fixed when the log is created
+		segmentSize = header.getInt(Long.BYTES + Integer.BYTES * 2);
+		checkpoint = header.getLong(CHECKPOINT_OFFSET);
+		flags = header.getInt(FLAGS_OFFSET);
+		long numSegments = Math.max(1, (file.length() + segmentSize - 1) / segmentSize);
+		for(int i = 0; i < numSegments; ++i) {
+			mapSegment(i);
+		}
+		long position = HEADER_SIZE;
+		boolean torn = false;
+		while(true) {
+			int rel = (int)(position % segmentSize);
+			int segment = (int)(position / segmentSize);
+			if(segment >= segments.size()) {
+				break;
+			}
+			if(rel + Integer.BYTES > segmentSize) {
+				position = (long)(segment + 1) * segmentSize;
+				continue;
+			}
+			int size = segments.get(segment).getInt(rel) - 1;
+			if(size == -1) {
+				break;
+			}
+			if(size == PADDING - 1) {
+				position = (long)(segment + 1) * segmentSize;
+				continue;
+			}
+			int recordSize = recordSize(size);
+			if(size < 0 || (long)rel + recordSize > segmentSize || (position >= checkpoint && !verify(segment, rel, size))) {
+				torn = true;
+				break;
+			}
+			addOffset(position);
+			position += recordSize;
+		}
+		tail = position;
+		// mark the end, anything after here is garbage from a crash
+		if(tail % segmentSize + Integer.BYTES <= segmentSize && tail / segmentSize < segments.size()) {
+			segments.get((int)(tail / segmentSize)).putInt((int)(tail % segmentSize), 0);
+		}
+		logger.info("Recovered {} records from {}, tail={}, checkpoint={}{}", records, file, tail, checkpoint, torn? ", dropped a torn record" : "");
+		sync();
+	}
+
+	private int recordSize(int payloadSize) {
+		return Integer.BYTES + signatureSize + payloadSize + Integer.BYTES;
+	}
+
+	private boolean verify(int segment, int rel, int size) {
+		ByteBuffer record = segments.get(segment).duplicate();
+		record.position(rel + Integer.BYTES);
+		byte[] body = new byte[signatureSize + size];
+		record.get(body);
+		crc.reset();
+		crc.update(body, 0, body.length);
+		return record.getInt() == (int)crc.getValue();
+	}
+
+	private void mapSegment(int segment) throws IOException {
+		while(segments.size() <= segment) {
+			segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long)segments.size() * segmentSize, segmentSize));
+		}
+	}
+
+	private void addOffset(long offset) {
+		if(records == offsets.capacity()) {
+			LongBuffer bigger = ByteBuffer.allocateDirect(offsets.capacity() * 2 * Long.BYTES).asLongBuffer();
+			LongBuffer current = offsets.duplicate();
+			current.position(0);
+			bigger.put(current);
+			offsets = bigger;
+		}
+		offsets.put(records, offset);
+		++records;
+	}
+
+	// appends a record and returns its id. Ids are dense and start at zero
+	public synchronized int append(byte[] signature, byte[] payload) throws IOException {
+		int recordSize = recordSize(payload.length);
+		if(HEADER_SIZE + recordSize + Integer.BYTES > segmentSize) {
+			throw new IOException("Chunk of " + payload.length + " bytes does not fit in a log segment of " + segmentSize + " bytes");
+		}
+		int rel = (int)(tail % segmentSize);
+		if(rel + recordSize + Integer.BYTES > segmentSize) {
+			if(rel + Integer.BYTES <= segmentSize) {
+				segments.get((int)(tail / segmentSize)).putInt(rel, PADDING);
+			}
+			tail = (tail / segmentSize + 1) * segmentSize;
+			rel = 0;
+		}
+		int segment = (int)(tail / segmentSize);
+		mapSegment(segment);
+		crc.reset();
+		crc.update(signature, 0, signatureSize);
+		crc.update(payload, 0, payload.length);
+		ByteBuffer record = segments.get(segment).duplicate();
+		record.position(rel + Integer.BYTES);
+		record.put(signature, 0, signatureSize);
+		record.put(payload);
+		record.putInt((int)crc.getValue());
+		// next one is the end marker, and the size goes last so a torn record reads as the end
+		record.putInt(0);
+		segments.get(segment).putInt(rel, payload.length + 1);
+		addOffset(tail);
+		tail += recordSize;
+		if(tail - checkpoint >= syncBytes) {
+			sync();
+		}
+		return records - 1;
+	}
+
+	private ByteBuffer recordAt(int id) {
+		long offset = offsets.get(id);
+		ByteBuffer record = segments.get((int)(offset / segmentSize)).duplicate();
+		record.position((int)(offset % segmentSize));
+		return record;
+	}
+
+	public byte[] readSignature(int id) {
+		ByteBuffer record = recordAt(id);
+		record.getInt();
+		byte[] signature = new byte[signatureSize];
+		record.get(signature);
+		return signature;
+	}
+
+	public byte[] readPayload(int id) {
+		ByteBuffer record = recordAt(id);
+		byte[] payload = new byte[record.getInt() - 1];
+		record.position(record.position() + signatureSize);
+		record.get(payload);
+		return payload;
+	}
+
+	public int size() {
+		return records;
+	}
+
+	public long bytes() {
+		return tail;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	// the payloads are read back according to the flags, so they can only change while the log is empty
+	public synchronized void setFlags(int flags) {
+		if(records > 0) {
+			throw new IllegalStateException("Only empty logs can change their flags, " + file + " has " + records + " records");
+		}
+		this.flags = flags;
+		segments.get(0).putInt(FLAGS_OFFSET, flags);
+		segments.get(0).force();
+	}
+
+	// forces everything written since the last checkpoint and moves the checkpoint to the tail
+	public synchronized void sync() {
+		if(tail == checkpoint) {
+			return;
+		}
+		int first = (int)(Math.max(checkpoint, HEADER_SIZE) / segmentSize);
+		for(int i = first; i < segments.size(); ++i) {
+			segments.get(i).force();
+		}
+		checkpoint = tail;
+		segments.get(0).putLong(CHECKPOINT_OFFSET, checkpoint);
+		segments.get(0).force();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		sync();
+		channel.close();
+		raf.close();
+	}
+
+}
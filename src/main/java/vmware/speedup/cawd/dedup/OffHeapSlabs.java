@@ -0,0 +1,153 @@
+package vmware.speedup.cawd.dedup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Off heap memory for chunk payloads, carved out of direct slabs of cawd.store.slabSize bytes (64MB by
+// default). Blocks come in power of two size classes, from 64 bytes up to the slab size, and look like
+// <payloadSize-int><payload>. Freed blocks go to the free list of their class and are reused as they are,
+// so we never compact and waste at most half a block. When a class has nothing free and the slabs are all
+// taken, we split the smallest larger free block: we keep its first half as many times as needed, and the
+// halves we do not keep go to the free lists of their classes. Handles are <slab-int><offset-int> longs.
+// Allocation is synchronized, reads and writes of a block are not (whoever owns the handle does them).
+public class OffHeapSlabs {
+
+	public static final String SLAB_SIZE = "cawd.store.slabSize";
+	public static final long NO_SPACE = -1;
+
+	private static final int MIN_CLASS = 6;
+
+	private int slabSize = 0;
+	private ByteBuffer[] slabs = null;
+	private int numSlabs = 0;
+	private int bump = 0;
+	private long[][] freeLists = null;
+	private int[] freeCounts = null;
+	private long allocatedBytes = 0;
+
+	public OffHeapSlabs(long capacity) {
+		this(capacity, Integer.valueOf(System.getProperty(SLAB_SIZE, String.valueOf(64 << 20))));
+	}
+
+	public OffHeapSlabs(long capacity, int slabSize) {
+		this.slabSize = Integer.highestOneBit((int)Math.max(1 << MIN_CLASS, Math.min(slabSize, capacity)));
+		this.slabs = new ByteBuffer[(int)Math.max(1, capacity / this.slabSize)];
+		int numClasses = Integer.numberOfTrailingZeros(this.slabSize) - MIN_CLASS + 1;
+		this.freeLists = new long[numClasses][];
+		this.freeCounts = new int[numClasses];
+		for(int i = 0; i < numClasses; ++i) {
+			freeLists[i] = new long[0];
+		}
+	}
+
+	private static int classFor(int blockSize) {
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1 << MIN_CLASS, blockSize) - 1);
+		return bits - MIN_CLASS;
+	}
+
+	private static int blockSize(int sizeClass) {
+		return 1 << (sizeClass + MIN_CLASS);
+	}
+
+	// the block size a payload of this size takes
+	public int weigh(int payloadSize) {
+		return blockSize(classFor(payloadSize + Integer.BYTES));
+	}
+
+	// returns a handle, or NO_SPACE if the payload does not fit anywhere
+	public synchronized long allocate(int payloadSize) {
+		int blockSize = payloadSize + Integer.BYTES;
+		if(blockSize > slabSize || blockSize < 0) {
+			return NO_SPACE;
+		}
+		int sizeClass = classFor(blockSize);
+		long handle = NO_SPACE;
+		if(freeCounts[sizeClass] > 0) {
+			handle = freeLists[sizeClass][--freeCounts[sizeClass]];
+		}
+		else {
+			int size = blockSize(sizeClass);
+			if(numSlabs == 0 || bump + size > slabSize) {
+				if(numSlabs == slabs.length) {
+					return split(sizeClass);
+				}
+				// whatever is left at the end of the current slab is lost
+				slabs[numSlabs++] = ByteBuffer.allocateDirect(slabSize);
+				bump = 0;
+			}
+			handle = ((long)(numSlabs - 1) << 32) | bump;
+			bump += size;
+		}
+		allocatedBytes += blockSize(sizeClass);
+		return handle;
+	}
+
+	// a block of this class out of a larger free one, or NO_SPACE if there is none
+	private long split(int sizeClass) {
+		int larger = sizeClass + 1;
+		while(larger < freeCounts.length && freeCounts[larger] == 0) {
+			++larger;
+		}
+		if(larger == freeCounts.length) {
+			return NO_SPACE;
+		}
+		long handle = freeLists[larger][--freeCounts[larger]];
+		while(larger > sizeClass) {
+			--larger;
+			addFree(larger, handle + blockSize(larger));
+		}
+		allocatedBytes += blockSize(sizeClass);
+		return handle;
+	}
+
+	public synchronized void free(long handle) {
+		int sizeClass = classFor(sizeOf(handle) + Integer.BYTES);
+		addFree(sizeClass, handle);
+		allocatedBytes -= blockSize(sizeClass);
+	}
+
+	private void addFree(int sizeClass, long handle) {
+		if(freeCounts[sizeClass] == freeLists[sizeClass].length) {
+			freeLists[sizeClass] = Arrays.copyOf(freeLists[sizeClass], Math.max(16, freeLists[sizeClass].length * 2));
+		}
+		freeLists[sizeClass][freeCounts[sizeClass]++] = handle;
+	}
+
+	private ByteBuffer slab(long handle) {
+		return slabs[(int)(handle >>> 32)];
+	}
+
+	private static int offset(long handle) {
+		return (int)handle;
+	}
+
+	// the block gets <head><payload>, it has to be allocated for (at least) both
+	public void write(long handle, byte[] head, byte[] payload) {
+		ByteBuffer block = slab(handle).duplicate();
+		block.position(offset(handle));
+		block.putInt(head.length + payload.length);
+		block.put(head);
+		block.put(payload);
+	}
+
+	public int sizeOf(long handle) {
+		return slab(handle).getInt(offset(handle));
+	}
+
+	public byte[] read(long handle, int from, int length) {
+		ByteBuffer block = slab(handle).duplicate();
+		block.position(offset(handle) + Integer.BYTES + from);
+		byte[] bytes = new byte[length];
+		block.get(bytes);
+		return bytes;
+	}
+
+	public synchronized long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	public long getCapacity() {
+		return (long)slabs.length * slabSize;
+	}
+
+}
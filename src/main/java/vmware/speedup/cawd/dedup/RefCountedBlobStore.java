@@ -0,0 +1,74 @@
+package vmware.speedup.cawd.dedup;
+
+import java.util.Arrays;
+
+// Content addressed blobs shared by several chunk stores. Each blob is kept once, with a count of the store
+// entries pointing at it, and it goes away when the last one lets it go. Stores swap the content of their
+// chunks for the blob they get back from retain(), so identical bytes end up as a single array.
+// Several stores (and threads) use the same one, so every method takes the lock. The work done
+// under it is tiny compared to what stores do under their own locks.
+public class RefCountedBlobStore {
+
+	private SignatureIndex index = new SignatureIndex(ChunkingAlgorithm.SHA1_SIZE);
+	private byte[][] blobs = new byte[1024][];
+	private int[] references = new int[1024];
+	private int[] freePositions = new int[0];
+	private int numFreePositions = 0;
+	private int numPositions = 0;
+	private long bytes = 0;
+
+	// takes a reference on the blob with this signature, adding it if we did not have it. Returns the
+	// content callers should keep
+	public synchronized byte[] retain(byte[] signature, byte[] content) {
+		int position = index.get(signature);
+		if(position != SignatureIndex.NOT_FOUND) {
+			++references[position];
+			return blobs[position];
+		}
+		if(numFreePositions > 0) {
+			position = freePositions[--numFreePositions];
+		}
+		else {
+			if(numPositions == blobs.length) {
+				blobs = Arrays.copyOf(blobs, blobs.length * 2);
+				references = Arrays.copyOf(references, references.length * 2);
+			}
+			position = numPositions++;
+		}
+		index.put(signature, position);
+		blobs[position] = content;
+		references[position] = 1;
+		bytes += content.length;
+		return content;
+	}
+
+	public synchronized void release(byte[] signature) {
+		int position = index.get(signature);
+		if(position == SignatureIndex.NOT_FOUND) {
+			return;
+		}
+		if(--references[position] == 0) {
+			index.remove(signature);
+			bytes -= blobs[position].length;
+			blobs[position] = null;
+			if(numFreePositions == freePositions.length) {
+				freePositions = Arrays.copyOf(freePositions, Math.max(16, freePositions.length * 2));
+			}
+			freePositions[numFreePositions++] = position;
+		}
+	}
+
+	public synchronized byte[] get(byte[] signature) {
+		int position = index.get(signature);
+		return position != SignatureIndex.NOT_FOUND? blobs[position] : null;
+	}
+
+	public synchronized int size() {
+		return index.size();
+	}
+
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+}
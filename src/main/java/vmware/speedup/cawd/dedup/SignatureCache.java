@@ -0,0 +1,206 @@
+package vmware.speedup.cawd.dedup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Sender side cache of what we learned about a file: its chunk list (as the chunking algorithm writes it) and
+// the signatures of its byte ranges. It lives in cawd.streamer.signatureCache, one sidecar per file named
+// after the hash of its path, and an entry only holds while the file keeps its size and modification time
+// and we sign with the same provider. So sending an unchanged file again skips both parsing and hashing.
+// Sidecars look like <magic-long><version-int><path-utf><size-long><mtime-long><provider-utf>
+// <chunksSize-int><chunks><count-int>[<start-long><size-long><signature>]...
+public class SignatureCache {
+
+	private static final Logger logger = LogManager.getLogger(SignatureCache.class);
+
+	public static final String SIGNATURE_CACHE = "cawd.streamer.signatureCache";
+
+	private static final long MAGIC = 0x4341574453494753L;
+	private static final int VERSION = 3;
+
+	// what we know about one file
+	public static class Entry {
+
+		private String path = null;
+		private long size = 0;
+		private long modified = 0;
+		private String provider = null;
+		private byte[] chunks = null;
+		private Map<Range, byte[]> signatures = new HashMap<Range, byte[]>();
+		private boolean changed = false;
+
+		private Entry(File file, String provider) {
+			this.path = file.getAbsolutePath();
+			this.size = file.length();
+			this.modified = file.lastModified();
+			this.provider = provider;
+		}
+
+		// as the chunking algorithm wrote them, or null if we never chunked this file
+		public byte[] getChunks() {
+			return chunks;
+		}
+
+		public void setChunks(byte[] chunks) {
+			this.chunks = chunks;
+			this.changed = true;
+		}
+
+		// null if we never signed this range
+		public synchronized byte[] getSignature(long start, long size) {
+			return signatures.get(new Range(start, size));
+		}
+
+		public synchronized void putSignature(long start, long size, byte[] signature) {
+			if(signatures.put(new Range(start, size), signature) == null) {
+				changed = true;
+			}
+		}
+
+		public synchronized int size() {
+			return signatures.size();
+		}
+
+	}
+
+	private static class Range {
+
+		private long start = 0;
+		private long size = 0;
+
+		private Range(long start, long size) {
+			this.start = start;
+			this.size = size;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(start) * 31 + Long.hashCode(size);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Range && ((Range)other).start == start && ((Range)other).size == size;
+		}
+
+	}
+
+	private File folder = null;
+
+	public SignatureCache(File folder) {
+		this.folder = folder;
+		folder.mkdirs();
+	}
+
+	private File sidecarOf(File file) throws IOException {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(file.getAbsolutePath().getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder();
+			for(byte b : hash) {
+				name.append(String.format("%02x", b));
+			}
+			return new File(folder, name.append(".sigs").toString());
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	// the entry for this file. It is empty when there was none, or when the one we had no longer holds
+	public Entry get(File file, SignatureProvider provider) {
+		Entry entry = new Entry(file, provider.getName());
+		DataInputStream is = null;
+		try {
+			File sidecar = sidecarOf(file);
+			if(!sidecar.exists()) {
+				return entry;
+			}
+			is = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+			if(is.readLong() != MAGIC || is.readInt() != VERSION) {
+				logger.warn("Ignoring {}, it is not a signature cache sidecar we know", sidecar);
+				return entry;
+			}
+			if(!is.readUTF().equals(entry.path) || is.readLong() != entry.size || is.readLong() != entry.modified
+					|| !is.readUTF().equals(entry.provider)) {
+				logger.debug("Cached signatures of {} do not hold anymore", file);
+				return entry;
+			}
+			byte[] chunks = new byte[is.readInt()];
+			is.readFully(chunks);
+			int count = is.readInt();
+			Map<Range, byte[]> signatures = new HashMap<Range, byte[]>();
+			for(int i = 0; i < count; ++i) {
+				Range range = new Range(is.readLong(), is.readLong());
+				byte[] signature = new byte[provider.getSignatureSize()];
+				is.readFully(signature);
+				signatures.put(range, signature);
+			}
+			// only now, a broken sidecar leaves the entry empty
+			entry.chunks = chunks.length > 0? chunks : null;
+			entry.signatures = signatures;
+			logger.debug("Found {} cached signatures for {}", count, file);
+		}
+		catch(IOException e) {
+			logger.warn("Could not read cached signatures of {}: {}", file, e.getMessage());
+		}
+		finally {
+			if(is != null) {
+				try {
+					is.close();
+				}
+				catch(IOException e) {}
+			}
+		}
+		return entry;
+	}
+
+	// writes the entry if it changed since we got it. A temporary file goes first, so readers never see half
+	public void put(Entry entry) throws IOException {
+		if(!entry.changed) {
+			return;
+		}
+		File sidecar = sidecarOf(new File(entry.path));
+		File temporary = new File(folder, sidecar.getName() + ".tmp");
+		DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+		try {
+			os.writeLong(MAGIC);
+			os.writeInt(VERSION);
+			os.writeUTF(entry.path);
+			os.writeLong(entry.size);
+			os.writeLong(entry.modified);
+			os.writeUTF(entry.provider);
+			byte[] chunks = entry.chunks != null? entry.chunks : new byte[0];
+			os.writeInt(chunks.length);
+			os.write(chunks);
+			synchronized(entry) {
+				os.writeInt(entry.signatures.size());
+				for(Map.Entry<Range, byte[]> signature : entry.signatures.entrySet()) {
+					os.writeLong(signature.getKey().start);
+					os.writeLong(signature.getKey().size);
+					os.write(signature.getValue());
+				}
+			}
+		}
+		finally {
+			os.close();
+		}
+		Files.move(temporary.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		entry.changed = false;
+	}
+
+}
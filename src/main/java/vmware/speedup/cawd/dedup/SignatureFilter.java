@@ -0,0 +1,124 @@
+package vmware.speedup.cawd.dedup;
+
+import java.nio.ByteBuffer;
+
+// Bloom filter over chunk signatures. Receivers build one from their stores and send it over, so streamers can
+// tell the signatures the other side surely does not have and skip asking for them. Signatures are already
+// uniformly distributed, so we take two longs from them and use double hashing for the k probes.
+// On the wire it looks like <numHashes-int><numLongs-int><longs>.
+public class SignatureFilter {
+
+	private int signatureSize = 0;
+	private int numHashes = 0;
+	private long numBits = 0;
+	private long[] bits = null;
+
+	// sized for this many signatures with (about) this false positive rate
+	public SignatureFilter(int signatureSize, int expectedEntries, double falsePositiveRate) {
+		int entries = Math.max(1, expectedEntries);
+		long wanted = (long)Math.ceil(-entries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		// a long[] cannot get much bigger than this
+		int numLongs = (int)Math.min(Integer.MAX_VALUE - 8, Math.max(1, (wanted + Long.SIZE - 1) / Long.SIZE));
+		this.signatureSize = signatureSize;
+		this.bits = new long[numLongs];
+		this.numBits = (long)numLongs * Long.SIZE;
+		this.numHashes = Math.max(1, (int)Math.round((double)numBits / entries * Math.log(2)));
+	}
+
+	private SignatureFilter(int signatureSize, int numHashes, long[] bits) {
+		this.signatureSize = signatureSize;
+		this.numHashes = numHashes;
+		this.bits = bits;
+		this.numBits = (long)bits.length * Long.SIZE;
+	}
+
+	private long first(byte[] signature, int offset) {
+		long h = 0;
+		for(int i = 0; i < Long.BYTES && i < signatureSize; ++i) {
+			h = (h << 8) | (signature[offset + i] & 0xff);
+		}
+		return h;
+	}
+
+	private long second(byte[] signature, int offset) {
+		long h = 0;
+		for(int i = Long.BYTES; i < Long.BYTES * 2 && i < signatureSize; ++i) {
+			h = (h << 8) | (signature[offset + i] & 0xff);
+		}
+		// short signatures: derive it from the first one
+		return signatureSize > Long.BYTES? h : first(signature, offset) * 0x9e3779b97f4a7c15L;
+	}
+
+	private long first(ByteBuffer signature, int offset) {
+		long h = 0;
+		for(int i = 0; i < Long.BYTES && i < signatureSize; ++i) {
+			h = (h << 8) | (signature.get(offset + i) & 0xff);
+		}
+		return h;
+	}
+
+	private long second(ByteBuffer signature, int offset) {
+		long h = 0;
+		for(int i = Long.BYTES; i < Long.BYTES * 2 && i < signatureSize; ++i) {
+			h = (h << 8) | (signature.get(offset + i) & 0xff);
+		}
+		return signatureSize > Long.BYTES? h : first(signature, offset) * 0x9e3779b97f4a7c15L;
+	}
+
+	private void set(long h1, long h2) {
+		for(int i = 0; i < numHashes; ++i) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+			bits[(int)(bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	public void add(byte[] signature, int offset) {
+		set(first(signature, offset), second(signature, offset));
+	}
+
+	public void add(ByteBuffer signature, int offset) {
+		set(first(signature, offset), second(signature, offset));
+	}
+
+	// false means the signature was never added, true means it probably was
+	public boolean mightContain(byte[] signature, int offset) {
+		long h1 = first(signature, offset);
+		long h2 = second(signature, offset);
+		for(int i = 0; i < numHashes; ++i) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+			if((bits[(int)(bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public byte[] toBytes() {
+		ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * 2 + bits.length * Long.BYTES);
+		buffer.putInt(numHashes);
+		buffer.putInt(bits.length);
+		for(long word : bits) {
+			buffer.putLong(word);
+		}
+		return buffer.array();
+	}
+
+	public static SignatureFilter fromBytes(int signatureSize, byte[] data) {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		int numHashes = buffer.getInt();
+		long[] bits = new long[buffer.getInt()];
+		for(int i = 0; i < bits.length; ++i) {
+			bits[i] = buffer.getLong();
+		}
+		return new SignatureFilter(signatureSize, numHashes, bits);
+	}
+
+	public int getNumHashes() {
+		return numHashes;
+	}
+
+	public long getNumBits() {
+		return numBits;
+	}
+
+}
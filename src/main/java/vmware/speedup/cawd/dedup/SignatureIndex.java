@@ -0,0 +1,261 @@
+package vmware.speedup.cawd.dedup;
+
+import java.nio.ByteBuffer;
+
+// Open addressing (linear probing) table that maps fixed width signatures to int values. The table lives in a
+// direct buffer, so the heap only sees this object no matter how many signatures we keep. Each slot looks like
+// <signature><value-int>, where value 0 means empty and anything else is the stored value + 1.
+public class SignatureIndex {
+
+	public static final int NOT_FOUND = -1;
+
+	public interface SignatureVisitor {
+		// the signature is at [offset, offset + signatureSize) of the buffer
+		void visit(ByteBuffer buffer, int offset);
+	}
+
+	private static final double MAX_LOAD = 0.7;
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	private int signatureSize = 0;
+	private int slotSize = 0;
+	private int capacity = 0;
+	private int mask = 0;
+	private int size = 0;
+	private int resizeThreshold = 0;
+	private ByteBuffer table = null;
+
+	public SignatureIndex(int signatureSize) {
+		this(signatureSize, Integer.valueOf(System.getProperty("cawd.store.initialCapacity", "1024")));
+	}
+
+	public SignatureIndex(int signatureSize, int initialCapacity) {
+		this.signatureSize = signatureSize;
+		this.slotSize = signatureSize + Integer.BYTES;
+		allocate(tableSizeFor(initialCapacity));
+	}
+
+	private static int tableSizeFor(int expected) {
+		int needed = (int)Math.min(MAX_CAPACITY, (long)Math.ceil(Math.max(expected, 16) / MAX_LOAD));
+		return Integer.highestOneBit(needed - 1) << 1;
+	}
+
+	private void allocate(int newCapacity) {
+		if((long)newCapacity * slotSize > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Signature index cannot grow beyond " + capacity + " slots");
+		}
+		this.capacity = newCapacity;
+		this.mask = newCapacity - 1;
+		this.resizeThreshold = (int)(newCapacity * MAX_LOAD);
+		// direct buffers are zeroed, so every slot starts empty
+		this.table = ByteBuffer.allocateDirect(newCapacity * slotSize);
+	}
+
+	// signatures are already uniformly distributed, but we mix the first bytes anyway so truncated or
+	// non cryptographic signatures spread well too
+	private static int mix(long h) {
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		return (int)h;
+	}
+
+	private int hash(byte[] signature, int offset) {
+		long h = 0;
+		for(int i = 0; i < Long.BYTES && i < signatureSize; ++i) {
+			h = (h << 8) | (signature[offset + i] & 0xff);
+		}
+		return mix(h);
+	}
+
+	private int hash(ByteBuffer signature, int offset) {
+		long h = 0;
+		for(int i = 0; i < Long.BYTES && i < signatureSize; ++i) {
+			h = (h << 8) | (signature.get(offset + i) & 0xff);
+		}
+		return mix(h);
+	}
+
+	private int valueAt(int slot) {
+		return table.getInt(slot * slotSize + signatureSize);
+	}
+
+	private boolean matches(int slot, byte[] signature, int offset) {
+		int base = slot * slotSize;
+		for(int i = 0; i < signatureSize; ++i) {
+			if(table.get(base + i) != signature[offset + i]) return false;
+		}
+		return true;
+	}
+
+	private boolean matches(int slot, ByteBuffer signature, int offset) {
+		int base = slot * slotSize;
+		for(int i = 0; i < signatureSize; ++i) {
+			if(table.get(base + i) != signature.get(offset + i)) return false;
+		}
+		return true;
+	}
+
+	// returns the slot holding this signature or the first empty slot in its probe sequence
+	private int findSlot(byte[] signature, int offset) {
+		int slot = hash(signature, offset) & mask;
+		while(valueAt(slot) != 0 && !matches(slot, signature, offset)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	public int get(byte[] signature) {
+		return get(signature, 0);
+	}
+
+	public int get(byte[] signature, int offset) {
+		return valueAt(findSlot(signature, offset)) - 1;
+	}
+
+	// looks up the signature stored at [offset, offset + signatureSize) of the buffer, without
+	// touching its position
+	public int get(ByteBuffer signature, int offset) {
+		int slot = hash(signature, offset) & mask;
+		int value = 0;
+		while((value = valueAt(slot)) != 0) {
+			if(matches(slot, signature, offset)) {
+				return value - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return NOT_FOUND;
+	}
+
+	public boolean contains(byte[] signature) {
+		return get(signature, 0) != NOT_FOUND;
+	}
+
+	// inserts the value if the signature is not there. Returns the value already stored for
+	// this signature or NOT_FOUND if we inserted
+	public int putIfAbsent(byte[] signature, int value) {
+		return insert(signature, value, false);
+	}
+
+	// same as putIfAbsent, but the new value replaces the stored one
+	public int put(byte[] signature, int value) {
+		return insert(signature, value, true);
+	}
+
+	private int insert(byte[] signature, int value, boolean replace) {
+		if(value < 0 || value == Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Value out of range: " + value);
+		}
+		int slot = findSlot(signature, 0);
+		int current = valueAt(slot);
+		int base = slot * slotSize;
+		if(current != 0) {
+			if(replace) {
+				table.putInt(base + signatureSize, value + 1);
+			}
+			return current - 1;
+		}
+		for(int i = 0; i < signatureSize; ++i) {
+			table.put(base + i, signature[i]);
+		}
+		table.putInt(base + signatureSize, value + 1);
+		++size;
+		if(size > resizeThreshold) {
+			resize();
+		}
+		return NOT_FOUND;
+	}
+
+	// removes the signature and returns its value (or NOT_FOUND). We use backward shift deletion, so
+	// there are no tombstones and probe sequences stay as short as if the entry was never there
+	public int remove(byte[] signature) {
+		int hole = findSlot(signature, 0);
+		int value = valueAt(hole);
+		if(value == 0) {
+			return NOT_FOUND;
+		}
+		int next = (hole + 1) & mask;
+		while(valueAt(next) != 0) {
+			int ideal = hash(table, next * slotSize) & mask;
+			// the entry at next can move back only if the hole is between its ideal slot and next
+			if(((next - ideal) & mask) >= ((next - hole) & mask)) {
+				for(int i = 0; i < slotSize; ++i) {
+					table.put(hole * slotSize + i, table.get(next * slotSize + i));
+				}
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		for(int i = 0; i < slotSize; ++i) {
+			table.put(hole * slotSize + i, (byte)0);
+		}
+		--size;
+		return value - 1;
+	}
+
+	private void resize() {
+		if(capacity >= MAX_CAPACITY) {
+			throw new IllegalStateException("Signature index is full, size=" + size);
+		}
+		ByteBuffer old = table;
+		int oldCapacity = capacity;
+		allocate(capacity << 1);
+		byte[] signature = new byte[signatureSize];
+		for(int i = 0; i < oldCapacity; ++i) {
+			int value = old.getInt(i * slotSize + signatureSize);
+			if(value != 0) {
+				for(int j = 0; j < signatureSize; ++j) {
+					signature[j] = old.get(i * slotSize + j);
+				}
+				int slot = findSlot(signature, 0);
+				int base = slot * slotSize;
+				for(int j = 0; j < signatureSize; ++j) {
+					table.put(base + j, signature[j]);
+				}
+				table.putInt(base + signatureSize, value);
+			}
+		}
+	}
+
+	// visits every signature we keep, in table order
+	public void forEach(SignatureVisitor visitor) {
+		for(int slot = 0; slot < capacity; ++slot) {
+			if(valueAt(slot) != 0) {
+				visitor.visit(table, slot * slotSize);
+			}
+		}
+	}
+
+	// visits every signature starting with this prefix. Slots only depend on the first bytes of the
+	// signature, so prefixes that long (or longer) share the probe sequence of the signatures they start
+	public void forEachWithPrefix(byte[] prefix, SignatureVisitor visitor) {
+		if(prefix.length < Math.min(Long.BYTES, signatureSize) || prefix.length > signatureSize) {
+			throw new IllegalArgumentException("Prefix of " + prefix.length + " bytes cannot be looked up");
+		}
+		int slot = hash(prefix, 0) & mask;
+		while(valueAt(slot) != 0) {
+			int base = slot * slotSize;
+			boolean matches = true;
+			for(int i = 0; i < prefix.length && matches; ++i) {
+				matches = table.get(base + i) == prefix[i];
+			}
+			if(matches) {
+				visitor.visit(table, base);
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getSignatureSize() {
+		return signatureSize;
+	}
+
+	public long offHeapBytes() {
+		return (long)capacity * slotSize;
+	}
+
+}
@@ -0,0 +1,204 @@
+package vmware.speedup.cawd.dedup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+// How chunks get their signatures. cawd.signature picks one for the whole process:
+//   - sha1 (the default): SHA-1, with a digest per thread instead of one per call
+//   - sha256: SHA-256 cut to the signature size, for when SHA-1 collisions are a concern
+//   - murmur3: 128 bits of Murmur3 (x64 variant) plus the content length, which is several times
+//     faster than either digest but not meant to hold against someone crafting collisions
+// Every provider gives ChunkingAlgorithm.SHA1_SIZE bytes, so indexes, logs, filters and the protocol do not
+// change with it. Stores keep signatures, so a persistent store or a snapshot has to be used with the
+// provider that wrote it. Streamers get the provider of the receiver when they connect (see SpeedupStreamer).
+public abstract class SignatureProvider {
+
+	public static final String SIGNATURE = "cawd.signature";
+
+	private static volatile SignatureProvider defaultProvider = null;
+
+	public abstract String getName();
+
+	// signature of length bytes of the buffer, from offset
+	public abstract byte[] sign(byte[] buffer, int offset, int length);
+
+	public byte[] sign(byte[] buffer) {
+		return sign(buffer, 0, buffer.length);
+	}
+
+	// signature of what remains in the buffer, which is left as it was. Mapped buffers are signed in place
+	public abstract byte[] sign(ByteBuffer buffer);
+
+	public int getSignatureSize() {
+		return ChunkingAlgorithm.SHA1_SIZE;
+	}
+
+	public static SignatureProvider forName(String name) throws NoSuchAlgorithmException {
+		if("sha1".equals(name)) {
+			return new DigestSignatureProvider(name, "SHA-1");
+		}
+		else if("sha256".equals(name)) {
+			return new DigestSignatureProvider(name, "SHA-256");
+		}
+		else if("murmur3".equals(name)) {
+			return new Murmur3SignatureProvider();
+		}
+		throw new NoSuchAlgorithmException("Unknown signature provider " + name);
+	}
+
+	// the one cawd.signature picks
+	public static SignatureProvider getDefault() throws NoSuchAlgorithmException {
+		if(defaultProvider == null) {
+			defaultProvider = forName(System.getProperty(SIGNATURE, "sha1"));
+		}
+		return defaultProvider;
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+
+	public static class DigestSignatureProvider extends SignatureProvider {
+
+		private String name = null;
+		private ThreadLocal<MessageDigest> digests = null;
+
+		public DigestSignatureProvider(String name, final String algorithm) throws NoSuchAlgorithmException {
+			this.name = name;
+			// fail here rather than on the first chunk
+			MessageDigest.getInstance(algorithm);
+			this.digests = new ThreadLocal<MessageDigest>() {
+				@Override
+				protected MessageDigest initialValue() {
+					try {
+						return MessageDigest.getInstance(algorithm);
+					}
+					catch(NoSuchAlgorithmException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			};
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public byte[] sign(byte[] buffer, int offset, int length) {
+			MessageDigest digest = digests.get();
+			digest.update(buffer, offset, length);
+			return truncate(digest.digest());
+		}
+
+		@Override
+		public byte[] sign(ByteBuffer buffer) {
+			MessageDigest digest = digests.get();
+			digest.update(buffer.duplicate());
+			return truncate(digest.digest());
+		}
+
+		private byte[] truncate(byte[] signature) {
+			return signature.length == getSignatureSize()? signature : Arrays.copyOf(signature, getSignatureSize());
+		}
+
+	}
+
+	// MurmurHash3_x64_128 with seed 0, as Austin Appleby wrote it. Signatures look like <h1><length><h2>,
+	// halves little endian and the length big endian. Indexes hash the first bytes and stores pick their
+	// lock stripe with the last one, so both ends have to be hash bits
+	public static class Murmur3SignatureProvider extends SignatureProvider {
+
+		private static final long C1 = 0x87c37b91114253d5L;
+		private static final long C2 = 0x4cf5ad432745937fL;
+
+		@Override
+		public String getName() {
+			return "murmur3";
+		}
+
+		private static long mixK1(long k1) {
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			return k1 * C2;
+		}
+
+		private static long mixK2(long k2) {
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			return k2 * C1;
+		}
+
+		private static long fmix(long k) {
+			k ^= k >>> 33;
+			k *= 0xff51afd7ed558ccdL;
+			k ^= k >>> 33;
+			k *= 0xc4ceb9fe1a85ec53L;
+			k ^= k >>> 33;
+			return k;
+		}
+
+		@Override
+		public byte[] sign(byte[] buffer, int offset, int length) {
+			return sign(ByteBuffer.wrap(buffer, offset, length));
+		}
+
+		@Override
+		public byte[] sign(ByteBuffer buffer) {
+			ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			int offset = in.position();
+			int length = in.remaining();
+			long h1 = 0, h2 = 0;
+			int end = offset + length - length % 16;
+			for(int i = offset; i < end; i += 16) {
+				h1 ^= mixK1(in.getLong(i));
+				h1 = Long.rotateLeft(h1, 27);
+				h1 += h2;
+				h1 = h1 * 5 + 0x52dce729;
+				h2 ^= mixK2(in.getLong(i + 8));
+				h2 = Long.rotateLeft(h2, 31);
+				h2 += h1;
+				h2 = h2 * 5 + 0x38495ab5;
+			}
+			long k1 = 0, k2 = 0;
+			int tail = length % 16;
+			for(int i = tail - 1; i >= 8; --i) {
+				k2 ^= (in.get(end + i) & 0xffL) << ((i - 8) * 8);
+			}
+			for(int i = Math.min(tail, 8) - 1; i >= 0; --i) {
+				k1 ^= (in.get(end + i) & 0xffL) << (i * 8);
+			}
+			if(tail > 8) {
+				h2 ^= mixK2(k2);
+			}
+			if(tail > 0) {
+				h1 ^= mixK1(k1);
+			}
+			h1 ^= length;
+			h2 ^= length;
+			h1 += h2;
+			h2 += h1;
+			h1 = fmix(h1);
+			h2 = fmix(h2);
+			h1 += h2;
+			h2 += h1;
+			byte[] signature = new byte[getSignatureSize()];
+			for(int i = 0; i < 8; ++i) {
+				signature[i] = (byte)(h1 >>> (i * 8));
+				signature[12 + i] = (byte)(h2 >>> (i * 8));
+			}
+			signature[8] = (byte)(length >>> 24);
+			signature[9] = (byte)(length >>> 16);
+			signature[10] = (byte)(length >>> 8);
+			signature[11] = (byte)length;
+			return signature;
+		}
+
+	}
+
+}
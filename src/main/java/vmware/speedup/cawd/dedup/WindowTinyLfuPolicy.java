@@ -0,0 +1,246 @@
+package vmware.speedup.cawd.dedup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Byte bounded W-TinyLFU. Entries are the positions of a chunk store, each one with a weight in bytes and a key
+// (a long taken from its signature) used for the frequency sketch. New entries go to a small LRU window (1% of
+// the bytes); what falls out of the window enters the probation segment of a segmented LRU, and a second hit
+// there promotes it to the protected segment (80% of the main space). When we are over capacity, the newest
+// entrant of probation competes with the probation victim and the one the sketch has seen less often leaves,
+// so chunks that keep coming back survive bursts of one-off stripes.
+public class WindowTinyLfuPolicy {
+
+	public interface EvictionListener {
+		void onEviction(int position, int weight);
+	}
+
+	static final byte NONE = 0;
+	static final byte WINDOW = 1;
+	static final byte PROBATION = 2;
+	static final byte PROTECTED = 3;
+
+	private long maximumBytes = 0;
+	private long windowMaximum = 0;
+	private long protectedMaximum = 0;
+	private long[] queueBytes = new long[4];
+	private int[] heads = new int[] {-1, -1, -1, -1};
+	private int[] tails = new int[] {-1, -1, -1, -1};
+	private int[] prev = new int[0];
+	private int[] next = new int[0];
+	private byte[] queues = new byte[0];
+	private long[] keys = new long[0];
+	private int[] weights = new int[0];
+	private int entries = 0;
+	private FrequencySketch sketch = new FrequencySketch();
+	private EvictionListener listener = null;
+
+	public WindowTinyLfuPolicy(long maximumBytes, EvictionListener listener) {
+		this.maximumBytes = maximumBytes;
+		this.windowMaximum = Math.max(1, maximumBytes / 100);
+		this.protectedMaximum = (long)((maximumBytes - windowMaximum) * 0.8);
+		this.listener = listener;
+	}
+
+	public static long keyOf(byte[] signature, int offset) {
+		long key = 0;
+		for(int i = 0; i < Long.BYTES; ++i) {
+			key = (key << 8) | (signature[offset + i] & 0xff);
+		}
+		return key;
+	}
+
+	public static long keyOf(ByteBuffer signature, int offset) {
+		long key = 0;
+		for(int i = 0; i < Long.BYTES; ++i) {
+			key = (key << 8) | (signature.get(offset + i) & 0xff);
+		}
+		return key;
+	}
+
+	public long getMaximumBytes() {
+		return maximumBytes;
+	}
+
+	public long getWeightedSize() {
+		return queueBytes[WINDOW] + queueBytes[PROBATION] + queueBytes[PROTECTED];
+	}
+
+	byte queueOf(int position) {
+		return position < queues.length? queues[position] : NONE;
+	}
+
+	private void ensureCapacity(int position) {
+		if(position >= queues.length) {
+			int size = Math.max(position + 1, queues.length * 2);
+			prev = Arrays.copyOf(prev, size);
+			next = Arrays.copyOf(next, size);
+			queues = Arrays.copyOf(queues, size);
+			keys = Arrays.copyOf(keys, size);
+			weights = Arrays.copyOf(weights, size);
+		}
+	}
+
+	private void link(int position, byte queue) {
+		queues[position] = queue;
+		prev[position] = tails[queue];
+		next[position] = -1;
+		if(tails[queue] >= 0) {
+			next[tails[queue]] = position;
+		}
+		else {
+			heads[queue] = position;
+		}
+		tails[queue] = position;
+		queueBytes[queue] += weights[position];
+	}
+
+	private void unlink(int position) {
+		byte queue = queues[position];
+		if(prev[position] >= 0) {
+			next[prev[position]] = next[position];
+		}
+		else {
+			heads[queue] = next[position];
+		}
+		if(next[position] >= 0) {
+			prev[next[position]] = prev[position];
+		}
+		else {
+			tails[queue] = prev[position];
+		}
+		queueBytes[queue] -= weights[position];
+		queues[position] = NONE;
+	}
+
+	// a new entry. This might evict other entries, or this one
+	public void add(int position, long key, int weight) {
+		ensureCapacity(position);
+		keys[position] = key;
+		weights[position] = weight;
+		++entries;
+		sketch.ensureCapacity(entries);
+		sketch.increment(key);
+		link(position, WINDOW);
+		// move the window overflow to probation, there they will compete for space
+		while(queueBytes[WINDOW] > windowMaximum && heads[WINDOW] != tails[WINDOW]) {
+			int candidate = heads[WINDOW];
+			unlink(candidate);
+			link(candidate, PROBATION);
+		}
+		evict();
+	}
+
+	public void onHit(int position) {
+		sketch.increment(keys[position]);
+		byte queue = queues[position];
+		unlink(position);
+		if(queue == PROBATION || queue == PROTECTED) {
+			link(position, PROTECTED);
+			while(queueBytes[PROTECTED] > protectedMaximum && heads[PROTECTED] != position) {
+				int demoted = heads[PROTECTED];
+				unlink(demoted);
+				link(demoted, PROBATION);
+			}
+		}
+		else {
+			link(position, queue);
+		}
+	}
+
+	// misses count too, a chunk that keeps being asked for deserves a place once it arrives
+	public void onMiss(long key) {
+		sketch.increment(key);
+	}
+
+	// the entry leaves without being evicted (its store moved it somewhere else)
+	public void remove(int position) {
+		unlink(position);
+		--entries;
+	}
+
+	// the entry changed its weight (same signature, new content or links)
+	public void update(int position, int weight) {
+		byte queue = queues[position];
+		unlink(position);
+		weights[position] = weight;
+		link(position, queue);
+		evict();
+	}
+
+	private void evict() {
+		while(getWeightedSize() > maximumBytes) {
+			int victim = -1;
+			for(byte queue : new byte[] {PROBATION, PROTECTED, WINDOW}) {
+				if(heads[queue] >= 0) {
+					victim = heads[queue];
+					break;
+				}
+			}
+			int candidate = tails[PROBATION];
+			int evicted = victim;
+			if(queues[victim] == PROBATION && candidate != victim
+					&& sketch.frequency(keys[candidate]) <= sketch.frequency(keys[victim])) {
+				evicted = candidate;
+			}
+			unlink(evicted);
+			--entries;
+			listener.onEviction(evicted, weights[evicted]);
+		}
+	}
+
+	// count-min sketch with four 4-bit-ish counters per key (we keep them in bytes and cap them at 15).
+	// Counters are halved every 10 * entries increments, so old popularity fades away
+	static class FrequencySketch {
+
+		private static final long[] SEEDS = new long[] {
+				0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+		private static final int MAX_COUNT = 15;
+
+		private byte[] table = new byte[64];
+		private int mask = 63;
+		private int additions = 0;
+		private int sampleSize = 640;
+
+		void ensureCapacity(int entries) {
+			sampleSize = Math.max(640, entries * 10);
+			if(entries * 8 > table.length && table.length < (1 << 30)) {
+				// we lose the counts, but this only happens while the store warms up
+				table = new byte[Integer.highestOneBit(entries * 8 - 1) << 1];
+				mask = table.length - 1;
+				additions = 0;
+			}
+		}
+
+		private int indexOf(long key, int row) {
+			long h = (key + SEEDS[row]) * SEEDS[(row + 1) & 3];
+			h ^= h >>> 32;
+			return (int)h & mask;
+		}
+
+		int frequency(long key) {
+			int frequency = MAX_COUNT;
+			for(int row = 0; row < SEEDS.length; ++row) {
+				frequency = Math.min(frequency, table[indexOf(key, row)]);
+			}
+			return frequency;
+		}
+
+		void increment(long key) {
+			for(int row = 0; row < SEEDS.length; ++row) {
+				int index = indexOf(key, row);
+				if(table[index] < MAX_COUNT) {
+					++table[index];
+				}
+			}
+			if(++additions >= sampleSize) {
+				for(int i = 0; i < table.length; ++i) {
+					table[i] >>= 1;
+				}
+				additions /= 2;
+			}
+		}
+
+	}
+
+}
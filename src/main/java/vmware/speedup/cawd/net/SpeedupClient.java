@@ -109,6 +109,7 @@ public class SpeedupClient extends Thread {
 				socket = connect();
 				InputStream is = new DataInputStream(socket.getInputStream());
 				OutputStream os = new BufferedOutputStream(socket.getOutputStream());
+				streamer.handshake(is, os);
 				for(File file : files) {
 					if(isInFilter(file.getName())) {
 						// transfer this file...
@@ -1,23 +1,120 @@
 package vmware.speedup.cawd.net;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import vmware.speedup.cawd.dedup.ColumnarChunkStore;
+import vmware.speedup.cawd.dedup.IndexedChunkStore;
+import vmware.speedup.cawd.dedup.SignatureProvider;
 import vmware.speedup.cawd.common.BytesUtil;
 import vmware.speedup.cawd.common.TransferStats;
 import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
 
 public abstract class SpeedupReceiver {
 
+	private static final Logger logger = LogManager.getLogger(SpeedupReceiver.class);
+	private static final int SNAPSHOT_BUFFER_SIZE = 1 << 20;
+	
 	protected ColumnarChunkStore chunkStore = null;
 	
 	public abstract TransferStats receiveFile(String destinationFolder, InputStream is, OutputStream os) throws IOException;
 	
+	// the other side of SpeedupStreamer.handshake(): whatever the streamer proposes, we answer with the
+	// provider our stores are keyed by
+	public void handshake(InputStream is, OutputStream os) throws IOException {
+		DataInputStream dis = new DataInputStream(is);
+		String proposed = new String(BytesUtil.readNextBytes(dis, BytesUtil.bytesToInt(BytesUtil.readNextBytes(dis, Integer.BYTES))));
+		SignatureProvider provider = null;
+		try {
+			provider = SignatureProvider.getDefault();
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IOException("Cannot sign chunks", e);
+		}
+		if(!proposed.equals(provider.getName())) {
+			logger.warn("Streamer proposed signing chunks with {}, we sign them with {}", proposed, provider.getName());
+		}
+		byte[] name = provider.getName().getBytes();
+		os.write(BytesUtil.intToBytes(name.length));
+		os.write(name);
+		os.write(BytesUtil.intToBytes(provider.getSignatureSize()));
+		os.flush();
+	}
+	
+	// called once the server is done, receivers with persistent stores close them here
+	public void close() throws IOException {
+		
+	}
+	
+	// adds what we would have kept from this file (usually one a previous run wrote) to our stores, so the
+	// first transfers already find hits. Called from several threads at once, before any transfer
+	public void index(File file) throws IOException {
+		
+	}
+	
+	// the stores we keep, so they can be snapshot. Receivers without stores have none
+	protected List<IndexedChunkStore<?, ?>> getStores() {
+		return Collections.emptyList();
+	}
+	
+	// seeds each store from <folder>/<store name>.snapshot, when there is one. Called before any transfer
+	public void importSnapshots(File folder) throws IOException {
+		for(IndexedChunkStore<?, ?> store : getStores()) {
+			File file = new File(folder, store.getName() + ".snapshot");
+			if(!file.exists()) {
+				logger.info("No snapshot for store {} in {}", store.getName(), folder);
+				continue;
+			}
+			InputStream is = new BufferedInputStream(new FileInputStream(file), SNAPSHOT_BUFFER_SIZE);
+			try {
+				store.importSnapshot(is);
+			}
+			finally {
+				is.close();
+			}
+		}
+	}
+	
+	// writes each store to <folder>/<store name>.snapshot. We write a temporary file first, so a reader
+	// never sees half a snapshot
+	public void exportSnapshots(File folder) throws IOException {
+		folder.mkdirs();
+		for(IndexedChunkStore<?, ?> store : getStores()) {
+			File file = new File(folder, store.getName() + ".snapshot");
+			File temporary = new File(folder, store.getName() + ".snapshot.tmp");
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(temporary), SNAPSHOT_BUFFER_SIZE);
+			try {
+				store.exportSnapshot(os);
+			}
+			finally {
+				os.close();
+			}
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+	
+	// size bytes of the file, from start
+	protected static byte[] readRange(RandomAccessFile file, long start, long size) throws IOException {
+		byte[] bytes = new byte[(int)size];
+		file.seek(start);
+		file.readFully(bytes);
+		return bytes;
+	}
+	
 	public static class TransferMeta {
 		
 		private String name = null;
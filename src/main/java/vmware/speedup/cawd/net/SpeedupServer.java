@@ -24,6 +24,9 @@ public class SpeedupServer extends Thread {
 	public static final String S_HOST = "cawd.server.host";
 	public static final String S_PORT = "cawd.server.port";
 	public static final String S_OUT = "cawd.server.outputFolder";
+	// folders the receiver stores are seeded from when we start, and written to when we exit
+	public static final String S_SNAPSHOT_IMPORT = "cawd.server.snapshot.import";
+	public static final String S_SNAPSHOT_EXPORT = "cawd.server.snapshot.export";
 	
 	private String host = null;
 	private int port = 0;
@@ -54,6 +57,13 @@ public class SpeedupServer extends Thread {
 		Socket connection = null;
 		List<TransferStats> allStats = new ArrayList<TransferStats>();
 		try {
+			// snapshots and files from a previous run seed the stores before anyone connects
+			if(System.getProperty(S_SNAPSHOT_IMPORT) != null) {
+				receiver.importSnapshots(new File(System.getProperty(S_SNAPSHOT_IMPORT)));
+			}
+			if(Boolean.valueOf(System.getProperty(WarmStartIndexer.WARM_START, "false"))) {
+				logger.info("{}", new WarmStartIndexer(receiver, destinationFolder).run());
+			}
 			serverSocket = new ServerSocket(port, 0, InetAddress.getByName(host));
 			connection = serverSocket.accept();
 			connection.setKeepAlive(true);
@@ -62,6 +72,7 @@ public class SpeedupServer extends Thread {
 			logger.debug("Accepted connection...");
 			InputStream is = new DataInputStream(connection.getInputStream());
 			OutputStream os = new BufferedOutputStream(connection.getOutputStream());
+			receiver.handshake(is, os);
 			
 			while(true) {
 				try {
@@ -93,6 +104,20 @@ public class SpeedupServer extends Thread {
 				if(serverSocket != null) serverSocket.close();
 			}
 			catch(Exception e) {}
+			if(System.getProperty(S_SNAPSHOT_EXPORT) != null) {
+				try {
+					receiver.exportSnapshots(new File(System.getProperty(S_SNAPSHOT_EXPORT)));
+				}
+				catch(Exception e) {
+					logger.error("Could not export snapshots...", e);
+				}
+			}
+			try {
+				receiver.close();
+			}
+			catch(Exception e) {
+				logger.error("Could not close receiver...", e);
+			}
 			logger.info("{} exiting...", getName());
 		}
 		
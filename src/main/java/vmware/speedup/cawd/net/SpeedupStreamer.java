@@ -1,21 +1,65 @@
 package vmware.speedup.cawd.net;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import vmware.speedup.cawd.common.BytesUtil;
 import vmware.speedup.cawd.common.TransferStats;
 import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
 import vmware.speedup.cawd.dedup.ColumnarChunkStore;
+import vmware.speedup.cawd.dedup.SignatureProvider;
 
 public abstract class SpeedupStreamer {
 	
+	private static final Logger logger = LogManager.getLogger(SpeedupStreamer.class);
+	
 	public abstract TransferStats transferFile(String fileName, InputStream is, OutputStream os) throws IOException;
 	
+	// run once per connection, before any file. We tell the receiver how we would sign chunks and it answers
+	// with how it does: <nameSize-int><name>, answered by <nameSize-int><name><signatureSize-int>. Its stores
+	// are keyed by its signatures, so we switch to its provider
+	public void handshake(InputStream is, OutputStream os) throws IOException {
+		DataInputStream dis = new DataInputStream(is);
+		SignatureProvider proposed = null;
+		try {
+			proposed = SignatureProvider.getDefault();
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IOException("Cannot sign chunks", e);
+		}
+		byte[] name = proposed.getName().getBytes();
+		os.write(BytesUtil.intToBytes(name.length));
+		os.write(name);
+		os.flush();
+		String agreed = new String(BytesUtil.readNextBytes(dis, BytesUtil.bytesToInt(BytesUtil.readNextBytes(dis, Integer.BYTES))));
+		int signatureSize = BytesUtil.bytesToInt(BytesUtil.readNextBytes(dis, Integer.BYTES));
+		SignatureProvider provider = null;
+		try {
+			provider = agreed.equals(proposed.getName())? proposed : SignatureProvider.forName(agreed);
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IOException("Receiver signs chunks with " + agreed + ", which we do not know", e);
+		}
+		if(provider.getSignatureSize() != signatureSize) {
+			throw new IOException("Receiver expects signatures of " + signatureSize + " bytes, " + agreed + " gives " + provider.getSignatureSize());
+		}
+		if(provider != proposed) {
+			logger.warn("Receiver signs chunks with {}, using it instead of {}", agreed, proposed.getName());
+		}
+		setSignatureProvider(provider);
+	}
+	
+	// streamers that sign chunks take the agreed provider here
+	protected void setSignatureProvider(SignatureProvider provider) {
+		
+	}
+	
 	public static enum TransferStatus {
 		ONGOING,
 		SUCCESS,
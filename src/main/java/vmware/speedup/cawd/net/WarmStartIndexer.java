@@ -0,0 +1,116 @@
+package vmware.speedup.cawd.net;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import vmware.speedup.cawd.common.TransferStats;
+import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+
+// Seeds the receiver stores with the files a previous run left in the output folder, so we start with hits
+// without keeping a persistent store. The server runs it before accepting connections when cawd.server.warmStart
+// is set. Files are indexed by cawd.server.warmStart.threads threads (all cores by default), biggest first so
+// the last ones to finish are small, and we log the progress every cawd.server.warmStart.progressMillis.
+// A file we cannot index (not one of ours, or broken) is skipped.
+public class WarmStartIndexer {
+
+	private static final Logger logger = LogManager.getLogger(WarmStartIndexer.class);
+
+	public static final String WARM_START = "cawd.server.warmStart";
+
+	private SpeedupReceiver receiver = null;
+	private File folder = null;
+	private int threads = 0;
+	private long progressMillis = 0;
+	private long totalFiles = 0;
+	private long totalBytes = 0;
+	private AtomicLong filesDone = new AtomicLong();
+	private AtomicLong bytesDone = new AtomicLong();
+	private AtomicLong filesFailed = new AtomicLong();
+
+	public WarmStartIndexer(SpeedupReceiver receiver, File folder) {
+		this.receiver = receiver;
+		this.folder = folder;
+		this.threads = Integer.valueOf(System.getProperty("cawd.server.warmStart.threads",
+				String.valueOf(Runtime.getRuntime().availableProcessors())));
+		this.progressMillis = Long.valueOf(System.getProperty("cawd.server.warmStart.progressMillis", "5000"));
+	}
+
+	// between 0 and 1, in bytes
+	public double getProgress() {
+		return totalBytes > 0? (double)bytesDone.get() / totalBytes : 1.0;
+	}
+
+	public TransferStats run() throws InterruptedException {
+		TransferStats stats = new TransferStats(folder.getAbsolutePath());
+		File[] found = folder.listFiles();
+		List<File> files = new ArrayList<File>();
+		if(found != null) {
+			for(File file : found) {
+				if(file.isFile()) {
+					files.add(file);
+					totalBytes += file.length();
+				}
+			}
+		}
+		totalFiles = files.size();
+		files.sort(new Comparator<File>() {
+			@Override
+			public int compare(File one, File other) {
+				return Long.compare(other.length(), one.length());
+			}
+		});
+		logger.info("Warm start: indexing {} files ({} bytes) from {} with {} threads", totalFiles, totalBytes, folder, threads);
+		long startTime = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			for(final File file : files) {
+				pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							receiver.index(file);
+						}
+						catch(Exception e) {
+							filesFailed.incrementAndGet();
+							logger.warn("Could not index {}, skipping it: {}", file, e.getMessage());
+						}
+						bytesDone.addAndGet(file.length());
+						filesDone.incrementAndGet();
+					}
+				});
+			}
+			pool.shutdown();
+			while(!pool.awaitTermination(progressMillis, TimeUnit.MILLISECONDS)) {
+				logProgress(startTime);
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		logProgress(startTime);
+		stats.getStats().add(new TransferStatValue(
+				TransferStatValue.Type.WarmStartFiles, filesDone.get() - filesFailed.get(), TransferStatValue.Unit.Count));
+		stats.getStats().add(new TransferStatValue(
+				TransferStatValue.Type.WarmStartBytes, bytesDone.get(), TransferStatValue.Unit.Bytes));
+		stats.getStats().add(new TransferStatValue(
+				TransferStatValue.Type.WarmStartTime, System.currentTimeMillis() - startTime, TransferStatValue.Unit.Milliseconds));
+		return stats;
+	}
+
+	private void logProgress(long startTime) {
+		long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+		logger.info("Warm start: {}/{} files, {}/{} bytes ({}%), {} failed, {} MB/s", filesDone.get(), totalFiles,
+				bytesDone.get(), totalBytes, String.format("%.1f", getProgress() * 100), filesFailed.get(),
+				String.format("%.1f", bytesDone.get() / 1048576.0 / (elapsed / 1000.0)));
+	}
+
+}
@@ -1,30 +1,35 @@
 package vmware.speedup.cawd.orc.dedup;
 
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import org.apache.curator.shaded.com.google.common.collect.Lists;
-import vmware.speedup.cawd.dedup.ColumnarChunkStore;
+import vmware.speedup.cawd.dedup.IndexedChunkStore;
 import vmware.speedup.cawd.orc.dedup.ColumnBasedORCChunkingAlgorithm.ColumnBasedORCFileChunk;
 
-public class ColumnBasedORCChunkStore extends ColumnarChunkStore<ColumnBasedORCFileChunk, ColumnBasedORCChunkingAlgorithm>{
+public class ColumnBasedORCChunkStore extends IndexedChunkStore<ColumnBasedORCFileChunk, ColumnBasedORCChunkingAlgorithm>{
 
-	private Map<ColumnBasedORCFileChunk, ColumnBasedORCFileChunk> chunkStore = new HashMap<ColumnBasedORCFileChunk, ColumnBasedORCFileChunk>();
+	public ColumnBasedORCChunkStore() {
+		super();
+	}
+
+	// persistent when cawd.store.dir is set
+	public ColumnBasedORCChunkStore(String name) {
+		super(name);
+	}
+
+	@Override
+	protected ColumnBasedORCFileChunk newChunk(byte[] signature, byte[] content) {
+		return new ColumnBasedORCFileChunk(signature, content);
+	}
 	
 	@Override
 	public List<ColumnBasedORCFileChunk> addChunks(byte[] data, ColumnBasedORCChunkingAlgorithm algorithm)
 			throws NoSuchAlgorithmException {
 		// here, we will just add the whole chunk and its signature...
-		byte[] signature = algorithm.naiveSHA1(data);
+		byte[] signature = algorithm.signature(data);
 		ColumnBasedORCFileChunk chunk = new ColumnBasedORCFileChunk(signature, data);
-		chunkStore.put(new ColumnBasedORCFileChunk(signature), chunk);
+		chunk = putChunk(signature, chunk);
 		return Lists.newArrayList(chunk);
 	}
 
-	@Override
-	public ColumnBasedORCFileChunk findChunkBySignature(byte[] signature) {
-		return chunkStore.get(new ColumnBasedORCFileChunk(signature));
-	}
-
 }
@@ -18,6 +18,13 @@ import vmware.speedup.cawd.dedup.ChunkingAlgorithm;
 
 public class ColumnBasedORCChunkingAlgorithm extends ChunkingAlgorithm<ColumnBasedORCChunkingAlgorithm.ColumnBasedORCFileChunk> {
 
+	// columns are split in streams, see ORCStreams
+	private boolean streamChunks = false;
+	
+	public ColumnBasedORCChunkingAlgorithm() {
+		this.streamChunks = ORCStreams.enabled();
+	}
+	
 	@Override
 	public List<ColumnBasedORCFileChunk> eagerChunking(String fileName) throws IOException {
 		List<ColumnBasedORCFileChunk> chunks = new ArrayList<ColumnBasedORCFileChunk>();
@@ -27,11 +34,12 @@ public class ColumnBasedORCChunkingAlgorithm extends ChunkingAlgorithm<ColumnBas
 			orcReader = OrcFile.createReader(new Path(fileName), OrcFile.readerOptions(new Configuration()));
 			rand = new RandomAccessFile(fileName, "r");
 			long lastStripeFooterEnds = 0;
-			long currentStripeOffset = 0;
 			for(StripeInformation stripe : orcReader.getStripes()) {
-				// so, the indexes are regular chunks...
-				chunks.add(new ColumnBasedORCFileChunk(
-						ColumnBasedORCFileChunk.ChunkType.Regular, currentStripeOffset, stripe.getIndexLength()));
+				long currentStripeOffset = stripe.getOffset();
+				// so, the indexes are regular chunks. They take whatever is before the stripe too (the file header
+				// before the first one), so the chunks cover the whole file and the columns start where their streams do
+				chunks.add(new ColumnBasedORCFileChunk(ColumnBasedORCFileChunk.ChunkType.Regular, 
+						lastStripeFooterEnds, currentStripeOffset + stripe.getIndexLength() - lastStripeFooterEnds));
 				// now, get the column chunks
 				chunks.addAll(getStripeColumnChunks(stripe, getStripeFooter(rand, stripe), currentStripeOffset + stripe.getIndexLength()));
 				// and get the footer...
@@ -39,8 +47,7 @@ public class ColumnBasedORCChunkingAlgorithm extends ChunkingAlgorithm<ColumnBas
 						ColumnBasedORCFileChunk.ChunkType.Regular, 
 						currentStripeOffset + stripe.getIndexLength() + stripe.getDataLength(), 
 						stripe.getFooterLength()));
-				lastStripeFooterEnds += stripe.getLength();
-				currentStripeOffset = lastStripeFooterEnds;
+				lastStripeFooterEnds = currentStripeOffset + stripe.getLength();
 			}
 			// and get the rest of the file, footer and postscript...
 			chunks.add(new ColumnBasedORCFileChunk(
@@ -56,6 +63,9 @@ public class ColumnBasedORCChunkingAlgorithm extends ChunkingAlgorithm<ColumnBas
 
 	private List<ColumnBasedORCFileChunk> getStripeColumnChunks(
 			StripeInformation stripe, OrcProto.StripeFooter stripeFooter, long currentOffset){
+		if(streamChunks) {
+			return getStripeStreamChunks(stripeFooter, currentOffset);
+		}
 		int streamCounter = 1;
 		int processedColumns = 0;
 		// the start offset is where the data starts in the file...
@@ -96,6 +106,22 @@ public class ColumnBasedORCChunkingAlgorithm extends ChunkingAlgorithm<ColumnBas
 		return colChunks;
 	}
 	
+	// one chunk per data stream, in file order
+	private List<ColumnBasedORCFileChunk> getStripeStreamChunks(OrcProto.StripeFooter stripeFooter, long currentOffset) {
+		List<ColumnBasedORCFileChunk> streamChunks = new ArrayList<ColumnBasedORCFileChunk>();
+		for(OrcProto.Stream stream : stripeFooter.getStreamsList()) {
+			// index streams are not here, and empty ones have nothing to dedup
+			if(!ORCStreams.isData(stream) || stream.getLength() == 0) {
+				continue;
+			}
+			ColumnBasedORCFileChunk chunk = new ColumnBasedORCFileChunk(ColumnBasedORCFileChunk.ChunkType.Column, currentOffset, stream.getLength());
+			chunk.streamKind = stream.getKind();
+			streamChunks.add(chunk);
+			currentOffset += stream.getLength();
+		}
+		return streamChunks;
+	}
+	
 	// My understanding is that seek has constant complexity, so we should be fine. The cost of this method is basically 
 	// protobuff parsing
 	private OrcProto.StripeFooter getStripeFooter(RandomAccessFile rand, StripeInformation stripe) throws IOException {
@@ -139,6 +165,8 @@ public class ColumnBasedORCChunkingAlgorithm extends ChunkingAlgorithm<ColumnBas
 		private ChunkType type = null;
 		private long start = 0;
 		private long size = 0;
+		// only when columns are split in streams
+		private OrcProto.Stream.Kind streamKind = null;
 		
 		public ColumnBasedORCFileChunk(ChunkType type, long start, long size) {
 			this.signature = null;
@@ -169,6 +197,10 @@ public class ColumnBasedORCChunkingAlgorithm extends ChunkingAlgorithm<ColumnBas
 			return size;
 		}
 
+		public OrcProto.Stream.Kind getStreamKind() {
+			return streamKind;
+		}
+
 		public byte[] getSignature() {
 			return signature;
 		}
@@ -1,31 +1,36 @@
 package vmware.speedup.cawd.orc.dedup;
 
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.curator.shaded.com.google.common.collect.Lists;
 
-import vmware.speedup.cawd.dedup.ColumnarChunkStore;
+import vmware.speedup.cawd.dedup.IndexedChunkStore;
 import vmware.speedup.cawd.orc.dedup.NaiveORCChunkingAlgorithm.ORCFileChunk;
 
-public class NaiveORCChunkStore extends ColumnarChunkStore<NaiveORCChunkingAlgorithm.ORCFileChunk, NaiveORCChunkingAlgorithm>{
+public class NaiveORCChunkStore extends IndexedChunkStore<NaiveORCChunkingAlgorithm.ORCFileChunk, NaiveORCChunkingAlgorithm>{
 
-	private Map<ORCFileChunk, ORCFileChunk> chunkStore = new HashMap<ORCFileChunk, ORCFileChunk>();
+	public NaiveORCChunkStore() {
+		super();
+	}
+
+	// persistent when cawd.store.dir is set
+	public NaiveORCChunkStore(String name) {
+		super(name);
+	}
+
+	@Override
+	protected ORCFileChunk newChunk(byte[] signature, byte[] content) {
+		return new ORCFileChunk(signature, content);
+	}
 	
 	@Override
 	public List<ORCFileChunk> addChunks(byte[] data, NaiveORCChunkingAlgorithm algorithm) throws NoSuchAlgorithmException {
 		// here, we will just add the whole chunk and its signature...
-		byte[] signature = algorithm.naiveSHA1(data);
+		byte[] signature = algorithm.signature(data);
 		ORCFileChunk chunk = new ORCFileChunk(signature, data);
-		chunkStore.put(new ORCFileChunk(signature), chunk);
+		chunk = putChunk(signature, chunk);
 		return Lists.newArrayList(chunk);
 	}
 
-	@Override
-	public ORCFileChunk findChunkBySignature(byte[] signature) {
-		return chunkStore.get(new ORCFileChunk(signature));
-	}
-
 }
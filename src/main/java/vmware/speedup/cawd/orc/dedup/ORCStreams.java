@@ -0,0 +1,56 @@
+package vmware.speedup.cawd.orc.dedup;
+
+import org.apache.orc.OrcProto;
+import org.apache.orc.impl.StreamName;
+
+import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+
+// Stream level chunking. By default a column chunk is all the data streams of a column (PRESENT, DATA, LENGTH,
+// DICTIONARY_DATA, SECONDARY...) one after the other, so a change in any of them misses the whole column.
+// With cawd.orc.streamChunks each data stream is a chunk of its own, so a dictionary or a data stream that
+// did not change still dedups when the PRESENT bitmap or the lengths did. Chunks keep the kind of their stream,
+// and streamers report hits and misses per kind (in bytes, the count is the number of streams). Both sides
+// need the same setting, since receivers split what they get the same way.
+public class ORCStreams {
+
+	public static final String STREAM_CHUNKS = "cawd.orc.streamChunks";
+
+	public static boolean enabled() {
+		return Boolean.valueOf(System.getProperty(STREAM_CHUNKS, "false"));
+	}
+
+	// index streams (row indexes, bloom filters) are in the stripe index, not in the stripe data
+	public static boolean isData(OrcProto.Stream stream) {
+		return StreamName.getArea(stream.getKind()) != StreamName.Area.INDEX;
+	}
+
+	public static TransferStatValue.Type hitType(OrcProto.Stream.Kind kind) {
+		switch(kind) {
+			case PRESENT: return TransferStatValue.Type.PresentStreamHit;
+			case DATA: return TransferStatValue.Type.DataStreamHit;
+			case LENGTH: return TransferStatValue.Type.LengthStreamHit;
+			case DICTIONARY_DATA:
+			case DICTIONARY_COUNT: return TransferStatValue.Type.DictionaryStreamHit;
+			case SECONDARY: return TransferStatValue.Type.SecondaryStreamHit;
+			default: return TransferStatValue.Type.OtherStreamHit;
+		}
+	}
+
+	public static TransferStatValue.Type missType(OrcProto.Stream.Kind kind) {
+		switch(kind) {
+			case PRESENT: return TransferStatValue.Type.PresentStreamMiss;
+			case DATA: return TransferStatValue.Type.DataStreamMiss;
+			case LENGTH: return TransferStatValue.Type.LengthStreamMiss;
+			case DICTIONARY_DATA:
+			case DICTIONARY_COUNT: return TransferStatValue.Type.DictionaryStreamMiss;
+			case SECONDARY: return TransferStatValue.Type.SecondaryStreamMiss;
+			default: return TransferStatValue.Type.OtherStreamMiss;
+		}
+	}
+
+	// a hit or a miss of this many bytes of a stream of this kind
+	public static TransferStatValue stat(OrcProto.Stream.Kind kind, boolean hit, long bytes) {
+		return new TransferStatValue(hit? hitType(kind) : missType(kind), bytes, TransferStatValue.Unit.Bytes);
+	}
+
+}
@@ -1,38 +1,199 @@
 package vmware.speedup.cawd.orc.dedup;
 
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.curator.shaded.com.google.common.collect.Lists;
-import vmware.speedup.cawd.dedup.ColumnarChunkStore;
+import vmware.speedup.cawd.dedup.ChunkingAlgorithm;
+import vmware.speedup.cawd.dedup.ContentCodec;
+import vmware.speedup.cawd.dedup.IndexedChunkStore;
+import vmware.speedup.cawd.dedup.RefCountedBlobStore;
 import vmware.speedup.cawd.orc.dedup.StripePlusColumnORCChunkingAlgorithm.StripePlusColumnORCFileChunk;
 
-public class StripePlusColumnORCChunkStore extends ColumnarChunkStore<StripePlusColumnORCChunkingAlgorithm.StripePlusColumnORCFileChunk, StripePlusColumnORCChunkingAlgorithm>{
+public class StripePlusColumnORCChunkStore extends IndexedChunkStore<StripePlusColumnORCChunkingAlgorithm.StripePlusColumnORCFileChunk, StripePlusColumnORCChunkingAlgorithm>{
 
-	private Map<StripePlusColumnORCFileChunk, StripePlusColumnORCFileChunk> chunkStore = new HashMap<StripePlusColumnORCFileChunk, StripePlusColumnORCFileChunk>();
+	// recipes start with this instead of a content size
+	private static final int RECIPE = -1;
+	private static final int LINK_SIZE = Integer.BYTES + ChunkingAlgorithm.SHA1_SIZE;
+
+	// links of the stripes we keep are looked up here: columns in the first one, indexes and stripe footers
+	// in the second one
+	private StripePlusColumnORCChunkStore columnLinks = null;
+	private StripePlusColumnORCChunkStore footerLinks = null;
+
+	public StripePlusColumnORCChunkStore() {
+		super();
+	}
+
+	// persistent when cawd.store.dir is set
+	public StripePlusColumnORCChunkStore(String name) {
+		super(name);
+	}
+
+	@Override
+	protected StripePlusColumnORCFileChunk newChunk(byte[] signature, byte[] content) {
+		return new StripePlusColumnORCFileChunk(signature, content);
+	}
+	
+	// a stripe is a recipe that only keeps the type and signature of its links, the content is in the link
+	// stores (see setLinkStores()). So in the log (or a lower tier) a chunk looks like <contentSize-int><content>
+	// and a recipe looks like <RECIPE-int><numLinks-int>[<type-int><signature>]...
+	@Override
+	protected byte[] encode(StripePlusColumnORCFileChunk chunk) {
+		if(chunk.getContent() != null) {
+			ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES + chunk.getContent().length);
+			payload.putInt(chunk.getContent().length);
+			payload.put(chunk.getContent());
+			return payload.array();
+		}
+		ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES * 2 + chunk.getSubchunks().size() * LINK_SIZE);
+		payload.putInt(RECIPE);
+		payload.putInt(chunk.getSubchunks().size());
+		for(StripePlusColumnORCFileChunk link : chunk.getSubchunks()) {
+			payload.putInt(StripePlusColumnORCFileChunk.toOrdinal(link.getType()));
+			payload.put(link.getSignature());
+		}
+		return payload.array();
+	}
+	
+	@Override
+	protected StripePlusColumnORCFileChunk decode(byte[] signature, byte[] payload) {
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		int size = buffer.getInt();
+		if(size >= 0) {
+			byte[] content = new byte[size];
+			buffer.get(content);
+			return new StripePlusColumnORCFileChunk(signature, content);
+		}
+		StripePlusColumnORCFileChunk chunk = new StripePlusColumnORCFileChunk(signature, null);
+		int numLinks = buffer.getInt();
+		for(int i = 0; i < numLinks; ++i) {
+			StripePlusColumnORCFileChunk.ChunkType type = StripePlusColumnORCFileChunk.fromOrdinal(buffer.getInt());
+			byte[] linkSignature = new byte[ChunkingAlgorithm.SHA1_SIZE];
+			buffer.get(linkSignature);
+			chunk.getSubchunks().add(newLink(type, linkSignature, null));
+		}
+		return chunk;
+	}
+	
+	private static int contentSize(StripePlusColumnORCFileChunk chunk) {
+		return chunk.getContent() != null? chunk.getContent().length : 0;
+	}
+	
+	// stripes only cost their links, what they point to is weighed by the store that keeps it
+	@Override
+	protected int weigh(StripePlusColumnORCFileChunk chunk) {
+		return contentSize(chunk) + chunk.getSubchunks().size() * LINK_SIZE;
+	}
+	
+	// where the links of the stripes we keep are (and where addStripe() puts indexes and stripe footers)
+	public void setLinkStores(StripePlusColumnORCChunkStore columnLinks, StripePlusColumnORCChunkStore footerLinks) {
+		this.columnLinks = columnLinks;
+		this.footerLinks = footerLinks;
+	}
+	
+	@Override
+	public StripePlusColumnORCFileChunk findChunkBySignature(byte[] buffer, int offset) {
+		return resolve(super.findChunkBySignature(buffer, offset));
+	}
+	
+	@Override
+	public StripePlusColumnORCFileChunk findChunkBySignature(ByteBuffer buffer, int offset) {
+		return resolve(super.findChunkBySignature(buffer, offset));
+	}
+	
+	// the stripe with its links found in the link stores. If one of them is not there anymore (a bounded store
+	// let it go) we do not have the whole stripe, so it is a miss
+	private StripePlusColumnORCFileChunk resolve(StripePlusColumnORCFileChunk chunk) {
+		if(chunk == null || chunk.getSubchunks().isEmpty()) {
+			return chunk;
+		}
+		StripePlusColumnORCFileChunk resolved = new StripePlusColumnORCFileChunk(chunk.getSignature(), chunk.getContent());
+		for(StripePlusColumnORCFileChunk link : chunk.getSubchunks()) {
+			StripePlusColumnORCFileChunk found = linkStoreFor(link.getType()).findChunkBySignature(link.getSignature());
+			if(found == null) {
+				return null;
+			}
+			resolved.getSubchunks().add(newLink(link.getType(), link.getSignature(), found.getContent()));
+		}
+		return resolved;
+	}
+	
+	private StripePlusColumnORCChunkStore linkStoreFor(StripePlusColumnORCFileChunk.ChunkType type) {
+		if(columnLinks == null) {
+			throw new IllegalStateException("Store " + getName() + " keeps stripes, it needs its link stores");
+		}
+		return type == StripePlusColumnORCFileChunk.ChunkType.Column? columnLinks : footerLinks;
+	}
+
+	// only content is shared, stripes point to it by signature
+	@Override
+	protected void retainContent(RefCountedBlobStore blobs, StripePlusColumnORCFileChunk chunk) {
+		if(chunk.getContent() != null) {
+			chunk.setContent(blobs.retain(chunk.getSignature(), chunk.getContent()));
+		}
+	}
+	
+	@Override
+	protected void releaseContent(RefCountedBlobStore blobs, StripePlusColumnORCFileChunk chunk) {
+		if(chunk.getContent() != null) {
+			blobs.release(chunk.getSignature());
+		}
+	}
+	
+	@Override
+	protected StripePlusColumnORCFileChunk compact(ContentCodec codec, StripePlusColumnORCFileChunk chunk) {
+		if(chunk.getContent() == null) {
+			return chunk;
+		}
+		return new StripePlusColumnORCFileChunk(chunk.getSignature(), compress(codec, chunk.getSignature(), chunk.getContent()));
+	}
+	
+	@Override
+	protected StripePlusColumnORCFileChunk expand(ContentCodec codec, StripePlusColumnORCFileChunk chunk) {
+		if(chunk.getContent() == null) {
+			return chunk;
+		}
+		return new StripePlusColumnORCFileChunk(chunk.getSignature(), codec.decompress(chunk.getContent()));
+	}
 	
 	@Override
 	public List<StripePlusColumnORCFileChunk> addChunks(byte[] data, StripePlusColumnORCChunkingAlgorithm algorithm) throws NoSuchAlgorithmException {
 		// here, we will just add the whole chunk and its signature...
-		byte[] signature = algorithm.naiveSHA1(data);
+		byte[] signature = algorithm.signature(data);
 		StripePlusColumnORCFileChunk chunk = new StripePlusColumnORCFileChunk(signature, data);
-		chunkStore.put(new StripePlusColumnORCFileChunk(signature), chunk);
+		chunk = putChunk(signature, chunk);
 		return Lists.newArrayList(chunk);
 	}
 	
-	public List<StripePlusColumnORCFileChunk> addChunksWithLinks(StripePlusColumnORCFileChunk chunk, StripePlusColumnORCChunkingAlgorithm algorithm) throws NoSuchAlgorithmException {
-		// here, we will just add the whole chunk and its signature...
-		byte[] signature = algorithm.naiveSHA1(chunk.getContent());
-		// the chunk here is expected to have links, aka subchunks
-		chunkStore.put(new StripePlusColumnORCFileChunk(signature), chunk);
-		return Lists.newArrayList(chunk);
+	// a stripe kept as a recipe: its links are the index, the columns (stored chunks of the column link store)
+	// and the footer, in file order, and it has no content of its own. Index and footer go to the footer link
+	// store. The signature is the one of the whole stripe data. The same data can come with a different index
+	// or footer, so the last one wins. We hand back the stripe with the content we got
+	public StripePlusColumnORCFileChunk addStripe(byte[] signature, byte[] index, List<StripePlusColumnORCFileChunk> columns, byte[] footer, StripePlusColumnORCChunkingAlgorithm algorithm) throws NoSuchAlgorithmException {
+		StripePlusColumnORCChunkStore pieces = linkStoreFor(StripePlusColumnORCFileChunk.ChunkType.StripeIndex);
+		StripePlusColumnORCFileChunk stripe = new StripePlusColumnORCFileChunk(signature, null);
+		StripePlusColumnORCFileChunk resolved = new StripePlusColumnORCFileChunk(signature, null);
+		List<StripePlusColumnORCFileChunk> links = new ArrayList<StripePlusColumnORCFileChunk>(columns.size() + 2);
+		links.add(newLink(StripePlusColumnORCFileChunk.ChunkType.StripeIndex, pieces.addChunks(index, algorithm).get(0).getSignature(), index));
+		for(StripePlusColumnORCFileChunk column : columns) {
+			links.add(newLink(StripePlusColumnORCFileChunk.ChunkType.Column, column.getSignature(), column.getContent()));
+		}
+		links.add(newLink(StripePlusColumnORCFileChunk.ChunkType.StripeFooter, pieces.addChunks(footer, algorithm).get(0).getSignature(), footer));
+		for(StripePlusColumnORCFileChunk link : links) {
+			stripe.getSubchunks().add(newLink(link.getType(), link.getSignature(), null));
+			resolved.getSubchunks().add(link);
+		}
+		putChunk(signature, stripe, true);
+		return resolved;
 	}
-
-	@Override
-	public StripePlusColumnORCFileChunk findChunkBySignature(byte[] signature) {
-		return chunkStore.get(new StripePlusColumnORCFileChunk(signature));
+	
+	private static StripePlusColumnORCFileChunk newLink(StripePlusColumnORCFileChunk.ChunkType type, byte[] signature, byte[] content) {
+		StripePlusColumnORCFileChunk link = new StripePlusColumnORCFileChunk(type, content);
+		link.setSignature(signature);
+		return link;
 	}
 
 }
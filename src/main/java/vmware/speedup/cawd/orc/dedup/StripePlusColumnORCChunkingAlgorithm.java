@@ -1,9 +1,15 @@
 package vmware.speedup.cawd.orc.dedup;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
@@ -13,6 +19,7 @@ import org.apache.orc.OrcFile;
 import org.apache.orc.OrcProto;
 import org.apache.orc.Reader;
 import org.apache.orc.StripeInformation;
+import org.apache.orc.TypeDescription;
 
 import vmware.speedup.cawd.common.ColumnTypes.ORCColumnType;
 import vmware.speedup.cawd.dedup.ChunkingAlgorithm;
@@ -22,42 +29,101 @@ public class StripePlusColumnORCChunkingAlgorithm extends ChunkingAlgorithm<Stri
 
 	private static final Logger logger = LogManager.getLogger(StripePlusColumnORCChunkingAlgorithm.class);
 	
+	// columns are split in streams, see ORCStreams
+	private boolean streamChunks = false;
+	
+	public StripePlusColumnORCChunkingAlgorithm() {
+		this.streamChunks = ORCStreams.enabled();
+	}
+	
 	@Override
 	public List<StripePlusColumnORCFileChunk> eagerChunking(String fileName)
 			throws IOException {
 		List<StripePlusColumnORCFileChunk> chunks = new ArrayList<StripePlusColumnORCFileChunk>();
-		Reader orcReader = null;
-		RandomAccessFile rand = null;
+		ChunkIterator<StripePlusColumnORCFileChunk> iterator = lazyChunking(fileName);
 		try {
-			orcReader = OrcFile.createReader(new Path(fileName), OrcFile.readerOptions(new Configuration()));
-			rand = new RandomAccessFile(fileName, "r");
-			long lastStripeFooterEnds = 0;
-			long currentStripeOffset = 3;
-			List<String> columnTypes = getColumnTypes(orcReader);
-			for(StripeInformation stripe : orcReader.getStripes()) {
-				// so, the indexes are regular chunks...
-				chunks.add(new StripePlusColumnORCFileChunk(StripePlusColumnORCFileChunk.ChunkType.StripeIndex, currentStripeOffset, stripe.getIndexLength()));
-				// get the whole stripe data
-				StripePlusColumnORCFileChunk stripeChunk = getStripeDataChunk(stripe, currentStripeOffset);
-				chunks.add(stripeChunk);
-				// now, get the column chunks
-				stripeChunk.subchunks.addAll(getStripeColumnChunks(getStripeFooter(rand, stripe), currentStripeOffset + stripe.getIndexLength(), columnTypes));
-				// and get the footer...
-				StripePlusColumnORCFileChunk footerChunk = getStripeDataFooterChunk(stripe, currentStripeOffset);
-				chunks.add(footerChunk);
-				lastStripeFooterEnds += stripe.getLength();
-				currentStripeOffset = lastStripeFooterEnds;
+			while(iterator.hasNext()) {
+				chunks.add(iterator.next());
 			}
-			// and get the rest of the file, footer and postscript...
-			chunks.add(new StripePlusColumnORCFileChunk(
-					StripePlusColumnORCFileChunk.ChunkType.FileFooter, lastStripeFooterEnds, rand.length() - lastStripeFooterEnds));
 			// done...
 			return chunks;
 		}
 		finally {
+			iterator.close();
+		}
+	}
+	
+	// <index, data, footer> for each stripe and then the file footer. Only the file tail is read up front, 
+	// each stripe footer is read and parsed when we get to its stripe
+	@Override
+	public ChunkIterator<StripePlusColumnORCFileChunk> lazyChunking(String fileName) throws IOException {
+		return new StripeIterator(fileName);
+	}
+	
+	private class StripeIterator implements ChunkIterator<StripePlusColumnORCFileChunk> {
+		
+		private RandomAccessFile rand = null;
+		private Iterator<StripeInformation> stripes = null;
+		private ORCColumnType[] columnTypes = null;
+		private LinkedList<StripePlusColumnORCFileChunk> pending = new LinkedList<StripePlusColumnORCFileChunk>();
+		private long lastStripeFooterEnds = 0;
+		private boolean done = false;
+		
+		private StripeIterator(String fileName) throws IOException {
+			Reader orcReader = null;
+			try {
+				// the reader only gets us the stripe list and the schema from the tail, the rest comes from rand
+				orcReader = OrcFile.createReader(new Path(fileName), OrcFile.readerOptions(new Configuration()));
+				stripes = orcReader.getStripes().iterator();
+				columnTypes = getColumnTypes(orcReader.getSchema());
+				rand = new RandomAccessFile(fileName, "r");
+			}
+			finally {
+				if(orcReader != null) orcReader.close();
+			}
+		}
+		
+		@Override
+		public boolean hasNext() throws IOException {
+			if(pending.isEmpty() && !done) {
+				if(stripes.hasNext()) {
+					StripeInformation stripe = stripes.next();
+					// stripes start after the "ORC" magic and follow each other
+					long currentStripeOffset = stripe.getOffset();
+					// so, the indexes are regular chunks...
+					pending.add(new StripePlusColumnORCFileChunk(StripePlusColumnORCFileChunk.ChunkType.StripeIndex, currentStripeOffset, stripe.getIndexLength()));
+					// get the whole stripe data
+					StripePlusColumnORCFileChunk stripeChunk = getStripeDataChunk(stripe, currentStripeOffset);
+					pending.add(stripeChunk);
+					// now, get the column chunks
+					stripeChunk.subchunks.addAll(getStripeColumnChunks(getStripeFooter(rand, stripe), currentStripeOffset + stripe.getIndexLength(), columnTypes));
+					// and get the footer...
+					pending.add(getStripeDataFooterChunk(stripe, currentStripeOffset));
+					lastStripeFooterEnds = stripe.getOffset() + stripe.getLength();
+				}
+				else {
+					// and get the rest of the file, footer and postscript...
+					pending.add(new StripePlusColumnORCFileChunk(
+							StripePlusColumnORCFileChunk.ChunkType.FileFooter, lastStripeFooterEnds, rand.length() - lastStripeFooterEnds));
+					done = true;
+				}
+			}
+			return !pending.isEmpty();
+		}
+		
+		@Override
+		public StripePlusColumnORCFileChunk next() throws IOException {
+			if(!hasNext()) {
+				throw new IOException("No more chunks");
+			}
+			return pending.poll();
+		}
+		
+		@Override
+		public void close() throws IOException {
 			if(rand != null) rand.close();
-			if(orcReader != null) orcReader.close();
 		}
+		
 	}
 	
 	private StripePlusColumnORCFileChunk getStripeDataChunk(StripeInformation stripe, long currentOffset) {
@@ -72,52 +138,112 @@ public class StripePlusColumnORCChunkingAlgorithm extends ChunkingAlgorithm<Stri
 		return new StripePlusColumnORCFileChunk(StripePlusColumnORCFileChunk.ChunkType.StripeFooter, dataStarts, dataSize);
 	}
 	
-	public List<StripePlusColumnORCFileChunk> getStripeColumnChunks(OrcProto.StripeFooter stripeFooter, long currentOffset, List<String> columnTypes){
-		int streamCounter = 1;
-		int processedColumns = 0;
+	// one chunk per column id with data streams, nested columns included, in file order
+	public List<StripePlusColumnORCFileChunk> getStripeColumnChunks(OrcProto.StripeFooter stripeFooter, long currentOffset, ORCColumnType[] columnTypes){
+		if(streamChunks) {
+			return getStripeStreamChunks(stripeFooter, currentOffset, columnTypes);
+		}
 		// the start offset is where the data starts in the file...
 		List<StripePlusColumnORCFileChunk> colChunks = new ArrayList<StripePlusColumnORCFileChunk>();
-		for(int i = 0; i < stripeFooter.getStreamsCount(); ++i) {
-			// these are index streams, we dont care...
-			if(streamCounter <= stripeFooter.getColumnsCount()) {
-				++streamCounter;
+		List<OrcProto.Stream> streams = stripeFooter.getStreamsList();
+		int i = 0;
+		while(i < streams.size()) {
+			// these are index streams (row indexes, bloom filters...), we dont care...
+			if(!ORCStreams.isData(streams.get(i))) {
+				++i;
 				continue;
 			}
 			// here, we have the streams related to each column. So we just keep moving forward until the column 
 			// id changes
-			if(processedColumns < stripeFooter.getColumnsCount()) {
-				// currently, we are at the first piece of a column
-				int column = stripeFooter.getStreamsList().get(i).getColumn();
-				long columnLength = 0;
-				while(true) {
-					columnLength += stripeFooter.getStreamsList().get(i).getLength();
-					++i;
-					if(i >= stripeFooter.getStreamsList().size()) {
-						// we are done, we got to the end
-						break;
-					}
-					else if(stripeFooter.getStreamsList().get(i).getColumn() != column) {
-						// we are done with this column. i is in the position on the first 
-						// element of the next column, and is going to be incremented in the next 
-						// loop, so we decrement it...
-						i--;
-						break;
-					}
-				}
-				// we have the whole column size, so add it
-				if(columnTypes != null) {
-					colChunks.add(new StripePlusColumnORCFileChunk(StripePlusColumnORCFileChunk.ChunkType.Column, currentOffset, columnLength, columnTypes.get(column - 1)));
-				}
-				else {
-					colChunks.add(new StripePlusColumnORCFileChunk(StripePlusColumnORCFileChunk.ChunkType.Column, currentOffset, columnLength));
-				}
-				currentOffset += columnLength;
-				++processedColumns;
+			int column = streams.get(i).getColumn();
+			long columnLength = 0;
+			while(i < streams.size() && streams.get(i).getColumn() == column && ORCStreams.isData(streams.get(i))) {
+				columnLength += streams.get(i).getLength();
+				++i;
 			}
+			// we have the whole column size, so add it
+			colChunks.add(new StripePlusColumnORCFileChunk(StripePlusColumnORCFileChunk.ChunkType.Column, currentOffset, columnLength, typeOf(columnTypes, column)));
+			currentOffset += columnLength;
 		}
 		return colChunks;
 	}
 	
+	// one chunk per data stream, in file order. Streams of a column keep its type
+	private List<StripePlusColumnORCFileChunk> getStripeStreamChunks(OrcProto.StripeFooter stripeFooter, long currentOffset, ORCColumnType[] columnTypes) {
+		List<StripePlusColumnORCFileChunk> streamChunks = new ArrayList<StripePlusColumnORCFileChunk>();
+		for(OrcProto.Stream stream : stripeFooter.getStreamsList()) {
+			// index streams are not here, and empty ones have nothing to dedup
+			if(!ORCStreams.isData(stream) || stream.getLength() == 0) {
+				continue;
+			}
+			StripePlusColumnORCFileChunk chunk = new StripePlusColumnORCFileChunk(
+					StripePlusColumnORCFileChunk.ChunkType.Column, currentOffset, stream.getLength(), typeOf(columnTypes, stream.getColumn()));
+			chunk.streamKind = stream.getKind();
+			streamChunks.add(chunk);
+			currentOffset += stream.getLength();
+		}
+		return streamChunks;
+	}
+	
+	private static ORCColumnType typeOf(ORCColumnType[] columnTypes, int column) {
+		return columnTypes != null && column >= 0 && column < columnTypes.length? columnTypes[column] : null;
+	}
+	
+	// the chunk list of a file as the signature cache keeps it, so we do not parse the file again:
+	// <streamChunks-boolean><numChunks-int>[<type-int><start-long><size-long><dataType-int><streamKind-int><numSubchunks-int><subchunks>]...
+	// where dataType and streamKind are -1 if none. Lists chunked the other way are no use to us
+	public byte[] chunksToBytes(List<StripePlusColumnORCFileChunk> chunks) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream os = new DataOutputStream(bytes);
+		os.writeBoolean(streamChunks);
+		os.writeInt(chunks.size());
+		writeChunks(os, chunks);
+		os.flush();
+		return bytes.toByteArray();
+	}
+	
+	private void writeChunks(DataOutputStream os, List<StripePlusColumnORCFileChunk> chunks) throws IOException {
+		for(StripePlusColumnORCFileChunk chunk : chunks) {
+			os.writeInt(StripePlusColumnORCFileChunk.toOrdinal(chunk.getType()));
+			os.writeLong(chunk.getStart());
+			os.writeLong(chunk.getSize());
+			os.writeInt(chunk.getDataType() != null? chunk.getDataType().ordinal() : -1);
+			os.writeInt(chunk.getStreamKind() != null? chunk.getStreamKind().getNumber() : -1);
+			os.writeInt(chunk.getSubchunks().size());
+			writeChunks(os, chunk.getSubchunks());
+		}
+	}
+	
+	// null if the list was chunked the other way
+	public List<StripePlusColumnORCFileChunk> chunksFromBytes(byte[] bytes) throws IOException {
+		DataInputStream is = new DataInputStream(new ByteArrayInputStream(bytes));
+		if(is.readBoolean() != streamChunks) {
+			return null;
+		}
+		return readChunks(is, is.readInt());
+	}
+	
+	private List<StripePlusColumnORCFileChunk> readChunks(DataInputStream is, int count) throws IOException {
+		List<StripePlusColumnORCFileChunk> chunks = new ArrayList<StripePlusColumnORCFileChunk>(count);
+		for(int i = 0; i < count; ++i) {
+			StripePlusColumnORCFileChunk.ChunkType type = StripePlusColumnORCFileChunk.fromOrdinal(is.readInt());
+			long start = is.readLong();
+			long size = is.readLong();
+			int dataType = is.readInt();
+			int streamKind = is.readInt();
+			StripePlusColumnORCFileChunk chunk = new StripePlusColumnORCFileChunk(type, start, size);
+			if(dataType >= 0) {
+				chunk.dataType = ORCColumnType.values()[dataType];
+			}
+			if(streamKind >= 0) {
+				chunk.streamKind = OrcProto.Stream.Kind.valueOf(streamKind);
+			}
+			chunk.subchunks.addAll(readChunks(is, is.readInt()));
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+	
 	// My understanding is that seek has constant complexity, so we should be fine. The cost of this method is basically 
 	// protobuff parsing
 	private OrcProto.StripeFooter getStripeFooter(RandomAccessFile rand, StripeInformation stripe) throws IOException {
@@ -129,23 +255,21 @@ public class StripePlusColumnORCChunkingAlgorithm extends ChunkingAlgorithm<Stri
 		return footer;
 	}
 	
-	// this gets the column Types as declared in the schema. Its ugly, and works for simple files
-	private List<String> getColumnTypes(Reader orcReader) throws IOException {
-		String schema = orcReader.getSchema().toString();
-		schema = schema.replaceAll("struct<", "");
-		schema = schema.replaceAll(">", "");
-		String [] cols = schema.split(",");
-		List<String> columns = new ArrayList<String>();
-		for(String col : cols) {
-			String [] data = col.split(":");
-			if(data.length == 2) {
-				if(data[1].contains("(")) {
-					data[1] = data[1].substring(0, data[1].indexOf("("));
-				}
-				columns.add(data[1]);
+	// the type of each column, by column id. Ids go in pre order over the schema tree (0 is the root struct), so
+	// children of structs, lists, maps and unions have ids (and streams) of their own
+	public static ORCColumnType[] getColumnTypes(TypeDescription schema) {
+		ORCColumnType[] columnTypes = new ORCColumnType[schema.getMaximumId() + 1];
+		fillColumnTypes(schema, columnTypes);
+		return columnTypes;
+	}
+	
+	private static void fillColumnTypes(TypeDescription type, ORCColumnType[] columnTypes) {
+		columnTypes[type.getId()] = ORCColumnType.getTypeByCategory(type.getCategory());
+		if(type.getChildren() != null) {
+			for(TypeDescription child : type.getChildren()) {
+				fillColumnTypes(child, columnTypes);
 			}
 		}
-		return columns;
 	}
 	
 	
@@ -160,6 +284,10 @@ public class StripePlusColumnORCChunkingAlgorithm extends ChunkingAlgorithm<Stri
 			FileFooter,
 			ColumnQuery,
 			SmallColumn,
+			UnknownStripe,
+			ColumnSubchunks,
+			StripeManifest,
+			FileManifest,
 			ERROR
 		}
 		
@@ -173,6 +301,10 @@ public class StripePlusColumnORCChunkingAlgorithm extends ChunkingAlgorithm<Stri
 				case 6: return  ChunkType.FileFooter;
 				case 7: return  ChunkType.ColumnQuery;
 				case 8: return  ChunkType.SmallColumn;
+				case 9: return  ChunkType.UnknownStripe;
+				case 10: return  ChunkType.ColumnSubchunks;
+				case 11: return  ChunkType.StripeManifest;
+				case 12: return  ChunkType.FileManifest;
 				default: return ChunkType.ERROR;
 			}
 		}
@@ -187,6 +319,10 @@ public class StripePlusColumnORCChunkingAlgorithm extends ChunkingAlgorithm<Stri
 				case FileFooter: return 6;
 				case ColumnQuery: return 7;
 				case SmallColumn: return 8;
+				case UnknownStripe: return 9;
+				case ColumnSubchunks: return 10;
+				case StripeManifest: return 11;
+				case FileManifest: return 12;
 				default: return -1000;
 			}
 		}
@@ -198,14 +334,16 @@ public class StripePlusColumnORCChunkingAlgorithm extends ChunkingAlgorithm<Stri
 		private long size = 0;
 		private List<StripePlusColumnORCFileChunk> subchunks = new ArrayList<StripePlusColumnORCFileChunk>();
 		private ORCColumnType dataType = null;
+		// only when columns are split in streams
+		private OrcProto.Stream.Kind streamKind = null;
 		
-		public StripePlusColumnORCFileChunk(ChunkType type, long start, long size, String name) {
+		public StripePlusColumnORCFileChunk(ChunkType type, long start, long size, ORCColumnType dataType) {
 			this.signature = null;
 			this.content = null;
 			this.type = type;
 			this.start = start;
 			this.size = size;
-			this.dataType = ORCColumnType.getTypeByName(name);
+			this.dataType = dataType;
 		}
 		
 		public StripePlusColumnORCFileChunk(ChunkType type, long start, long size) {
@@ -266,6 +404,10 @@ public class StripePlusColumnORCChunkingAlgorithm extends ChunkingAlgorithm<Stri
 			return dataType;
 		}
 
+		public OrcProto.Stream.Kind getStreamKind() {
+			return streamKind;
+		}
+
 		@Override
 		public String toString() {
 			StringBuilder builder = new StringBuilder();
@@ -6,13 +6,16 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.List;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import vmware.speedup.cawd.common.BytesUtil;
 import vmware.speedup.cawd.common.TransferStats;
 import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+import vmware.speedup.cawd.dedup.IndexedChunkStore;
 import vmware.speedup.cawd.net.SpeedupReceiver;
 import vmware.speedup.cawd.orc.dedup.ColumnBasedORCChunkStore;
 import vmware.speedup.cawd.orc.dedup.ColumnBasedORCChunkingAlgorithm;
@@ -24,7 +27,7 @@ public class ColumnBasedORCReceiver extends SpeedupReceiver {
 private static final Logger logger = LogManager.getLogger(NaiveORCReceiver.class);
 	
 	private long totalBytesReceived = 0;
-	private ColumnBasedORCChunkStore chunkStore = new ColumnBasedORCChunkStore();
+	private ColumnBasedORCChunkStore chunkStore = new ColumnBasedORCChunkStore("column-orc");
 	private ColumnBasedORCChunkingAlgorithm algorithm = new ColumnBasedORCChunkingAlgorithm();
 	
 	// here, a chunk looks like <size-long><data>
@@ -141,6 +144,9 @@ private static final Logger logger = LogManager.getLogger(NaiveORCReceiver.class
 					// append
 					all.appendStats(stats);
 				}
+				// make the new chunks durable before we ack
+				chunkStore.flush();
+				chunkStore.collectStats(all);
 				// ack
 				ackDataStream(1, os);
 				// done
@@ -162,5 +168,35 @@ private static final Logger logger = LogManager.getLogger(NaiveORCReceiver.class
 			}
 		}
 	}
+
+	// the streamer only asks us about columns and footers that are not too small, so those are the ones we keep
+	@Override
+	public void index(File file) throws IOException {
+		RandomAccessFile rand = new RandomAccessFile(file, "r");
+		try {
+			for(ColumnBasedORCFileChunk chunk : algorithm.eagerChunking(file.getAbsolutePath())) {
+				if((chunk.getType().equals(ChunkType.Column) || chunk.getType().equals(ChunkType.Footer))
+						&& chunk.getSize() > ColumnBasedORCStreamer.MIN_COLUMN_LENGTH) {
+					chunkStore.addChunks(readRange(rand, chunk.getStart(), chunk.getSize()), algorithm);
+				}
+			}
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		finally {
+			rand.close();
+		}
+	}
+
+	@Override
+	protected List<IndexedChunkStore<?, ?>> getStores() {
+		return Arrays.<IndexedChunkStore<?, ?>>asList(chunkStore);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		chunkStore.close();
+	}
 	
 }
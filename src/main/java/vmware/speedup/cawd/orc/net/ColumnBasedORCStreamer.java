@@ -12,16 +12,25 @@ import org.apache.logging.log4j.Logger;
 import vmware.speedup.cawd.common.BytesUtil;
 import vmware.speedup.cawd.common.TransferStats;
 import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+import vmware.speedup.cawd.dedup.SignatureProvider;
 import vmware.speedup.cawd.net.SpeedupStreamer;
 import vmware.speedup.cawd.orc.dedup.ColumnBasedORCChunkingAlgorithm;
+import vmware.speedup.cawd.orc.dedup.ORCStreams;
 import vmware.speedup.cawd.orc.dedup.ColumnBasedORCChunkingAlgorithm.ColumnBasedORCFileChunk;
 
 public class ColumnBasedORCStreamer extends SpeedupStreamer {
 
 	private static final Logger logger = LogManager.getLogger(NaiveORCStreamer.class);
+	// columns and footers up to this size are sent as regular chunks
+	public static final long MIN_COLUMN_LENGTH = 50;
 	
 	private ColumnBasedORCChunkingAlgorithm algorithm = new ColumnBasedORCChunkingAlgorithm();
 	
+	@Override
+	protected void setSignatureProvider(SignatureProvider provider) {
+		algorithm.setSignatureProvider(provider);
+	}
+	
 	// Regular chunk:
 	// <type-int><size-long><data>	
 	private TransferStats handleRegularChunk(
@@ -61,7 +70,7 @@ public class ColumnBasedORCStreamer extends SpeedupStreamer {
 			// read it from file
 			fis.read(content);
 			// hash it...
-			byte[] signature = algorithm.naiveSHA1(content);
+			byte[] signature = algorithm.signature(content);
 			// and we need to send it
 			byte[] buffer = new byte[Integer.BYTES + Integer.BYTES + signature.length];
 			System.arraycopy(BytesUtil.intToBytes(ColumnBasedORCFileChunk.toOrdinal(special.getType())), 0, buffer, 0, Integer.BYTES);
@@ -91,6 +100,9 @@ public class ColumnBasedORCStreamer extends SpeedupStreamer {
 				stats.getStats().add(new TransferStatValue(
 						TransferStatValue.Type.DedupBytes, content.length , TransferStatValue.Unit.Bytes));
 			}
+			if(special.getStreamKind() != null) {
+				stats.getStats().add(ORCStreams.stat(special.getStreamKind(), ack >= 0, content.length));
+			}
 			stats.getStats().add(new TransferStatValue(
 					TransferStatValue.Type.TransferBytes, sentBytes , TransferStatValue.Unit.Bytes));
 			stats.getStats().add(new TransferStatValue(
@@ -106,7 +118,7 @@ public class ColumnBasedORCStreamer extends SpeedupStreamer {
 	public TransferStats transferFile(String fileName, InputStream is, OutputStream os) throws IOException {
 		TransferStats stats = new TransferStats(fileName);
 		FileInputStream fis = new FileInputStream(fileName);
-		long minColumnLength = 50;
+		long minColumnLength = MIN_COLUMN_LENGTH;
 		try {
 			logger.info("Starting file transfer for {}", fileName);
 			TransferStats nn = initiateTransfer(fileName, os);
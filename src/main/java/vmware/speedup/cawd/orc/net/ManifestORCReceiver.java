@@ -0,0 +1,8 @@
+package vmware.speedup.cawd.orc.net;
+
+// our side of ManifestORCStreamer. The whole file manifest is one more message of the stripe+column protocol,
+// see StripePlusColumnORCReceiver.receiveFileManifest(), so this is the same receiver with the same (stripecol-*)
+// stores, and whatever either streamer sent before is found by both
+public class ManifestORCReceiver extends StripePlusColumnORCReceiver {
+
+}
@@ -0,0 +1,194 @@
+package vmware.speedup.cawd.orc.net;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import vmware.speedup.cawd.common.BytesUtil;
+import vmware.speedup.cawd.common.TransferStats;
+import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+import vmware.speedup.cawd.dedup.ChunkingAlgorithm.ChunkIterator;
+import vmware.speedup.cawd.dedup.SignatureProvider;
+import vmware.speedup.cawd.net.SpeedupStreamer;
+import vmware.speedup.cawd.orc.dedup.StripePlusColumnORCChunkingAlgorithm;
+import vmware.speedup.cawd.orc.dedup.StripePlusColumnORCChunkingAlgorithm.StripePlusColumnORCFileChunk;
+
+// The whole file in a fixed number of round trips, with the same chunks and stripe manifests as
+// StripePlusColumnORCStreamer (see sendStripeManifest() there). Stripes are signed by a StripeHasher, and we send
+// the manifests of all of them in one message:
+// <FileManifest-int><numStripes-int>[<stripe manifest>]...<footer signature>
+// The receiver answers all of them at once, each stripe with <ack-int> and the bitmap of the columns it has when it
+// misses the stripe, and <ack-int> for the footer. Then we stream what it misses in file order without waiting for
+// anything: for each stripe it does not have, <size-int><index>, <size-int><column> for each column it does not have
+// and <size-int><footer>, and <size-int><footer> for the file footer when it does not have it. So a file costs the
+// manifest exchange and the final ack, no matter how many stripes and columns it has. Only signatures are kept
+// until the answer comes, and the stripes we send are read again. Both sides need the same chunking settings
+// (cawd.orc.streamChunks...), since the receiver stores what it gets the same way.
+public class ManifestORCStreamer extends SpeedupStreamer {
+
+	private static final Logger logger = LogManager.getLogger(ManifestORCStreamer.class);
+
+	private StripePlusColumnORCChunkingAlgorithm algorithm = new StripePlusColumnORCChunkingAlgorithm();
+	private DataInputStream is = null;
+	private ForkJoinPool hashPool = null;
+	private int hashAhead = 0;
+	private boolean mapStripes = false;
+	// the receiver sends its filter after the ack when it has cawd.stripecol.filter, we do not use it
+	private boolean useFilter = false;
+
+	public ManifestORCStreamer() {
+		this.hashPool = new ForkJoinPool(Integer.valueOf(System.getProperty(StripeHasher.HASH_THREADS,
+				String.valueOf(Runtime.getRuntime().availableProcessors()))));
+		this.hashAhead = Integer.valueOf(System.getProperty(StripeHasher.HASH_AHEAD, "4"));
+		this.mapStripes = Boolean.valueOf(System.getProperty(StripeHasher.MMAP, "false"));
+		this.useFilter = Boolean.valueOf(System.getProperty(StripePlusColumnORCStreamer.USE_FILTER, "false"));
+	}
+
+	@Override
+	protected void setSignatureProvider(SignatureProvider provider) {
+		algorithm.setSignatureProvider(provider);
+	}
+
+	private static long size(StripeHasher.HashedStripe stripe) {
+		return stripe.getChunks()[0].getSize() + stripe.getChunks()[1].getSize() + stripe.getChunks()[2].getSize();
+	}
+
+	@Override
+	public TransferStats transferFile(String fileName, InputStream is, OutputStream os) throws IOException {
+		TransferStats stats = new TransferStats(fileName);
+		FileChannel file = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ);
+		StripeHasher hasher = null;
+		ChunkIterator<StripePlusColumnORCFileChunk> chunks = null;
+		try {
+			if(this.is == null) {
+				if(is instanceof DataInputStream) {
+					this.is = (DataInputStream)is;
+				}
+				else {
+					throw new IOException("InputStream is expected to be DataInputStream");
+				}
+			}
+			logger.info("Starting file transfer for {}", fileName);
+			TransferStats nn = initiateTransfer(fileName, os);
+			stats.appendStats(nn);
+			long startTime = System.currentTimeMillis();
+			// sign every stripe, keeping the signatures only
+			chunks = algorithm.lazyChunking(fileName);
+			hasher = new StripeHasher(algorithm.getSignatureProvider(), hashPool, hashAhead, file, mapStripes, chunks, null);
+			List<StripeHasher.HashedStripe> stripes = new ArrayList<StripeHasher.HashedStripe>();
+			List<byte[]> manifests = new ArrayList<byte[]>();
+			int manifestSize = Integer.BYTES * 2 + StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE;
+			while(hasher.hasNext()) {
+				StripeHasher.HashedStripe stripe = hasher.next();
+				byte[] manifest = StripePlusColumnORCStreamer.stripeManifest(stripe);
+				stripe.release();
+				stripes.add(stripe);
+				manifests.add(manifest);
+				manifestSize += manifest.length;
+			}
+			StripePlusColumnORCFileChunk fileFooter = hasher.getFileFooter();
+			if(fileFooter == null) {
+				throw new IOException("No file footer found for " + fileName);
+			}
+			stats.getStats().add(new TransferStatValue(
+					TransferStatValue.Type.ParsingOverhead, hasher.getParsingTime(), TransferStatValue.Unit.Milliseconds));
+			byte[] footerData = StripeHasher.read(file, fileFooter.getStart(), fileFooter.getSize());
+			ByteBuffer manifest = ByteBuffer.allocate(manifestSize);
+			manifest.putInt(StripePlusColumnORCFileChunk.toOrdinal(StripePlusColumnORCFileChunk.ChunkType.FileManifest));
+			manifest.putInt(stripes.size());
+			for(byte[] stripeManifest : manifests) {
+				manifest.put(stripeManifest);
+			}
+			manifest.put(algorithm.signature(footerData));
+			os.write(manifest.array());
+			os.flush();
+			int totalBytesSent = manifest.capacity();
+			logger.debug("Sent manifest of {} stripes", stripes.size());
+			// this is the only thing we wait for, and we read it all before sending anything
+			List<byte[]> answers = new ArrayList<byte[]>(stripes.size());
+			for(StripeHasher.HashedStripe stripe : stripes) {
+				int ack = BytesUtil.bytesToInt(BytesUtil.readNextBytes(this.is, Integer.BYTES));
+				answers.add(ack > 0? null : BytesUtil.readNextBytes(this.is, (stripe.getChunks()[1].getSubchunks().size() + 7) / 8));
+			}
+			boolean footerHit = BytesUtil.bytesToInt(BytesUtil.readNextBytes(this.is, Integer.BYTES)) > 0;
+			// and now whatever they miss, in file order
+			for(int s = 0; s < stripes.size(); ++s) {
+				StripeHasher.HashedStripe stripe = stripes.get(s);
+				stats.getStats().add(new TransferStatValue(TransferStatValue.Type.StripeSize, size(stripe), TransferStatValue.Unit.Bytes));
+				if(answers.get(s) == null) {
+					stats.getStats().add(new TransferStatValue(TransferStatValue.Type.StripeHit, 1, TransferStatValue.Unit.Count));
+					stats.getStats().add(new TransferStatValue(TransferStatValue.Type.DedupBytes, size(stripe), TransferStatValue.Unit.Bytes));
+				}
+				else {
+					hasher.load(stripe);
+					ByteBuffer message = StripePlusColumnORCStreamer.missingColumns(stripe, answers.get(s), stats);
+					stripe.release();
+					os.write(message.array());
+					totalBytesSent += message.capacity();
+				}
+			}
+			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.FooterSize, footerData.length, TransferStatValue.Unit.Bytes));
+			if(footerHit) {
+				stats.getStats().add(new TransferStatValue(TransferStatValue.Type.FooterHit, 1, TransferStatValue.Unit.Count));
+				stats.getStats().add(new TransferStatValue(TransferStatValue.Type.DedupBytes, footerData.length, TransferStatValue.Unit.Bytes));
+			}
+			else {
+				os.write(BytesUtil.intToBytes(footerData.length));
+				os.write(footerData);
+				totalBytesSent += Integer.BYTES + footerData.length;
+				stats.getStats().add(new TransferStatValue(TransferStatValue.Type.FooterMiss, 1, TransferStatValue.Unit.Count));
+			}
+			os.flush();
+			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.TransferBytes, totalBytesSent, TransferStatValue.Unit.Bytes));
+			// check if we have some ack here
+			TransferStatus status = waitForAck(this.is);
+			logger.debug("TransferStatus={}", status.name());
+			if(status == TransferStatus.ERROR) {
+				logger.error("Received error signal from server...");
+				throw new IOException("Transfer failed with error from server!");
+			}
+			else if(status == TransferStatus.SUCCESS) {
+				logger.info("Tranfer done");
+				if(useFilter) {
+					int filterSize = BytesUtil.bytesToInt(BytesUtil.readNextBytes(this.is, Integer.BYTES));
+					BytesUtil.readNextBytes(this.is, filterSize);
+					stats.getStats().add(new TransferStatValue(
+							TransferStatValue.Type.FilterBytes, Integer.BYTES + filterSize, TransferStatValue.Unit.Bytes));
+				}
+				stats.getStats().add(new TransferStatValue(
+						TransferStatValue.Type.TransferTime, System.currentTimeMillis() - startTime , TransferStatValue.Unit.Milliseconds));
+				stats.getStats().add(new TransferStatValue(
+						TransferStatValue.Type.TotalBytes, new File(fileName).length() , TransferStatValue.Unit.Bytes));
+			}
+			// return aggregated stats...
+			return TransferStats.aggregate(stats);
+		}
+		catch(NoSuchAlgorithmException e) {
+			// something bad
+			logger.error("Algorithm not found!", e);
+			return null;
+		}
+		finally {
+			if(hasher != null) {
+				hasher.close();
+			}
+			if(chunks != null) {
+				chunks.close();
+			}
+			file.close();
+		}
+	}
+
+}
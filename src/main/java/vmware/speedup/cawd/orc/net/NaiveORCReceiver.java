@@ -6,8 +6,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.DataInputStream;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
@@ -16,6 +18,7 @@ import org.apache.logging.log4j.Logger;
 import vmware.speedup.cawd.common.BytesUtil;
 import vmware.speedup.cawd.common.TransferStats;
 import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+import vmware.speedup.cawd.dedup.IndexedChunkStore;
 import vmware.speedup.cawd.net.SpeedupReceiver;
 import vmware.speedup.cawd.orc.dedup.NaiveORCChunkStore;
 import vmware.speedup.cawd.orc.dedup.NaiveORCChunkingAlgorithm;
@@ -27,7 +30,7 @@ public class NaiveORCReceiver extends SpeedupReceiver {
 	private static final Logger logger = LogManager.getLogger(NaiveORCReceiver.class);
 	
 	private long totalBytesReceived = 0;
-	private NaiveORCChunkStore chunkStore = new NaiveORCChunkStore();
+	private NaiveORCChunkStore chunkStore = new NaiveORCChunkStore("naive-orc");
 	private NaiveORCChunkingAlgorithm algorithm = new NaiveORCChunkingAlgorithm();
 	
 	// here, a chunk looks like <size-long><data>
@@ -147,6 +150,9 @@ public class NaiveORCReceiver extends SpeedupReceiver {
 					// append
 					all.appendStats(stats);
 				}
+				// make the new chunks durable before we ack
+				chunkStore.flush();
+				chunkStore.collectStats(all);
 				// ack
 				ackDataStream(1, os);
 				// done
@@ -169,4 +175,33 @@ public class NaiveORCReceiver extends SpeedupReceiver {
 		}
 	}
 
+	// the streamer asks us about data and footer chunks, so those are the ones we keep
+	@Override
+	public void index(File file) throws IOException {
+		RandomAccessFile rand = new RandomAccessFile(file, "r");
+		try {
+			for(ORCFileChunk chunk : algorithm.eagerChunking(file.getAbsolutePath())) {
+				if(chunk.getType().equals(ChunkType.Data) || chunk.getType().equals(ChunkType.Footer)) {
+					chunkStore.addChunks(readRange(rand, chunk.getStart(), chunk.getSize()), algorithm);
+				}
+			}
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		finally {
+			rand.close();
+		}
+	}
+
+	@Override
+	protected List<IndexedChunkStore<?, ?>> getStores() {
+		return Arrays.<IndexedChunkStore<?, ?>>asList(chunkStore);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		chunkStore.close();
+	}
+	
 }
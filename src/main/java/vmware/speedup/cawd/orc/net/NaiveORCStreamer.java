@@ -14,6 +14,7 @@ import org.apache.logging.log4j.Logger;
 import vmware.speedup.cawd.common.BytesUtil;
 import vmware.speedup.cawd.common.TransferStats;
 import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+import vmware.speedup.cawd.dedup.SignatureProvider;
 import vmware.speedup.cawd.net.SpeedupStreamer;
 import vmware.speedup.cawd.orc.dedup.NaiveORCChunkingAlgorithm;
 import vmware.speedup.cawd.orc.dedup.NaiveORCChunkingAlgorithm.ORCFileChunk;
@@ -25,6 +26,11 @@ public class NaiveORCStreamer extends SpeedupStreamer {
 	
 	private NaiveORCChunkingAlgorithm algorithm = new NaiveORCChunkingAlgorithm();
 	
+	@Override
+	protected void setSignatureProvider(SignatureProvider provider) {
+		algorithm.setSignatureProvider(provider);
+	}
+	
 	// Regular chunk:
 	// <type-int><size-long><data>	
 	private TransferStats handleRegularChunk(String fileName, ORCFileChunk regular, OutputStream os, FileInputStream fis) throws IOException {
@@ -59,7 +65,7 @@ public class NaiveORCStreamer extends SpeedupStreamer {
 			// read it from file
 			fis.read(content);
 			// hash it...
-			byte[] signature = algorithm.naiveSHA1(content);
+			byte[] signature = algorithm.signature(content);
 			// and we need to send it
 			byte[] buffer = new byte[Integer.BYTES + Integer.BYTES + signature.length];
 			System.arraycopy(BytesUtil.intToBytes(ORCFileChunk.toOrdinal(special.getType())), 0, buffer, 0, Integer.BYTES);
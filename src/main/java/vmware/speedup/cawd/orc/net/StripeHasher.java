@@ -0,0 +1,302 @@
+package vmware.speedup.cawd.orc.net;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import vmware.speedup.cawd.dedup.ChunkingAlgorithm;
+import vmware.speedup.cawd.dedup.ChunkingAlgorithm.ChunkIterator;
+import vmware.speedup.cawd.dedup.SignatureCache;
+import vmware.speedup.cawd.dedup.SignatureProvider;
+import vmware.speedup.cawd.orc.dedup.StripePlusColumnORCChunkingAlgorithm.StripePlusColumnORCFileChunk;
+
+// Reads and signs the stripes of a file ahead of the protocol, so the streamer finds the signatures ready
+// instead of hashing between round trips. Each stripe is a fork-join task that reads the stripe and signs its
+// data and each of its columns in parallel, and at most `ahead` stripes are read or waiting at any time, since
+// they are kept in memory until they are sent. Columns are signed in place, without copying them out of the
+// stripe. Stripes come back in file order.
+// Stripes come from a ChunkIterator, and we only pull the next one when there is room for it, so a stripe footer
+// is parsed (and the stripe hashed) while the stripes before it go through the protocol. The file footer is kept
+// aside for the streamer, who sends it after the last stripe.
+// With cawd.streamer.mmap each stripe is mapped instead of read, so the streamer signs the page cache directly
+// and only what it sends (the misses) is ever copied. A stripe is mapped on its own, so files larger than 2GB
+// work too, and a mapping goes away once the stripe is sent and collected.
+// Signatures found in the SignatureCache entry of the file (if any) are not computed again, and the ones we
+// compute go to it.
+public class StripeHasher {
+
+	// threads of the pool (all cores by default) and how many stripes we get ahead of the protocol
+	public static final String HASH_THREADS = "cawd.streamer.hashThreads";
+	public static final String HASH_AHEAD = "cawd.streamer.hashAhead";
+	public static final String MMAP = "cawd.streamer.mmap";
+
+	// a stripe as it is in the file, with its signatures. Columns too small to query have no signature.
+	// The parts are slices of the same (heap or mapped) buffer, readers should not move them
+	public static class HashedStripe {
+
+		private StripePlusColumnORCFileChunk[] chunks = null;
+		private ByteBuffer index = null;
+		private ByteBuffer data = null;
+		private ByteBuffer footer = null;
+		private byte[] dataSignature = null;
+		private byte[][] columnSignatures = null;
+
+		// <index, data, footer>
+		public StripePlusColumnORCFileChunk[] getChunks() {
+			return chunks;
+		}
+
+		public ByteBuffer getIndex() {
+			return index;
+		}
+
+		public ByteBuffer getData() {
+			return data;
+		}
+
+		public ByteBuffer getFooter() {
+			return footer;
+		}
+
+		public byte[] getDataSignature() {
+			return dataSignature;
+		}
+
+		public byte[] getColumnSignature(int column) {
+			return columnSignatures[column];
+		}
+
+		// keeps the chunks and signatures only, for streamers that sign a file before they send it. See load()
+		public void release() {
+			index = null;
+			data = null;
+			footer = null;
+		}
+
+	}
+
+	private SignatureProvider signatures = null;
+	private ForkJoinPool pool = null;
+	private int ahead = 0;
+	private FileChannel file = null;
+	private boolean mapped = false;
+	private ChunkIterator<StripePlusColumnORCFileChunk> chunks = null;
+	private SignatureCache.Entry cached = null;
+	private boolean exhausted = false;
+	private StripePlusColumnORCFileChunk fileFooter = null;
+	private long parsingTime = 0;
+	private LinkedList<ForkJoinTask<HashedStripe>> started = new LinkedList<ForkJoinTask<HashedStripe>>();
+
+	// chunks are <index, data, footer> for each stripe and then the file footer, in file order
+	public StripeHasher(SignatureProvider signatures, ForkJoinPool pool, int ahead, FileChannel file, boolean mapped, 
+			ChunkIterator<StripePlusColumnORCFileChunk> chunks, SignatureCache.Entry cached) throws IOException {
+		this.signatures = signatures;
+		this.pool = pool;
+		this.ahead = Math.max(1, ahead);
+		this.file = file;
+		this.mapped = mapped;
+		this.chunks = chunks;
+		this.cached = cached;
+		startMore();
+	}
+
+	private void startMore() throws IOException {
+		while(started.size() < ahead && !exhausted) {
+			StripePlusColumnORCFileChunk[] stripe = nextStripe();
+			if(stripe != null) {
+				started.add(pool.submit(new StripeTask(stripe)));
+			}
+			else {
+				exhausted = true;
+			}
+		}
+	}
+
+	// the next <index, data, footer> from the chunks, or null once they are over
+	private StripePlusColumnORCFileChunk[] nextStripe() throws IOException {
+		long startTime = System.currentTimeMillis();
+		try {
+			StripePlusColumnORCFileChunk index = null, data = null;
+			while(chunks.hasNext()) {
+				StripePlusColumnORCFileChunk chunk = chunks.next();
+				switch(chunk.getType()) {
+					case StripeIndex:
+						index = chunk;
+						break;
+					case StripeData:
+						data = chunk;
+						break;
+					case StripeFooter:
+						if(index != null && data != null) {
+							return new StripePlusColumnORCFileChunk[] {index, data, chunk};
+						}
+						break;
+					case FileFooter:
+						fileFooter = chunk;
+						break;
+					default:
+						break;
+				}
+			}
+			return null;
+		}
+		finally {
+			parsingTime += System.currentTimeMillis() - startTime;
+		}
+	}
+
+	public boolean hasNext() {
+		return !started.isEmpty();
+	}
+
+	// waits for the next stripe, if it is not ready yet
+	public HashedStripe next() throws IOException {
+		if(started.isEmpty()) {
+			throw new IOException("No more stripes to hash");
+		}
+		ForkJoinTask<HashedStripe> task = started.poll();
+		HashedStripe stripe = null;
+		try {
+			stripe = task.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while hashing stripes", e);
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof UncheckedIOException) {
+				throw ((UncheckedIOException)e.getCause()).getCause();
+			}
+			throw new IOException("Could not hash stripe", e.getCause());
+		}
+		startMore();
+		return stripe;
+	}
+
+	// the last chunk of the file, there once every stripe was taken
+	public StripePlusColumnORCFileChunk getFileFooter() {
+		return fileFooter;
+	}
+
+	// milliseconds spent finding chunks (that is, reading and parsing stripe footers)
+	public long getParsingTime() {
+		return parsingTime;
+	}
+
+	// stops whatever is still running, when the transfer ends early
+	public void close() {
+		for(ForkJoinTask<HashedStripe> task : started) {
+			task.cancel(true);
+		}
+		started.clear();
+		exhausted = true;
+	}
+
+	// reads (or maps) the stripe again, after release()
+	public void load(HashedStripe stripe) throws IOException {
+		int indexSize = (int)stripe.chunks[0].getSize();
+		int dataSize = (int)stripe.chunks[1].getSize();
+		int footerSize = (int)stripe.chunks[2].getSize();
+		// index, data and footer follow each other, so we get them in one go
+		long start = stripe.chunks[0].getStart();
+		ByteBuffer region = mapped? file.map(FileChannel.MapMode.READ_ONLY, start, indexSize + dataSize + footerSize)
+				: ByteBuffer.wrap(read(file, start, indexSize + dataSize + footerSize));
+		stripe.index = slice(region, 0, indexSize);
+		stripe.data = slice(region, indexSize, dataSize);
+		stripe.footer = slice(region, indexSize + dataSize, footerSize);
+	}
+
+	// size bytes of the file from start. Positional reads, so several threads can read the same channel
+	public static byte[] read(FileChannel file, long start, long size) throws IOException {
+		byte[] bytes = new byte[(int)size];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while(buffer.hasRemaining()) {
+			if(file.read(buffer, start + buffer.position()) < 0) {
+				throw new IOException("File ends before " + (start + size));
+			}
+		}
+		return bytes;
+	}
+
+	// length bytes of the buffer from offset (after its position), as a buffer of their own
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer slice = buffer.duplicate();
+		slice.position(buffer.position() + offset);
+		slice.limit(buffer.position() + offset + length);
+		return slice.slice();
+	}
+
+	// signature of this range of the file, from the cache when it is there
+	private byte[] sign(ByteBuffer buffer, long start) {
+		byte[] signature = cached != null? cached.getSignature(start, buffer.remaining()) : null;
+		if(signature == null) {
+			signature = signatures.sign(buffer);
+			if(cached != null) {
+				cached.putSignature(start, buffer.remaining(), signature);
+			}
+		}
+		return signature;
+	}
+
+	private class StripeTask extends RecursiveTask<HashedStripe> {
+
+		private static final long serialVersionUID = 1L;
+
+		private StripePlusColumnORCFileChunk[] chunks = null;
+
+		private StripeTask(StripePlusColumnORCFileChunk[] chunks) {
+			this.chunks = chunks;
+		}
+
+		@Override
+		protected HashedStripe compute() {
+			final HashedStripe stripe = new HashedStripe();
+			stripe.chunks = chunks;
+			try {
+				load(stripe);
+			}
+			catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			List<StripePlusColumnORCFileChunk> columns = chunks[1].getSubchunks();
+			stripe.columnSignatures = new byte[columns.size()][];
+			List<ForkJoinTask<?>> columnTasks = new ArrayList<ForkJoinTask<?>>();
+			// single column stripes are never queried by column
+			final long dataStart = chunks[1].getStart();
+			if(columns.size() > 1) {
+				int offset = 0;
+				for(int i = 0; i < columns.size(); ++i) {
+					final int column = i;
+					final int columnOffset = offset;
+					final int columnSize = (int)columns.get(i).getSize();
+					if(columnSize > ChunkingAlgorithm.SHA1_SIZE * 2) {
+						columnTasks.add(new RecursiveAction() {
+							private static final long serialVersionUID = 1L;
+							@Override
+							protected void compute() {
+								stripe.columnSignatures[column] = sign(slice(stripe.data, columnOffset, columnSize), dataStart + columnOffset);
+							}
+						}.fork());
+					}
+					offset += columnSize;
+				}
+			}
+			stripe.dataSignature = sign(stripe.data, dataStart);
+			for(ForkJoinTask<?> columnTask : columnTasks) {
+				columnTask.join();
+			}
+			return stripe;
+		}
+
+	}
+
+}
@@ -1,12 +1,15 @@
 package vmware.speedup.cawd.orc.net;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -24,6 +27,10 @@ import vmware.speedup.cawd.common.BytesUtil;
 import vmware.speedup.cawd.common.Comparators;
 import vmware.speedup.cawd.common.TransferStats;
 import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+import vmware.speedup.cawd.dedup.FastCDC;
+import vmware.speedup.cawd.dedup.IndexedChunkStore;
+import vmware.speedup.cawd.dedup.RefCountedBlobStore;
+import vmware.speedup.cawd.dedup.SignatureFilter;
 import vmware.speedup.cawd.net.SpeedupReceiver;
 import vmware.speedup.cawd.orc.dedup.ColumnBasedORCChunkStore;
 import vmware.speedup.cawd.orc.dedup.ColumnBasedORCChunkingAlgorithm;
@@ -36,19 +43,153 @@ import vmware.speedup.cawd.orc.dedup.StripePlusColumnORCChunkingAlgorithm.Stripe
 public class StripePlusColumnORCReceiver extends SpeedupReceiver {
 
 	private static final Logger logger = LogManager.getLogger(StripePlusColumnORCReceiver.class);
+	private static final byte[] ORC_MAGIC = "ORC".getBytes();
 	
 	private long totalBytesReceived = 0;
 	private DataInputStream is = null;
-	private StripePlusColumnORCChunkStore footerStore = new StripePlusColumnORCChunkStore();
-	private StripePlusColumnORCChunkStore stripeStore = new StripePlusColumnORCChunkStore();
-	private StripePlusColumnORCChunkStore columnStore = new StripePlusColumnORCChunkStore();
+	// a short query hit reads one int too far, see findByShortSignature()
+	private PushbackInputStream pushback = null;
+	private StripePlusColumnORCChunkStore footerStore = new StripePlusColumnORCChunkStore("stripecol-footers");
+	private StripePlusColumnORCChunkStore stripeStore = new StripePlusColumnORCChunkStore("stripecol-stripes");
+	private StripePlusColumnORCChunkStore columnStore = new StripePlusColumnORCChunkStore("stripecol-columns");
+	// content defined pieces of large columns (only with cawd.stripecol.cdc), see StripePlusColumnORCStreamer.sendSubchunks()
+	private StripePlusColumnORCChunkStore subchunkStore = null;
 	private StripePlusColumnORCChunkingAlgorithm algorithm = new StripePlusColumnORCChunkingAlgorithm();
+	// stripes, columns and footers keep their content here, so a column lives in memory once no matter
+	// how many stripes point to it
+	private RefCountedBlobStore blobStore = new RefCountedBlobStore();
+	// when set, we send a filter of our stripe and column signatures after acking files, so the streamer
+	// does not ask for what we surely do not have
+	private boolean publishFilter = false;
+	private int filterPeriod = 0;
+	private double filterFalsePositiveRate = 0;
+	private int filesSinceFilter = 0;
+	private boolean storesChanged = true;
+	// stripe and column queries carry signature prefixes, see StripePlusColumnORCStreamer.shortQuery()
+	private boolean shortSignatures = false;
+	private FastCDC cdc = null;
+	private int cdcMinColumn = 0;
+	
+	public StripePlusColumnORCReceiver() {
+		this.publishFilter = Boolean.valueOf(System.getProperty(StripePlusColumnORCStreamer.USE_FILTER, "false"));
+		this.filterPeriod = Integer.valueOf(System.getProperty("cawd.stripecol.filter.period", "1"));
+		this.filterFalsePositiveRate = Double.valueOf(System.getProperty("cawd.stripecol.filter.fpp", "0.01"));
+		this.shortSignatures = Boolean.valueOf(System.getProperty(StripePlusColumnORCStreamer.SHORT_SIGNATURES, "false"));
+		if(Boolean.valueOf(System.getProperty(StripePlusColumnORCStreamer.CDC, "false"))) {
+			this.cdc = new FastCDC();
+			this.cdcMinColumn = Integer.valueOf(System.getProperty("cawd.stripecol.cdc.minColumn", "65536"));
+			this.subchunkStore = new StripePlusColumnORCChunkStore("stripecol-subchunks");
+		}
+		// stripes keep their columns in the column store, and their index and footer in the footer store
+		stripeStore.setLinkStores(columnStore, footerStore);
+		if(!stripeStore.isPersistent()) {
+			footerStore.shareContent(blobStore);
+			stripeStore.shareContent(blobStore);
+			columnStore.shareContent(blobStore);
+			if(subchunkStore != null) {
+				subchunkStore.shareContent(blobStore);
+			}
+		}
+	}
 	
 	private StripePlusColumnORCFileChunk.ChunkType readNextType(DataInputStream is) throws IOException {
 		int nextOrdinal = BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES));
 		return StripePlusColumnORCFileChunk.fromOrdinal(nextOrdinal);
 	}
 	
+	// our side of a short query, once the prefix is read. Returns the chunk only if the whole signature
+	// matched (or, with a single candidate, the prefix and the check), so a chunk that just shares the
+	// prefix is never taken for it
+	private StripePlusColumnORCFileChunk findByShortSignature(
+			StripePlusColumnORCChunkStore store, byte[] prefix, DataInputStream is, OutputStream os, TransferStats stats) throws IOException {
+		int suffixSize = StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE - prefix.length;
+		int transferBytes = Integer.BYTES;
+		List<StripePlusColumnORCFileChunk> candidates = new ArrayList<StripePlusColumnORCFileChunk>();
+		for(byte[] signature : store.findSignaturesByPrefix(prefix)) {
+			StripePlusColumnORCFileChunk candidate = store.findChunkBySignature(signature);
+			if(candidate != null) {
+				candidates.add(candidate);
+			}
+		}
+		StripePlusColumnORCFileChunk found = null;
+		if(candidates.size() == 1) {
+			// they compare the next few bytes
+			byte[] answer = new byte[Integer.BYTES + StripePlusColumnORCStreamer.SHORT_CHECK_SIZE];
+			System.arraycopy(BytesUtil.intToBytes(1), 0, answer, 0, Integer.BYTES);
+			System.arraycopy(candidates.get(0).getSignature(), prefix.length, answer, Integer.BYTES, StripePlusColumnORCStreamer.SHORT_CHECK_SIZE);
+			os.write(answer);
+			os.flush();
+			transferBytes += StripePlusColumnORCStreamer.SHORT_CHECK_SIZE;
+			// and say so only when it does not match, otherwise this is the start of their next frame
+			byte[] next = BytesUtil.readNextBytes(is, Integer.BYTES);
+			if(BytesUtil.bytesToInt(next) != StripePlusColumnORCStreamer.SHORT_MISMATCH) {
+				pushback.unread(next);
+				found = candidates.get(0);
+			}
+		}
+		else {
+			ackDataStream(candidates.size(), os);
+			if(candidates.size() > 1) {
+				// and we compare the rest of theirs
+				byte[] signature = new byte[StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE];
+				System.arraycopy(prefix, 0, signature, 0, prefix.length);
+				System.arraycopy(BytesUtil.readNextBytes(is, suffixSize), 0, signature, prefix.length, suffixSize);
+				for(StripePlusColumnORCFileChunk candidate : candidates) {
+					if(Arrays.equals(candidate.getSignature(), signature)) {
+						found = candidate;
+					}
+				}
+				ackDataStream(found != null? 1 : -1, os);
+				transferBytes += Integer.BYTES;
+			}
+		}
+		stats.getStats().add(
+				new TransferStatValue(TransferStatValue.Type.TransferBytes, transferBytes, TransferStatValue.Unit.Bytes));
+		return found;
+	}
+	
+	// a column in pieces, once we know how many: <size-int><signature> for each, then a bitmap of the ones we
+	// have goes back and the content of the rest comes in order. Returns the whole column
+	private byte[] receiveSubchunks(int count, DataInputStream is, OutputStream os, TransferStats stats) throws IOException, NoSuchAlgorithmException {
+		ByteBuffer manifest = ByteBuffer.wrap(BytesUtil.readNextBytes(is, count * (Integer.BYTES + StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE)));
+		int[] sizes = new int[count];
+		StripePlusColumnORCFileChunk[] pieces = new StripePlusColumnORCFileChunk[count];
+		byte[] present = new byte[(count + 7) / 8];
+		int columnSize = 0;
+		for(int i = 0; i < count; ++i) {
+			sizes[i] = manifest.getInt();
+			byte[] signature = new byte[StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE];
+			manifest.get(signature);
+			if((pieces[i] = subchunkStore.findChunkBySignature(signature)) != null) {
+				present[i / 8] |= 1 << (i % 8);
+			}
+			columnSize += sizes[i];
+		}
+		os.write(present);
+		os.flush();
+		byte[] column = new byte[columnSize];
+		int offset = 0;
+		for(int i = 0; i < count; ++i) {
+			byte[] content = pieces[i] != null? pieces[i].getContent() : BytesUtil.readNextBytes(is, sizes[i]);
+			if(pieces[i] == null) {
+				subchunkStore.addChunks(content, algorithm);
+			}
+			System.arraycopy(content, 0, column, offset, sizes[i]);
+			offset += sizes[i];
+		}
+		logger.debug("Column in {} pieces, {} bytes", count, columnSize);
+		stats.getStats().add(
+				new TransferStatValue(TransferStatValue.Type.TransferBytes, present.length, TransferStatValue.Unit.Bytes));
+		return column;
+	}
+	
+	// a column that came in pieces is kept whole too, so it can still hit as a column
+	private void keepColumn(int i, byte[] column, byte[][] partialStripeData, StripePlusColumnORCFileChunk[] stripeColumns) throws NoSuchAlgorithmException {
+		partialStripeData[i] = column;
+		stripeColumns[i] = columnStore.addChunks(column, algorithm).get(0);
+		totalBytesReceived += column.length;
+	}
+	
 	// receive footer
 	private TransferStats receiveFooter(
 			String fileName, DataInputStream is, OutputStream os, FileOutputStream fos) throws IOException, NoSuchAlgorithmException {
@@ -90,32 +231,208 @@ public class StripePlusColumnORCReceiver extends SpeedupReceiver {
 		return stats;
 	}
 	
-	private TransferStats receiveStripe(String fileName, DataInputStream is, OutputStream os, FileOutputStream fos, boolean firstStripe) throws IOException, NoSuchAlgorithmException {
+	// sent after the file ack: <size-int><filter>, where size 0 means the last filter still holds. We only
+	// rebuild it every filterPeriod files, and only if the stores changed since the last one
+	private int sendFilter(OutputStream os) throws IOException {
+		byte[] filter = new byte[0];
+		if(++filesSinceFilter >= filterPeriod && storesChanged) {
+			int entries = Math.max(1024, stripeStore.size() + columnStore.size());
+			SignatureFilter signatures = new SignatureFilter(StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE, entries, filterFalsePositiveRate);
+			stripeStore.addSignaturesTo(signatures);
+			columnStore.addSignaturesTo(signatures);
+			filter = signatures.toBytes();
+			filesSinceFilter = 0;
+			storesChanged = false;
+			logger.debug("Publishing filter for {} signatures, {} bytes", entries, filter.length);
+		}
+		os.write(BytesUtil.intToBytes(filter.length));
+		os.write(filter);
+		os.flush();
+		return Integer.BYTES + filter.length;
+	}
+	
+	// the stripe is a recipe: index, columns and footer linked in file order. Older entries
+	// (from a chunk log) keep the data as their own content, after the index
+	private void writeStripe(StripePlusColumnORCFileChunk stripe, FileOutputStream fos) throws IOException {
+		for(StripePlusColumnORCFileChunk piece : stripe.getSubchunks()) {
+			if(piece.getType().equals(StripePlusColumnORCFileChunk.ChunkType.StripeFooter) && stripe.getContent() != null) {
+				fos.write(stripe.getContent());
+				totalBytesReceived += stripe.getContent().length; 
+			}
+			fos.write(piece.getContent());
+			totalBytesReceived += piece.getContent().length; 
+		}
+	}
+	
+	// a stripe of a manifest as we found it: the stripe on a hit, or the columns we have on a miss
+	private static class ManifestStripe {
+		
+		private byte[] dataSignature = null;
+		private StripePlusColumnORCFileChunk stripe = null;
+		private StripePlusColumnORCFileChunk[] columns = null;
+		private byte[] present = null;
+		
+	}
+	
+	// <signature><numColumns-int><signed bitmap>[<column signature>]..., see StripePlusColumnORCStreamer.stripeManifest().
+	// Columns are only looked up when we miss the stripe
+	private ManifestStripe readStripeManifest(DataInputStream is) throws IOException, NoSuchAlgorithmException {
+		ManifestStripe manifest = new ManifestStripe();
+		manifest.dataSignature = BytesUtil.readNextBytes(is, StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE);
+		manifest.stripe = stripeStore.findChunkBySignature(manifest.dataSignature);
+		int numColumns = BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES));
+		byte[] signed = BytesUtil.readNextBytes(is, (numColumns + 7) / 8);
+		manifest.columns = new StripePlusColumnORCFileChunk[numColumns];
+		manifest.present = new byte[signed.length];
+		for(int i = 0; i < numColumns; ++i) {
+			if((signed[i / 8] & (1 << (i % 8))) != 0) {
+				byte[] columnSignature = BytesUtil.readNextBytes(is, StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE);
+				if(manifest.stripe == null && (manifest.columns[i] = columnStore.findChunkBySignature(columnSignature)) != null) {
+					manifest.present[i / 8] |= 1 << (i % 8);
+				}
+			}
+		}
+		return manifest;
+	}
+	
+	// <ack-int>, and the bitmap of the columns we have when we miss the stripe
+	private static byte[] answer(ManifestStripe manifest) {
+		if(manifest.stripe != null) {
+			return BytesUtil.intToBytes(1);
+		}
+		byte[] answer = new byte[Integer.BYTES + manifest.present.length];
+		System.arraycopy(BytesUtil.intToBytes(-1), 0, answer, 0, Integer.BYTES);
+		System.arraycopy(manifest.present, 0, answer, Integer.BYTES, manifest.present.length);
+		return answer;
+	}
+	
+	// the stripe we have, or what the streamer sends of the one we miss:
+	// <size-int><index>[<size-int><column>]...<size-int><footer>, with the columns we did not have
+	private void receiveManifestStripe(ManifestStripe manifest, DataInputStream is, FileOutputStream fos) throws IOException, NoSuchAlgorithmException {
+		if(manifest.stripe != null) {
+			writeStripe(manifest.stripe, fos);
+			logger.debug("Whole stripe match!");
+			return;
+		}
+		StripePlusColumnORCFileChunk[] stripeColumns = manifest.columns;
+		byte[] index = BytesUtil.readNextBytes(is, BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES)));
+		int missing = 0;
+		for(int i = 0; i < stripeColumns.length; ++i) {
+			if(stripeColumns[i] == null) {
+				byte[] column = BytesUtil.readNextBytes(is, BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES)));
+				stripeColumns[i] = columnStore.addChunks(column, algorithm).get(0);
+				++missing;
+			}
+		}
+		byte[] footer = BytesUtil.readNextBytes(is, BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES)));
+		fos.write(index);
+		totalBytesReceived += index.length;
+		for(StripePlusColumnORCFileChunk column : stripeColumns) {
+			fos.write(column.getContent());
+			totalBytesReceived += column.getContent().length;
+		}
+		fos.write(footer);
+		totalBytesReceived += footer.length;
+		// the stripe points to the columns we keep, so the data is not copied again
+		stripeStore.addStripe(manifest.dataSignature, index, Arrays.asList(stripeColumns), footer, algorithm);
+		storesChanged = true;
+		logger.debug("Stripe miss, received {} of {} columns", missing, stripeColumns.length);
+	}
+	
+	// a stripe in a single exchange, see StripePlusColumnORCStreamer.sendStripeManifest(). Here the type is read
+	// already, so the stripe manifest comes next
+	private TransferStats receiveStripeManifest(String fileName, DataInputStream is, OutputStream os, FileOutputStream fos, boolean firstStripe) throws IOException, NoSuchAlgorithmException {
+		TransferStats stats = new TransferStats(fileName);
+		ManifestStripe manifest = readStripeManifest(is);
+		// see receiveStripe()
+		if(firstStripe) {
+			fos.write(ORC_MAGIC);
+			totalBytesReceived += ORC_MAGIC.length;
+		}
+		// on a miss, the ack and the columns we have go together
+		byte[] answer = answer(manifest);
+		os.write(answer);
+		os.flush();
+		receiveManifestStripe(manifest, is, fos);
+		stats.getStats().add(
+				new TransferStatValue(TransferStatValue.Type.TransferBytes, answer.length, TransferStatValue.Unit.Bytes));
+		return stats;
+	}
+	
+	// every stripe of the file in a single exchange, see ManifestORCStreamer. Here the type is read already, so
+	// <numStripes-int>[<stripe manifest>]...<footer signature> comes next. We answer all of them in one message,
+	// each stripe as in receiveStripeManifest() and then <ack-int> for the footer, and read what we miss in file order
+	private TransferStats receiveFileManifest(String fileName, DataInputStream is, OutputStream os, FileOutputStream fos, boolean firstStripe) throws IOException, NoSuchAlgorithmException {
+		TransferStats stats = new TransferStats(fileName);
+		int numStripes = BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES));
+		List<ManifestStripe> stripes = new ArrayList<ManifestStripe>(numStripes);
+		ByteArrayOutputStream answers = new ByteArrayOutputStream();
+		for(int s = 0; s < numStripes; ++s) {
+			ManifestStripe manifest = readStripeManifest(is);
+			stripes.add(manifest);
+			answers.write(answer(manifest));
+		}
+		StripePlusColumnORCFileChunk footer = footerStore.findChunkBySignature(
+				BytesUtil.readNextBytes(is, StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE));
+		answers.write(BytesUtil.intToBytes(footer != null? 1 : -1));
+		os.write(answers.toByteArray());
+		os.flush();
+		// see receiveStripe()
+		if(firstStripe) {
+			fos.write(ORC_MAGIC);
+			totalBytesReceived += ORC_MAGIC.length;
+		}
+		for(ManifestStripe manifest : stripes) {
+			receiveManifestStripe(manifest, is, fos);
+		}
+		byte[] content = null;
+		if(footer != null) {
+			content = footer.getContent();
+		}
+		else {
+			content = BytesUtil.readNextBytes(is, BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES)));
+			footerStore.addChunks(content, algorithm);
+		}
+		fos.write(content);
+		totalBytesReceived += content.length;
+		logger.debug("File manifest of {} stripes done", numStripes);
+		stats.getStats().add(
+				new TransferStatValue(TransferStatValue.Type.TransferBytes, answers.size(), TransferStatValue.Unit.Bytes));
+		return stats;
+	}
+	
+	// when query is not set the streamer already knows we dont have this stripe, so there is nothing to ack
+	private TransferStats receiveStripe(String fileName, DataInputStream is, OutputStream os, FileOutputStream fos, boolean firstStripe, boolean query) throws IOException, NoSuchAlgorithmException {
 		TransferStats stats = new TransferStats(fileName);
 		int transferBytes = 0;
-		// the transfer initiates with a stripe signature
-		byte [] dataSignature = BytesUtil.readNextBytes(is, StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE);
+		// the transfer initiates with a stripe signature (or its prefix)
+		byte [] dataSignature = null;
+		byte [] dataPrefix = null;
+		if(query && shortSignatures) {
+			dataPrefix = BytesUtil.readNextBytes(is, StripePlusColumnORCStreamer.SHORT_SIGNATURE_SIZE);
+		}
+		else {
+			dataSignature = BytesUtil.readNextBytes(is, StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE);
+		}
 		// its on the store?
 		int ack = 0;
 		StripePlusColumnORCFileChunk found = null;
 		boolean wholeStripeMatch = false;
+		// the file starts with "ORC", and the streamer does not send it. Nothing else goes to the file
+		// before the stripe, so we can write it right away
+		if(firstStripe) {
+			fos.write(ORC_MAGIC);
+			totalBytesReceived += ORC_MAGIC.length;
+		}
 		// do we have this signature somewhere?
-		if((found = stripeStore.findChunkBySignature(dataSignature)) != null) {
-			// also, here i am supposed to have the index and the footer linked
-			// the sbchunks are supposed to be in order...
-			List<StripePlusColumnORCFileChunk> pieces = found.getSubchunks();
-			for(StripePlusColumnORCFileChunk piece : pieces) {
-				if(piece.getType().equals(StripePlusColumnORCFileChunk.ChunkType.StripeIndex)) {
-					fos.write(piece.getContent());
-					totalBytesReceived += piece.getContent().length; 
-				}
-				else if (piece.getType().equals(StripePlusColumnORCFileChunk.ChunkType.StripeFooter)){
-					fos.write(piece.getContent());
-					// and here we write the content too
-					fos.write(found.getContent());
-					totalBytesReceived += piece.getContent().length + found.getContent().length; 
-				}
-			}
+		if(dataPrefix != null) {
+			found = findByShortSignature(stripeStore, dataPrefix, is, os, stats);
+		}
+		else if(query) {
+			found = stripeStore.findChunkBySignature(dataSignature);
+		}
+		if(found != null) {
+			writeStripe(found, fos);
 			logger.debug("Whole stripe match!");
 			wholeStripeMatch = true;
 			ack = 1;
@@ -125,8 +442,22 @@ public class StripePlusColumnORCReceiver extends SpeedupReceiver {
 			ack = -1;
 		}
 		// write the ack...
-		ackDataStream(ack, os);
-		transferBytes += Integer.BYTES;
+		if(dataPrefix != null) {
+			// a short query acks on its own, and on a miss the rest of the signature follows
+			if(ack < 0) {
+				dataSignature = new byte[StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE];
+				System.arraycopy(dataPrefix, 0, dataSignature, 0, dataPrefix.length);
+				System.arraycopy(BytesUtil.readNextBytes(is, dataSignature.length - dataPrefix.length), 0, 
+						dataSignature, dataPrefix.length, dataSignature.length - dataPrefix.length);
+			}
+		}
+		else if(query) {
+			ackDataStream(ack, os);
+			transferBytes += Integer.BYTES;
+		}
+		else {
+			logger.debug("Stripe was not queried");
+		}
 		// we were not able to match the stripe data, so we will need to receive it.
 		if(ack < 0) {
 			// we will try to receive columns first. So here, we have an int
@@ -134,6 +465,7 @@ public class StripePlusColumnORCReceiver extends SpeedupReceiver {
 			// we will keep the failed indexes here
 			Queue<Integer> failureIndexes = new LinkedList<Integer>();
 			byte[][] partialStripeData = new byte[numColumns][];
+			StripePlusColumnORCFileChunk[] stripeColumns = new StripePlusColumnORCFileChunk[numColumns];
 			// lets go!
 			StripePlusColumnORCFileChunk.ChunkType nextType = null;
 			logger.debug("Stripe miss, receiving {} columns", numColumns);
@@ -145,27 +477,50 @@ public class StripePlusColumnORCReceiver extends SpeedupReceiver {
 				logger.debug("Next column: {}", nextType.name());
 				if(nextType.equals(StripePlusColumnORCFileChunk.ChunkType.ColumnQuery)) {
 					logger.debug("Querying column {}", i);
-					// we are being queried, here comes a hash
-					byte[] columnHash = BytesUtil.readNextBytes(is, StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE);
+					// we are being queried, here comes a hash (or its prefix)
+					if(shortSignatures) {
+						found = findByShortSignature(columnStore, 
+								BytesUtil.readNextBytes(is, StripePlusColumnORCStreamer.SHORT_SIGNATURE_SIZE), is, os, stats);
+					}
+					else {
+						found = columnStore.findChunkBySignature(BytesUtil.readNextBytes(is, StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE));
+					}
 					// do we have it in the column store?
-					if((found = columnStore.findChunkBySignature(columnHash)) != null) {
+					if(found != null) {
 						logger.debug("Found in the columns store");
 						// we have it in the column store, we can safely accumulate. Notice that we will need the footer 
 						// and the index too, so we cannot write to the file yet...
 						partialStripeData[i] = found.getContent();
+						stripeColumns[i] = found;
 						totalBytesReceived += found.getContent().length;
 						// and the ack, which is the number of predictions
 						ack = 1;
 					}
 					else {
-						// we dont have this column, so its a failure
-						failureIndexes.offer(i);
 						ack = -1;
 						logger.debug("Column not found, try the next one...");
 					}
 					// send back an ack indicating we found the column...
-					ackDataStream(ack, os);
-					transferBytes += Integer.BYTES;
+					if(!shortSignatures) {
+						ackDataStream(ack, os);
+						transferBytes += Integer.BYTES;
+					}
+					if(ack < 0) {
+						// with pieces, we hear how many there are (0 means the column comes whole later)
+						int count = cdc != null? BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES)) : 0;
+						if(count > 0) {
+							keepColumn(i, receiveSubchunks(count, is, os, stats), partialStripeData, stripeColumns);
+						}
+						else {
+							// we dont have this column, so its a failure
+							failureIndexes.offer(i);
+						}
+					}
+				}
+				else if(nextType.equals(StripePlusColumnORCFileChunk.ChunkType.ColumnSubchunks)) {
+					// they know we do not have it, so the pieces come right away
+					int count = BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES));
+					keepColumn(i, receiveSubchunks(count, is, os, stats), partialStripeData, stripeColumns);
 				}
 				else if(nextType.equals(StripePlusColumnORCFileChunk.ChunkType.SmallColumn)) {
 					// this column is too small to sign, so we just mark it as failure...
@@ -186,29 +541,27 @@ public class StripePlusColumnORCReceiver extends SpeedupReceiver {
 				byte [] index = BytesUtil.readNextBytes(is, BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES)));
 				byte [] data = BytesUtil.readNextBytes(is, BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES)));
 				byte [] footer = BytesUtil.readNextBytes(is, BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES)));
-				// now, i need to store it in a good way
-				StripePlusColumnORCFileChunk dataChunk = new StripePlusColumnORCFileChunk(StripePlusColumnORCFileChunk.ChunkType.StripeData, data);
-				StripePlusColumnORCFileChunk indexChunk = new StripePlusColumnORCFileChunk(StripePlusColumnORCFileChunk.ChunkType.StripeIndex, index);
-				StripePlusColumnORCFileChunk footerChunk = new StripePlusColumnORCFileChunk(StripePlusColumnORCFileChunk.ChunkType.StripeFooter, footer);
-				// set the links
-				dataChunk.getSubchunks().add(indexChunk);
-				dataChunk.getSubchunks().add(footerChunk);
-				// and store
-				stripeStore.addChunksWithLinks(dataChunk, algorithm);
-				// we will also populate the column store here. We need to have an idea of the offsets, and we can do that reading the stripe footer...
+				// we will populate the column store here, and the stripe will point to those columns. We need to have an idea of the offsets, and we can do that reading the stripe footer...
 				OrcProto.StripeFooter stripeFooter = OrcProto.StripeFooter.parseFrom(footer);
 				// the index here is relative to the stripe data, which is zero
 				int currentOffset = 0;
 				List<StripePlusColumnORCFileChunk> columns = algorithm.getStripeColumnChunks(stripeFooter, currentOffset, null);
+				List<StripePlusColumnORCFileChunk> storedColumns = new ArrayList<StripePlusColumnORCFileChunk>(columns.size());
 				for(StripePlusColumnORCFileChunk column : columns) {
 					byte[] columnChunk = new byte[(int)column.getSize()];
 					// copy the content
 					System.arraycopy(data, currentOffset, columnChunk, 0, columnChunk.length);
 					// and add it to the store
-					columnStore.addChunks(columnChunk, algorithm);
+					storedColumns.addAll(columnStore.addChunks(columnChunk, algorithm));
 					currentOffset += columnChunk.length;
 				}
+				// and store the stripe, the data buffer is not kept
+				stripeStore.addStripe(dataSignature, index, storedColumns, footer, algorithm);
+				storesChanged = true;
 				logger.debug("Populated {} columns", columns.size());
+				fos.write(index);
+				fos.write(data);
+				fos.write(footer);
 				totalBytesReceived += index.length + data.length + footer.length;
 				// and we are done here...
 				logger.debug("Received index={}, data={}, footer={}", index.length, data.length, footer.length);
@@ -222,40 +575,22 @@ public class StripePlusColumnORCReceiver extends SpeedupReceiver {
 					partialStripeData[nextIndex] = nextColumn;
 					totalBytesReceived += nextColumn.length;
 					// btw, we received the column, so we can add it to chunk store...
-					columnStore.addChunks(nextColumn, algorithm);
+					stripeColumns[nextIndex] = columnStore.addChunks(nextColumn, algorithm).get(0);
 				}
 				// since we are here, we need the stripe index and stripe footer too...
 				byte[] index = BytesUtil.readNextBytes(is, BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES)));
 				byte[] footer = BytesUtil.readNextBytes(is, BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES)));
-				// if this is the first stripe, we need to write "ORC"
-				if(firstStripe) {
-					fos.write(new String("ORC").getBytes());
-				}
 				// and now write the index
 				fos.write(index);
-				int dataSize = 0;
 				for(int j = 0; j < partialStripeData.length; ++j) {
 					fos.write(partialStripeData[j]);
-					dataSize += partialStripeData[j].length;
 				}
 				fos.write(footer);
 				totalBytesReceived += index.length + footer.length;
-				// we are not done yet, we can add a new stripe here
-				byte [] stripeData = new byte[dataSize];
-				int dataOffset = 0;
-				for(int j = 0; j < partialStripeData.length; ++j) {
-					System.arraycopy(partialStripeData[j], 0, stripeData, dataOffset, partialStripeData[j].length);
-					dataOffset += partialStripeData[j].length;
-				}
-				// now store
-				StripePlusColumnORCFileChunk dataChunk = new StripePlusColumnORCFileChunk(StripePlusColumnORCFileChunk.ChunkType.StripeData, stripeData);
-				StripePlusColumnORCFileChunk indexChunk = new StripePlusColumnORCFileChunk(StripePlusColumnORCFileChunk.ChunkType.StripeIndex, index);
-				StripePlusColumnORCFileChunk footerChunk = new StripePlusColumnORCFileChunk(StripePlusColumnORCFileChunk.ChunkType.StripeFooter, footer);
-				// set the links
-				dataChunk.getSubchunks().add(indexChunk);
-				dataChunk.getSubchunks().add(footerChunk);
-				// and store
-				stripeStore.addChunksWithLinks(dataChunk, algorithm);
+				// we are not done yet, we can add a new stripe here. The stripe points to the columns we
+				// already keep, so the data is not copied again
+				stripeStore.addStripe(dataSignature, index, Arrays.asList(stripeColumns), footer, algorithm);
+				storesChanged = true;
 				// and done...
 			}
 			// this is a strange corner case. I dont have the stripe in the store for some reason, but i have all the columns...
@@ -264,35 +599,17 @@ public class StripePlusColumnORCReceiver extends SpeedupReceiver {
 				// since we are here, we need the stripe index and stripe footer too...
 				byte[] index = BytesUtil.readNextBytes(is, BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES)));
 				byte[] footer = BytesUtil.readNextBytes(is, BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES)));
-				// if this is the first stripe, we need to write "ORC"
-				if(firstStripe) {
-					fos.write(new String("ORC").getBytes());
-				}
 				// and now write the index
 				fos.write(index);
-				int dataSize = 0;
 				for(int j = 0; j < partialStripeData.length; ++j) {
 					fos.write(partialStripeData[j]);
-					dataSize += partialStripeData.length;
 				}
 				fos.write(footer);
 				totalBytesReceived += index.length + footer.length;
-				// we are not done yet, we can add a new stripe here
-				byte [] stripeData = new byte[dataSize];
-				int dataOffset = 0;
-				for(int j = 0; j < partialStripeData.length; ++j) {
-					System.arraycopy(partialStripeData[j], 0, stripeData, dataOffset, partialStripeData[j].length);
-					dataOffset += partialStripeData[j].length;
-				}
-				// now store
-				StripePlusColumnORCFileChunk dataChunk = new StripePlusColumnORCFileChunk(StripePlusColumnORCFileChunk.ChunkType.StripeData, stripeData);
-				StripePlusColumnORCFileChunk indexChunk = new StripePlusColumnORCFileChunk(StripePlusColumnORCFileChunk.ChunkType.StripeIndex, index);
-				StripePlusColumnORCFileChunk footerChunk = new StripePlusColumnORCFileChunk(StripePlusColumnORCFileChunk.ChunkType.StripeFooter, footer);
-				// set the links
-				dataChunk.getSubchunks().add(indexChunk);
-				dataChunk.getSubchunks().add(footerChunk);
-				// and store
-				stripeStore.addChunksWithLinks(dataChunk, algorithm);
+				// we are not done yet, we can add a new stripe here. The stripe points to the columns we
+				// already keep, so the data is not copied again
+				stripeStore.addStripe(dataSignature, index, Arrays.asList(stripeColumns), footer, algorithm);
+				storesChanged = true;
 			}
 		}
 		// done here
@@ -308,7 +625,8 @@ public class StripePlusColumnORCReceiver extends SpeedupReceiver {
 		try {
 			if(this.is == null) {
 				if(is instanceof DataInputStream) {
-					this.is = (DataInputStream)is;
+					this.pushback = new PushbackInputStream(is, Integer.BYTES);
+					this.is = new DataInputStream(pushback);
 				}
 				else {
 					throw new IOException("InputStream is expected to be DataInputStream");
@@ -329,7 +647,19 @@ public class StripePlusColumnORCReceiver extends SpeedupReceiver {
 					StripePlusColumnORCFileChunk.ChunkType nextChunkType = readNextType(this.is);
 					switch(nextChunkType) {
 						case Stripe:
-							stats = receiveStripe(fileName, this.is, os, fos, firstStripe);
+							stats = receiveStripe(fileName, this.is, os, fos, firstStripe, true);
+							firstStripe = false;
+							break;
+						case UnknownStripe:
+							stats = receiveStripe(fileName, this.is, os, fos, firstStripe, false);
+							firstStripe = false;
+							break;
+						case StripeManifest:
+							stats = receiveStripeManifest(fileName, this.is, os, fos, firstStripe);
+							firstStripe = false;
+							break;
+						case FileManifest:
+							stats = receiveFileManifest(fileName, this.is, os, fos, firstStripe);
 							firstStripe = false;
 							break;
 						case FileFooter:
@@ -347,8 +677,23 @@ public class StripePlusColumnORCReceiver extends SpeedupReceiver {
 				}
 				// flush the file
 				fos.flush();
+				// and make the new chunks durable before we ack
+				footerStore.flush();
+				stripeStore.flush();
+				columnStore.flush();
+				footerStore.collectStats(all);
+				stripeStore.collectStats(all);
+				columnStore.collectStats(all);
+				if(subchunkStore != null) {
+					subchunkStore.flush();
+					subchunkStore.collectStats(all);
+				}
+				logger.debug("Blob store keeps {} blobs, {} bytes", blobStore.size(), blobStore.bytes());
 				// ack
 				ackDataStream(1, os);
+				if(publishFilter) {
+					all.getStats().add(new TransferStatValue(TransferStatValue.Type.FilterBytes, sendFilter(os), TransferStatValue.Unit.Bytes));
+				}
 				// done
 				return TransferStats.aggregate(all);
 			}
@@ -374,4 +719,81 @@ public class StripePlusColumnORCReceiver extends SpeedupReceiver {
 		}
 	}
 	
+	// a stripe goes in as if we had received it whole: its columns to the column store and a stripe pointing
+	// to them. The file footer goes to the footer store
+	@Override
+	public void index(File file) throws IOException {
+		RandomAccessFile rand = new RandomAccessFile(file, "r");
+		try {
+			StripePlusColumnORCFileChunk index = null, data = null;
+			for(StripePlusColumnORCFileChunk chunk : algorithm.eagerChunking(file.getAbsolutePath())) {
+				switch(chunk.getType()) {
+					case StripeIndex:
+						index = chunk;
+						break;
+					case StripeData:
+						data = chunk;
+						break;
+					case StripeFooter:
+						indexStripe(rand, index, data, chunk);
+						break;
+					case FileFooter:
+						footerStore.addChunks(readRange(rand, chunk.getStart(), chunk.getSize()), algorithm);
+						break;
+					default:
+						break;
+				}
+			}
+			storesChanged = true;
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		finally {
+			rand.close();
+		}
+	}
+	
+	private void indexStripe(RandomAccessFile rand, StripePlusColumnORCFileChunk index, StripePlusColumnORCFileChunk data, StripePlusColumnORCFileChunk footer) throws IOException, NoSuchAlgorithmException {
+		byte[] stripeData = readRange(rand, data.getStart(), data.getSize());
+		byte[] dataSignature = algorithm.signature(stripeData);
+		// a persistent store might have it already
+		if(stripeStore.findChunkBySignature(dataSignature) != null) {
+			return;
+		}
+		List<StripePlusColumnORCFileChunk> storedColumns = new ArrayList<StripePlusColumnORCFileChunk>(data.getSubchunks().size());
+		for(StripePlusColumnORCFileChunk column : data.getSubchunks()) {
+			int columnStart = (int)(column.getStart() - data.getStart());
+			byte[] content = Arrays.copyOfRange(stripeData, columnStart, columnStart + (int)column.getSize());
+			storedColumns.addAll(columnStore.addChunks(content, algorithm));
+			if(cdc != null && content.length >= cdcMinColumn) {
+				int offset = 0;
+				for(int size : cdc.chunkSizes(content)) {
+					subchunkStore.addChunks(Arrays.copyOfRange(content, offset, offset + size), algorithm);
+					offset += size;
+				}
+			}
+		}
+		stripeStore.addStripe(dataSignature, readRange(rand, index.getStart(), index.getSize()), storedColumns,
+				readRange(rand, footer.getStart(), footer.getSize()), algorithm);
+	}
+	
+	@Override
+	protected List<IndexedChunkStore<?, ?>> getStores() {
+		if(subchunkStore != null) {
+			return Arrays.<IndexedChunkStore<?, ?>>asList(footerStore, stripeStore, columnStore, subchunkStore);
+		}
+		return Arrays.<IndexedChunkStore<?, ?>>asList(footerStore, stripeStore, columnStore);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		footerStore.close();
+		stripeStore.close();
+		columnStore.close();
+		if(subchunkStore != null) {
+			subchunkStore.close();
+		}
+	}
+	
 }
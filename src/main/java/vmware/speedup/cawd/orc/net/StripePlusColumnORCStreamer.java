@@ -2,23 +2,33 @@ package vmware.speedup.cawd.orc.net;
 
 import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ForkJoinPool;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import vmware.speedup.cawd.common.BytesUtil;
 import vmware.speedup.cawd.common.ColumnTypes.ORCColumnType;
 import vmware.speedup.cawd.common.TransferStats;
 import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+import vmware.speedup.cawd.dedup.ChunkingAlgorithm;
+import vmware.speedup.cawd.dedup.ChunkingAlgorithm.ChunkIterator;
+import vmware.speedup.cawd.dedup.FastCDC;
+import vmware.speedup.cawd.dedup.SignatureCache;
+import vmware.speedup.cawd.dedup.SignatureFilter;
+import vmware.speedup.cawd.dedup.SignatureProvider;
 import vmware.speedup.cawd.net.SpeedupStreamer;
+import vmware.speedup.cawd.orc.dedup.ORCStreams;
 import vmware.speedup.cawd.orc.dedup.StripePlusColumnORCChunkingAlgorithm;
 import vmware.speedup.cawd.orc.dedup.StripePlusColumnORCChunkingAlgorithm.StripePlusColumnORCFileChunk;
 import vmware.speedup.cawd.orc.dedup.StripePlusColumnORCChunkingAlgorithm.StripePlusColumnORCFileChunk.ChunkType;
@@ -27,22 +37,194 @@ public class StripePlusColumnORCStreamer extends SpeedupStreamer {
 
 	private static final Logger logger = LogManager.getLogger(StripePlusColumnORCStreamer.class);
 	
+	// both sides need the same value here
+	public static final String USE_FILTER = "cawd.stripecol.filter";
+	// both sides need this one too, see shortQuery()
+	public static final String SHORT_SIGNATURES = "cawd.stripecol.shortSignatures";
+	public static final int SHORT_SIGNATURE_SIZE = Long.BYTES;
+	public static final int SHORT_CHECK_SIZE = Integer.BYTES;
+	public static final int SHORT_MISMATCH = -1;
+	// and this one, columns of at least cawd.stripecol.cdc.minColumn bytes (64KB) are then sent in content
+	// defined pieces when the receiver does not have them, see sendSubchunks()
+	public static final String CDC = "cawd.stripecol.cdc";
+	// and this one, stripes are then negotiated in a single exchange, see sendStripeManifest()
+	public static final String MANIFEST = "cawd.stripecol.manifest";
+	
 	private StripePlusColumnORCChunkingAlgorithm algorithm = new StripePlusColumnORCChunkingAlgorithm();
 	private DataInputStream is = null;
+	// the last filter the receiver sent us. Whatever it does not contain, the receiver does not have, so we
+	// send it without asking. We add what we send ourselves, since the receiver keeps it too
+	private boolean useFilter = false;
+	private SignatureFilter receiverFilter = null;
+	// stripes are read and signed ahead of the protocol here, see StripeHasher
+	private ForkJoinPool hashPool = null;
+	private int hashAhead = 0;
+	private boolean mapStripes = false;
+	private boolean shortSignatures = false;
+	private FastCDC cdc = null;
+	private int cdcMinColumn = 0;
+	private boolean manifest = false;
+	// chunks and signatures of the files we already sent, if cawd.streamer.signatureCache is set
+	private SignatureCache signatureCache = null;
+	
+	public StripePlusColumnORCStreamer() {
+		this.useFilter = Boolean.valueOf(System.getProperty(USE_FILTER, "false"));
+		this.hashPool = new ForkJoinPool(Integer.valueOf(System.getProperty(StripeHasher.HASH_THREADS,
+				String.valueOf(Runtime.getRuntime().availableProcessors()))));
+		this.hashAhead = Integer.valueOf(System.getProperty(StripeHasher.HASH_AHEAD, "4"));
+		this.mapStripes = Boolean.valueOf(System.getProperty(StripeHasher.MMAP, "false"));
+		this.shortSignatures = Boolean.valueOf(System.getProperty(SHORT_SIGNATURES, "false"));
+		if(Boolean.valueOf(System.getProperty(CDC, "false"))) {
+			this.cdc = new FastCDC();
+			this.cdcMinColumn = Integer.valueOf(System.getProperty("cawd.stripecol.cdc.minColumn", "65536"));
+		}
+		this.manifest = Boolean.valueOf(System.getProperty(MANIFEST, "false"));
+		if(System.getProperty(SignatureCache.SIGNATURE_CACHE) != null) {
+			this.signatureCache = new SignatureCache(new File(System.getProperty(SignatureCache.SIGNATURE_CACHE)));
+		}
+	}
+	
+	@Override
+	protected void setSignatureProvider(SignatureProvider provider) {
+		algorithm.setSignatureProvider(provider);
+	}
+	
+	private boolean receiverMightHave(byte[] signature) {
+		return receiverFilter == null || receiverFilter.mightContain(signature, 0);
+	}
+	
+	// comes after the file ack, see StripePlusColumnORCReceiver
+	private int receiveFilter(DataInputStream is) throws IOException {
+		int size = BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES));
+		if(size > 0) {
+			receiverFilter = SignatureFilter.fromBytes(StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE, BytesUtil.readNextBytes(is, size));
+			logger.debug("New receiver filter, {} bits and {} hashes", receiverFilter.getNumBits(), receiverFilter.getNumHashes());
+		}
+		return Integer.BYTES + size;
+	}
+	
+	// stripe and column queries can carry a signature prefix, <type><prefix>, instead of <type><signature>.
+	// The receiver answers with how many of its signatures start with the prefix:
+	//   - none: a miss
+	//   - one: the receiver sends <count-int><check>, the next bytes of its signature. When they match ours it
+	//     is a hit and we just go on. When they do not, our next frame starts with <SHORT_MISMATCH-int>, which
+	//     can not be the start of any frame (types and sizes are never negative)
+	//   - more: we send <suffix> (the rest of ours), and the receiver answers <ack-int>
+	// so a hit costs 12 bytes up and 8 down, and a wrong hit needs prefix and check to collide (96 bits).
+	// Returns the ack, >0 on a hit
+	private int shortQuery(int ordinal, byte[] signature, DataInputStream is, OutputStream os, TransferStats stats) throws IOException {
+		int suffixSize = signature.length - SHORT_SIGNATURE_SIZE;
+		byte[] query = new byte[Integer.BYTES + SHORT_SIGNATURE_SIZE];
+		System.arraycopy(BytesUtil.intToBytes(ordinal), 0, query, 0, Integer.BYTES);
+		System.arraycopy(signature, 0, query, Integer.BYTES, SHORT_SIGNATURE_SIZE);
+		os.write(query);
+		os.flush();
+		int bytesSent = query.length;
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.ShortQuery, 1, TransferStatValue.Unit.Count));
+		int ack = -1;
+		int candidates = BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES));
+		if(candidates == 1) {
+			byte[] check = BytesUtil.readNextBytes(is, SHORT_CHECK_SIZE);
+			ack = 1;
+			for(int i = 0; i < SHORT_CHECK_SIZE && ack > 0; ++i) {
+				if(check[i] != signature[SHORT_SIGNATURE_SIZE + i]) {
+					ack = -1;
+				}
+			}
+			if(ack < 0) {
+				logger.debug("Short signature collision, the receiver has another chunk with this prefix");
+				stats.getStats().add(new TransferStatValue(TransferStatValue.Type.ShortQueryCollision, 1, TransferStatValue.Unit.Count));
+				os.write(BytesUtil.intToBytes(SHORT_MISMATCH));
+				os.flush();
+				bytesSent += Integer.BYTES;
+			}
+		}
+		else if(candidates > 1) {
+			logger.debug("{} receiver chunks share this prefix, sending the whole signature", candidates);
+			os.write(signature, SHORT_SIGNATURE_SIZE, suffixSize);
+			os.flush();
+			bytesSent += suffixSize;
+			ack = BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES));
+			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.ShortQueryConfirm, 1, TransferStatValue.Unit.Count));
+		}
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.TransferBytes, bytesSent, TransferStatValue.Unit.Bytes));
+		return ack;
+	}
+	
+	private static ByteBuffer columnData(ByteBuffer stripeData, int offset, int length) {
+		ByteBuffer column = stripeData.duplicate();
+		column.position(stripeData.position() + offset);
+		column.limit(stripeData.position() + offset + length);
+		return column;
+	}
+	
+	// a column the receiver does not have, in content defined pieces: <count-int>[<size-int><signature>]...
+	// The receiver answers with a bitmap of the pieces it has (bit i%8 of byte i/8) and we send the content of
+	// the rest, in order. So a column that changed in a few rows costs the pieces around the changes and the
+	// signatures of the others. Returns the bytes we sent
+	private int sendSubchunks(ByteBuffer column, DataInputStream is, OutputStream os, TransferStats stats) throws IOException, NoSuchAlgorithmException {
+		int[] sizes = cdc.chunkSizes(column);
+		ByteBuffer manifest = ByteBuffer.allocate(Integer.BYTES + sizes.length * (Integer.BYTES + StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE));
+		manifest.putInt(sizes.length);
+		int offset = 0;
+		for(int size : sizes) {
+			ByteBuffer piece = column.duplicate();
+			piece.position(column.position() + offset);
+			piece.limit(column.position() + offset + size);
+			manifest.putInt(size);
+			manifest.put(algorithm.getSignatureProvider().sign(piece));
+			offset += size;
+		}
+		os.write(manifest.array());
+		os.flush();
+		int bytesSent = manifest.capacity();
+		byte[] present = BytesUtil.readNextBytes(is, (sizes.length + 7) / 8);
+		int missing = 0;
+		int missingBytes = 0;
+		for(int i = 0; i < sizes.length; ++i) {
+			if((present[i / 8] & (1 << (i % 8))) == 0) {
+				++missing;
+				missingBytes += sizes[i];
+			}
+		}
+		byte[] content = new byte[missingBytes];
+		offset = 0;
+		int contentOffset = 0;
+		for(int i = 0; i < sizes.length; ++i) {
+			if((present[i / 8] & (1 << (i % 8))) == 0) {
+				BytesUtil.copy(column, offset, content, contentOffset, sizes[i]);
+				contentOffset += sizes[i];
+			}
+			offset += sizes[i];
+		}
+		os.write(content);
+		os.flush();
+		bytesSent += content.length;
+		logger.debug("Column in {} pieces, sent {} of them ({} bytes)", sizes.length, missing, missingBytes);
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.SubchunkHit, sizes.length - missing, TransferStatValue.Unit.Count));
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.SubchunkMiss, missing, TransferStatValue.Unit.Count));
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.DedupBytes, column.remaining() - missingBytes, TransferStatValue.Unit.Bytes));
+		return bytesSent;
+	}
 	
 	private TransferStats sendFooter(
-			String fileName, StripePlusColumnORCFileChunk footer, DataInputStream is, OutputStream os, FileInputStream fis) throws IOException, NoSuchAlgorithmException {
+			String fileName, StripePlusColumnORCFileChunk footer, DataInputStream is, OutputStream os, FileChannel file, 
+			SignatureCache.Entry cached) throws IOException, NoSuchAlgorithmException {
 		logger.debug("Sending footer of size={} bytes", footer.getSize());
 		TransferStats stats = new TransferStats(fileName);
 		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.FooterSize, footer.getSize(), TransferStatValue.Unit.Bytes));
-		// hold data
-		byte[] footerData = new byte[(int)footer.getSize()];
 		int footerOrdinal = StripePlusColumnORCFileChunk.toOrdinal(StripePlusColumnORCFileChunk.ChunkType.FileFooter);
 		// stats
 		int totalBytesSent = 0;
 		// now read
-		fis.read(footerData, 0, footerData.length);
-		byte [] footerHash = algorithm.naiveSHA1(footerData);
+		byte[] footerData = StripeHasher.read(file, footer.getStart(), footer.getSize());
+		byte [] footerHash = cached != null? cached.getSignature(footer.getStart(), footer.getSize()) : null;
+		if(footerHash == null) {
+			footerHash = algorithm.signature(footerData);
+			if(cached != null) {
+				cached.putSignature(footer.getStart(), footer.getSize(), footerHash);
+			}
+		}
 		// and send it with type, to signal what we are sending here...
 		byte [] footerBuffer = new byte[Integer.BYTES + StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE];
 		System.arraycopy(BytesUtil.intToBytes(footerOrdinal), 0, footerBuffer, 0, Integer.BYTES);
@@ -79,51 +261,64 @@ public class StripePlusColumnORCStreamer extends SpeedupStreamer {
 		return stats;
 	}
 	
+	// the stripe comes read and signed from the StripeHasher, data is its chunk (we need the columns)
 	private TransferStats sendStripe(
-			String fileName, StripePlusColumnORCFileChunk index, 
-			StripePlusColumnORCFileChunk data, StripePlusColumnORCFileChunk footer, 
-			DataInputStream is, OutputStream os, FileInputStream fis, boolean firstStripe) throws IOException, NoSuchAlgorithmException {
-		logger.debug("Sending stripe, index={} bytes, data={} bytes, footer={} bytes", index.getSize(), data.getSize(), footer.getSize());
+			String fileName, StripeHasher.HashedStripe stripe, StripePlusColumnORCFileChunk data, 
+			DataInputStream is, OutputStream os) throws IOException, NoSuchAlgorithmException {
+		ByteBuffer stripeIndex = stripe.getIndex();
+		ByteBuffer stripeData = stripe.getData();
+		ByteBuffer stripeFooter = stripe.getFooter();
+		logger.debug("Sending stripe, index={} bytes, data={} bytes, footer={} bytes", stripeIndex.remaining(), stripeData.remaining(), stripeFooter.remaining());
 		TransferStats stats = new TransferStats(fileName);
-		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.StripeSize, index.getSize() + data.getSize() + footer.getSize(), TransferStatValue.Unit.Bytes));
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.StripeSize, stripeIndex.remaining() + stripeData.remaining() + stripeFooter.remaining(), TransferStatValue.Unit.Bytes));
 		// here we will negotiate the stripe sending...
-		byte[] stripeIndex = new byte[(int)index.getSize()];
-		byte[] stripeData = new byte[(int)data.getSize()];
-		byte[] stripeFooter = new byte[(int)footer.getSize()];
 		int stripeOrdinal = StripePlusColumnORCFileChunk.toOrdinal(StripePlusColumnORCFileChunk.ChunkType.Stripe);
+		int unknownStripeOrdinal = StripePlusColumnORCFileChunk.toOrdinal(StripePlusColumnORCFileChunk.ChunkType.UnknownStripe);
 		int colQueryOrdinal = StripePlusColumnORCFileChunk.toOrdinal(StripePlusColumnORCFileChunk.ChunkType.ColumnQuery);
 		int smallQueryOrdinal = StripePlusColumnORCFileChunk.toOrdinal(StripePlusColumnORCFileChunk.ChunkType.SmallColumn);
+		int subchunksOrdinal = StripePlusColumnORCFileChunk.toOrdinal(StripePlusColumnORCFileChunk.ChunkType.ColumnSubchunks);
 		boolean wholeStripeMatch = false;
-		// load the stripe
-		if(firstStripe) {
-			// we need to load the first 3 bytes if this is the first stripe
-			byte [] txt = new byte[3];
-			fis.read(txt, 0, 3);
-			logger.debug("Read text from first stripe={}", new String(txt));
-		}
-		fis.read(stripeIndex, 0, stripeIndex.length);
-		fis.read(stripeData, 0, stripeData.length);
-		fis.read(stripeFooter, 0, stripeFooter.length);
 		// stats
 		int totalBytesSent = 0;
-		// hash the data
-		byte [] dataHash = algorithm.naiveSHA1(stripeData);
-		// and send it with type, to signal what we are sending here...
-		byte [] dataBuffer = new byte[Integer.BYTES + StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE];
-		System.arraycopy(BytesUtil.intToBytes(stripeOrdinal), 0, dataBuffer, 0, Integer.BYTES);
-		System.arraycopy(dataHash, 0, dataBuffer, Integer.BYTES, dataHash.length);
-		// and send it...
-		os.write(dataBuffer);
-		totalBytesSent += dataBuffer.length;
-		os.flush();
-		// now, lets wait for the related stripe ack
-		int ack = BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES));
+		// hashed already
+		byte [] dataHash = stripe.getDataSignature();
+		// if the receiver surely does not have it we still send the hash (it is the key of the stripe over
+		// there), but there is no ack to wait for
+		boolean queryStripe = receiverMightHave(dataHash);
+		int ack = -1;
+		if(queryStripe && shortSignatures) {
+			ack = shortQuery(stripeOrdinal, dataHash, is, os, stats);
+			if(ack < 0) {
+				// the receiver keeps the stripe under its whole signature
+				os.write(dataHash, SHORT_SIGNATURE_SIZE, dataHash.length - SHORT_SIGNATURE_SIZE);
+				totalBytesSent += dataHash.length - SHORT_SIGNATURE_SIZE;
+				os.flush();
+			}
+		}
+		else {
+			// and send it with type, to signal what we are sending here...
+			byte [] dataBuffer = new byte[Integer.BYTES + StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE];
+			System.arraycopy(BytesUtil.intToBytes(queryStripe? stripeOrdinal : unknownStripeOrdinal), 0, dataBuffer, 0, Integer.BYTES);
+			System.arraycopy(dataHash, 0, dataBuffer, Integer.BYTES, dataHash.length);
+			// and send it...
+			os.write(dataBuffer);
+			totalBytesSent += dataBuffer.length;
+			os.flush();
+			// now, lets wait for the related stripe ack
+			if(queryStripe) {
+				ack = BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES));
+			}
+		}
+		if(!queryStripe) {
+			logger.debug("Stripe not in receiver filter");
+			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.FilteredQuery, 1, TransferStatValue.Unit.Count));
+		}
 		if(ack > 0) {
 			// they matched the whole stripe, so there is a stripe hit. The other side has to 
 			// keep the index and the footer linked there
 			stats.getStats().add(
 					new TransferStatValue(TransferStatValue.Type.StripeHit, 1, TransferStatValue.Unit.Count));
-			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.DedupBytes, stripeData.length + stripeIndex.length + stripeFooter.length, TransferStatValue.Unit.Bytes));
+			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.DedupBytes, stripeData.remaining() + stripeIndex.remaining() + stripeFooter.remaining(), TransferStatValue.Unit.Bytes));
 			logger.debug("Stripe hit");
 			wholeStripeMatch = true;
 		}
@@ -138,7 +333,10 @@ public class StripePlusColumnORCStreamer extends SpeedupStreamer {
 			int currentOffset = 0;
 			// this is to count the columns
 			int currentColumn = 0;
-			List<byte[]> chunkedColumns = new ArrayList<byte[]>();
+			// where each column starts in the stripe data
+			int[] columnOffsets = new int[columns.size()];
+			// hashes of the columns the receiver will keep after this stripe
+			List<byte[]> sentHashes = new ArrayList<byte[]>();
 			// i will send an int to see how many columns we will receive
 			os.write(BytesUtil.intToBytes(columns.size()));
 			totalBytesSent += Integer.BYTES;
@@ -147,36 +345,82 @@ public class StripePlusColumnORCStreamer extends SpeedupStreamer {
 				logger.debug("Stripe miss, going to send {} columns", columns.size());
 				for(StripePlusColumnORCFileChunk column : columns) {
 					// send the first hash
-					byte[] colBytes = new byte[(int)column.getSize()];
-					System.arraycopy(stripeData, currentOffset, colBytes, 0, colBytes.length);
-					chunkedColumns.add(colBytes);
+					int colLength = (int)column.getSize();
+					columnOffsets[currentColumn] = currentOffset;
 					byte[] colPack = null;
-					if(colBytes.length > StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE * 2) {
-						byte[] colHash = algorithm.naiveSHA1(colBytes);
-						// prepare the message
-						colPack = new byte[Integer.BYTES + colHash.length];
-						// we need to send the column hash, that is of type column query
-						System.arraycopy(BytesUtil.intToBytes(colQueryOrdinal), 0, colPack, 0, Integer.BYTES);
-						System.arraycopy(colHash, 0, colPack, Integer.BYTES, colHash.length);
-						// i dont need to send a size here, since all of these guys are the same size...
-						os.write(colPack);
-						totalBytesSent += colPack.length;
-						os.flush();
-						// now, i need to get the reply. This can be negative, zero or positive. When positive or zero, there is 
-						// a prediction mechanism sending at most k next column hashes. So be careful here, 0 means match but no
-						// linked chunks!
-						ack = BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES));
+					// columns too small to query have none
+					byte[] colHash = stripe.getColumnSignature(currentColumn);
+					// large columns go in pieces when the receiver does not have them
+					boolean inPieces = cdc != null && colLength >= cdcMinColumn;
+					if(colHash != null && !receiverMightHave(colHash)) {
+						// the receiver does not have it, so no query. For the receiver this is the same as a small column
+						if(inPieces) {
+							os.write(BytesUtil.intToBytes(subchunksOrdinal));
+							totalBytesSent += Integer.BYTES;
+							totalBytesSent += sendSubchunks(columnData(stripeData, currentOffset, colLength), is, os, stats);
+						}
+						else {
+							os.write(BytesUtil.intToBytes(smallQueryOrdinal));
+							totalBytesSent += Integer.BYTES;
+							os.flush();
+							failureIndexes.offer(currentColumn);
+						}
+						sentHashes.add(colHash);
+						logger.debug("column {} not in receiver filter", currentColumn);
+						stats.getStats().add(new TransferStatValue(TransferStatValue.Type.FilteredQuery, 1, TransferStatValue.Unit.Count));
+						stats.getStats().add(new TransferStatValue(TransferStatValue.Type.ColumnMiss, 1, TransferStatValue.Unit.Count));
+						if(column.getStreamKind() != null) {
+							stats.getStats().add(ORCStreams.stat(column.getStreamKind(), false, colLength));
+						}
+					}
+					else if(colHash != null) {
+						if(shortSignatures) {
+							ack = shortQuery(colQueryOrdinal, colHash, is, os, stats);
+						}
+						else {
+							// prepare the message
+							colPack = new byte[Integer.BYTES + colHash.length];
+							// we need to send the column hash, that is of type column query
+							System.arraycopy(BytesUtil.intToBytes(colQueryOrdinal), 0, colPack, 0, Integer.BYTES);
+							System.arraycopy(colHash, 0, colPack, Integer.BYTES, colHash.length);
+							// i dont need to send a size here, since all of these guys are the same size...
+							os.write(colPack);
+							totalBytesSent += colPack.length;
+							os.flush();
+							// now, i need to get the reply. This can be negative, zero or positive. When positive or zero, there is 
+							// a prediction mechanism sending at most k next column hashes. So be careful here, 0 means match but no
+							// linked chunks!
+							ack = BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES));
+						}
 						if(ack > 0) {
 							// this is a hit, so count it
 							logger.debug("column hit {}", currentColumn);
 							stats.getStats().add(new TransferStatValue(TransferStatValue.Type.ColumnHit, 1, TransferStatValue.Unit.Count));
-							stats.getStats().add(new TransferStatValue(TransferStatValue.Type.DedupBytes, colBytes.length, TransferStatValue.Unit.Bytes));
+							stats.getStats().add(new TransferStatValue(TransferStatValue.Type.DedupBytes, colLength, TransferStatValue.Unit.Bytes));
+							if(column.getStreamKind() != null) {
+								stats.getStats().add(ORCStreams.stat(column.getStreamKind(), true, colLength));
+							}
 						}
 						else {
-							// its negative, we will keep this as failed index
-							failureIndexes.offer(currentColumn);
+							// its negative, we will keep this as failed index (unless it goes in pieces right away)
+							if(inPieces) {
+								totalBytesSent += sendSubchunks(columnData(stripeData, currentOffset, colLength), is, os, stats);
+							}
+							else {
+								if(cdc != null) {
+									// no pieces for this one
+									os.write(BytesUtil.intToBytes(0));
+									totalBytesSent += Integer.BYTES;
+									os.flush();
+								}
+								failureIndexes.offer(currentColumn);
+							}
+							sentHashes.add(colHash);
 							logger.debug("column miss {}", currentColumn);
 							stats.getStats().add(new TransferStatValue(TransferStatValue.Type.ColumnMiss, 1, TransferStatValue.Unit.Count));
+							if(column.getStreamKind() != null) {
+								stats.getStats().add(ORCStreams.stat(column.getStreamKind(), false, colLength));
+							}
 							if(column.getDataType() == ORCColumnType.String) {
 								stats.getStats().add(new TransferStatValue(TransferStatValue.Type.StringColumnMiss, 1, TransferStatValue.Unit.Count));
 								stats.getStats().add(new TransferStatValue(TransferStatValue.Type.StringColumnMissBytes, column.getSize(), TransferStatValue.Unit.Bytes));
@@ -190,11 +434,11 @@ public class StripePlusColumnORCStreamer extends SpeedupStreamer {
 						os.flush();
 						// this column is too small, so we dont care
 						failureIndexes.offer(currentColumn);
-						logger.debug("Small column {}, size={}", currentColumn, colBytes.length);
+						logger.debug("Small column {}, size={}", currentColumn, colLength);
 						stats.getStats().add(new TransferStatValue(TransferStatValue.Type.SmallColumn, 1, TransferStatValue.Unit.Count));
 					}
 					// and update the offset
-					currentOffset += colBytes.length;
+					currentOffset += colLength;
 					// and the current column index
 					++currentColumn;
 				}
@@ -207,27 +451,34 @@ public class StripePlusColumnORCStreamer extends SpeedupStreamer {
 				// just one column, dont care...
 				failureIndexes.offer(0);
 			}
+			// whatever path we take below, the receiver ends up with this stripe and the columns it missed
+			if(receiverFilter != null) {
+				receiverFilter.add(dataHash, 0);
+				for(byte[] sentHash : sentHashes) {
+					receiverFilter.add(sentHash, 0);
+				}
+			}
 			// they dont have that data, so we will just send the whole stripe. This is basically 
 			// <size><index><size><data><size><footer>
 			if(failureIndexes.size() == columns.size()) {
 				// assemble the message
-				byte [] wholeStripe = new byte[Integer.BYTES * 3 + stripeIndex.length + stripeData.length + stripeFooter.length];
+				byte [] wholeStripe = new byte[Integer.BYTES * 3 + stripeIndex.remaining() + stripeData.remaining() + stripeFooter.remaining()];
 				currentOffset = 0;
 				
-				System.arraycopy(BytesUtil.intToBytes(stripeIndex.length), 0, wholeStripe, currentOffset, Integer.BYTES);
+				System.arraycopy(BytesUtil.intToBytes(stripeIndex.remaining()), 0, wholeStripe, currentOffset, Integer.BYTES);
 				currentOffset += Integer.BYTES;
-				System.arraycopy(stripeIndex, 0, wholeStripe, currentOffset, stripeIndex.length);
-				currentOffset += stripeIndex.length;
+				BytesUtil.copy(stripeIndex, 0, wholeStripe, currentOffset, stripeIndex.remaining());
+				currentOffset += stripeIndex.remaining();
 				
-				System.arraycopy(BytesUtil.intToBytes(stripeData.length), 0, wholeStripe, currentOffset, Integer.BYTES);
+				System.arraycopy(BytesUtil.intToBytes(stripeData.remaining()), 0, wholeStripe, currentOffset, Integer.BYTES);
 				currentOffset += Integer.BYTES;
-				System.arraycopy(stripeData, 0, wholeStripe, currentOffset, stripeData.length);
-				currentOffset += stripeData.length;
+				BytesUtil.copy(stripeData, 0, wholeStripe, currentOffset, stripeData.remaining());
+				currentOffset += stripeData.remaining();
 				
-				System.arraycopy(BytesUtil.intToBytes(stripeFooter.length), 0, wholeStripe, currentOffset, Integer.BYTES);
+				System.arraycopy(BytesUtil.intToBytes(stripeFooter.remaining()), 0, wholeStripe, currentOffset, Integer.BYTES);
 				currentOffset += Integer.BYTES;
-				System.arraycopy(stripeFooter, 0, wholeStripe, currentOffset, stripeFooter.length);
-				currentOffset += stripeFooter.length;
+				BytesUtil.copy(stripeFooter, 0, wholeStripe, currentOffset, stripeFooter.remaining());
+				currentOffset += stripeFooter.remaining();
 				
 				os.write(wholeStripe);
 				totalBytesSent += wholeStripe.length;
@@ -243,28 +494,28 @@ public class StripePlusColumnORCStreamer extends SpeedupStreamer {
 				// the other side knows how many columns failed, so we are fine. We need to send the whole individual columns here...
 				while(failureIndexes.size() > 0) {
 					int nextColumn = failureIndexes.poll();
-					byte [] chunkedColumn = chunkedColumns.get(nextColumn);
-					logger.debug("Getting column {}, size={}", nextColumn, chunkedColumn.length);
-					byte [] colPack = new byte[Integer.BYTES + chunkedColumn.length];
-					System.arraycopy(BytesUtil.intToBytes(chunkedColumn.length), 0, colPack, 0, Integer.BYTES);
-					System.arraycopy(chunkedColumn, 0, colPack, Integer.BYTES, chunkedColumn.length);
+					int colLength = (int)columns.get(nextColumn).getSize();
+					logger.debug("Getting column {}, size={}", nextColumn, colLength);
+					byte [] colPack = new byte[Integer.BYTES + colLength];
+					System.arraycopy(BytesUtil.intToBytes(colLength), 0, colPack, 0, Integer.BYTES);
+					BytesUtil.copy(stripeData, columnOffsets[nextColumn], colPack, Integer.BYTES, colLength);
 					os.write(colPack);
 					totalBytesSent += colPack.length;
 					os.flush();
 				}
 				// also, we need index and footer
-				byte [] indexPlusFooter = new byte[Integer.BYTES * 2 + stripeIndex.length + + stripeFooter.length];
+				byte [] indexPlusFooter = new byte[Integer.BYTES * 2 + stripeIndex.remaining() + + stripeFooter.remaining()];
 				currentOffset = 0;
 				
-				System.arraycopy(BytesUtil.intToBytes(stripeIndex.length), 0, indexPlusFooter, currentOffset, Integer.BYTES);
+				System.arraycopy(BytesUtil.intToBytes(stripeIndex.remaining()), 0, indexPlusFooter, currentOffset, Integer.BYTES);
 				currentOffset += Integer.BYTES;
-				System.arraycopy(stripeIndex, 0, indexPlusFooter, currentOffset, stripeIndex.length);
-				currentOffset += stripeIndex.length;
+				BytesUtil.copy(stripeIndex, 0, indexPlusFooter, currentOffset, stripeIndex.remaining());
+				currentOffset += stripeIndex.remaining();
 				
-				System.arraycopy(BytesUtil.intToBytes(stripeFooter.length), 0, indexPlusFooter, currentOffset, Integer.BYTES);
+				System.arraycopy(BytesUtil.intToBytes(stripeFooter.remaining()), 0, indexPlusFooter, currentOffset, Integer.BYTES);
 				currentOffset += Integer.BYTES;
-				System.arraycopy(stripeFooter, 0, indexPlusFooter, currentOffset, stripeFooter.length);
-				currentOffset += stripeFooter.length;
+				BytesUtil.copy(stripeFooter, 0, indexPlusFooter, currentOffset, stripeFooter.remaining());
+				currentOffset += stripeFooter.remaining();
 				
 				os.write(indexPlusFooter);
 				totalBytesSent += indexPlusFooter.length;
@@ -274,18 +525,18 @@ public class StripePlusColumnORCStreamer extends SpeedupStreamer {
 			// corner case, dont have the stripe but i have all the columns...
 			else if(failureIndexes.size() == 0 && !wholeStripeMatch) {
 				// also, we need index and footer
-				byte [] indexPlusFooter = new byte[Integer.BYTES * 2 + stripeIndex.length + + stripeFooter.length];
+				byte [] indexPlusFooter = new byte[Integer.BYTES * 2 + stripeIndex.remaining() + + stripeFooter.remaining()];
 				currentOffset = 0;
 				
-				System.arraycopy(BytesUtil.intToBytes(stripeIndex.length), 0, indexPlusFooter, currentOffset, Integer.BYTES);
+				System.arraycopy(BytesUtil.intToBytes(stripeIndex.remaining()), 0, indexPlusFooter, currentOffset, Integer.BYTES);
 				currentOffset += Integer.BYTES;
-				System.arraycopy(stripeIndex, 0, indexPlusFooter, currentOffset, stripeIndex.length);
-				currentOffset += stripeIndex.length;
+				BytesUtil.copy(stripeIndex, 0, indexPlusFooter, currentOffset, stripeIndex.remaining());
+				currentOffset += stripeIndex.remaining();
 				
-				System.arraycopy(BytesUtil.intToBytes(stripeFooter.length), 0, indexPlusFooter, currentOffset, Integer.BYTES);
+				System.arraycopy(BytesUtil.intToBytes(stripeFooter.remaining()), 0, indexPlusFooter, currentOffset, Integer.BYTES);
 				currentOffset += Integer.BYTES;
-				System.arraycopy(stripeFooter, 0, indexPlusFooter, currentOffset, stripeFooter.length);
-				currentOffset += stripeFooter.length;
+				BytesUtil.copy(stripeFooter, 0, indexPlusFooter, currentOffset, stripeFooter.remaining());
+				currentOffset += stripeFooter.remaining();
 				
 				os.write(indexPlusFooter);
 				totalBytesSent += indexPlusFooter.length;
@@ -297,10 +548,146 @@ public class StripePlusColumnORCStreamer extends SpeedupStreamer {
 		return stats;
 	}
 	
+	// a stripe in a single exchange. We send the stripe signature and the signatures of all its columns:
+	// <StripeManifest-int><signature><numColumns-int><signed bitmap>[<column signature>]...
+	// where the bitmap (bit i%8 of byte i/8) tells which columns are signed, since small ones are not. The
+	// receiver answers <ack-int>, followed by a bitmap of the columns it has on a miss, and we send
+	// <size-int><index>, <size-int><column> for each column it does not have and <size-int><footer>. So a stripe
+	// costs a round trip no matter how many columns it has. Short signatures, the receiver filter and content
+	// defined pieces are for the column by column negotiation, so they do not apply here. ManifestORCStreamer
+	// sends the same for every stripe of a file at once
+	private TransferStats sendStripeManifest(
+			String fileName, StripeHasher.HashedStripe stripe, StripePlusColumnORCFileChunk data, 
+			DataInputStream is, OutputStream os) throws IOException {
+		logger.debug("Sending stripe manifest, index={} bytes, data={} bytes, footer={} bytes", 
+				stripe.getIndex().remaining(), stripe.getData().remaining(), stripe.getFooter().remaining());
+		TransferStats stats = new TransferStats(fileName);
+		long stripeSize = stripe.getIndex().remaining() + stripe.getData().remaining() + stripe.getFooter().remaining();
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.StripeSize, stripeSize, TransferStatValue.Unit.Bytes));
+		byte[] manifest = stripeManifest(stripe);
+		byte[] query = new byte[Integer.BYTES + manifest.length];
+		System.arraycopy(BytesUtil.intToBytes(StripePlusColumnORCFileChunk.toOrdinal(ChunkType.StripeManifest)), 0, query, 0, Integer.BYTES);
+		System.arraycopy(manifest, 0, query, Integer.BYTES, manifest.length);
+		os.write(query);
+		os.flush();
+		int totalBytesSent = query.length;
+		int ack = BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES));
+		if(ack > 0) {
+			stats.getStats().add(
+					new TransferStatValue(TransferStatValue.Type.StripeHit, 1, TransferStatValue.Unit.Count));
+			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.DedupBytes, stripeSize, TransferStatValue.Unit.Bytes));
+			logger.debug("Stripe hit");
+		}
+		else {
+			byte[] present = BytesUtil.readNextBytes(is, (data.getSubchunks().size() + 7) / 8);
+			ByteBuffer content = missingColumns(stripe, present, stats);
+			os.write(content.array());
+			os.flush();
+			totalBytesSent += content.capacity();
+			if(receiverFilter != null) {
+				for(int i = 0; i < data.getSubchunks().size(); ++i) {
+					if(!has(present, i) && stripe.getColumnSignature(i) != null) {
+						receiverFilter.add(stripe.getColumnSignature(i), 0);
+					}
+				}
+				receiverFilter.add(stripe.getDataSignature(), 0);
+			}
+		}
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.TransferBytes, totalBytesSent, TransferStatValue.Unit.Bytes));
+		return stats;
+	}
+	
+	static boolean has(byte[] bitmap, int bit) {
+		return (bitmap[bit / 8] & (1 << (bit % 8))) != 0;
+	}
+	
+	// <signature><numColumns-int><signed bitmap>[<column signature>]..., see sendStripeManifest()
+	static byte[] stripeManifest(StripeHasher.HashedStripe stripe) {
+		List<StripePlusColumnORCFileChunk> columns = stripe.getChunks()[1].getSubchunks();
+		byte[] signed = new byte[(columns.size() + 7) / 8];
+		int numSigned = 0;
+		for(int i = 0; i < columns.size(); ++i) {
+			if(stripe.getColumnSignature(i) != null) {
+				signed[i / 8] |= 1 << (i % 8);
+				++numSigned;
+			}
+		}
+		ByteBuffer manifest = ByteBuffer.allocate(Integer.BYTES + signed.length + (numSigned + 1) * StripePlusColumnORCChunkingAlgorithm.SHA1_SIZE);
+		manifest.put(stripe.getDataSignature());
+		manifest.putInt(columns.size());
+		manifest.put(signed);
+		for(int i = 0; i < columns.size(); ++i) {
+			if(stripe.getColumnSignature(i) != null) {
+				manifest.put(stripe.getColumnSignature(i));
+			}
+		}
+		return manifest.array();
+	}
+	
+	// what the receiver misses of a stripe, given the bitmap of the columns it has:
+	// <size-int><index>[<size-int><column>]...<size-int><footer>. Column hits and misses go to stats
+	static ByteBuffer missingColumns(StripeHasher.HashedStripe stripe, byte[] present, TransferStats stats) {
+		ByteBuffer stripeIndex = stripe.getIndex();
+		ByteBuffer stripeData = stripe.getData();
+		ByteBuffer stripeFooter = stripe.getFooter();
+		List<StripePlusColumnORCFileChunk> columns = stripe.getChunks()[1].getSubchunks();
+		int missingBytes = 0;
+		int missing = 0;
+		for(int i = 0; i < columns.size(); ++i) {
+			if(!has(present, i)) {
+				missingBytes += Integer.BYTES + (int)columns.get(i).getSize();
+				++missing;
+			}
+		}
+		ByteBuffer content = ByteBuffer.allocate(Integer.BYTES * 2 + stripeIndex.remaining() + stripeFooter.remaining() + missingBytes);
+		content.putInt(stripeIndex.remaining());
+		content.put(stripeIndex.duplicate());
+		int currentOffset = 0;
+		for(int i = 0; i < columns.size(); ++i) {
+			StripePlusColumnORCFileChunk column = columns.get(i);
+			int colLength = (int)column.getSize();
+			boolean hit = has(present, i);
+			if(hit) {
+				logger.debug("column hit {}", i);
+				stats.getStats().add(new TransferStatValue(TransferStatValue.Type.ColumnHit, 1, TransferStatValue.Unit.Count));
+				stats.getStats().add(new TransferStatValue(TransferStatValue.Type.DedupBytes, colLength, TransferStatValue.Unit.Bytes));
+			}
+			else {
+				content.putInt(colLength);
+				content.put(columnData(stripeData, currentOffset, colLength));
+				if(stripe.getColumnSignature(i) == null) {
+					logger.debug("Small column {}, size={}", i, colLength);
+					stats.getStats().add(new TransferStatValue(TransferStatValue.Type.SmallColumn, 1, TransferStatValue.Unit.Count));
+				}
+				else {
+					logger.debug("column miss {}", i);
+					stats.getStats().add(new TransferStatValue(TransferStatValue.Type.ColumnMiss, 1, TransferStatValue.Unit.Count));
+					if(column.getDataType() == ORCColumnType.String) {
+						stats.getStats().add(new TransferStatValue(TransferStatValue.Type.StringColumnMiss, 1, TransferStatValue.Unit.Count));
+						stats.getStats().add(new TransferStatValue(TransferStatValue.Type.StringColumnMissBytes, column.getSize(), TransferStatValue.Unit.Bytes));
+					}
+				}
+			}
+			if(column.getStreamKind() != null && (hit || stripe.getColumnSignature(i) != null)) {
+				stats.getStats().add(ORCStreams.stat(column.getStreamKind(), hit, colLength));
+			}
+			currentOffset += colLength;
+		}
+		content.putInt(stripeFooter.remaining());
+		content.put(stripeFooter.duplicate());
+		if(missing == columns.size()) {
+			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.StripeMiss, 1, TransferStatValue.Unit.Count));
+		}
+		logger.debug("Stripe miss, sending {} of {} columns", missing, columns.size());
+		return content;
+	}
+	
 	@Override
 	public TransferStats transferFile(String fileName, InputStream is, OutputStream os) throws IOException {
 		TransferStats stats = new TransferStats(fileName);
-		FileInputStream fis = new FileInputStream(fileName);
+		FileChannel file = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ);
+		StripeHasher hasher = null;
+		ChunkIterator<StripePlusColumnORCFileChunk> chunks = null;
 		try {
 			if(this.is == null) {
 				if(is instanceof DataInputStream) {
@@ -311,50 +698,61 @@ public class StripePlusColumnORCStreamer extends SpeedupStreamer {
 				}
 			}
 			logger.info("Starting file transfer for {}", fileName);
-			// first stripe
-			boolean firstStripe = true;
 			TransferStats nn = initiateTransfer(fileName, os);
 			stats.appendStats(nn);
 			long startTime = System.currentTimeMillis();
-			List<StripePlusColumnORCFileChunk> chunks = algorithm.eagerChunking(fileName);
-			long orcParsingOverhead = System.currentTimeMillis() - startTime;
-			stats.getStats().add(new TransferStatValue(
-					TransferStatValue.Type.ParsingOverhead, orcParsingOverhead , TransferStatValue.Unit.Milliseconds));
-			logger.debug("{}", Arrays.toString(chunks.toArray()));
+			SignatureCache.Entry cached = signatureCache != null? 
+					signatureCache.get(new File(fileName), algorithm.getSignatureProvider()) : null;
+			List<StripePlusColumnORCFileChunk> cachedChunks = null;
+			if(cached != null && cached.getChunks() != null) {
+				cachedChunks = algorithm.chunksFromBytes(cached.getChunks());
+			}
+			// stripes are found as we go, so the first ones are negotiated while the footers of the next ones 
+			// are still being parsed
+			List<StripePlusColumnORCFileChunk> seen = null;
+			if(cachedChunks != null) {
+				chunks = ChunkingAlgorithm.iterate(cachedChunks);
+			}
+			else if(cached != null) {
+				seen = new ArrayList<StripePlusColumnORCFileChunk>();
+				chunks = ChunkingAlgorithm.recording(algorithm.lazyChunking(fileName), seen);
+			}
+			else {
+				chunks = algorithm.lazyChunking(fileName);
+			}
+			// stripes start hashing now, while we talk to the receiver
+			hasher = new StripeHasher(algorithm.getSignatureProvider(), hashPool, hashAhead, file, mapStripes, chunks, cached);
+			long hashWait = 0;
 			// now do the hustle...
-			StripePlusColumnORCFileChunk index = null, data = null, footer = null;
-			for(StripePlusColumnORCFileChunk chunk : chunks) {
-				TransferStats partial = null;
-				// handle the footer here
-				if(chunk.getType().equals(ChunkType.FileFooter)) {
-					// just handle this one here...
-					partial = sendFooter(fileName, chunk, this.is, os, fis);
-					// there should never be an iteration after this is done
-					index = data = footer = null; 
-				}
-				// get the index
-				if(chunk.getType().equals(ChunkType.StripeIndex)) {
-					index = chunk;
-				}
-				// get the data
-				else if (chunk.getType().equals(ChunkType.StripeData)) {
-					data = chunk;
-				}
-				// get the footer
-				else if (chunk.getType().equals(ChunkType.StripeFooter)) {
-					footer = chunk;
-				}
-				if(index != null && data != null && footer != null) {
-					// i can send the whole stripe
-					partial = sendStripe(fileName, index, data, footer, this.is, os, fis, firstStripe);
-					index = data = footer = null; 
-					firstStripe = false;
-				}
+			while(hasher.hasNext()) {
+				// i can send the whole stripe, once it is hashed
+				long waitStarts = System.currentTimeMillis();
+				StripeHasher.HashedStripe stripe = hasher.next();
+				hashWait += System.currentTimeMillis() - waitStarts;
+				logger.debug("{}", Arrays.toString(stripe.getChunks()));
+				TransferStats partial = manifest? sendStripeManifest(fileName, stripe, stripe.getChunks()[1], this.is, os)
+						: sendStripe(fileName, stripe, stripe.getChunks()[1], this.is, os);
 				if(partial != null) {
 					// append transfer stats
 					stats.appendStats(partial);
 				}
 			}
+			// there is nothing after this one
+			StripePlusColumnORCFileChunk fileFooter = hasher.getFileFooter();
+			if(fileFooter == null) {
+				throw new IOException("No file footer found for " + fileName);
+			}
+			TransferStats partial = sendFooter(fileName, fileFooter, this.is, os, file, cached);
+			if(partial != null) {
+				stats.appendStats(partial);
+			}
+			if(seen != null) {
+				cached.setChunks(algorithm.chunksToBytes(seen));
+			}
+			stats.getStats().add(new TransferStatValue(
+					TransferStatValue.Type.ParsingOverhead, hasher.getParsingTime(), TransferStatValue.Unit.Milliseconds));
+			stats.getStats().add(new TransferStatValue(
+					TransferStatValue.Type.SignatureWait, hashWait, TransferStatValue.Unit.Milliseconds));
 			// check if we have some ack here
 			TransferStatus status = waitForAck(is);
 			logger.debug("TransferStatus={}", status.name());
@@ -364,10 +762,23 @@ public class StripePlusColumnORCStreamer extends SpeedupStreamer {
 			}
 			else if(status == TransferStatus.SUCCESS) {
 				logger.info("Tranfer done");
+				if(useFilter) {
+					stats.getStats().add(new TransferStatValue(
+							TransferStatValue.Type.FilterBytes, receiveFilter(this.is), TransferStatValue.Unit.Bytes));
+				}
 				stats.getStats().add(new TransferStatValue(
 						TransferStatValue.Type.TransferTime, System.currentTimeMillis() - startTime , TransferStatValue.Unit.Milliseconds));
 				stats.getStats().add(new TransferStatValue(
 						TransferStatValue.Type.TotalBytes, new File(fileName).length() , TransferStatValue.Unit.Bytes));
+				if(cached != null) {
+					try {
+						signatureCache.put(cached);
+					}
+					catch(IOException e) {
+						// we just sign it again next time
+						logger.warn("Could not cache signatures of {}: {}", fileName, e.getMessage());
+					}
+				}
 			}
 			// return aggregated stats...
 			return TransferStats.aggregate(stats);	
@@ -378,7 +789,9 @@ public class StripePlusColumnORCStreamer extends SpeedupStreamer {
 			return null;
 		}
 		finally {
-			if(fis != null) fis.close();
+			if(hasher != null) hasher.close();
+			if(chunks != null) chunks.close();
+			file.close();
 		}
 	}
 
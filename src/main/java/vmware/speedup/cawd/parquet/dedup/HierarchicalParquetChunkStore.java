@@ -0,0 +1,203 @@
+package vmware.speedup.cawd.parquet.dedup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import org.apache.curator.shaded.com.google.common.collect.Lists;
+import vmware.speedup.cawd.dedup.ChunkingAlgorithm;
+import vmware.speedup.cawd.dedup.ContentCodec;
+import vmware.speedup.cawd.dedup.IndexedChunkStore;
+import vmware.speedup.cawd.dedup.RefCountedBlobStore;
+import vmware.speedup.cawd.parquet.dedup.HierarchicalParquetChunkingAlgorithm.HierarchicalParquetFileChunk;
+
+public class HierarchicalParquetChunkStore extends IndexedChunkStore<HierarchicalParquetChunkingAlgorithm.HierarchicalParquetFileChunk, HierarchicalParquetChunkingAlgorithm>{
+
+	// recipes start with this instead of a content size
+	private static final int RECIPE = -1;
+
+	private HierarchicalParquetChunkStore linkStore = null;
+
+	public HierarchicalParquetChunkStore() {
+		super();
+	}
+
+	// persistent when cawd.store.dir is set
+	public HierarchicalParquetChunkStore(String name) {
+		super(name);
+	}
+
+	@Override
+	protected HierarchicalParquetFileChunk newChunk(byte[] signature, byte[] content) {
+		return new HierarchicalParquetFileChunk(signature, content);
+	}
+
+	// row groups link to columns and columns link to pages, but a recipe only keeps the type and signature of
+	// its links: they are found in the store below when the recipe is looked up, see setLinkStore(). So in the
+	// log (or a lower tier) a chunk looks like <contentSize-int><content> and a recipe looks like
+	// <RECIPE-int><numLinks-int>[<type-int><signature>]...
+	@Override
+	protected byte[] encode(HierarchicalParquetFileChunk chunk) {
+		if(chunk.getContent() != null) {
+			ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES + chunk.getContent().length);
+			payload.putInt(chunk.getContent().length);
+			payload.put(chunk.getContent());
+			return payload.array();
+		}
+		ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES * 2 + chunk.getSubchunks().size() * (Integer.BYTES + ChunkingAlgorithm.SHA1_SIZE));
+		payload.putInt(RECIPE);
+		payload.putInt(chunk.getSubchunks().size());
+		for(HierarchicalParquetFileChunk link : chunk.getSubchunks()) {
+			payload.putInt(HierarchicalParquetFileChunk.toOrdinal(link.getType()));
+			payload.put(link.getSignature());
+		}
+		return payload.array();
+	}
+
+	@Override
+	protected HierarchicalParquetFileChunk decode(byte[] signature, byte[] payload) {
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		int size = buffer.getInt();
+		if(size >= 0) {
+			byte[] content = new byte[size];
+			buffer.get(content);
+			return new HierarchicalParquetFileChunk(signature, content);
+		}
+		HierarchicalParquetFileChunk chunk = new HierarchicalParquetFileChunk(signature, null);
+		int numLinks = buffer.getInt();
+		for(int i = 0; i < numLinks; ++i) {
+			HierarchicalParquetFileChunk.ChunkType type = HierarchicalParquetFileChunk.fromOrdinal(buffer.getInt());
+			byte[] linkSignature = new byte[ChunkingAlgorithm.SHA1_SIZE];
+			buffer.get(linkSignature);
+			chunk.getSubchunks().add(new HierarchicalParquetFileChunk(type, linkSignature, null));
+		}
+		return chunk;
+	}
+
+	private static int contentSize(HierarchicalParquetFileChunk chunk) {
+		return chunk.getContent() != null? chunk.getContent().length : 0;
+	}
+
+	// recipes only cost their links, what they point to is weighed by the store that keeps it
+	@Override
+	protected int weigh(HierarchicalParquetFileChunk chunk) {
+		return contentSize(chunk) + chunk.getSubchunks().size() * (Integer.BYTES + ChunkingAlgorithm.SHA1_SIZE);
+	}
+
+	// links of the recipes we keep are looked up here (pages for column chunks, column chunks for row groups)
+	public void setLinkStore(HierarchicalParquetChunkStore linkStore) {
+		this.linkStore = linkStore;
+	}
+
+	@Override
+	public HierarchicalParquetFileChunk findChunkBySignature(byte[] buffer, int offset) {
+		return resolve(super.findChunkBySignature(buffer, offset));
+	}
+
+	@Override
+	public HierarchicalParquetFileChunk findChunkBySignature(ByteBuffer buffer, int offset) {
+		return resolve(super.findChunkBySignature(buffer, offset));
+	}
+
+	// the recipe with its links found in the link store. If one of them is not there anymore (the store below
+	// is bounded and let it go) we do not have the content, so it is a miss
+	private HierarchicalParquetFileChunk resolve(HierarchicalParquetFileChunk chunk) {
+		if(chunk == null || linkStore == null || chunk.getSubchunks().isEmpty()) {
+			return chunk;
+		}
+		HierarchicalParquetFileChunk resolved = new HierarchicalParquetFileChunk(chunk.getType(), chunk.getSignature(), chunk.getContent());
+		for(HierarchicalParquetFileChunk link : chunk.getSubchunks()) {
+			HierarchicalParquetFileChunk found = linkStore.findChunkBySignature(link.getSignature());
+			if(found == null) {
+				return null;
+			}
+			resolved.getSubchunks().add(asLink(link.getType(), found));
+		}
+		return resolved;
+	}
+
+	// pages and footers keep their content, recipes only the signatures of their links, so a page lives in
+	// memory once no matter how many columns and row groups point to it
+	@Override
+	protected void retainContent(RefCountedBlobStore blobs, HierarchicalParquetFileChunk chunk) {
+		if(chunk.getContent() != null) {
+			chunk.setContent(blobs.retain(chunk.getSignature(), chunk.getContent()));
+		}
+	}
+
+	@Override
+	protected void releaseContent(RefCountedBlobStore blobs, HierarchicalParquetFileChunk chunk) {
+		if(chunk.getContent() != null) {
+			blobs.release(chunk.getSignature());
+		}
+	}
+
+	@Override
+	protected HierarchicalParquetFileChunk compact(ContentCodec codec, HierarchicalParquetFileChunk chunk) {
+		if(chunk.getContent() == null) {
+			return chunk;
+		}
+		return new HierarchicalParquetFileChunk(chunk.getType(), chunk.getSignature(), compress(codec, chunk.getSignature(), chunk.getContent()));
+	}
+
+	@Override
+	protected HierarchicalParquetFileChunk expand(ContentCodec codec, HierarchicalParquetFileChunk chunk) {
+		if(chunk.getContent() == null) {
+			return chunk;
+		}
+		return new HierarchicalParquetFileChunk(chunk.getType(), chunk.getSignature(), codec.decompress(chunk.getContent()));
+	}
+
+	@Override
+	public List<HierarchicalParquetFileChunk> addChunks(byte[] data, HierarchicalParquetChunkingAlgorithm algorithm) throws NoSuchAlgorithmException {
+		// here, we will just add the whole chunk and its signature...
+		byte[] signature = algorithm.signature(data);
+		HierarchicalParquetFileChunk chunk = new HierarchicalParquetFileChunk(signature, data);
+		chunk = putChunk(signature, chunk);
+		return Lists.newArrayList(chunk);
+	}
+
+	// a recipe under this signature (the one of the whole content), linking to these chunks in file order:
+	// pages for a column chunk, column chunks (recipes themselves) for a row group. We keep the signatures of
+	// the links and hand back the recipe with the chunks we got
+	public HierarchicalParquetFileChunk addRecipe(byte[] signature, HierarchicalParquetFileChunk.ChunkType linkType, List<HierarchicalParquetFileChunk> links) {
+		HierarchicalParquetFileChunk recipe = new HierarchicalParquetFileChunk(signature, null);
+		HierarchicalParquetFileChunk resolved = new HierarchicalParquetFileChunk(signature, null);
+		for(HierarchicalParquetFileChunk link : links) {
+			recipe.getSubchunks().add(new HierarchicalParquetFileChunk(linkType, link.getSignature(), null));
+			resolved.getSubchunks().add(asLink(linkType, link));
+		}
+		putChunk(signature, recipe);
+		return resolved;
+	}
+
+	// links are copies, so the chunk we got it from (maybe kept by another store) is left as it is
+	private static HierarchicalParquetFileChunk asLink(HierarchicalParquetFileChunk.ChunkType type, HierarchicalParquetFileChunk chunk) {
+		HierarchicalParquetFileChunk link = new HierarchicalParquetFileChunk(type, chunk.getSignature(), chunk.getContent());
+		for(HierarchicalParquetFileChunk child : chunk.getSubchunks()) {
+			link.getSubchunks().add(asLink(child.getType(), child));
+		}
+		return link;
+	}
+
+	// what a chunk stands for: its content, or the content of its links in order
+	public static int contentLength(HierarchicalParquetFileChunk chunk) {
+		int length = contentSize(chunk);
+		for(HierarchicalParquetFileChunk link : chunk.getSubchunks()) {
+			length += contentLength(link);
+		}
+		return length;
+	}
+
+	public static void writeContent(HierarchicalParquetFileChunk chunk, OutputStream os) throws IOException {
+		if(chunk.getContent() != null) {
+			os.write(chunk.getContent());
+		}
+		for(HierarchicalParquetFileChunk link : chunk.getSubchunks()) {
+			writeContent(link, os);
+		}
+	}
+
+}
@@ -0,0 +1,227 @@
+package vmware.speedup.cawd.parquet.dedup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.parquet.format.PageHeader;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
+import org.apache.parquet.hadoop.metadata.ColumnChunkMetaData;
+import org.apache.parquet.hadoop.util.HadoopInputFile;
+
+import vmware.speedup.cawd.dedup.ChunkingAlgorithm;
+
+// Parquet files as row groups, column chunks and pages, the way StripePlusColumnORCChunkingAlgorithm sees
+// ORC files as stripes and columns. Each row group is a chunk whose subchunks are its column chunks, and each
+// column chunk has its pages (header and body together) as subchunks. Whatever is not in a row group (the
+// "PAR1" magic, padding between row groups) is a raw chunk, and the file ends with the footer (file metadata,
+// its length and the magic again).
+// Offsets come from the footer and the page headers, so this only needs the stock parquet-mr.
+public class HierarchicalParquetChunkingAlgorithm extends ChunkingAlgorithm<HierarchicalParquetChunkingAlgorithm.HierarchicalParquetFileChunk> {
+
+	private static final Logger logger = LogManager.getLogger(HierarchicalParquetChunkingAlgorithm.class);
+
+	@Override
+	public List<HierarchicalParquetFileChunk> eagerChunking(String fileName) throws IOException {
+		List<HierarchicalParquetFileChunk> chunks = new ArrayList<HierarchicalParquetFileChunk>();
+		List<BlockMetaData> rowGroups = null;
+		ParquetFileReader parquetReader = ParquetFileReader.open(HadoopInputFile.fromPath(new Path(fileName), new Configuration()));
+		try {
+			rowGroups = parquetReader.getFooter().getBlocks();
+		}
+		finally {
+			parquetReader.close();
+		}
+		FileChannel file = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ);
+		try {
+			long position = 0;
+			for(BlockMetaData rowGroup : rowGroups) {
+				List<ColumnChunkMetaData> columns = rowGroup.getColumns();
+				if(columns.isEmpty()) {
+					continue;
+				}
+				long rowGroupStart = columns.get(0).getStartingPos();
+				long rowGroupEnd = rowGroupStart;
+				boolean contiguous = rowGroupStart >= position;
+				for(ColumnChunkMetaData column : columns) {
+					contiguous = contiguous && column.getStartingPos() == rowGroupEnd;
+					rowGroupEnd = Math.max(rowGroupEnd, column.getStartingPos() + column.getTotalSize());
+				}
+				if(!contiguous) {
+					// we cannot tell columns apart, so its bytes go with whatever comes next (raw or footer)
+					logger.warn("Column chunks of row group at {} in {} do not follow each other", rowGroupStart, fileName);
+					continue;
+				}
+				// the magic or padding before this row group
+				if(rowGroupStart > position) {
+					chunks.add(new HierarchicalParquetFileChunk(HierarchicalParquetFileChunk.ChunkType.Raw, position, rowGroupStart - position));
+				}
+				HierarchicalParquetFileChunk rowGroupChunk = new HierarchicalParquetFileChunk(
+						HierarchicalParquetFileChunk.ChunkType.RowGroup, rowGroupStart, rowGroupEnd - rowGroupStart);
+				for(ColumnChunkMetaData column : columns) {
+					HierarchicalParquetFileChunk columnChunk = new HierarchicalParquetFileChunk(
+							HierarchicalParquetFileChunk.ChunkType.ColumnChunk, column.getStartingPos(), column.getTotalSize());
+					columnChunk.subchunks.addAll(getPages(file, column.getStartingPos(), column.getTotalSize()));
+					rowGroupChunk.subchunks.add(columnChunk);
+				}
+				chunks.add(rowGroupChunk);
+				position = rowGroupEnd;
+			}
+			// and the rest of the file, footer and magic...
+			chunks.add(new HierarchicalParquetFileChunk(HierarchicalParquetFileChunk.ChunkType.FileFooter, position, file.size() - position));
+			return chunks;
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	// a row group is signed by the signatures of its column chunks, in order, so neither side has to hold a
+	// whole row group (which can be larger than 2GB) to sign it
+	public byte[] rowGroupSignature(List<byte[]> columnSignatures) throws NoSuchAlgorithmException {
+		ByteBuffer buffer = ByteBuffer.allocate(columnSignatures.size() * SHA1_SIZE);
+		for(byte[] columnSignature : columnSignatures) {
+			buffer.put(columnSignature);
+		}
+		return signature(buffer.array());
+	}
+
+	// the pages of the column chunk at [start, start + size), as header + body
+	private List<HierarchicalParquetFileChunk> getPages(FileChannel file, long start, long size) throws IOException {
+		final List<HierarchicalParquetFileChunk> pages = new ArrayList<HierarchicalParquetFileChunk>();
+		ParquetPages.walk(file, start, size, new ParquetPages.PageVisitor() {
+			@Override
+			public void visit(long pageStart, int headerSize, PageHeader header) {
+				pages.add(new HierarchicalParquetFileChunk(HierarchicalParquetFileChunk.ChunkType.Page, pageStart, headerSize + header.getCompressed_page_size()));
+			}
+		});
+		return pages;
+	}
+
+	public static class HierarchicalParquetFileChunk extends ChunkingAlgorithm.Chunk {
+
+		public static enum ChunkType {
+			Raw, // bytes that are not in a row group, sent as they are
+			RowGroup,
+			ColumnChunk,
+			Page, // page header + page body
+			FileFooter, // file metadata, its length and the magic
+			ERROR
+		}
+
+		public static ChunkType fromOrdinal(int ordinal) {
+			switch(ordinal) {
+				case 1: return  ChunkType.Raw;
+				case 2: return  ChunkType.RowGroup;
+				case 3: return  ChunkType.ColumnChunk;
+				case 4: return  ChunkType.Page;
+				case 5: return  ChunkType.FileFooter;
+				default: return ChunkType.ERROR;
+			}
+		}
+
+		public static int toOrdinal(ChunkType type) {
+			switch(type) {
+				case Raw: return 1;
+				case RowGroup: return  2;
+				case ColumnChunk: return 3;
+				case Page: return 4;
+				case FileFooter: return 5;
+				default: return -1000;
+			}
+		}
+
+		private byte[] signature = null;
+		private byte[] content = null;
+		private ChunkType type = null;
+		private long start = 0;
+		private long size = 0;
+		private List<HierarchicalParquetFileChunk> subchunks = new ArrayList<HierarchicalParquetFileChunk>();
+
+		public HierarchicalParquetFileChunk(ChunkType type, long start, long size) {
+			this.signature = null;
+			this.content = null;
+			this.type = type;
+			this.start = start;
+			this.size = size;
+		}
+
+		public HierarchicalParquetFileChunk(byte[] signature, byte[] content) {
+			this.signature = signature;
+			this.content = content;
+		}
+
+		public HierarchicalParquetFileChunk(ChunkType type, byte[] signature, byte[] content) {
+			this.type = type;
+			this.signature = signature;
+			this.content = content;
+		}
+
+		public ChunkType getType() {
+			return type;
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public byte[] getSignature() {
+			return signature;
+		}
+
+		public byte[] getContent() {
+			return content;
+		}
+
+		public void setSignature(byte[] signature) {
+			this.signature = signature;
+		}
+
+		public void setContent(byte[] content) {
+			this.content = content;
+		}
+
+		public List<HierarchicalParquetFileChunk> getSubchunks() {
+			return subchunks;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append("HierarchicalParquetFileChunk [type=").append(type != null? type.name() : "none").append(", start=").append(start).append(", size=")
+					.append(size).append(", signature=").append(signature != null? Arrays.toString(signature) : "none")
+					.append(", subchunks=").append(Arrays.toString(subchunks.toArray())).append("]");
+			return builder.toString();
+		}
+
+		@Override
+		public int doHashCode() {
+			return Arrays.hashCode(signature);
+		}
+
+		@Override
+		public boolean doEquals(Object other) {
+			if(other instanceof HierarchicalParquetFileChunk) {
+				return Arrays.equals(signature, ((HierarchicalParquetFileChunk)other).signature);
+			}
+			return false;
+		}
+
+	}
+
+}
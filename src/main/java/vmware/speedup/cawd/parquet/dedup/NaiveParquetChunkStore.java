@@ -1,31 +1,36 @@
 package vmware.speedup.cawd.parquet.dedup;
 
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.curator.shaded.com.google.common.collect.Lists;
 
-import vmware.speedup.cawd.dedup.ColumnarChunkStore;
+import vmware.speedup.cawd.dedup.IndexedChunkStore;
 import vmware.speedup.cawd.parquet.dedup.NaiveParquetChunkingAlgorithm.ParquetFileChunk;
 
-public class NaiveParquetChunkStore extends ColumnarChunkStore<NaiveParquetChunkingAlgorithm.ParquetFileChunk, NaiveParquetChunkingAlgorithm>{
+public class NaiveParquetChunkStore extends IndexedChunkStore<NaiveParquetChunkingAlgorithm.ParquetFileChunk, NaiveParquetChunkingAlgorithm>{
 
-	private Map<ParquetFileChunk, ParquetFileChunk> chunkStore = new HashMap<ParquetFileChunk, ParquetFileChunk>();
+	public NaiveParquetChunkStore() {
+		super();
+	}
+
+	// persistent when cawd.store.dir is set
+	public NaiveParquetChunkStore(String name) {
+		super(name);
+	}
+
+	@Override
+	protected ParquetFileChunk newChunk(byte[] signature, byte[] content) {
+		return new ParquetFileChunk(signature, content);
+	}
 	
 	@Override
 	public List<ParquetFileChunk> addChunks(byte[] data, NaiveParquetChunkingAlgorithm algorithm) throws NoSuchAlgorithmException {
 		// here, we will just add the whole chunk and its signature...
-		byte[] signature = algorithm.naiveSHA1(data);
+		byte[] signature = algorithm.signature(data);
 		ParquetFileChunk chunk = new ParquetFileChunk(signature, data);
-		chunkStore.put(new ParquetFileChunk(signature), chunk);
+		chunk = putChunk(signature, chunk);
 		return Lists.newArrayList(chunk);
 	}
 
-	@Override
-	public ParquetFileChunk findChunkBySignature(byte[] signature) {
-		return chunkStore.get(new ParquetFileChunk(signature));
-	}
-
 }
@@ -1,30 +1,25 @@
 package vmware.speedup.cawd.parquet.dedup;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.nio.charset.Charset;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.apache.parquet.column.ColumnDescriptor;
-import org.apache.parquet.column.page.DataPageV1;
-import org.apache.parquet.column.page.DataPageV2;
-import org.apache.parquet.column.page.PageReadStore;
-import org.apache.parquet.column.page.PageReader;
+import org.apache.parquet.format.DataPageHeaderV2;
 import org.apache.parquet.format.PageHeader;
-import org.apache.parquet.format.Util;
+import org.apache.parquet.format.PageType;
 import org.apache.parquet.hadoop.ParquetFileReader;
-import org.apache.parquet.hadoop.metadata.ParquetMetadata;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
+import org.apache.parquet.hadoop.metadata.ColumnChunkMetaData;
 import org.apache.parquet.hadoop.util.HadoopInputFile;
-import org.apache.parquet.schema.MessageType;
-import org.apache.parquet.schema.PrimitiveType;
-import static org.apache.parquet.cli.Util.primitive;
-import static org.apache.parquet.bytes.BytesUtils.writeIntLittleEndian;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 
@@ -35,96 +30,129 @@ public class NaiveParquetChunkingAlgorithm extends ChunkingAlgorithm<NaiveParque
  
     public static final String MAGIC_STR = "PAR1";
     public static final byte[] MAGIC = MAGIC_STR.getBytes(Charset.forName("ASCII"));
+    // footer length (int) + magic
+    private static final int FOOTER_TAIL = Integer.BYTES + MAGIC.length;
+
+    private boolean levelChunks = false;
+
+    public NaiveParquetChunkingAlgorithm() {
+        this.levelChunks = ParquetLevels.enabled();
+    }
     
+    // the chunks come from the footer and the page headers only: column chunk offsets come from the file metadata,
+    // and each page header tells us how long its body is, so we jump over bodies instead of reading them. Cost
+    // follows the size of the metadata, not the size of the file, and nothing is read twice or re-serialized
     @Override
 	public List<ParquetFileChunk> eagerChunking(String fileName) throws IOException {
-        List<ParquetFileChunk> identifiedChunks = new ArrayList<ParquetFileChunk>();
+        final List<ParquetFileChunk> identifiedChunks = new ArrayList<ParquetFileChunk>();
 
         Configuration conf = new Configuration();
+        List<BlockMetaData> rowGroups = null;
+        // this only reads the footer
         ParquetFileReader parquetReader = ParquetFileReader.open(HadoopInputFile.fromPath(new Path(fileName), conf));
         logger.info("Open parquet file: " + fileName);
-
         try {
-            // read footer, aka, parquet file meta data
-            ParquetMetadata footer = parquetReader.getFooter();
-            MessageType schema = footer.getFileMetaData().getSchema();
-            
-            // LinkedHashMap retains the insertion order. 
-            Map<ColumnDescriptor, PrimitiveType> columns = new LinkedHashMap<ColumnDescriptor, PrimitiveType>();
+            rowGroups = parquetReader.getFooter().getBlocks();
+        }
+        finally {
+            parquetReader.close();
+        }
 
-            // read all column descriptors. 
-            for (ColumnDescriptor descriptor : schema.getColumns()) {
-                columns.put(descriptor, primitive(schema, descriptor.getPath()));
+        FileChannel file = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ);
+        try {
+            long fileSize = file.size();
+            long footerStart = fileSize - FOOTER_TAIL;
+            if(footerStart < MAGIC.length) {
+                throw new IOException(fileName + " is too small to be a parquet file");
             }
-            
+            // the last eight bytes are the length of the footer and the magic again
+            ByteBuffer tail = ByteBuffer.allocate(FOOTER_TAIL).order(ByteOrder.LITTLE_ENDIAN);
+            file.position(footerStart);
+            while(tail.hasRemaining() && file.read(tail) >= 0);
+            footerStart -= tail.getInt(0);
+
             long curPos = 0;
-            byte[] rawbytes;
 
             // the first chunk is the Magic chars
             identifiedChunks.add(new ParquetFileChunk(ParquetFileChunk.ChunkType.ParquetHeader, curPos, MAGIC.length));
             curPos += MAGIC.length;
 
-            // reading the whole next row group including multiple chunks and each chunk includes multiple pages (dict page or data page)
-            PageReadStore pageStore = null;
-            while((pageStore = parquetReader.readNextRowGroup()) != null){ // for each row group
-                for (ColumnDescriptor descriptor : columns.keySet()) { // for each column
-                    PageReader pages = pageStore.getPageReader(descriptor);
-                    PageHeader pageHeader;
-                    while((pageHeader = pages.readPageHeader()) != null) { // for each page
-                        ByteArrayOutputStream out = new ByteArrayOutputStream();
-                        Util.writePageHeader(pageHeader, out);
-                        rawbytes = out.toByteArray();
-                        // page meta data chunk
-                        identifiedChunks.add(new ParquetFileChunk(ParquetFileChunk.ChunkType.PageHeader, curPos, rawbytes.length));
-                        curPos += rawbytes.length;
-
-                        switch (pageHeader.type) {
-                            case DICTIONARY_PAGE:
-                                rawbytes = pages.readRawDictionaryPage().getBytes().toByteArray();
-                                // dict page
-                                identifiedChunks.add(new ParquetFileChunk(ParquetFileChunk.ChunkType.DictPage, curPos, rawbytes.length));
-                                curPos += rawbytes.length;
-                                break;
-                            case DATA_PAGE:
-                                rawbytes = ((DataPageV1) pages.readRawPage()).getBytes().toByteArray();
-                                // data page v1
-                                identifiedChunks.add(new ParquetFileChunk(ParquetFileChunk.ChunkType.DataPageV1, curPos, rawbytes.length));
-                                curPos += rawbytes.length;
-                                break;
-                            case DATA_PAGE_V2:
-                                rawbytes = ((DataPageV2) pages.readRawPage()).getData().toByteArray();
-                                // data page v2
-                                identifiedChunks.add(new ParquetFileChunk(ParquetFileChunk.ChunkType.DataPageV2, curPos, rawbytes.length));
-                                curPos += rawbytes.length;
-                                break;
-                            default:
-                                logger.error("skipping page of type {} of size {}", pageHeader.getType(), pageHeader.compressed_page_size);
-                                break;
-                        }   
+            for(BlockMetaData rowGroup : rowGroups) { // for each row group
+                for(ColumnChunkMetaData column : rowGroup.getColumns()) { // for each column
+                    long columnStart = column.getStartingPos();
+                    long columnEnd = columnStart + column.getTotalSize();
+                    if(columnStart < curPos || columnEnd > footerStart) {
+                        throw new IOException("Column chunk at " + columnStart + " in " + fileName + " is out of order");
                     }
+                    // padding before the column chunk (e.g. to align row groups)
+                    if(columnStart > curPos) {
+                        identifiedChunks.add(new ParquetFileChunk(ParquetFileChunk.ChunkType.Raw, curPos, columnStart - curPos));
+                        curPos = columnStart;
+                    }
+                    // for each page
+                    ParquetPages.walk(file, columnStart, column.getTotalSize(), new ParquetPages.PageVisitor() {
+                        @Override
+                        public void visit(long pageStart, int headerSize, PageHeader pageHeader) {
+                            addPage(identifiedChunks, pageStart, headerSize, pageHeader);
+                        }
+                    });
+                    curPos = columnEnd;
                 }
             }
 
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            org.apache.parquet.format.FileMetaData parquetMetadata = parquetReader.getParquetFileMetaData();
-            Util.writeFileMetaData(parquetMetadata, out);
-            rawbytes = out.toByteArray();
-            // after all row group, we have parquet footer (parquet file meta data); 
-            identifiedChunks.add(new ParquetFileChunk(ParquetFileChunk.ChunkType.ParquetFooter, curPos, rawbytes.length));
-            curPos += rawbytes.length;
+            // whatever is left before the footer
+            if(footerStart > curPos) {
+                identifiedChunks.add(new ParquetFileChunk(ParquetFileChunk.ChunkType.Raw, curPos, footerStart - curPos));
+                curPos = footerStart;
+            }
+            // after all row group, we have parquet footer (parquet file meta data);
+            identifiedChunks.add(new ParquetFileChunk(ParquetFileChunk.ChunkType.ParquetFooter, curPos, fileSize - FOOTER_TAIL - curPos));
+            curPos = fileSize - FOOTER_TAIL;
+            // after footer, there are eight bytes.
+            identifiedChunks.add(new ParquetFileChunk(ParquetFileChunk.ChunkType.AfterFooter, curPos, FOOTER_TAIL));
+            curPos += FOOTER_TAIL;
 
-            out = new ByteArrayOutputStream();
-            writeIntLittleEndian(out, ParquetFileReader.MyFooterLength);
-            out.write(MAGIC);
-            rawbytes = out.toByteArray();
-            // after footer, there are eight bytes. 
-            identifiedChunks.add(new ParquetFileChunk(ParquetFileChunk.ChunkType.AfterFooter, curPos, rawbytes.length));
-            curPos += rawbytes.length;
-            
             return identifiedChunks;
         }
         finally {
-            if(parquetReader != null) parquetReader.close();
+            file.close();
+        }
+    }
+
+    // the header of the page and its body, split in levels and values for v2 data pages when we want them apart
+    private void addPage(List<ParquetFileChunk> chunks, long start, int headerSize, PageHeader pageHeader) {
+        chunks.add(new ParquetFileChunk(ParquetFileChunk.ChunkType.PageHeader, start, headerSize));
+        long position = start + headerSize;
+        if(levelChunks && pageHeader.getType() == PageType.DATA_PAGE_V2) {
+            // levels first, then values
+            DataPageHeaderV2 levels = pageHeader.getData_page_header_v2();
+            position = addPart(chunks, ParquetFileChunk.ChunkType.RepetitionValues, position, levels.getRepetition_levels_byte_length());
+            position = addPart(chunks, ParquetFileChunk.ChunkType.DefinitionValues, position, levels.getDefinition_levels_byte_length());
+            int valuesSize = pageHeader.getCompressed_page_size() - levels.getRepetition_levels_byte_length() - levels.getDefinition_levels_byte_length();
+            addPart(chunks, ParquetFileChunk.ChunkType.DataValues, position, valuesSize);
+        }
+        else {
+            chunks.add(new ParquetFileChunk(pageType(pageHeader), position, pageHeader.getCompressed_page_size()));
+        }
+    }
+
+    // empty levels (and the empty values of a page of nulls) are no chunk at all
+    private static long addPart(List<ParquetFileChunk> chunks, ParquetFileChunk.ChunkType type, long position, int size) {
+        if(size > 0) {
+            chunks.add(new ParquetFileChunk(type, position, size));
+        }
+        return position + size;
+    }
+
+    private static ParquetFileChunk.ChunkType pageType(PageHeader pageHeader) {
+        switch(pageHeader.getType()) {
+            case DICTIONARY_PAGE: return ParquetFileChunk.ChunkType.DictPage;
+            case DATA_PAGE: return ParquetFileChunk.ChunkType.DataPageV1;
+            case DATA_PAGE_V2: return ParquetFileChunk.ChunkType.DataPageV2;
+            default:
+                // index pages and such, we just send them as they are
+                logger.debug("Page of type {} of size {} sent as raw bytes", pageHeader.getType(), pageHeader.getCompressed_page_size());
+                return ParquetFileChunk.ChunkType.Raw;
         }
     }
 	
@@ -141,6 +169,8 @@ public class NaiveParquetChunkingAlgorithm extends ChunkingAlgorithm<NaiveParque
             RepetitionValues, // per-page, r-value array
             DefinitionValues, // per-page, d-value array
             DataValues, // per-page, actual data array
+            Raw, // bytes not in a page we know (padding, index pages), sent as they are
+            DictPageRef, // on the wire only, a dictionary page already resolved in this session
             ERROR
 		}
 		
@@ -156,6 +186,8 @@ public class NaiveParquetChunkingAlgorithm extends ChunkingAlgorithm<NaiveParque
 				case 8: return  ChunkType.RepetitionValues;
 				case 9: return  ChunkType.DefinitionValues;
                 case 10: return  ChunkType.DataValues;
+                case 11: return  ChunkType.Raw;
+                case 12: return  ChunkType.DictPageRef;
                 default: return ChunkType.ERROR;
             }
         }
@@ -172,6 +204,8 @@ public class NaiveParquetChunkingAlgorithm extends ChunkingAlgorithm<NaiveParque
 				case RepetitionValues: return 8;
 				case DefinitionValues: return 9;
 				case DataValues: return 10;
+				case Raw: return 11;
+				case DictPageRef: return 12;
 				default: return -1000;
 			}
 		}
@@ -0,0 +1,95 @@
+package vmware.speedup.cawd.parquet.dedup;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+
+// Dictionary pages are queried like data pages, but they live in a store of their own, since tables with many
+// dimensions repeat the same dictionaries in every row group and file. With cawd.parquet.sessionDictionaries a
+// dictionary is resolved once per session (a query, and the content on a miss): after that the streamer only
+// sends a reference and does not wait for a reply. The receiver keeps the dictionaries of the session aside
+// for that, so they survive evictions in the store, but only up to cawd.parquet.sessionDictionaries.capacity
+// bytes (64MB by default): see Session. Both sides need the same settings.
+public class ParquetDictionaries {
+
+	public static final String SESSION_DICTIONARIES = "cawd.parquet.sessionDictionaries";
+	public static final String SESSION_CAPACITY = "cawd.parquet.sessionDictionaries.capacity";
+
+	public static boolean perSession() {
+		return Boolean.valueOf(System.getProperty(SESSION_DICTIONARIES, "false"));
+	}
+
+	public static long sessionCapacity() {
+		return Long.valueOf(System.getProperty(SESSION_CAPACITY, String.valueOf(64L * 1024 * 1024)));
+	}
+
+	// the dictionaries of a session, up to capacity bytes, dropping the least recently used ones first. The
+	// streamer keeps nothing but that it sent them, the receiver keeps their content. Both use (get) and add
+	// (put) the same dictionaries in the same order, so they drop the same ones, and whatever the streamer
+	// references is still here for the receiver
+	public static class Session<V> {
+
+		private static class Entry<V> {
+
+			private V value = null;
+			private int size = 0;
+
+			private Entry(V value, int size) {
+				this.value = value;
+				this.size = size;
+			}
+
+		}
+
+		private long capacity = 0;
+		private long bytes = 0;
+		private LinkedHashMap<ByteBuffer, Entry<V>> dictionaries = new LinkedHashMap<ByteBuffer, Entry<V>>(16, 0.75f, true);
+
+		public Session(long capacity) {
+			this.capacity = capacity;
+		}
+
+		// the dictionary of this signature, which is now the most recently used, or null
+		public V get(byte[] signature) {
+			Entry<V> entry = dictionaries.get(ByteBuffer.wrap(signature));
+			return entry != null? entry.value : null;
+		}
+
+		// a dictionary of size bytes, which is kept unless it is larger than the capacity
+		public void put(byte[] signature, V value, int size) {
+			ByteBuffer key = ByteBuffer.wrap(signature);
+			Entry<V> old = dictionaries.remove(key);
+			if(old != null) {
+				bytes -= old.size;
+			}
+			if(size > capacity) {
+				return;
+			}
+			dictionaries.put(key, new Entry<V>(value, size));
+			bytes += size;
+			Iterator<Entry<V>> eldest = dictionaries.values().iterator();
+			while(bytes > capacity) {
+				bytes -= eldest.next().size;
+				eldest.remove();
+			}
+		}
+
+		public int size() {
+			return dictionaries.size();
+		}
+
+		public long bytes() {
+			return bytes;
+		}
+
+	}
+
+	// a hit or a miss of a dictionary page of this many bytes
+	public static TransferStatValue stat(boolean hit, long bytes) {
+		return new TransferStatValue(hit? TransferStatValue.Type.DictionaryPageHit : TransferStatValue.Type.DictionaryPageMiss,
+				bytes, TransferStatValue.Unit.Bytes);
+	}
+
+}
@@ -0,0 +1,55 @@
+package vmware.speedup.cawd.parquet.dedup;
+
+import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+import vmware.speedup.cawd.parquet.dedup.NaiveParquetChunkingAlgorithm.ParquetFileChunk;
+
+// Level chunking for data pages v2. A v2 page keeps its repetition and definition levels uncompressed and ahead
+// of the (maybe compressed) values, so we know where each one starts from the page header. With
+// cawd.parquet.levelChunks each of them is a chunk of its own, so a page whose nulls moved but whose values did
+// not (or the other way around) still dedups most of its bytes. Empty levels (required, non repeated columns)
+// and empty values (pages of nulls only) are not chunks at all. Streamers report hits and misses per kind (in bytes, the count is the number of
+// chunks). Both sides need the same setting, since receivers index what they have the same way.
+public class ParquetLevels {
+
+	public static final String LEVEL_CHUNKS = "cawd.parquet.levelChunks";
+
+	public static boolean enabled() {
+		return Boolean.valueOf(System.getProperty(LEVEL_CHUNKS, "false"));
+	}
+
+	// the chunks the streamer asks the receiver about
+	public static boolean isQueried(ParquetFileChunk.ChunkType type) {
+		switch(type) {
+			case DataPageV1:
+			case DataPageV2:
+			case RepetitionValues:
+			case DefinitionValues:
+			case DataValues: return true;
+			default: return false;
+		}
+	}
+
+	public static TransferStatValue.Type hitType(ParquetFileChunk.ChunkType type) {
+		switch(type) {
+			case RepetitionValues: return TransferStatValue.Type.RepetitionLevelsHit;
+			case DefinitionValues: return TransferStatValue.Type.DefinitionLevelsHit;
+			case DataValues: return TransferStatValue.Type.DataValuesHit;
+			default: return TransferStatValue.Type.PageHit;
+		}
+	}
+
+	public static TransferStatValue.Type missType(ParquetFileChunk.ChunkType type) {
+		switch(type) {
+			case RepetitionValues: return TransferStatValue.Type.RepetitionLevelsMiss;
+			case DefinitionValues: return TransferStatValue.Type.DefinitionLevelsMiss;
+			case DataValues: return TransferStatValue.Type.DataValuesMiss;
+			default: return TransferStatValue.Type.PageMiss;
+		}
+	}
+
+	// a hit or a miss of this many bytes of a chunk of this type
+	public static TransferStatValue stat(ParquetFileChunk.ChunkType type, boolean hit, long bytes) {
+		return new TransferStatValue(hit? hitType(type) : missType(type), bytes, TransferStatValue.Unit.Bytes);
+	}
+
+}
@@ -0,0 +1,37 @@
+package vmware.speedup.cawd.parquet.dedup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import org.apache.parquet.format.PageHeader;
+import org.apache.parquet.format.Util;
+
+// The pages of a column chunk, found from their headers alone: each header tells us how long its body is, so
+// we jump over bodies instead of reading them. Both parquet chunking algorithms walk pages this way.
+public class ParquetPages {
+
+	public interface PageVisitor {
+		// a page at start, with a header of headerSize bytes followed by its body
+		void visit(long start, int headerSize, PageHeader header) throws IOException;
+	}
+
+	// visits the pages of the column chunk at [start, start + size) in file order
+	public static void walk(FileChannel file, long start, long size, PageVisitor visitor) throws IOException {
+		// the stream reads from the position of the channel, and thrift reads no more than the header
+		InputStream headers = Channels.newInputStream(file);
+		long position = start;
+		while(position < start + size) {
+			file.position(position);
+			PageHeader header = Util.readPageHeader(headers);
+			int headerSize = (int)(file.position() - position);
+			visitor.visit(position, headerSize, header);
+			position += headerSize + header.getCompressed_page_size();
+		}
+		if(position != start + size) {
+			throw new IOException("Pages of column chunk at " + start + " go beyond its " + size + " bytes");
+		}
+	}
+
+}
@@ -0,0 +1,320 @@
+package vmware.speedup.cawd.parquet.net;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import vmware.speedup.cawd.common.BytesUtil;
+import vmware.speedup.cawd.common.TransferStats;
+import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+import vmware.speedup.cawd.dedup.IndexedChunkStore;
+import vmware.speedup.cawd.dedup.RefCountedBlobStore;
+import vmware.speedup.cawd.net.SpeedupReceiver;
+import vmware.speedup.cawd.parquet.dedup.HierarchicalParquetChunkStore;
+import vmware.speedup.cawd.parquet.dedup.HierarchicalParquetChunkingAlgorithm;
+import vmware.speedup.cawd.parquet.dedup.HierarchicalParquetChunkingAlgorithm.HierarchicalParquetFileChunk;
+
+// The other side of HierarchicalParquetStreamer. Pages are kept as they are, column chunks as recipes linking
+// to their pages, and row groups as recipes linking to their column chunks. Recipes only keep the signatures
+// of their links, so a page is kept (in memory or in a log) once no matter how many columns and row groups
+// have it.
+public class HierarchicalParquetReceiver extends SpeedupReceiver {
+
+	private static final Logger logger = LogManager.getLogger(HierarchicalParquetReceiver.class);
+
+	private long totalBytesReceived = 0;
+	private DataInputStream is = null;
+	private HierarchicalParquetChunkStore footerStore = new HierarchicalParquetChunkStore("parquet-footers");
+	private HierarchicalParquetChunkStore rowGroupStore = new HierarchicalParquetChunkStore("parquet-rowgroups");
+	private HierarchicalParquetChunkStore columnStore = new HierarchicalParquetChunkStore("parquet-columns");
+	private HierarchicalParquetChunkStore pageStore = new HierarchicalParquetChunkStore("parquet-pages");
+	private HierarchicalParquetChunkingAlgorithm algorithm = new HierarchicalParquetChunkingAlgorithm();
+	private RefCountedBlobStore blobStore = new RefCountedBlobStore();
+
+	public HierarchicalParquetReceiver() {
+		rowGroupStore.setLinkStore(columnStore);
+		columnStore.setLinkStore(pageStore);
+		if(!rowGroupStore.isPersistent()) {
+			footerStore.shareContent(blobStore);
+			rowGroupStore.shareContent(blobStore);
+			columnStore.shareContent(blobStore);
+			pageStore.shareContent(blobStore);
+		}
+	}
+
+	private HierarchicalParquetFileChunk.ChunkType readNextType(DataInputStream is) throws IOException {
+		return HierarchicalParquetFileChunk.fromOrdinal(BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES)));
+	}
+
+	private void write(HierarchicalParquetFileChunk chunk, FileOutputStream fos) throws IOException {
+		HierarchicalParquetChunkStore.writeContent(chunk, fos);
+		totalBytesReceived += HierarchicalParquetChunkStore.contentLength(chunk);
+	}
+
+	private TransferStats receiveRaw(String fileName, DataInputStream is, FileOutputStream fos) throws IOException {
+		TransferStats stats = new TransferStats(fileName);
+		byte[] content = BytesUtil.readNextBytes(is, BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES)));
+		fos.write(content);
+		totalBytesReceived += content.length;
+		return stats;
+	}
+
+	private TransferStats receiveFooter(String fileName, DataInputStream is, OutputStream os, FileOutputStream fos) throws IOException, NoSuchAlgorithmException {
+		TransferStats stats = new TransferStats(fileName);
+		HierarchicalParquetFileChunk found = footerStore.findChunkBySignature(BytesUtil.readNextBytes(is, HierarchicalParquetChunkingAlgorithm.SHA1_SIZE));
+		ackDataStream(found != null? 1 : -1, os);
+		if(found != null) {
+			write(found, fos);
+		}
+		else {
+			byte[] footer = BytesUtil.readNextBytes(is, BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES)));
+			footerStore.addChunks(footer, algorithm);
+			fos.write(footer);
+			totalBytesReceived += footer.length;
+		}
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.TransferBytes, Integer.BYTES, TransferStatValue.Unit.Bytes));
+		return stats;
+	}
+
+	private TransferStats receiveRowGroup(String fileName, DataInputStream is, OutputStream os, FileOutputStream fos) throws IOException, NoSuchAlgorithmException {
+		TransferStats stats = new TransferStats(fileName);
+		int transferBytes = Integer.BYTES;
+		byte[] rowGroupSignature = BytesUtil.readNextBytes(is, HierarchicalParquetChunkingAlgorithm.SHA1_SIZE);
+		HierarchicalParquetFileChunk found = rowGroupStore.findChunkBySignature(rowGroupSignature);
+		ackDataStream(found != null? 1 : -1, os);
+		if(found != null) {
+			logger.debug("Whole row group match!");
+			write(found, fos);
+			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.TransferBytes, transferBytes, TransferStatValue.Unit.Bytes));
+			return stats;
+		}
+		// the column chunks we have
+		int numColumns = BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES));
+		ByteBuffer columnSignatures = ByteBuffer.wrap(BytesUtil.readNextBytes(is, numColumns * HierarchicalParquetChunkingAlgorithm.SHA1_SIZE));
+		HierarchicalParquetFileChunk[] columns = new HierarchicalParquetFileChunk[numColumns];
+		byte[] presentColumns = new byte[(numColumns + 7) / 8];
+		int missing = 0;
+		for(int i = 0; i < numColumns; ++i) {
+			if((columns[i] = columnStore.findChunkBySignature(columnSignatures, i * HierarchicalParquetChunkingAlgorithm.SHA1_SIZE)) != null) {
+				presentColumns[i / 8] |= 1 << (i % 8);
+			}
+			else {
+				++missing;
+			}
+		}
+		os.write(presentColumns);
+		os.flush();
+		transferBytes += presentColumns.length;
+		logger.debug("Row group miss, we miss {} of {} columns", missing, numColumns);
+		if(missing > 0) {
+			// then the pages of the columns we miss, <numPages-int>[<size-int><signature>] for each
+			int[][] pageSizes = new int[numColumns][];
+			HierarchicalParquetFileChunk[][] pages = new HierarchicalParquetFileChunk[numColumns][];
+			List<byte[]> bitmaps = new ArrayList<byte[]>(missing);
+			for(int i = 0; i < numColumns; ++i) {
+				if(columns[i] != null) {
+					continue;
+				}
+				int numPages = BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES));
+				ByteBuffer manifest = ByteBuffer.wrap(BytesUtil.readNextBytes(is, numPages * (Integer.BYTES + HierarchicalParquetChunkingAlgorithm.SHA1_SIZE)));
+				pageSizes[i] = new int[numPages];
+				pages[i] = new HierarchicalParquetFileChunk[numPages];
+				byte[] present = new byte[(numPages + 7) / 8];
+				for(int j = 0; j < numPages; ++j) {
+					pageSizes[i][j] = manifest.getInt();
+					if((pages[i][j] = pageStore.findChunkBySignature(manifest, manifest.position())) != null) {
+						present[j / 8] |= 1 << (j % 8);
+					}
+					manifest.position(manifest.position() + HierarchicalParquetChunkingAlgorithm.SHA1_SIZE);
+				}
+				bitmaps.add(present);
+			}
+			int bitmapSize = 0;
+			for(byte[] bitmap : bitmaps) {
+				bitmapSize += bitmap.length;
+			}
+			ByteBuffer presentPages = ByteBuffer.allocate(bitmapSize);
+			for(byte[] bitmap : bitmaps) {
+				presentPages.put(bitmap);
+			}
+			os.write(presentPages.array());
+			os.flush();
+			transferBytes += bitmapSize;
+			// the pages we miss come in order, and the columns we did not have are built from their pages
+			for(int i = 0; i < numColumns; ++i) {
+				if(columns[i] != null) {
+					continue;
+				}
+				for(int j = 0; j < pages[i].length; ++j) {
+					if(pages[i][j] == null) {
+						pages[i][j] = pageStore.addChunks(BytesUtil.readNextBytes(is, pageSizes[i][j]), algorithm).get(0);
+					}
+				}
+				byte[] columnSignature = new byte[HierarchicalParquetChunkingAlgorithm.SHA1_SIZE];
+				columnSignatures.position(i * HierarchicalParquetChunkingAlgorithm.SHA1_SIZE);
+				columnSignatures.get(columnSignature);
+				columns[i] = columnStore.addRecipe(columnSignature, HierarchicalParquetFileChunk.ChunkType.Page, Arrays.asList(pages[i]));
+			}
+		}
+		rowGroupStore.addRecipe(rowGroupSignature, HierarchicalParquetFileChunk.ChunkType.ColumnChunk, Arrays.asList(columns));
+		for(HierarchicalParquetFileChunk column : columns) {
+			write(column, fos);
+		}
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.TransferBytes, transferBytes, TransferStatValue.Unit.Bytes));
+		return stats;
+	}
+
+	@Override
+	public TransferStats receiveFile(String destinationFolder, InputStream is, OutputStream os) throws IOException {
+		FileOutputStream fos = null;
+		try {
+			if(this.is == null) {
+				if(is instanceof DataInputStream) {
+					this.is = (DataInputStream)is;
+				}
+				else {
+					throw new IOException("InputStream is expected to be DataInputStream");
+				}
+			}
+			TransferMeta meta = initiateDataStreaming(this.is);
+			if(meta != null) {
+				logger.debug("Receiving {} of size {}", meta.getName(), meta.getSize());
+				totalBytesReceived = 0;
+				String fileName = destinationFolder + File.separator + meta.getName();
+				fos = new FileOutputStream(fileName);
+				TransferStats all = new TransferStats(fileName);
+				all.getStats().add(new TransferStatValue(
+						TransferStatValue.Type.ExtraTransferBytes, meta.getTotalLength() + Integer.BYTES , TransferStatValue.Unit.Bytes));
+				while(totalBytesReceived < meta.getSize()) {
+					TransferStats stats = null;
+					HierarchicalParquetFileChunk.ChunkType nextChunkType = readNextType(this.is);
+					switch(nextChunkType) {
+						case RowGroup:
+							stats = receiveRowGroup(fileName, this.is, os, fos);
+							break;
+						case FileFooter:
+							stats = receiveFooter(fileName, this.is, os, fos);
+							break;
+						case Raw:
+							stats = receiveRaw(fileName, this.is, fos);
+							break;
+						default:
+							logger.error("Receiving wrong type={}, exiting...", nextChunkType);
+							throw new IOException("Error when checking next type of data");
+					}
+					// append
+					all.appendStats(stats);
+				}
+				// flush the file
+				fos.flush();
+				// and make the new chunks durable before we ack
+				for(IndexedChunkStore<?, ?> store : getStores()) {
+					store.flush();
+					store.collectStats(all);
+				}
+				logger.debug("Blob store keeps {} blobs, {} bytes", blobStore.size(), blobStore.bytes());
+				// ack
+				ackDataStream(1, os);
+				// done
+				return TransferStats.aggregate(all);
+			}
+			// transfer terminated
+			logger.info("Terminating transfers...");
+			return null;
+		}
+		catch(IOException e) {
+			logger.error("Transfer failed!", e);
+			ackDataStream(-1, os);
+			throw e;
+		}
+		catch(NoSuchAlgorithmException e) {
+			logger.error("Transfer failed for bad algorithm...", e);
+			ackDataStream(-1, os);
+			throw new IOException(e);
+		}
+		finally {
+			if(fos != null) {
+				fos.flush();
+				fos.close();
+			}
+		}
+	}
+
+	// row groups, column chunks and pages go in as if we had received them
+	@Override
+	public void index(File file) throws IOException {
+		RandomAccessFile rand = new RandomAccessFile(file, "r");
+		try {
+			for(HierarchicalParquetFileChunk chunk : algorithm.eagerChunking(file.getAbsolutePath())) {
+				switch(chunk.getType()) {
+					case RowGroup:
+						indexRowGroup(rand, chunk);
+						break;
+					case FileFooter:
+						footerStore.addChunks(readRange(rand, chunk.getStart(), chunk.getSize()), algorithm);
+						break;
+					default:
+						break;
+				}
+			}
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		finally {
+			rand.close();
+		}
+	}
+
+	// one column chunk at a time, row groups can be larger than what we can read in one go
+	private void indexRowGroup(RandomAccessFile rand, HierarchicalParquetFileChunk rowGroup) throws IOException, NoSuchAlgorithmException {
+		List<byte[]> columnSignatures = new ArrayList<byte[]>(rowGroup.getSubchunks().size());
+		List<List<HierarchicalParquetFileChunk>> columnPages = new ArrayList<List<HierarchicalParquetFileChunk>>(rowGroup.getSubchunks().size());
+		for(HierarchicalParquetFileChunk column : rowGroup.getSubchunks()) {
+			byte[] content = readRange(rand, column.getStart(), column.getSize());
+			columnSignatures.add(algorithm.signature(content));
+			List<HierarchicalParquetFileChunk> pages = new ArrayList<HierarchicalParquetFileChunk>(column.getSubchunks().size());
+			for(HierarchicalParquetFileChunk page : column.getSubchunks()) {
+				int pageStart = (int)(page.getStart() - column.getStart());
+				pages.addAll(pageStore.addChunks(Arrays.copyOfRange(content, pageStart, pageStart + (int)page.getSize()), algorithm));
+			}
+			columnPages.add(pages);
+		}
+		byte[] rowGroupSignature = algorithm.rowGroupSignature(columnSignatures);
+		// a persistent store might have it already
+		if(rowGroupStore.findChunkBySignature(rowGroupSignature) != null) {
+			return;
+		}
+		List<HierarchicalParquetFileChunk> columns = new ArrayList<HierarchicalParquetFileChunk>(columnSignatures.size());
+		for(int i = 0; i < columnSignatures.size(); ++i) {
+			columns.add(columnStore.addRecipe(columnSignatures.get(i), HierarchicalParquetFileChunk.ChunkType.Page, columnPages.get(i)));
+		}
+		rowGroupStore.addRecipe(rowGroupSignature, HierarchicalParquetFileChunk.ChunkType.ColumnChunk, columns);
+	}
+
+	@Override
+	protected List<IndexedChunkStore<?, ?>> getStores() {
+		return Arrays.<IndexedChunkStore<?, ?>>asList(footerStore, rowGroupStore, columnStore, pageStore);
+	}
+
+	@Override
+	public void close() throws IOException {
+		footerStore.close();
+		rowGroupStore.close();
+		columnStore.close();
+		pageStore.close();
+	}
+
+}
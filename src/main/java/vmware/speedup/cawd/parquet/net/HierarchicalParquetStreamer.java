@@ -0,0 +1,286 @@
+package vmware.speedup.cawd.parquet.net;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import vmware.speedup.cawd.common.BytesUtil;
+import vmware.speedup.cawd.common.TransferStats;
+import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+import vmware.speedup.cawd.dedup.SignatureProvider;
+import vmware.speedup.cawd.net.SpeedupStreamer;
+import vmware.speedup.cawd.orc.net.StripeHasher;
+import vmware.speedup.cawd.parquet.dedup.HierarchicalParquetChunkingAlgorithm;
+import vmware.speedup.cawd.parquet.dedup.HierarchicalParquetChunkingAlgorithm.HierarchicalParquetFileChunk;
+
+// Row groups first, then column chunks, then pages, like StripePlusColumnORCStreamer does with stripes and
+// columns. A row group the receiver has costs one round trip, and one it does not have costs three, no
+// matter how many columns and pages it has:
+//   - <RowGroup-type><signature>, and the receiver answers <ack-int> (>0 if it has it)
+//   - on a miss, <numColumns-int>[<signature>] for every column chunk, and the receiver answers with a bitmap
+//     of the ones it has
+//   - for the columns it does not have, <numPages-int>[<size-int><signature>] for each, all together, and the
+//     receiver answers with a bitmap per column. Then the content of the pages it does not have goes in order
+// Bytes out of row groups go as <Raw-type><size-int><content>, and the footer is queried like ORC footers.
+// Row groups are signed by their column signatures (see HierarchicalParquetChunkingAlgorithm), so we only hold
+// one column chunk at a time while signing, and then the columns the receiver misses. With cawd.streamer.mmap
+// column chunks are mapped instead of read, and only the pages we send are copied.
+public class HierarchicalParquetStreamer extends SpeedupStreamer {
+
+	private static final Logger logger = LogManager.getLogger(HierarchicalParquetStreamer.class);
+
+	private HierarchicalParquetChunkingAlgorithm algorithm = new HierarchicalParquetChunkingAlgorithm();
+	private DataInputStream is = null;
+	private boolean mapped = false;
+
+	public HierarchicalParquetStreamer() {
+		this.mapped = Boolean.valueOf(System.getProperty(StripeHasher.MMAP, "false"));
+	}
+
+	@Override
+	protected void setSignatureProvider(SignatureProvider provider) {
+		algorithm.setSignatureProvider(provider);
+	}
+
+	// the content of a column chunk, mapped or on the heap. Pages are at most 2GB, column chunks should be too
+	private ByteBuffer load(FileChannel file, HierarchicalParquetFileChunk column) throws IOException {
+		if(column.getSize() > Integer.MAX_VALUE) {
+			throw new IOException("Column chunk at " + column.getStart() + " has " + column.getSize() + " bytes, more than we can load");
+		}
+		return mapped? file.map(FileChannel.MapMode.READ_ONLY, column.getStart(), column.getSize())
+				: ByteBuffer.wrap(StripeHasher.read(file, column.getStart(), column.getSize()));
+	}
+
+	// the page (or any range of the column chunk) as a buffer of its own
+	private static ByteBuffer slice(ByteBuffer content, HierarchicalParquetFileChunk column, HierarchicalParquetFileChunk page) {
+		ByteBuffer slice = content.duplicate();
+		slice.position((int)(page.getStart() - column.getStart()));
+		slice.limit((int)(page.getStart() - column.getStart() + page.getSize()));
+		return slice.slice();
+	}
+
+	private static void write(ByteBuffer buffer, OutputStream os) throws IOException {
+		if(buffer.hasArray()) {
+			os.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		}
+		else {
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.duplicate().get(bytes);
+			os.write(bytes);
+		}
+	}
+
+	private static boolean isSet(byte[] bitmap, int i) {
+		return (bitmap[i / 8] & (1 << (i % 8))) != 0;
+	}
+
+	private TransferStats sendRaw(String fileName, HierarchicalParquetFileChunk raw, FileChannel file, OutputStream os) throws IOException {
+		TransferStats stats = new TransferStats(fileName);
+		byte[] content = StripeHasher.read(file, raw.getStart(), raw.getSize());
+		ByteBuffer message = ByteBuffer.allocate(Integer.BYTES * 2 + content.length);
+		message.putInt(HierarchicalParquetFileChunk.toOrdinal(HierarchicalParquetFileChunk.ChunkType.Raw));
+		message.putInt(content.length);
+		message.put(content);
+		os.write(message.array());
+		os.flush();
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.TransferBytes, message.capacity(), TransferStatValue.Unit.Bytes));
+		return stats;
+	}
+
+	private TransferStats sendFooter(String fileName, HierarchicalParquetFileChunk footer, FileChannel file, DataInputStream is, OutputStream os) throws IOException, NoSuchAlgorithmException {
+		TransferStats stats = new TransferStats(fileName);
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.FooterSize, footer.getSize(), TransferStatValue.Unit.Bytes));
+		byte[] content = StripeHasher.read(file, footer.getStart(), footer.getSize());
+		int totalBytesSent = query(HierarchicalParquetFileChunk.ChunkType.FileFooter, algorithm.signature(content), os);
+		if(BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES)) > 0) {
+			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.FooterHit, 1, TransferStatValue.Unit.Count));
+			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.DedupBytes, content.length, TransferStatValue.Unit.Bytes));
+		}
+		else {
+			os.write(BytesUtil.intToBytes(content.length));
+			os.write(content);
+			os.flush();
+			totalBytesSent += Integer.BYTES + content.length;
+			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.FooterMiss, 1, TransferStatValue.Unit.Count));
+		}
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.TransferBytes, totalBytesSent, TransferStatValue.Unit.Bytes));
+		return stats;
+	}
+
+	// <type-int><signature>
+	private int query(HierarchicalParquetFileChunk.ChunkType type, byte[] signature, OutputStream os) throws IOException {
+		byte[] message = new byte[Integer.BYTES + signature.length];
+		System.arraycopy(BytesUtil.intToBytes(HierarchicalParquetFileChunk.toOrdinal(type)), 0, message, 0, Integer.BYTES);
+		System.arraycopy(signature, 0, message, Integer.BYTES, signature.length);
+		os.write(message);
+		os.flush();
+		return message.length;
+	}
+
+	private TransferStats sendRowGroup(String fileName, HierarchicalParquetFileChunk rowGroup, FileChannel file, DataInputStream is, OutputStream os) throws IOException, NoSuchAlgorithmException {
+		TransferStats stats = new TransferStats(fileName);
+		SignatureProvider signatures = algorithm.getSignatureProvider();
+		List<HierarchicalParquetFileChunk> columns = rowGroup.getSubchunks();
+		logger.debug("Sending row group of {} bytes, {} columns", rowGroup.getSize(), columns.size());
+		// one column at a time, what we need of them later is read again
+		List<byte[]> columnSignatures = new ArrayList<byte[]>(columns.size());
+		for(HierarchicalParquetFileChunk column : columns) {
+			columnSignatures.add(signatures.sign(load(file, column)));
+		}
+		int totalBytesSent = query(HierarchicalParquetFileChunk.ChunkType.RowGroup, algorithm.rowGroupSignature(columnSignatures), os);
+		if(BytesUtil.bytesToInt(BytesUtil.readNextBytes(is, Integer.BYTES)) > 0) {
+			logger.debug("Row group hit");
+			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.RowGroupHit, 1, TransferStatValue.Unit.Count));
+			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.DedupBytes, rowGroup.getSize(), TransferStatValue.Unit.Bytes));
+			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.TransferBytes, totalBytesSent, TransferStatValue.Unit.Bytes));
+			return stats;
+		}
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.RowGroupMiss, 1, TransferStatValue.Unit.Count));
+		ByteBuffer columnQuery = ByteBuffer.allocate(Integer.BYTES + columns.size() * HierarchicalParquetChunkingAlgorithm.SHA1_SIZE);
+		columnQuery.putInt(columns.size());
+		for(byte[] columnSignature : columnSignatures) {
+			columnQuery.put(columnSignature);
+		}
+		os.write(columnQuery.array());
+		os.flush();
+		totalBytesSent += columnQuery.capacity();
+		byte[] presentColumns = BytesUtil.readNextBytes(is, (columns.size() + 7) / 8);
+		List<HierarchicalParquetFileChunk> missing = new ArrayList<HierarchicalParquetFileChunk>();
+		for(int i = 0; i < columns.size(); ++i) {
+			if(isSet(presentColumns, i)) {
+				stats.getStats().add(new TransferStatValue(TransferStatValue.Type.ColumnHit, 1, TransferStatValue.Unit.Count));
+				stats.getStats().add(new TransferStatValue(TransferStatValue.Type.DedupBytes, columns.get(i).getSize(), TransferStatValue.Unit.Bytes));
+			}
+			else {
+				stats.getStats().add(new TransferStatValue(TransferStatValue.Type.ColumnMiss, 1, TransferStatValue.Unit.Count));
+				missing.add(columns.get(i));
+			}
+		}
+		logger.debug("Receiver misses {} of {} columns", missing.size(), columns.size());
+		if(missing.isEmpty()) {
+			stats.getStats().add(new TransferStatValue(TransferStatValue.Type.TransferBytes, totalBytesSent, TransferStatValue.Unit.Bytes));
+			return stats;
+		}
+		// the page manifests of every missing column go together. We keep the columns they miss until their
+		// pages are sent
+		int manifestSize = 0;
+		int bitmapSize = 0;
+		for(HierarchicalParquetFileChunk column : missing) {
+			manifestSize += Integer.BYTES + column.getSubchunks().size() * (Integer.BYTES + HierarchicalParquetChunkingAlgorithm.SHA1_SIZE);
+			bitmapSize += (column.getSubchunks().size() + 7) / 8;
+		}
+		List<ByteBuffer> missingContent = new ArrayList<ByteBuffer>(missing.size());
+		ByteBuffer manifest = ByteBuffer.allocate(manifestSize);
+		for(HierarchicalParquetFileChunk column : missing) {
+			ByteBuffer content = load(file, column);
+			missingContent.add(content);
+			manifest.putInt(column.getSubchunks().size());
+			for(HierarchicalParquetFileChunk page : column.getSubchunks()) {
+				manifest.putInt((int)page.getSize());
+				manifest.put(signatures.sign(slice(content, column, page)));
+			}
+		}
+		os.write(manifest.array());
+		os.flush();
+		totalBytesSent += manifestSize;
+		ByteBuffer presentPages = ByteBuffer.wrap(BytesUtil.readNextBytes(is, bitmapSize));
+		// and what they do not have, in order
+		for(int c = 0; c < missing.size(); ++c) {
+			HierarchicalParquetFileChunk column = missing.get(c);
+			byte[] present = new byte[(column.getSubchunks().size() + 7) / 8];
+			presentPages.get(present);
+			for(int i = 0; i < column.getSubchunks().size(); ++i) {
+				HierarchicalParquetFileChunk page = column.getSubchunks().get(i);
+				if(isSet(present, i)) {
+					stats.getStats().add(new TransferStatValue(TransferStatValue.Type.PageHit, 1, TransferStatValue.Unit.Count));
+					stats.getStats().add(new TransferStatValue(TransferStatValue.Type.DedupBytes, page.getSize(), TransferStatValue.Unit.Bytes));
+				}
+				else {
+					stats.getStats().add(new TransferStatValue(TransferStatValue.Type.PageMiss, 1, TransferStatValue.Unit.Count));
+					write(slice(missingContent.get(c), column, page), os);
+					totalBytesSent += page.getSize();
+				}
+			}
+		}
+		os.flush();
+		stats.getStats().add(new TransferStatValue(TransferStatValue.Type.TransferBytes, totalBytesSent, TransferStatValue.Unit.Bytes));
+		return stats;
+	}
+
+	@Override
+	public TransferStats transferFile(String fileName, InputStream is, OutputStream os) throws IOException {
+		TransferStats stats = new TransferStats(fileName);
+		FileChannel file = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ);
+		try {
+			if(this.is == null) {
+				if(is instanceof DataInputStream) {
+					this.is = (DataInputStream)is;
+				}
+				else {
+					throw new IOException("InputStream is expected to be DataInputStream");
+				}
+			}
+			logger.info("Starting file transfer for {}", fileName);
+			TransferStats nn = initiateTransfer(fileName, os);
+			stats.appendStats(nn);
+			long startTime = System.currentTimeMillis();
+			List<HierarchicalParquetFileChunk> chunks = algorithm.eagerChunking(fileName);
+			long parquetParsingOverhead = System.currentTimeMillis() - startTime;
+			stats.getStats().add(new TransferStatValue(
+					TransferStatValue.Type.ParsingOverhead, parquetParsingOverhead , TransferStatValue.Unit.Milliseconds));
+			logger.debug("{}", Arrays.toString(chunks.toArray()));
+			// now do the hustle...
+			for(HierarchicalParquetFileChunk chunk : chunks) {
+				TransferStats partial = null;
+				switch(chunk.getType()) {
+					case RowGroup:
+						partial = sendRowGroup(fileName, chunk, file, this.is, os);
+						break;
+					case FileFooter:
+						partial = sendFooter(fileName, chunk, file, this.is, os);
+						break;
+					default:
+						partial = sendRaw(fileName, chunk, file, os);
+				}
+				// append transfer stats
+				stats.appendStats(partial);
+			}
+			// check if we have some ack here
+			TransferStatus status = waitForAck(is);
+			logger.debug("TransferStatus={}", status.name());
+			if(status == TransferStatus.ERROR) {
+				logger.error("Received error signal from server...");
+				throw new IOException("Transfer failed with error from server!");
+			}
+			else if(status == TransferStatus.SUCCESS) {
+				stats.getStats().add(new TransferStatValue(
+						TransferStatValue.Type.TransferTime, System.currentTimeMillis() - startTime , TransferStatValue.Unit.Milliseconds));
+				stats.getStats().add(new TransferStatValue(
+						TransferStatValue.Type.TotalBytes, new File(fileName).length() , TransferStatValue.Unit.Bytes));
+			}
+			// return aggregated stats...
+			return TransferStats.aggregate(stats);
+		}
+		catch(NoSuchAlgorithmException e) {
+			// something bad
+			logger.error("Algorithm not found!", e);
+			return null;
+		}
+		finally {
+			file.close();
+		}
+	}
+
+}
@@ -7,7 +7,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.DataInputStream;
+import java.io.RandomAccessFile;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
@@ -16,19 +18,32 @@ import org.apache.logging.log4j.Logger;
 import vmware.speedup.cawd.common.BytesUtil;
 import vmware.speedup.cawd.common.TransferStats;
 import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+import vmware.speedup.cawd.dedup.IndexedChunkStore;
 import vmware.speedup.cawd.net.SpeedupReceiver;
 import vmware.speedup.cawd.parquet.dedup.NaiveParquetChunkStore;
 import vmware.speedup.cawd.parquet.dedup.NaiveParquetChunkingAlgorithm;
 import vmware.speedup.cawd.parquet.dedup.NaiveParquetChunkingAlgorithm.ParquetFileChunk;
 import vmware.speedup.cawd.parquet.dedup.NaiveParquetChunkingAlgorithm.ParquetFileChunk.ChunkType;
+import vmware.speedup.cawd.parquet.dedup.ParquetDictionaries;
+import vmware.speedup.cawd.parquet.dedup.ParquetLevels;
 
 public class NaiveParquetReceiver extends SpeedupReceiver {
 
 	private static final Logger logger = LogManager.getLogger(NaiveParquetReceiver.class);
 	
 	private long totalBytesReceived = 0;
-	private NaiveParquetChunkStore chunkStore = new NaiveParquetChunkStore();
+	private NaiveParquetChunkStore chunkStore = new NaiveParquetChunkStore("naive-parquet");
+	private NaiveParquetChunkStore dictionaryStore = new NaiveParquetChunkStore("parquet-dictionaries");
 	private NaiveParquetChunkingAlgorithm algorithm = new NaiveParquetChunkingAlgorithm();
+	// the dictionaries of this session, when the streamer only references them after the first time. Bounded
+	// like the streamer side, see ParquetDictionaries.Session
+	private ParquetDictionaries.Session<byte[]> sessionDictionaries = null;
+	
+	public NaiveParquetReceiver() {
+		if(ParquetDictionaries.perSession()) {
+			sessionDictionaries = new ParquetDictionaries.Session<byte[]>(ParquetDictionaries.sessionCapacity());
+		}
+	}
 	
 	// here, a chunk looks like <size-long><data>
 	private TransferStats handleRegularChunk(String fileName, InputStream is, FileOutputStream fos) throws IOException {
@@ -52,7 +67,9 @@ public class NaiveParquetReceiver extends SpeedupReceiver {
 	}
 	
 	// here, a chunk looks like <hashSize-int><hash>
-	private TransferStats handleSpecialChunk(String fileName, InputStream is, OutputStream os, FileOutputStream fos) throws IOException {
+	private TransferStats handleSpecialChunk(String fileName, ChunkType type, InputStream is, OutputStream os, FileOutputStream fos) throws IOException {
+		// dictionaries have a store of their own
+		NaiveParquetChunkStore store = type == ChunkType.DictPage? dictionaryStore : chunkStore;
 		TransferStats stats = new TransferStats(fileName);
 		byte[] sizeBuff = new byte[Integer.BYTES];
 		((DataInputStream)is).readFully(sizeBuff, 0, Integer.BYTES);
@@ -65,7 +82,7 @@ public class NaiveParquetReceiver extends SpeedupReceiver {
 		stats.getStats().add(new TransferStatValue(
 				TransferStatValue.Type.TransferBytes, hashSize , TransferStatValue.Unit.Bytes));
 		// do we have it?
-		ParquetFileChunk chunk = chunkStore.findChunkBySignature(hash);
+		ParquetFileChunk chunk = store.findChunkBySignature(hash);
 		if(chunk != null) {
 			// ack and acknowledge we handled it...
 			ackDataStream(1, os);
@@ -75,6 +92,7 @@ public class NaiveParquetReceiver extends SpeedupReceiver {
 			totalBytesReceived += chunk.getContent().length;
 			stats.getStats().add(new TransferStatValue(
 					TransferStatValue.Type.DedupBytes, chunk.getContent().length , TransferStatValue.Unit.Bytes));
+			rememberDictionary(type, hash, chunk.getContent());
 		}
 		// nope, we dont, we need to send a request back
 		else {
@@ -89,12 +107,13 @@ public class NaiveParquetReceiver extends SpeedupReceiver {
 			fos.write(content);
 			// and save it...
 			try {
-				List<ParquetFileChunk> chunks = chunkStore.addChunks(content, algorithm);
+				List<ParquetFileChunk> chunks = store.addChunks(content, algorithm);
 				logger.debug("Added {} chunks to chunk store", chunks.size());
 			}
 			catch(NoSuchAlgorithmException e) {
 				logger.error("Algorithm was not found...", e);
 			}
+			rememberDictionary(type, hash, content);
 			totalBytesReceived += size;
 			stats.getStats().add(new TransferStatValue(
 					TransferStatValue.Type.TransferBytes, content.length , TransferStatValue.Unit.Bytes));
@@ -105,6 +124,35 @@ public class NaiveParquetReceiver extends SpeedupReceiver {
 		
 		
 	}
+	
+	private void rememberDictionary(ChunkType type, byte[] hash, byte[] content) {
+		if(type == ChunkType.DictPage && sessionDictionaries != null) {
+			sessionDictionaries.put(hash, content, content.length);
+		}
+	}
+	
+	// here, a reference looks like <hashSize-int><hash>, and we do not reply
+	private TransferStats handleDictionaryReference(String fileName, InputStream is, FileOutputStream fos) throws IOException {
+		TransferStats stats = new TransferStats(fileName);
+		byte[] sizeBuff = new byte[Integer.BYTES];
+		((DataInputStream)is).readFully(sizeBuff, 0, Integer.BYTES);
+		int hashSize = BytesUtil.bytesToInt(sizeBuff);
+		byte[] hash = new byte[hashSize];
+		((DataInputStream)is).readFully(hash, 0, hashSize);
+		byte[] content = sessionDictionaries != null? sessionDictionaries.get(hash) : null;
+		if(content == null) {
+			throw new IOException("Dictionary referenced by " + fileName + " was not seen in this session (is " + ParquetDictionaries.SESSION_DICTIONARIES + " set here?)");
+		}
+		fos.write(content);
+		totalBytesReceived += content.length;
+		stats.getStats().add(new TransferStatValue(
+				TransferStatValue.Type.ExtraTransferBytes, Integer.BYTES , TransferStatValue.Unit.Bytes));
+		stats.getStats().add(new TransferStatValue(
+				TransferStatValue.Type.TransferBytes, hashSize , TransferStatValue.Unit.Bytes));
+		stats.getStats().add(new TransferStatValue(
+				TransferStatValue.Type.DedupBytes, content.length , TransferStatValue.Unit.Bytes));
+		return stats;
+	}
 
 	private ChunkType readNextType(InputStream is) throws IOException {
 		byte[] nextTypeOrdinal = new byte[Integer.BYTES];
@@ -129,19 +177,26 @@ public class NaiveParquetReceiver extends SpeedupReceiver {
 				while(totalBytesReceived < meta.getSize()) {
 					TransferStats stats = null;
 					ChunkType nextChunkType = readNextType(is);
-					switch(nextChunkType) {
-                        case DataPageV1:
-    					case DataPageV2:
-                            logger.debug("Receiving special chunk...");
-							stats = handleSpecialChunk(fileName, is, os, fos);
-							break;
-						default: 
-							logger.debug("Receiving regular chunk...");
-							stats = handleRegularChunk(fileName, is, fos);
+					if(ParquetLevels.isQueried(nextChunkType) || nextChunkType == ChunkType.DictPage) {
+						logger.debug("Receiving special chunk...");
+						stats = handleSpecialChunk(fileName, nextChunkType, is, os, fos);
+					}
+					else if(nextChunkType == ChunkType.DictPageRef) {
+						logger.debug("Receiving dictionary reference...");
+						stats = handleDictionaryReference(fileName, is, fos);
+					}
+					else {
+						logger.debug("Receiving regular chunk...");
+						stats = handleRegularChunk(fileName, is, fos);
 					}
 					// append
 					all.appendStats(stats);
 				}
+				// make the new chunks durable before we ack
+				chunkStore.flush();
+				dictionaryStore.flush();
+				chunkStore.collectStats(all);
+				dictionaryStore.collectStats(all);
 				// ack
 				ackDataStream(1, os);
 				// done
@@ -164,4 +219,37 @@ public class NaiveParquetReceiver extends SpeedupReceiver {
 		}
 	}
 
+	// the streamer asks us about data pages (or their levels and values) and dictionaries, so those are the ones we keep
+	@Override
+	public void index(File file) throws IOException {
+		RandomAccessFile rand = new RandomAccessFile(file, "r");
+		try {
+			for(ParquetFileChunk chunk : algorithm.eagerChunking(file.getAbsolutePath())) {
+				if(ParquetLevels.isQueried(chunk.getType())) {
+					chunkStore.addChunks(readRange(rand, chunk.getStart(), chunk.getSize()), algorithm);
+				}
+				else if(chunk.getType() == ChunkType.DictPage) {
+					dictionaryStore.addChunks(readRange(rand, chunk.getStart(), chunk.getSize()), algorithm);
+				}
+			}
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		finally {
+			rand.close();
+		}
+	}
+
+	@Override
+	protected List<IndexedChunkStore<?, ?>> getStores() {
+		return Arrays.<IndexedChunkStore<?, ?>>asList(chunkStore, dictionaryStore);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		chunkStore.close();
+		dictionaryStore.close();
+	}
+	
 }
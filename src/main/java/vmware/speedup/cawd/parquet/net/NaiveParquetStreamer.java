@@ -14,15 +14,32 @@ import org.apache.logging.log4j.Logger;
 import vmware.speedup.cawd.common.BytesUtil;
 import vmware.speedup.cawd.common.TransferStats;
 import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+import vmware.speedup.cawd.dedup.SignatureProvider;
 import vmware.speedup.cawd.net.SpeedupStreamer;
 import vmware.speedup.cawd.parquet.dedup.NaiveParquetChunkingAlgorithm;
 import vmware.speedup.cawd.parquet.dedup.NaiveParquetChunkingAlgorithm.ParquetFileChunk;
+import vmware.speedup.cawd.parquet.dedup.ParquetDictionaries;
+import vmware.speedup.cawd.parquet.dedup.ParquetLevels;
 
 public class NaiveParquetStreamer extends SpeedupStreamer {
 
 	private static final Logger logger = LogManager.getLogger(NaiveParquetStreamer.class);
 	
 	private NaiveParquetChunkingAlgorithm algorithm = new NaiveParquetChunkingAlgorithm();
+	// dictionaries the receiver already has for this session, when we dedup them once per session. It drops
+	// the same ones we do, see ParquetDictionaries.Session
+	private ParquetDictionaries.Session<Boolean> sessionDictionaries = null;
+	
+	public NaiveParquetStreamer() {
+		if(ParquetDictionaries.perSession()) {
+			sessionDictionaries = new ParquetDictionaries.Session<Boolean>(ParquetDictionaries.sessionCapacity());
+		}
+	}
+	
+	@Override
+	protected void setSignatureProvider(SignatureProvider provider) {
+		algorithm.setSignatureProvider(provider);
+	}
 	
 	// Regular chunk:
 	// <type-int><size-long><data>	
@@ -61,7 +78,11 @@ public class NaiveParquetStreamer extends SpeedupStreamer {
 			// read it from file
 			fis.read(content);
 			// hash it...
-			byte[] signature = algorithm.naiveSHA1(content);
+			byte[] signature = algorithm.signature(content);
+			if(special.getType() == ParquetFileChunk.ChunkType.DictPage && sessionDictionaries != null
+					&& sessionDictionaries.get(signature) != null) {
+				return referenceDictionary(fileName, signature, content.length, os);
+			}
 			// and we need to send it
 			byte[] buffer = new byte[Integer.BYTES + Integer.BYTES + signature.length];
 			System.arraycopy(BytesUtil.intToBytes(ParquetFileChunk.toOrdinal(special.getType())), 0, buffer, 0, Integer.BYTES);
@@ -91,6 +112,16 @@ public class NaiveParquetStreamer extends SpeedupStreamer {
 				stats.getStats().add(new TransferStatValue(
 						TransferStatValue.Type.DedupBytes, content.length , TransferStatValue.Unit.Bytes));
 			}
+			if(special.getType() == ParquetFileChunk.ChunkType.DictPage) {
+				stats.getStats().add(ParquetDictionaries.stat(ack >= 0, content.length));
+				// either way, the receiver has it now
+				if(sessionDictionaries != null) {
+					sessionDictionaries.put(signature, Boolean.TRUE, content.length);
+				}
+			}
+			else {
+				stats.getStats().add(ParquetLevels.stat(special.getType(), ack >= 0, content.length));
+			}
 			stats.getStats().add(new TransferStatValue(
 					TransferStatValue.Type.TransferBytes, sentBytes , TransferStatValue.Unit.Bytes));
 			stats.getStats().add(new TransferStatValue(
@@ -103,6 +134,25 @@ public class NaiveParquetStreamer extends SpeedupStreamer {
 	}
 	
 	
+	// Dictionary reference, no reply:
+	// <type-int><hashSize-int><hash>
+	private TransferStats referenceDictionary(String fileName, byte[] signature, int size, OutputStream os) throws IOException {
+		TransferStats stats = new TransferStats(fileName);
+		byte[] buffer = new byte[Integer.BYTES + Integer.BYTES + signature.length];
+		System.arraycopy(BytesUtil.intToBytes(ParquetFileChunk.toOrdinal(ParquetFileChunk.ChunkType.DictPageRef)), 0, buffer, 0, Integer.BYTES);
+		System.arraycopy(BytesUtil.intToBytes(signature.length), 0, buffer, Integer.BYTES, Integer.BYTES);
+		System.arraycopy(signature, 0, buffer, Integer.BYTES + Integer.BYTES, signature.length);
+		os.write(buffer);
+		os.flush();
+		stats.getStats().add(new TransferStatValue(
+				TransferStatValue.Type.SessionDictionaryHit, size , TransferStatValue.Unit.Bytes));
+		stats.getStats().add(new TransferStatValue(
+				TransferStatValue.Type.DedupBytes, size , TransferStatValue.Unit.Bytes));
+		stats.getStats().add(new TransferStatValue(
+				TransferStatValue.Type.ExtraTransferBytes, buffer.length , TransferStatValue.Unit.Bytes));
+		return stats;
+	}
+	
 	@Override
 	public TransferStats transferFile(String fileName, InputStream is, OutputStream os) throws IOException {
 		TransferStats stats = new TransferStats(fileName);
@@ -123,16 +173,15 @@ public class NaiveParquetStreamer extends SpeedupStreamer {
 			// now do the hustle...
 			for(ParquetFileChunk chunk : chunks) {
 				TransferStats partial = null;
-				switch(chunk.getType()) {
-					case DataPageV1:
-					case DataPageV2:
-                        logger.debug("Sending special chunk");
-						partial = handleSpecialChunk(fileName, chunk, is, os, fis);
-						break;
-					default:
-						logger.debug("Sending regular chunk");
-						partial = handleRegularChunk(fileName, chunk, os, fis);
-                }
+				// data pages (or their levels and values when split) and dictionaries
+				if(ParquetLevels.isQueried(chunk.getType()) || chunk.getType() == ParquetFileChunk.ChunkType.DictPage) {
+					logger.debug("Sending special chunk");
+					partial = handleSpecialChunk(fileName, chunk, is, os, fis);
+				}
+				else {
+					logger.debug("Sending regular chunk");
+					partial = handleRegularChunk(fileName, chunk, os, fis);
+				}
 				// append transfer stats
 				stats.appendStats(partial);
 			}
@@ -0,0 +1,67 @@
+package vmware.speedup.cawd.dedup;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import vmware.speedup.cawd.orc.dedup.StripePlusColumnORCChunkStore;
+import vmware.speedup.cawd.orc.dedup.StripePlusColumnORCChunkingAlgorithm;
+import vmware.speedup.cawd.orc.dedup.StripePlusColumnORCChunkingAlgorithm.StripePlusColumnORCFileChunk;
+
+public class ChunkStoreSnapshotTest {
+
+	@Test
+	public void stripesComeBackWithTheirLinks() throws Exception {
+		StripePlusColumnORCChunkingAlgorithm algorithm = new StripePlusColumnORCChunkingAlgorithm();
+		StripePlusColumnORCChunkStore columns = new StripePlusColumnORCChunkStore();
+		StripePlusColumnORCChunkStore footers = new StripePlusColumnORCChunkStore();
+		StripePlusColumnORCChunkStore stripes = new StripePlusColumnORCChunkStore();
+		stripes.setLinkStores(columns, footers);
+		List<StripePlusColumnORCFileChunk> stored = new ArrayList<StripePlusColumnORCFileChunk>();
+		for(int i = 0; i < 3; ++i) {
+			stored.addAll(columns.addChunks(("column " + i).getBytes(), algorithm));
+		}
+		byte[] signature = algorithm.signature("stripe".getBytes());
+		stripes.addStripe(signature, "index".getBytes(), stored, "footer".getBytes(), algorithm);
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		assertEquals(1, stripes.exportSnapshot(os));
+		// stripes only keep the signatures of their links, the seeded store finds them where the first one did
+		StripePlusColumnORCChunkStore seeded = new StripePlusColumnORCChunkStore();
+		seeded.setLinkStores(columns, footers);
+		assertEquals(1, seeded.importSnapshot(new ByteArrayInputStream(os.toByteArray())));
+
+		StripePlusColumnORCFileChunk stripe = seeded.findChunkBySignature(signature);
+		assertNull(stripe.getContent());
+		List<StripePlusColumnORCFileChunk> links = stripe.getSubchunks();
+		assertEquals(5, links.size());
+		assertArrayEquals("index".getBytes(), links.get(0).getContent());
+		for(int i = 0; i < 3; ++i) {
+			assertArrayEquals(stored.get(i).getSignature(), links.get(i + 1).getSignature());
+			assertArrayEquals(("column " + i).getBytes(), links.get(i + 1).getContent());
+		}
+		assertArrayEquals("footer".getBytes(), links.get(4).getContent());
+
+		// a cut snapshot must not load quietly
+		final byte[] truncated = Arrays.copyOf(os.toByteArray(), os.size() - 10);
+		final StripePlusColumnORCChunkStore other = new StripePlusColumnORCChunkStore();
+		assertThrows(IOException.class, new Executable() {
+			@Override
+			public void execute() throws Throwable {
+				other.importSnapshot(new ByteArrayInputStream(truncated));
+			}
+		});
+	}
+
+}
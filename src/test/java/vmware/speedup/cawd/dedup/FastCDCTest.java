@@ -0,0 +1,53 @@
+package vmware.speedup.cawd.dedup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class FastCDCTest {
+
+	private static Set<Integer> cutPoints(int[] sizes) {
+		Set<Integer> cuts = new HashSet<Integer>();
+		int offset = 0;
+		for(int size : sizes) {
+			offset += size;
+			cuts.add(offset);
+		}
+		return cuts;
+	}
+
+	@Test
+	public void editsOnlyMoveNearbyCutPoints() throws Exception {
+		FastCDC cdc = new FastCDC(2048, 8192, 65536);
+		byte[] content = new byte[1 << 20];
+		new Random(7).nextBytes(content);
+		int[] sizes = cdc.chunkSizes(content);
+		int total = 0;
+		for(int i = 0; i < sizes.length; ++i) {
+			assertTrue(sizes[i] <= 65536);
+			assertTrue(sizes[i] >= 2048 || i == sizes.length - 1);
+			total += sizes[i];
+		}
+		assertEquals(content.length, total);
+		// sizes gather around the average
+		assertTrue(sizes.length > content.length / 16384 && sizes.length < content.length / 4096);
+		// a few bytes inserted in the middle shift what follows, but the cuts find their place again
+		byte[] edited = new byte[content.length + 5];
+		System.arraycopy(content, 0, edited, 0, 500000);
+		System.arraycopy(content, 500000, edited, 500005, content.length - 500000);
+		Set<Integer> before = cutPoints(sizes);
+		int kept = 0;
+		for(int cut : cutPoints(cdc.chunkSizes(edited))) {
+			if(before.contains(cut < 500000? cut : cut - 5)) {
+				++kept;
+			}
+		}
+		assertTrue(kept >= sizes.length - 3);
+	}
+
+}
@@ -0,0 +1,177 @@
+package vmware.speedup.cawd.dedup;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import vmware.speedup.cawd.orc.dedup.NaiveORCChunkStore;
+import vmware.speedup.cawd.orc.dedup.NaiveORCChunkingAlgorithm;
+import vmware.speedup.cawd.orc.dedup.NaiveORCChunkingAlgorithm.ORCFileChunk;
+
+public class IndexedChunkStoreTest {
+
+	private static byte[] content(int value) {
+		return ("chunk number " + value).getBytes();
+	}
+
+	@Test
+	public void concurrentInsertsKeepOneCopy() throws Exception {
+		final NaiveORCChunkStore store = new NaiveORCChunkStore();
+		final NaiveORCChunkingAlgorithm algorithm = new NaiveORCChunkingAlgorithm();
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<List<ORCFileChunk>>> results = new ArrayList<Future<List<ORCFileChunk>>>();
+		for(int t = 0; t < 8; ++t) {
+			results.add(pool.submit(new Callable<List<ORCFileChunk>>() {
+				@Override
+				public List<ORCFileChunk> call() throws Exception {
+					List<ORCFileChunk> kept = new ArrayList<ORCFileChunk>();
+					for(int i = 0; i < 5000; ++i) {
+						// everyone adds its own copy of the same content
+						kept.addAll(store.addChunks(content(i), algorithm));
+						store.findChunkBySignature(algorithm.signature(content(i / 2)));
+					}
+					return kept;
+				}
+			}));
+		}
+		List<List<ORCFileChunk>> all = new ArrayList<List<ORCFileChunk>>();
+		for(Future<List<ORCFileChunk>> result : results) {
+			all.add(result.get());
+		}
+		pool.shutdown();
+		assertEquals(5000, store.size());
+		for(int i = 0; i < 5000; ++i) {
+			ORCFileChunk stored = store.findChunkBySignature(algorithm.signature(content(i)));
+			for(List<ORCFileChunk> kept : all) {
+				assertSame(stored, kept.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void tieredStoreKeepsWhatTheHeapEvicts() throws Exception {
+		NaiveORCChunkStore store = new NaiveORCChunkStore();
+		NaiveORCChunkingAlgorithm algorithm = new NaiveORCChunkingAlgorithm();
+		// room for about 60 chunks on heap and 128 off heap, the rest goes to disk
+		store.setCapacity(1024);
+		store.addTiers(8192, new File(Files.createTempDirectory("tiers").toFile(), "test.cold.log"));
+		for(int i = 0; i < 2000; ++i) {
+			store.addChunks(content(i), algorithm);
+		}
+		assertEquals(2000, store.size());
+		for(int round = 0; round < 2; ++round) {
+			for(int i = 0; i < 2000; ++i) {
+				ORCFileChunk chunk = store.findChunkBySignature(algorithm.signature(content(i)));
+				assertArrayEquals(content(i), chunk.getContent());
+			}
+		}
+		assertEquals(2000, store.size());
+		store.close();
+	}
+
+	@Test
+	public void boundedColdLogKeepsTheNewestChunks() throws Exception {
+		NaiveORCChunkStore store = new NaiveORCChunkStore();
+		NaiveORCChunkingAlgorithm algorithm = new NaiveORCChunkingAlgorithm();
+		File coldFile = new File(Files.createTempDirectory("tiers").toFile(), "test.cold.log");
+		System.setProperty(MappedChunkLog.SEGMENT_SIZE, String.valueOf(4096));
+		try {
+			store.setCapacity(1024);
+			store.addTiers(0, coldFile, 16384);
+			for(int i = 0; i < 5000; ++i) {
+				store.addChunks(content(i), algorithm);
+			}
+			// compactions dropped the oldest ones, and the log stays around its capacity
+			assertTrue(store.size() < 5000);
+			assertTrue(coldFile.length() <= 16384 + 4096, "cold log is " + coldFile.length() + " bytes");
+			assertEquals(null, store.findChunkBySignature(algorithm.signature(content(0))));
+			for(int i = 4900; i < 5000; ++i) {
+				assertArrayEquals(content(i), store.findChunkBySignature(algorithm.signature(content(i))).getContent());
+			}
+			store.close();
+		}
+		finally {
+			System.clearProperty(MappedChunkLog.SEGMENT_SIZE);
+		}
+	}
+
+	@Test
+	public void compressedStoreHandsOutPlainContent() throws Exception {
+		NaiveORCChunkStore store = new NaiveORCChunkStore();
+		NaiveORCChunkingAlgorithm algorithm = new NaiveORCChunkingAlgorithm();
+		ContentCodec codec = new ContentCodec();
+		store.setCapacity(4096);
+		store.addTiers(16384, new File(Files.createTempDirectory("tiers").toFile(), "test.cold.log"));
+		store.compressContent(codec);
+		Random random = new Random(42);
+		List<byte[]> contents = new ArrayList<byte[]>();
+		for(int i = 0; i < 200; ++i) {
+			byte[] content = new byte[1024];
+			if(i % 2 == 0) {
+				// random bytes stay raw, a repeated value compresses well
+				random.nextBytes(content);
+			}
+			else {
+				Arrays.fill(content, (byte)i);
+			}
+			contents.add(content);
+			store.addChunks(content, algorithm);
+		}
+		for(byte[] content : contents) {
+			assertArrayEquals(content, store.findChunkBySignature(algorithm.signature(content)).getContent());
+		}
+		assertTrue(codec.getStoredBytes() < codec.getRawBytes() * 3 / 4);
+		store.close();
+	}
+
+	@Test
+	public void reopenedStoreKeepsItsCompression() throws Exception {
+		File dir = Files.createTempDirectory("compressedlog").toFile();
+		NaiveORCChunkingAlgorithm algorithm = new NaiveORCChunkingAlgorithm();
+		byte[] content = new byte[4096];
+		Arrays.fill(content, (byte)7);
+		System.setProperty(IndexedChunkStore.STORE_DIR, dir.getAbsolutePath());
+		System.setProperty(ContentCodec.COMPRESS, "true");
+		try {
+			NaiveORCChunkStore store = new NaiveORCChunkStore("compressed");
+			store.addChunks(content, algorithm);
+			store.close();
+			MappedChunkLog log = new MappedChunkLog(new File(dir, "compressed.log"), ChunkingAlgorithm.SHA1_SIZE);
+			assertEquals(MappedChunkLog.COMPRESSED, log.getFlags());
+			assertTrue(log.readPayload(0).length < content.length);
+			log.close();
+			// the flag is off now, but the log was written compressed so it is read that way
+			System.setProperty(ContentCodec.COMPRESS, "false");
+			store = new NaiveORCChunkStore("compressed");
+			assertArrayEquals(content, store.findChunkBySignature(algorithm.signature(content)).getContent());
+			store.close();
+			// and the other way around
+			store = new NaiveORCChunkStore("plain");
+			store.addChunks(content, algorithm);
+			store.close();
+			System.setProperty(ContentCodec.COMPRESS, "true");
+			store = new NaiveORCChunkStore("plain");
+			assertArrayEquals(content, store.findChunkBySignature(algorithm.signature(content)).getContent());
+			store.close();
+		}
+		finally {
+			System.clearProperty(IndexedChunkStore.STORE_DIR);
+			System.clearProperty(ContentCodec.COMPRESS);
+		}
+	}
+
+}
@@ -0,0 +1,54 @@
+package vmware.speedup.cawd.dedup;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+public class MappedChunkLogTest {
+
+	private static byte[] sign(byte[] content) throws Exception {
+		return MessageDigest.getInstance("SHA-1").digest(content);
+	}
+
+	@Test
+	public void reopenKeepsRecordsAndDropsTornTail() throws Exception {
+		File file = new File(Files.createTempDirectory("chunklog").toFile(), "test.log");
+		System.setProperty(MappedChunkLog.SEGMENT_SIZE, String.valueOf(4096));
+		try {
+			MappedChunkLog log = new MappedChunkLog(file, ChunkingAlgorithm.SHA1_SIZE);
+			for(int i = 0; i < 100; ++i) {
+				byte[] content = new byte[i];
+				Arrays.fill(content, (byte)i);
+				assertEquals(i, log.append(sign(content), content));
+			}
+			log.close();
+			log = new MappedChunkLog(file, ChunkingAlgorithm.SHA1_SIZE);
+			assertEquals(100, log.size());
+			assertArrayEquals(new byte[0], log.readPayload(0));
+			assertEquals(99, log.readPayload(99).length);
+			// this one stays after the checkpoint, so it is checked on reopen
+			byte[] last = new byte[50];
+			log.append(sign(last), last);
+			long tail = log.bytes();
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.seek(tail - Integer.BYTES - 10);
+			raf.write(7);
+			raf.close();
+			// no close here, we are simulating a crash with a torn record
+			log = new MappedChunkLog(file, ChunkingAlgorithm.SHA1_SIZE);
+			assertEquals(100, log.size());
+			log.close();
+		}
+		finally {
+			System.clearProperty(MappedChunkLog.SEGMENT_SIZE);
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+package vmware.speedup.cawd.dedup;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class OffHeapSlabsTest {
+
+	@Test
+	public void smallBlocksComeOutOfFreedLargeOnes() throws Exception {
+		// a single slab of 4KB, filled with 1KB blocks
+		OffHeapSlabs slabs = new OffHeapSlabs(4096, 4096);
+		List<Long> handles = new ArrayList<Long>();
+		for(int i = 0; i < 4; ++i) {
+			handles.add(slabs.allocate(1000));
+			assertNotEquals(OffHeapSlabs.NO_SPACE, handles.get(i).longValue());
+			// blocks know their size from what was written to them
+			slabs.write(handles.get(i), new byte[0], new byte[1000]);
+		}
+		assertEquals(OffHeapSlabs.NO_SPACE, slabs.allocate(10));
+		for(long handle : handles) {
+			slabs.free(handle);
+		}
+		// nothing of 64 bytes was ever freed, but the 1KB blocks can be split
+		byte[] head = new byte[] { 1, 2, 3 };
+		List<Long> small = new ArrayList<Long>();
+		for(int i = 0; i < 64; ++i) {
+			long handle = slabs.allocate(50);
+			assertNotEquals(OffHeapSlabs.NO_SPACE, handle);
+			slabs.write(handle, head, new byte[] { (byte)i });
+			small.add(handle);
+		}
+		assertEquals(4096, slabs.getAllocatedBytes());
+		assertEquals(OffHeapSlabs.NO_SPACE, slabs.allocate(10));
+		for(int i = 0; i < small.size(); ++i) {
+			assertArrayEquals(new byte[] { 1, 2, 3, (byte)i }, slabs.read(small.get(i), 0, 4));
+		}
+		slabs.free(small.get(0));
+		assertEquals(small.get(0).longValue(), slabs.allocate(50));
+	}
+
+}
@@ -0,0 +1,39 @@
+package vmware.speedup.cawd.dedup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.security.MessageDigest;
+
+import org.junit.jupiter.api.Test;
+
+public class RefCountedBlobStoreTest {
+
+	private static byte[] sign(byte[] content) throws Exception {
+		return MessageDigest.getInstance("SHA-1").digest(content);
+	}
+
+	@Test
+	public void sameContentIsKeptOnceUntilLastRelease() throws Exception {
+		RefCountedBlobStore blobs = new RefCountedBlobStore();
+		byte[] first = "some column".getBytes();
+		byte[] copy = "some column".getBytes();
+		byte[] signature = sign(first);
+		assertSame(first, blobs.retain(signature, first));
+		// a second owner gets the array we already had
+		assertSame(first, blobs.retain(signature, copy));
+		assertEquals(1, blobs.size());
+		assertEquals(first.length, blobs.bytes());
+		blobs.release(signature);
+		assertSame(first, blobs.get(signature));
+		blobs.release(signature);
+		assertNull(blobs.get(signature));
+		assertEquals(0, blobs.bytes());
+		// positions are reused
+		byte[] other = "other column".getBytes();
+		assertSame(other, blobs.retain(sign(other), other));
+		assertEquals(1, blobs.size());
+	}
+
+}
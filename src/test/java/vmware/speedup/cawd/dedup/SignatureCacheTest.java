@@ -0,0 +1,41 @@
+package vmware.speedup.cawd.dedup;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+
+public class SignatureCacheTest {
+
+	@Test
+	public void entriesSurviveUntilTheFileChanges() throws Exception {
+		Path folder = Files.createTempDirectory("sigcache");
+		File file = File.createTempFile("sigcache", ".orc");
+		file.deleteOnExit();
+		Files.write(file.toPath(), "some stripes".getBytes("UTF-8"));
+		SignatureProvider sha1 = SignatureProvider.forName("sha1");
+		SignatureCache cache = new SignatureCache(folder.toFile());
+		SignatureCache.Entry entry = cache.get(file, sha1);
+		assertNull(entry.getChunks());
+		entry.setChunks(new byte[] {1, 2, 3});
+		entry.putSignature(0, 4, sha1.sign(new byte[] {4}));
+		cache.put(entry);
+		// another streamer finds them
+		SignatureCache.Entry found = new SignatureCache(folder.toFile()).get(file, sha1);
+		assertArrayEquals(new byte[] {1, 2, 3}, found.getChunks());
+		assertArrayEquals(sha1.sign(new byte[] {4}), found.getSignature(0, 4));
+		assertNull(found.getSignature(0, 5));
+		// but not with another provider, or once the file is modified
+		assertEquals(0, cache.get(file, SignatureProvider.forName("murmur3")).size());
+		file.setLastModified(file.lastModified() - 10000);
+		found = cache.get(file, sha1);
+		assertNull(found.getChunks());
+		assertEquals(0, found.size());
+	}
+
+}
@@ -0,0 +1,35 @@
+package vmware.speedup.cawd.dedup;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.MessageDigest;
+
+import org.junit.jupiter.api.Test;
+
+public class SignatureFilterTest {
+
+	private static byte[] sign(int value) throws Exception {
+		return MessageDigest.getInstance("SHA-1").digest(Integer.toString(value).getBytes());
+	}
+
+	@Test
+	public void noFalseNegativesAndFewFalsePositives() throws Exception {
+		SignatureFilter filter = new SignatureFilter(ChunkingAlgorithm.SHA1_SIZE, 10000, 0.01);
+		for(int i = 0; i < 10000; ++i) {
+			filter.add(sign(i), 0);
+		}
+		// what goes over the wire has to answer the same
+		SignatureFilter received = SignatureFilter.fromBytes(ChunkingAlgorithm.SHA1_SIZE, filter.toBytes());
+		for(int i = 0; i < 10000; ++i) {
+			assertTrue(received.mightContain(sign(i), 0));
+		}
+		int falsePositives = 0;
+		for(int i = 10000; i < 20000; ++i) {
+			if(received.mightContain(sign(i), 0)) {
+				++falsePositives;
+			}
+		}
+		assertTrue(falsePositives < 200, "too many false positives: " + falsePositives);
+	}
+
+}
@@ -0,0 +1,89 @@
+package vmware.speedup.cawd.dedup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class SignatureIndexTest {
+
+	private static byte[] sign(int value) throws Exception {
+		return MessageDigest.getInstance("SHA-1").digest(Integer.toString(value).getBytes());
+	}
+
+	@Test
+	public void putAndGetAcrossResizes() throws Exception {
+		SignatureIndex index = new SignatureIndex(ChunkingAlgorithm.SHA1_SIZE, 16);
+		for(int i = 0; i < 10000; ++i) {
+			assertEquals(SignatureIndex.NOT_FOUND, index.putIfAbsent(sign(i), i));
+		}
+		assertEquals(10000, index.size());
+		for(int i = 0; i < 10000; ++i) {
+			assertEquals(i, index.get(sign(i)));
+		}
+		assertEquals(SignatureIndex.NOT_FOUND, index.get(sign(10001)));
+		// second insert keeps the first value
+		assertEquals(7, index.putIfAbsent(sign(7), 70));
+	}
+
+	@Test
+	public void removeKeepsOtherEntriesReachable() throws Exception {
+		SignatureIndex index = new SignatureIndex(ChunkingAlgorithm.SHA1_SIZE, 16);
+		for(int i = 0; i < 2000; ++i) {
+			index.putIfAbsent(sign(i), i);
+		}
+		for(int i = 0; i < 2000; i += 3) {
+			assertEquals(i, index.remove(sign(i)));
+		}
+		assertEquals(SignatureIndex.NOT_FOUND, index.remove(sign(0)));
+		for(int i = 0; i < 2000; ++i) {
+			assertEquals(i % 3 == 0? SignatureIndex.NOT_FOUND : i, index.get(sign(i)));
+		}
+	}
+
+	@Test
+	public void getFromBufferSlice() throws Exception {
+		SignatureIndex index = new SignatureIndex(ChunkingAlgorithm.SHA1_SIZE, 16);
+		index.putIfAbsent(sign(42), 3);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(Integer.BYTES + ChunkingAlgorithm.SHA1_SIZE);
+		buffer.putInt(4);
+		buffer.put(sign(42));
+		assertEquals(3, index.get(buffer, Integer.BYTES));
+		byte[] packed = new byte[5 + ChunkingAlgorithm.SHA1_SIZE];
+		System.arraycopy(sign(42), 0, packed, 5, ChunkingAlgorithm.SHA1_SIZE);
+		assertEquals(3, index.get(packed, 5));
+	}
+
+	@Test
+	public void prefixFindsEverySignatureSharingIt() throws Exception {
+		SignatureIndex index = new SignatureIndex(ChunkingAlgorithm.SHA1_SIZE, 16);
+		for(int i = 0; i < 1000; ++i) {
+			index.putIfAbsent(sign(i), i);
+		}
+		// same 8 bytes, different signatures
+		byte[] colliding = sign(7);
+		colliding[19] ^= 1;
+		index.putIfAbsent(colliding, 1000);
+		final List<byte[]> found = new ArrayList<byte[]>();
+		index.forEachWithPrefix(Arrays.copyOf(sign(7), 8), new SignatureIndex.SignatureVisitor() {
+			@Override
+			public void visit(ByteBuffer buffer, int offset) {
+				byte[] signature = new byte[ChunkingAlgorithm.SHA1_SIZE];
+				for(int i = 0; i < signature.length; ++i) {
+					signature[i] = buffer.get(offset + i);
+				}
+				found.add(signature);
+			}
+		});
+		assertEquals(2, found.size());
+		assertTrue(Arrays.equals(found.get(0), sign(7)) || Arrays.equals(found.get(1), sign(7)));
+		assertTrue(Arrays.equals(found.get(0), colliding) || Arrays.equals(found.get(1), colliding));
+	}
+
+}
@@ -0,0 +1,44 @@
+package vmware.speedup.cawd.dedup;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+public class SignatureProviderTest {
+
+	private static String hex(byte[] bytes, int from, int to) {
+		StringBuilder builder = new StringBuilder();
+		for(int i = from; i < to; ++i) {
+			builder.append(String.format("%02x", bytes[i]));
+		}
+		return builder.toString();
+	}
+
+	@Test
+	public void providersAgreeOnSlicesBuffersAndKnownValues() throws Exception {
+		byte[] fox = "The quick brown fox jumps over the lazy dog".getBytes("UTF-8");
+		byte[] padded = new byte[fox.length + 7];
+		System.arraycopy(fox, 0, padded, 3, fox.length);
+		for(String name : Arrays.asList("sha1", "sha256", "murmur3")) {
+			SignatureProvider provider = SignatureProvider.forName(name);
+			byte[] signature = provider.sign(fox);
+			assertEquals(ChunkingAlgorithm.SHA1_SIZE, signature.length);
+			assertArrayEquals(signature, provider.sign(padded, 3, fox.length));
+			// mapped files are signed through direct buffers
+			ByteBuffer direct = ByteBuffer.allocateDirect(padded.length);
+			direct.put(padded).position(3).limit(3 + fox.length);
+			assertArrayEquals(signature, provider.sign(direct));
+			assertEquals(3, direct.position());
+		}
+		assertEquals("2fd4e1c67a2d28fced849ee1bb76e7391b93eb12", hex(SignatureProvider.forName("sha1").sign(fox), 0, 20));
+		// the reference murmur3 128 value, with the length in between the halves
+		byte[] murmur = SignatureProvider.forName("murmur3").sign(fox);
+		assertEquals("6c1b07bc7bbc4be3" + "47939ac4a93c437a", hex(murmur, 0, 8) + hex(murmur, 12, 20));
+		assertEquals(fox.length, ((murmur[8] & 0xff) << 24) | ((murmur[9] & 0xff) << 16) | ((murmur[10] & 0xff) << 8) | (murmur[11] & 0xff));
+	}
+
+}
@@ -0,0 +1,171 @@
+package vmware.speedup.cawd.dedup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class WindowTinyLfuPolicyTest {
+
+	// keeps what the policy evicted
+	private static class Evictions implements WindowTinyLfuPolicy.EvictionListener {
+
+		private List<Integer> positions = new ArrayList<Integer>();
+
+		@Override
+		public void onEviction(int position, int weight) {
+			positions.add(position);
+		}
+
+	}
+
+	private static long key(int i) {
+		return i * 0x9e3779b97f4a7c15L;
+	}
+
+	// the sketch grows (and forgets what it counted) while the first entries come in, so the frequency tests
+	// start after that
+	private static void warmUp(WindowTinyLfuPolicy policy) {
+		for(int i = 0; i < 16; ++i) {
+			policy.add(1000 + i, key(1000 + i), 1);
+		}
+		for(int i = 0; i < 16; ++i) {
+			policy.remove(1000 + i);
+		}
+	}
+
+	@Test
+	public void entriesGoFromWindowToProbationToProtected() {
+		// the window is 100 bytes
+		WindowTinyLfuPolicy policy = new WindowTinyLfuPolicy(10000, new Evictions());
+		policy.add(0, key(0), 60);
+		assertEquals(WindowTinyLfuPolicy.WINDOW, policy.queueOf(0));
+		// a hit in the window keeps it there
+		policy.onHit(0);
+		assertEquals(WindowTinyLfuPolicy.WINDOW, policy.queueOf(0));
+		// the window overflows, and the oldest one goes to probation
+		policy.add(1, key(1), 60);
+		assertEquals(WindowTinyLfuPolicy.PROBATION, policy.queueOf(0));
+		assertEquals(WindowTinyLfuPolicy.WINDOW, policy.queueOf(1));
+		// and a hit there protects it
+		policy.onHit(0);
+		assertEquals(WindowTinyLfuPolicy.PROTECTED, policy.queueOf(0));
+		policy.remove(0);
+		assertEquals(WindowTinyLfuPolicy.NONE, policy.queueOf(0));
+		assertEquals(60, policy.getWeightedSize());
+	}
+
+	@Test
+	public void protectedSegmentDemotesToProbation() {
+		// 9900 bytes for the main space, 7920 of them protected
+		WindowTinyLfuPolicy policy = new WindowTinyLfuPolicy(10000, new Evictions());
+		for(int i = 0; i < 5; ++i) {
+			policy.add(i, key(i), 2000);
+		}
+		// all but the newest are in probation now, protect them one by one
+		for(int i = 0; i < 4; ++i) {
+			policy.onHit(i);
+		}
+		// only three fit, the least recent goes back to probation
+		assertEquals(WindowTinyLfuPolicy.PROBATION, policy.queueOf(0));
+		for(int i = 1; i < 4; ++i) {
+			assertEquals(WindowTinyLfuPolicy.PROTECTED, policy.queueOf(i));
+		}
+	}
+
+	@Test
+	public void frequentEntrySurvivesBurstOfOneOffs() {
+		Evictions evictions = new Evictions();
+		WindowTinyLfuPolicy policy = new WindowTinyLfuPolicy(1000, evictions);
+		warmUp(policy);
+		// hit while in the window, so it is not protected and has to win its place in probation
+		policy.add(0, key(0), 100);
+		for(int i = 0; i < 4; ++i) {
+			policy.onHit(0);
+		}
+		assertEquals(WindowTinyLfuPolicy.WINDOW, policy.queueOf(0));
+		// a scan of chunks seen once, ten times what fits
+		for(int i = 1; i <= 100; ++i) {
+			policy.add(i, key(i), 100);
+		}
+		assertFalse(evictions.positions.contains(0));
+		assertEquals(WindowTinyLfuPolicy.PROBATION, policy.queueOf(0));
+		assertTrue(evictions.positions.size() >= 90);
+		assertTrue(policy.getWeightedSize() <= 1000);
+	}
+
+	@Test
+	public void missesCountTowardAdmission() {
+		Evictions evictions = new Evictions();
+		WindowTinyLfuPolicy policy = new WindowTinyLfuPolicy(1000, evictions);
+		warmUp(policy);
+		for(int i = 0; i < 10; ++i) {
+			policy.add(i, key(i), 100);
+		}
+		assertTrue(evictions.positions.isEmpty());
+		// a newcomer seen once loses against the probation victim, seen once too
+		policy.add(10, key(10), 100);
+		policy.add(11, key(11), 100);
+		assertTrue(evictions.positions.contains(10));
+		assertFalse(evictions.positions.contains(0));
+		// but one asked for a few times before it arrived gets in, and the victim leaves
+		for(int i = 0; i < 4; ++i) {
+			policy.onMiss(key(12));
+		}
+		policy.add(12, key(12), 100);
+		policy.add(13, key(13), 100);
+		assertFalse(evictions.positions.contains(12));
+		assertTrue(evictions.positions.contains(0));
+	}
+
+	@Test
+	public void weightStaysBoundedAcrossAddUpdateAndRemove() {
+		final Map<Integer, Integer> live = new HashMap<Integer, Integer>();
+		WindowTinyLfuPolicy policy = new WindowTinyLfuPolicy(50000, new WindowTinyLfuPolicy.EvictionListener() {
+			@Override
+			public void onEviction(int position, int weight) {
+				assertEquals(live.remove(position).intValue(), weight);
+			}
+		});
+		Random random = new Random(5);
+		int nextPosition = 0;
+		for(int i = 0; i < 20000; ++i) {
+			int operation = random.nextInt(10);
+			if(operation < 6 || live.isEmpty()) {
+				int weight = 1 + random.nextInt(3000);
+				live.put(nextPosition, weight);
+				policy.add(nextPosition, key(random.nextInt(500)), weight);
+				++nextPosition;
+			}
+			else {
+				Integer position = new ArrayList<Integer>(live.keySet()).get(random.nextInt(live.size()));
+				if(operation < 8) {
+					policy.onHit(position);
+				}
+				else if(operation < 9) {
+					int weight = 1 + random.nextInt(3000);
+					live.put(position, weight);
+					policy.update(position, weight);
+				}
+				else {
+					live.remove(position);
+					policy.remove(position);
+				}
+			}
+			long total = 0;
+			for(int weight : live.values()) {
+				total += weight;
+			}
+			assertEquals(total, policy.getWeightedSize());
+			assertTrue(policy.getWeightedSize() <= policy.getMaximumBytes());
+		}
+	}
+
+}
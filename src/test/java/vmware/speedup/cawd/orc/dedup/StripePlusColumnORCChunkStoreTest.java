@@ -0,0 +1,99 @@
+package vmware.speedup.cawd.orc.dedup;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import vmware.speedup.cawd.dedup.ChunkingAlgorithm;
+import vmware.speedup.cawd.dedup.IndexedChunkStore;
+import vmware.speedup.cawd.dedup.MappedChunkLog;
+import vmware.speedup.cawd.orc.dedup.StripePlusColumnORCChunkingAlgorithm.StripePlusColumnORCFileChunk;
+
+public class StripePlusColumnORCChunkStoreTest {
+
+	private static final StripePlusColumnORCFileChunk.ChunkType[] TYPES = {
+			StripePlusColumnORCFileChunk.ChunkType.StripeIndex, StripePlusColumnORCFileChunk.ChunkType.Column,
+			StripePlusColumnORCFileChunk.ChunkType.Column, StripePlusColumnORCFileChunk.ChunkType.StripeFooter };
+	private static final byte[][] CONTENTS = { "index".getBytes(), "first column".getBytes(), "second column".getBytes(), "footer".getBytes() };
+	// what a stripe record of four links takes: <RECIPE-int><numLinks-int>[<type-int><signature>]...
+	private static final int RECIPE_SIZE = Integer.BYTES * 2 + TYPES.length * (Integer.BYTES + ChunkingAlgorithm.SHA1_SIZE);
+
+	private static void checkLinks(StripePlusColumnORCFileChunk stripe, StripePlusColumnORCChunkingAlgorithm algorithm) throws Exception {
+		assertNull(stripe.getContent());
+		assertEquals(TYPES.length, stripe.getSubchunks().size());
+		for(int i = 0; i < TYPES.length; ++i) {
+			StripePlusColumnORCFileChunk link = stripe.getSubchunks().get(i);
+			assertEquals(TYPES[i], link.getType());
+			assertArrayEquals(CONTENTS[i], link.getContent());
+			assertArrayEquals(algorithm.signature(CONTENTS[i]), link.getSignature());
+		}
+	}
+
+	private static StripePlusColumnORCFileChunk addStripe(StripePlusColumnORCChunkStore stripes, StripePlusColumnORCChunkStore columns,
+			byte[] signature, StripePlusColumnORCChunkingAlgorithm algorithm) throws Exception {
+		List<StripePlusColumnORCFileChunk> stored = Arrays.asList(
+				columns.addChunks(CONTENTS[1], algorithm).get(0), columns.addChunks(CONTENTS[2], algorithm).get(0));
+		return stripes.addStripe(signature, CONTENTS[0], stored, CONTENTS[3], algorithm);
+	}
+
+	@Test
+	public void stripesKeepOnlyTheSignaturesOfTheirLinks() throws Exception {
+		File dir = Files.createTempDirectory("stripelog").toFile();
+		StripePlusColumnORCChunkingAlgorithm algorithm = new StripePlusColumnORCChunkingAlgorithm();
+		byte[] signature = algorithm.signature("stripe".getBytes());
+		System.setProperty(IndexedChunkStore.STORE_DIR, dir.getAbsolutePath());
+		try {
+			StripePlusColumnORCChunkStore stripes = new StripePlusColumnORCChunkStore("stripes");
+			StripePlusColumnORCChunkStore columns = new StripePlusColumnORCChunkStore("columns");
+			StripePlusColumnORCChunkStore footers = new StripePlusColumnORCChunkStore("footers");
+			stripes.setLinkStores(columns, footers);
+			checkLinks(addStripe(stripes, columns, signature, algorithm), algorithm);
+			stripes.close();
+			columns.close();
+			footers.close();
+			// the stripe record has no content, it is in the column and footer logs
+			MappedChunkLog log = new MappedChunkLog(new File(dir, "stripes.log"), ChunkingAlgorithm.SHA1_SIZE);
+			assertEquals(1, log.size());
+			assertEquals(RECIPE_SIZE, log.readPayload(0).length);
+			log.close();
+			// and it comes back with it once the stores are open again
+			stripes = new StripePlusColumnORCChunkStore("stripes");
+			columns = new StripePlusColumnORCChunkStore("columns");
+			footers = new StripePlusColumnORCChunkStore("footers");
+			stripes.setLinkStores(columns, footers);
+			checkLinks(stripes.findChunkBySignature(signature), algorithm);
+			stripes.close();
+			columns.close();
+			footers.close();
+		}
+		finally {
+			System.clearProperty(IndexedChunkStore.STORE_DIR);
+		}
+	}
+
+	@Test
+	public void stripesWeighTheirLinksOnlyAndMissWithoutThem() throws Exception {
+		StripePlusColumnORCChunkingAlgorithm algorithm = new StripePlusColumnORCChunkingAlgorithm();
+		byte[] signature = algorithm.signature("stripe".getBytes());
+		StripePlusColumnORCChunkStore stripes = new StripePlusColumnORCChunkStore();
+		StripePlusColumnORCChunkStore columns = new StripePlusColumnORCChunkStore();
+		StripePlusColumnORCChunkStore footers = new StripePlusColumnORCChunkStore();
+		stripes.setLinkStores(columns, footers);
+		addStripe(stripes, columns, signature, algorithm);
+		// the content is weighed by the stores that keep it
+		StripePlusColumnORCFileChunk stripe = stripes.findChunkBySignature(signature);
+		checkLinks(stripe, algorithm);
+		assertEquals(TYPES.length * (Integer.BYTES + ChunkingAlgorithm.SHA1_SIZE), stripes.weigh(stripe));
+		// a stripe whose columns are gone is a miss
+		stripes.setLinkStores(new StripePlusColumnORCChunkStore(), footers);
+		assertNull(stripes.findChunkBySignature(signature));
+	}
+
+}
@@ -0,0 +1,292 @@
+package vmware.speedup.cawd.orc.dedup;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.ListColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.orc.CompressionKind;
+import org.apache.orc.OrcFile;
+import org.apache.orc.OrcProto;
+import org.apache.orc.TypeDescription;
+import org.apache.orc.StripeInformation;
+import org.apache.orc.Writer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import vmware.speedup.cawd.common.ColumnTypes.ORCColumnType;
+import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+import vmware.speedup.cawd.dedup.ChunkingAlgorithm.ChunkIterator;
+import vmware.speedup.cawd.orc.dedup.ColumnBasedORCChunkingAlgorithm.ColumnBasedORCFileChunk;
+import vmware.speedup.cawd.orc.dedup.StripePlusColumnORCChunkingAlgorithm.StripePlusColumnORCFileChunk;
+
+public class StripePlusColumnORCChunkingAlgorithmTest {
+
+	private static final TypeDescription SCHEMA = TypeDescription.fromString("struct<a:bigint,b:string,l:array<bigint>>");
+
+	// a bigint with nulls (so it has a PRESENT stream), a dictionary string and a list. Small stripes, so there are a few
+	private static File writeOrc(int rows) throws IOException {
+		File file = new File(Files.createTempDirectory("orc").toFile(), "test.orc");
+		Writer writer = OrcFile.createWriter(new Path(file.getAbsolutePath()), OrcFile.writerOptions(new Configuration())
+				.setSchema(SCHEMA).stripeSize(64 * 1024).bufferSize(16 * 1024).compress(CompressionKind.NONE));
+		VectorizedRowBatch batch = SCHEMA.createRowBatch();
+		LongColumnVector a = (LongColumnVector)batch.cols[0];
+		BytesColumnVector b = (BytesColumnVector)batch.cols[1];
+		ListColumnVector l = (ListColumnVector)batch.cols[2];
+		LongColumnVector values = (LongColumnVector)l.child;
+		for(int i = 0; i < rows; ++i) {
+			int row = batch.size++;
+			if(i % 10 == 0) {
+				a.noNulls = false;
+				a.isNull[row] = true;
+			}
+			else {
+				a.vector[row] = (i * 2654435761L) % 1000003;
+			}
+			b.setVal(row, ("v" + i % 100).getBytes());
+			l.offsets[row] = l.childCount;
+			l.lengths[row] = i % 3;
+			values.ensureSize(l.childCount + i % 3, true);
+			for(int j = 0; j < i % 3; ++j) {
+				values.vector[l.childCount++] = i + j;
+			}
+			if(batch.size == batch.getMaxSize()) {
+				writer.addRowBatch(batch);
+				batch.reset();
+				l.childCount = 0;
+			}
+		}
+		if(batch.size > 0) {
+			writer.addRowBatch(batch);
+		}
+		writer.close();
+		return file;
+	}
+
+	private static OrcProto.StripeFooter readFooter(File file, StripePlusColumnORCFileChunk footer) throws IOException {
+		RandomAccessFile rand = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int)footer.getSize()];
+			rand.seek(footer.getStart());
+			rand.readFully(bytes);
+			return OrcProto.StripeFooter.parseFrom(bytes);
+		}
+		finally {
+			rand.close();
+		}
+	}
+
+	// a copy of the file with garbage in place of the last stripe footer
+	private static File corruptLastStripe(File file) throws IOException {
+		File copy = new File(file.getParentFile(), "corrupt.orc");
+		Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		List<StripeInformation> stripes = OrcFile.createReader(
+				new Path(file.getAbsolutePath()), OrcFile.readerOptions(new Configuration())).getStripes();
+		StripeInformation last = stripes.get(stripes.size() - 1);
+		RandomAccessFile rand = new RandomAccessFile(copy, "rw");
+		try {
+			byte[] garbage = new byte[(int)last.getFooterLength()];
+			Arrays.fill(garbage, (byte)0xff);
+			rand.seek(last.getOffset() + last.getIndexLength() + last.getDataLength());
+			rand.write(garbage);
+		}
+		finally {
+			rand.close();
+		}
+		return copy;
+	}
+
+	@Test
+	public void columnTypesFollowTheSchemaTree() {
+		TypeDescription schema = TypeDescription.fromString("struct<a:int,s:struct<x:double,y:varchar(8)>,l:array<float>,"
+				+ "m:map<string,decimal(10,2)>,u:uniontype<bigint,char(4)>,z:string>");
+		// ids in pre order: each compound column, then its children
+		ORCColumnType[] expected = {
+				ORCColumnType.Struct,
+				ORCColumnType.Other,
+				ORCColumnType.Struct, ORCColumnType.Double, ORCColumnType.String,
+				ORCColumnType.List, ORCColumnType.Float,
+				ORCColumnType.Map, ORCColumnType.String, ORCColumnType.Decimal,
+				ORCColumnType.Union, ORCColumnType.Other, ORCColumnType.String,
+				ORCColumnType.String };
+		assertArrayEquals(expected, StripePlusColumnORCChunkingAlgorithm.getColumnTypes(schema));
+	}
+
+	@Test
+	public void streamChunksFollowTheStripeFooter() throws Exception {
+		File file = writeOrc(100000);
+		ORCColumnType[] columnTypes = StripePlusColumnORCChunkingAlgorithm.getColumnTypes(SCHEMA);
+		System.setProperty(ORCStreams.STREAM_CHUNKS, "true");
+		try {
+			List<StripePlusColumnORCFileChunk> streams = new ArrayList<StripePlusColumnORCFileChunk>();
+			Set<OrcProto.Stream.Kind> kinds = EnumSet.noneOf(OrcProto.Stream.Kind.class);
+			StripePlusColumnORCFileChunk data = null;
+			int stripes = 0;
+			for(StripePlusColumnORCFileChunk chunk : new StripePlusColumnORCChunkingAlgorithm().eagerChunking(file.getAbsolutePath())) {
+				if(chunk.getType() == StripePlusColumnORCFileChunk.ChunkType.StripeData) {
+					data = chunk;
+				}
+				else if(chunk.getType() == StripePlusColumnORCFileChunk.ChunkType.StripeFooter) {
+					// one chunk per data stream that is not empty, in the order of the footer
+					List<OrcProto.Stream> expected = new ArrayList<OrcProto.Stream>();
+					for(OrcProto.Stream stream : readFooter(file, chunk).getStreamsList()) {
+						if(ORCStreams.isData(stream) && stream.getLength() > 0) {
+							expected.add(stream);
+						}
+					}
+					assertEquals(expected.size(), data.getSubchunks().size());
+					long position = data.getStart();
+					for(int i = 0; i < expected.size(); ++i) {
+						StripePlusColumnORCFileChunk stream = data.getSubchunks().get(i);
+						assertEquals(position, stream.getStart());
+						assertEquals(expected.get(i).getLength(), stream.getSize());
+						assertEquals(expected.get(i).getKind(), stream.getStreamKind());
+						assertEquals(columnTypes[expected.get(i).getColumn()], stream.getDataType());
+						position += stream.getSize();
+						kinds.add(stream.getStreamKind());
+					}
+					assertEquals(data.getStart() + data.getSize(), position);
+					streams.addAll(data.getSubchunks());
+					++stripes;
+				}
+			}
+			assertTrue(stripes > 1);
+			assertTrue(kinds.containsAll(EnumSet.of(OrcProto.Stream.Kind.PRESENT, OrcProto.Stream.Kind.DATA,
+					OrcProto.Stream.Kind.LENGTH, OrcProto.Stream.Kind.DICTIONARY_DATA)));
+			// and the column based chunking finds the same streams, with chunks that cover the whole file since they
+			// are streamed one after the other
+			List<ColumnBasedORCFileChunk> columns = new ArrayList<ColumnBasedORCFileChunk>();
+			long position = 0;
+			for(ColumnBasedORCFileChunk chunk : new ColumnBasedORCChunkingAlgorithm().eagerChunking(file.getAbsolutePath())) {
+				assertEquals(position, chunk.getStart());
+				position += chunk.getSize();
+				if(chunk.getType() == ColumnBasedORCFileChunk.ChunkType.Column) {
+					columns.add(chunk);
+				}
+			}
+			assertEquals(file.length(), position);
+			assertEquals(streams.size(), columns.size());
+			for(int i = 0; i < streams.size(); ++i) {
+				assertEquals(streams.get(i).getStart(), columns.get(i).getStart());
+				assertEquals(streams.get(i).getSize(), columns.get(i).getSize());
+				assertEquals(streams.get(i).getStreamKind(), columns.get(i).getStreamKind());
+			}
+		}
+		finally {
+			System.clearProperty(ORCStreams.STREAM_CHUNKS);
+		}
+	}
+
+	@Test
+	public void streamStatsGoByKind() {
+		assertEquals(TransferStatValue.Type.PresentStreamHit, ORCStreams.stat(OrcProto.Stream.Kind.PRESENT, true, 10).getType());
+		assertEquals(TransferStatValue.Type.PresentStreamMiss, ORCStreams.stat(OrcProto.Stream.Kind.PRESENT, false, 10).getType());
+		assertEquals(TransferStatValue.Type.DataStreamHit, ORCStreams.stat(OrcProto.Stream.Kind.DATA, true, 10).getType());
+		assertEquals(TransferStatValue.Type.LengthStreamMiss, ORCStreams.stat(OrcProto.Stream.Kind.LENGTH, false, 10).getType());
+		// dictionaries and their counts go together
+		assertEquals(TransferStatValue.Type.DictionaryStreamHit, ORCStreams.stat(OrcProto.Stream.Kind.DICTIONARY_DATA, true, 10).getType());
+		assertEquals(TransferStatValue.Type.DictionaryStreamHit, ORCStreams.stat(OrcProto.Stream.Kind.DICTIONARY_COUNT, true, 10).getType());
+		assertEquals(TransferStatValue.Type.SecondaryStreamMiss, ORCStreams.stat(OrcProto.Stream.Kind.SECONDARY, false, 10).getType());
+		assertEquals(TransferStatValue.Type.OtherStreamMiss, ORCStreams.stat(OrcProto.Stream.Kind.ROW_INDEX, false, 10).getType());
+		assertEquals(10, ORCStreams.stat(OrcProto.Stream.Kind.DATA, false, 10).getValue(), 0);
+	}
+
+	@Test
+	public void lazyChunkingGivesTheEagerChunks() throws Exception {
+		File file = writeOrc(100000);
+		StripePlusColumnORCChunkingAlgorithm algorithm = new StripePlusColumnORCChunkingAlgorithm();
+		List<StripePlusColumnORCFileChunk> eager = algorithm.eagerChunking(file.getAbsolutePath());
+		final ChunkIterator<StripePlusColumnORCFileChunk> lazy = algorithm.lazyChunking(file.getAbsolutePath());
+		try {
+			for(StripePlusColumnORCFileChunk expected : eager) {
+				assertTrue(lazy.hasNext());
+				StripePlusColumnORCFileChunk chunk = lazy.next();
+				assertEquals(expected.getType(), chunk.getType());
+				assertEquals(expected.getStart(), chunk.getStart());
+				assertEquals(expected.getSize(), chunk.getSize());
+				assertEquals(expected.getSubchunks().size(), chunk.getSubchunks().size());
+			}
+			// stripes, then the file footer, and nothing after it
+			assertEquals(StripePlusColumnORCFileChunk.ChunkType.FileFooter, eager.get(eager.size() - 1).getType());
+			assertTrue(!lazy.hasNext());
+			assertThrows(IOException.class, new Executable() {
+				@Override
+				public void execute() throws Throwable {
+					lazy.next();
+				}
+			});
+		}
+		finally {
+			lazy.close();
+		}
+	}
+
+	@Test
+	public void lazyChunkingReadsStripesWhenItGetsThere() throws Exception {
+		final File file = corruptLastStripe(writeOrc(100000));
+		final StripePlusColumnORCChunkingAlgorithm algorithm = new StripePlusColumnORCChunkingAlgorithm();
+		int stripes = OrcFile.createReader(new Path(file.getAbsolutePath()), OrcFile.readerOptions(new Configuration())).getStripes().size();
+		assertTrue(stripes > 1);
+		// the eager one gets to the last stripe footer before returning anything
+		assertThrows(IOException.class, new Executable() {
+			@Override
+			public void execute() throws Throwable {
+				algorithm.eagerChunking(file.getAbsolutePath());
+			}
+		});
+		// the lazy one gives us every stripe before that one, and fails only when it gets there
+		final ChunkIterator<StripePlusColumnORCFileChunk> lazy = algorithm.lazyChunking(file.getAbsolutePath());
+		try {
+			for(int i = 0; i < (stripes - 1) * 3; ++i) {
+				assertTrue(lazy.hasNext());
+				lazy.next();
+			}
+			assertThrows(IOException.class, new Executable() {
+				@Override
+				public void execute() throws Throwable {
+					lazy.next();
+				}
+			});
+		}
+		finally {
+			lazy.close();
+		}
+	}
+
+	@Test
+	public void closedIteratorDoesNotReadMore() throws Exception {
+		File file = writeOrc(100000);
+		final ChunkIterator<StripePlusColumnORCFileChunk> lazy = new StripePlusColumnORCChunkingAlgorithm().lazyChunking(file.getAbsolutePath());
+		// the first stripe is read, and its chunks are still there after closing
+		assertTrue(lazy.hasNext());
+		lazy.close();
+		assertEquals(StripePlusColumnORCFileChunk.ChunkType.StripeIndex, lazy.next().getType());
+		assertEquals(StripePlusColumnORCFileChunk.ChunkType.StripeData, lazy.next().getType());
+		assertEquals(StripePlusColumnORCFileChunk.ChunkType.StripeFooter, lazy.next().getType());
+		// but the next stripe footer is not
+		assertThrows(IOException.class, new Executable() {
+			@Override
+			public void execute() throws Throwable {
+				lazy.hasNext();
+			}
+		});
+	}
+
+}
@@ -0,0 +1,218 @@
+package vmware.speedup.cawd.orc.net;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.orc.CompressionKind;
+import org.apache.orc.OrcFile;
+import org.apache.orc.TypeDescription;
+import org.apache.orc.Writer;
+import org.junit.jupiter.api.Test;
+
+import vmware.speedup.cawd.common.TransferStats;
+import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+import vmware.speedup.cawd.net.SpeedupReceiver;
+import vmware.speedup.cawd.net.SpeedupStreamer;
+
+public class ManifestRoundTripTest {
+
+	// large enough for any single message we write, so a reader never sees half of one
+	private static final int PIPE_SIZE = 1 << 22;
+
+	// a streamer and a receiver talking over pipes, the receiver on a thread of its own
+	private static class Connection {
+
+		private ExecutorService receiverThread = Executors.newSingleThreadExecutor();
+		private PipedOutputStream toReceiver = new PipedOutputStream();
+		private PipedOutputStream toStreamer = new PipedOutputStream();
+		private DataInputStream receiverIn = null;
+		private DataInputStream streamerIn = null;
+		private SpeedupReceiver receiver = null;
+
+		private Connection(SpeedupReceiver receiver) throws IOException {
+			this.receiver = receiver;
+			this.receiverIn = new DataInputStream(new PipedInputStream(toReceiver, PIPE_SIZE));
+			this.streamerIn = new DataInputStream(new PipedInputStream(toStreamer, PIPE_SIZE));
+		}
+
+		// sends the file to the destination folder, and checks it got there as it is
+		private TransferStats send(SpeedupStreamer streamer, File file, final File destination) throws Exception {
+			Future<TransferStats> received = receiverThread.submit(new Callable<TransferStats>() {
+				@Override
+				public TransferStats call() throws Exception {
+					return receiver.receiveFile(destination.getAbsolutePath(), receiverIn, toStreamer);
+				}
+			});
+			TransferStats sent = streamer.transferFile(file.getAbsolutePath(), streamerIn, toReceiver);
+			received.get(60, TimeUnit.SECONDS);
+			assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(new File(destination, file.getName()).toPath()));
+			return sent;
+		}
+
+		private void close() throws IOException {
+			receiverThread.shutdownNow();
+			receiver.close();
+		}
+
+	}
+
+	// a bigint and a string column, the string one made of prefix and a number, and then as many bigint columns
+	// holding the same number in every row. Those are too small to sign. Small stripes, so there are a few
+	static File writeOrc(File dir, String name, int rows, String prefix, int constantColumns) throws IOException {
+		File file = new File(dir, name);
+		StringBuilder schemaString = new StringBuilder("struct<a:bigint,b:string");
+		for(int c = 0; c < constantColumns; ++c) {
+			schemaString.append(",c").append(c).append(":bigint");
+		}
+		TypeDescription schema = TypeDescription.fromString(schemaString.append(">").toString());
+		Writer writer = OrcFile.createWriter(new Path(file.getAbsolutePath()), OrcFile.writerOptions(new Configuration())
+				.setSchema(schema).stripeSize(64 * 1024).bufferSize(16 * 1024).compress(CompressionKind.NONE));
+		VectorizedRowBatch batch = schema.createRowBatch();
+		for(int i = 0; i < rows; ++i) {
+			int row = batch.size++;
+			((LongColumnVector)batch.cols[0]).vector[row] = (i * 2654435761L) % 1000003;
+			((BytesColumnVector)batch.cols[1]).setVal(row, (prefix + ((i * 40503L) % 100003)).getBytes());
+			for(int c = 2; c < batch.cols.length; ++c) {
+				((LongColumnVector)batch.cols[c]).vector[row] = c;
+			}
+			if(batch.size == batch.getMaxSize()) {
+				writer.addRowBatch(batch);
+				batch.reset();
+			}
+		}
+		if(batch.size > 0) {
+			writer.addRowBatch(batch);
+		}
+		writer.close();
+		return file;
+	}
+
+	static double sum(TransferStats stats, TransferStatValue.Type type) {
+		double sum = 0;
+		for(TransferStatValue value : stats.getStats()) {
+			if(value.getType() == type) {
+				sum += value.getValue();
+			}
+		}
+		return sum;
+	}
+
+	static int numStripes(File file) throws IOException {
+		return OrcFile.createReader(new Path(file.getAbsolutePath()), OrcFile.readerOptions(new Configuration())).getStripes().size();
+	}
+
+	@Test
+	public void wholeFileManifestHitsPartialHitsAndMisses() throws Exception {
+		File in = Files.createTempDirectory("manifest-in").toFile();
+		File first = Files.createTempDirectory("manifest-out").toFile();
+		File second = Files.createTempDirectory("manifest-out").toFile();
+		File many = writeOrc(in, "many.orc", 100000, "v", 0);
+		int stripes = numStripes(many);
+		assertTrue(stripes > 1);
+		// one stripe each, same bigint column and different strings
+		File one = writeOrc(in, "one.orc", 2000, "x", 0);
+		File other = writeOrc(in, "other.orc", 2000, "y", 0);
+		Connection connection = new Connection(new ManifestORCReceiver());
+		try {
+			ManifestORCStreamer streamer = new ManifestORCStreamer();
+			// nothing there yet
+			TransferStats stats = connection.send(streamer, many, first);
+			assertEquals(stripes, sum(stats, TransferStatValue.Type.StripeMiss));
+			assertEquals(0, sum(stats, TransferStatValue.Type.StripeHit));
+			assertEquals(0, sum(stats, TransferStatValue.Type.ColumnHit));
+			assertEquals(1, sum(stats, TransferStatValue.Type.FooterMiss));
+			// all of it there
+			stats = connection.send(streamer, many, second);
+			assertEquals(stripes, sum(stats, TransferStatValue.Type.StripeHit));
+			assertEquals(0, sum(stats, TransferStatValue.Type.StripeMiss));
+			assertEquals(0, sum(stats, TransferStatValue.Type.ColumnMiss));
+			assertEquals(1, sum(stats, TransferStatValue.Type.FooterHit));
+			// the stripe is new, but one of its columns is not
+			connection.send(streamer, one, first);
+			stats = connection.send(streamer, other, first);
+			assertEquals(0, sum(stats, TransferStatValue.Type.StripeHit));
+			assertEquals(0, sum(stats, TransferStatValue.Type.StripeMiss));
+			assertTrue(sum(stats, TransferStatValue.Type.ColumnHit) >= 1);
+			assertTrue(sum(stats, TransferStatValue.Type.ColumnMiss) >= 1);
+		}
+		finally {
+			connection.close();
+		}
+	}
+
+	@Test
+	public void stripeManifestHitsPartialHitsAndMisses() throws Exception {
+		File in = Files.createTempDirectory("manifest-in").toFile();
+		File first = Files.createTempDirectory("manifest-out").toFile();
+		File second = Files.createTempDirectory("manifest-out").toFile();
+		// nine constant columns, so the column bitmaps take two bytes
+		File many = writeOrc(in, "many.orc", 100000, "v", 9);
+		int stripes = numStripes(many);
+		assertTrue(stripes > 1);
+		File one = writeOrc(in, "one.orc", 2000, "x", 9);
+		File other = writeOrc(in, "other.orc", 2000, "y", 9);
+		System.setProperty(StripePlusColumnORCStreamer.MANIFEST, "true");
+		Connection connection = new Connection(new StripePlusColumnORCReceiver());
+		try {
+			StripePlusColumnORCStreamer streamer = new StripePlusColumnORCStreamer();
+			TransferStats stats = connection.send(streamer, many, first);
+			assertEquals(stripes, sum(stats, TransferStatValue.Type.StripeMiss));
+			assertEquals(0, sum(stats, TransferStatValue.Type.ColumnHit));
+			// the constant columns go unsigned, as small columns
+			assertTrue(sum(stats, TransferStatValue.Type.SmallColumn) >= 9 * stripes);
+			stats = connection.send(streamer, many, second);
+			assertEquals(stripes, sum(stats, TransferStatValue.Type.StripeHit));
+			assertEquals(0, sum(stats, TransferStatValue.Type.StripeMiss));
+			assertEquals(0, sum(stats, TransferStatValue.Type.SmallColumn));
+			// a new stripe: the bigint column is there, the strings are not and the small ones are sent again
+			connection.send(streamer, one, first);
+			stats = connection.send(streamer, other, first);
+			assertEquals(0, sum(stats, TransferStatValue.Type.StripeHit));
+			assertEquals(0, sum(stats, TransferStatValue.Type.StripeMiss));
+			assertTrue(sum(stats, TransferStatValue.Type.ColumnHit) >= 1);
+			assertTrue(sum(stats, TransferStatValue.Type.ColumnMiss) >= 1);
+			assertTrue(sum(stats, TransferStatValue.Type.SmallColumn) >= 9);
+		}
+		finally {
+			System.clearProperty(StripePlusColumnORCStreamer.MANIFEST);
+			connection.close();
+		}
+	}
+
+	@Test
+	public void wholeFileManifestFindsWhatStripesSent() throws Exception {
+		File in = Files.createTempDirectory("manifest-in").toFile();
+		File first = Files.createTempDirectory("manifest-out").toFile();
+		File second = Files.createTempDirectory("manifest-out").toFile();
+		File many = writeOrc(in, "many.orc", 100000, "v", 0);
+		Connection connection = new Connection(new StripePlusColumnORCReceiver());
+		try {
+			connection.send(new StripePlusColumnORCStreamer(), many, first);
+			TransferStats stats = connection.send(new ManifestORCStreamer(), many, second);
+			assertEquals(numStripes(many), sum(stats, TransferStatValue.Type.StripeHit));
+			assertEquals(1, sum(stats, TransferStatValue.Type.FooterHit));
+		}
+		finally {
+			connection.close();
+		}
+	}
+
+}
@@ -0,0 +1,232 @@
+package vmware.speedup.cawd.parquet.dedup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.Path;
+
+import org.apache.parquet.bytes.BytesInput;
+import org.apache.parquet.column.ColumnDescriptor;
+import org.apache.parquet.column.Encoding;
+import org.apache.parquet.column.ParquetProperties;
+import org.apache.parquet.column.statistics.Statistics;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.SimpleGroupFactory;
+import org.apache.parquet.hadoop.ParquetFileWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.example.ExampleParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.OutputFile;
+import org.apache.parquet.io.PositionOutputStream;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.MessageTypeParser;
+import org.junit.jupiter.api.Test;
+
+import vmware.speedup.cawd.parquet.dedup.HierarchicalParquetChunkingAlgorithm.HierarchicalParquetFileChunk;
+import vmware.speedup.cawd.parquet.dedup.NaiveParquetChunkingAlgorithm.ParquetFileChunk;
+
+public class NaiveParquetChunkingAlgorithmTest {
+
+	private static final int BLOCK_SIZE = 4096;
+
+	// a local file that looks like it has blocks, so the writer pads row groups to them when asked to
+	private static class BlockFile implements OutputFile {
+
+		private File file = null;
+
+		private BlockFile(File file) {
+			this.file = file;
+		}
+
+		@Override
+		public PositionOutputStream create(long blockSizeHint) throws IOException {
+			final FileOutputStream os = new FileOutputStream(file);
+			return new PositionOutputStream() {
+				private long position = 0;
+				@Override
+				public long getPos() {
+					return position;
+				}
+				@Override
+				public void write(int b) throws IOException {
+					os.write(b);
+					++position;
+				}
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					os.write(b, off, len);
+					position += len;
+				}
+				@Override
+				public void close() throws IOException {
+					os.close();
+				}
+			};
+		}
+
+		@Override
+		public PositionOutputStream createOrOverwrite(long blockSizeHint) throws IOException {
+			return create(blockSizeHint);
+		}
+
+		@Override
+		public boolean supportsBlockSize() {
+			return true;
+		}
+
+		@Override
+		public long defaultBlockSize() {
+			return BLOCK_SIZE;
+		}
+
+	}
+
+	// three row groups of two int columns, two plain pages per column chunk
+	private static File write(boolean padding) throws IOException {
+		File file = new File(Files.createTempDirectory("parquet").toFile(), "test.parquet");
+		MessageType schema = MessageTypeParser.parseMessageType("message test { required int32 a; required int32 b; }");
+		ParquetFileWriter writer = new ParquetFileWriter(new BlockFile(file), schema, ParquetFileWriter.Mode.CREATE, BLOCK_SIZE, padding? BLOCK_SIZE : 0);
+		writer.start();
+		int value = 0;
+		for(int rowGroup = 0; rowGroup < 3; ++rowGroup) {
+			writer.startBlock(200);
+			for(ColumnDescriptor column : schema.getColumns()) {
+				writer.startColumn(column, 200, CompressionCodecName.UNCOMPRESSED);
+				for(int page = 0; page < 2; ++page) {
+					ByteBuffer values = ByteBuffer.allocate(100 * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+					while(values.hasRemaining()) {
+						values.putInt(value++);
+					}
+					writer.writeDataPage(100, values.capacity(), BytesInput.from(values.array()), Statistics.createStats(column.getPrimitiveType()),
+							Encoding.BIT_PACKED, Encoding.BIT_PACKED, Encoding.PLAIN);
+				}
+				writer.endColumn();
+			}
+			writer.endBlock();
+		}
+		writer.end(new HashMap<String, String>());
+		return file;
+	}
+
+	private static void checkNaive(File file, boolean padding) throws Exception {
+		List<ParquetFileChunk> chunks = new NaiveParquetChunkingAlgorithm().eagerChunking(file.getAbsolutePath());
+		long position = 0;
+		int raw = 0;
+		int pages = 0;
+		for(ParquetFileChunk chunk : chunks) {
+			assertEquals(position, chunk.getStart());
+			position += chunk.getSize();
+			raw += chunk.getType() == ParquetFileChunk.ChunkType.Raw? 1 : 0;
+			pages += chunk.getType() == ParquetFileChunk.ChunkType.DataPageV1? 1 : 0;
+		}
+		assertEquals(file.length(), position);
+		assertEquals(12, pages);
+		// padding shows up as raw chunks, and there is nothing else raw in these files
+		assertEquals(padding, raw > 0);
+	}
+
+	private static void checkHierarchical(File file, boolean padding) throws Exception {
+		List<HierarchicalParquetFileChunk> chunks = new HierarchicalParquetChunkingAlgorithm().eagerChunking(file.getAbsolutePath());
+		long position = 0;
+		int rowGroups = 0;
+		for(HierarchicalParquetFileChunk chunk : chunks) {
+			assertEquals(position, chunk.getStart());
+			if(chunk.getType() == HierarchicalParquetFileChunk.ChunkType.RowGroup) {
+				++rowGroups;
+				long columnPosition = chunk.getStart();
+				for(HierarchicalParquetFileChunk column : chunk.getSubchunks()) {
+					assertEquals(columnPosition, column.getStart());
+					assertEquals(2, column.getSubchunks().size());
+					long pagePosition = column.getStart();
+					for(HierarchicalParquetFileChunk page : column.getSubchunks()) {
+						assertEquals(pagePosition, page.getStart());
+						pagePosition += page.getSize();
+					}
+					assertEquals(column.getStart() + column.getSize(), pagePosition);
+					columnPosition += column.getSize();
+				}
+				assertEquals(chunk.getStart() + chunk.getSize(), columnPosition);
+			}
+			position += chunk.getSize();
+		}
+		assertEquals(file.length(), position);
+		assertEquals(3, rowGroups);
+		// the magic, and padding if any, before each row group
+		assertTrue(padding? chunks.size() > 5 : chunks.size() == 5);
+	}
+
+	// one row group of v2 pages: a required column (values only), an optional one that is always null (levels
+	// only, and plain, so its values take no bytes) and a repeated one (both levels and values)
+	private static File writeV2() throws IOException {
+		File file = new File(Files.createTempDirectory("parquet").toFile(), "levels.parquet");
+		MessageType schema = MessageTypeParser.parseMessageType("message test { required int32 a; optional double n; repeated int32 r; }");
+		ParquetWriter<Group> writer = ExampleParquetWriter.builder(new Path(file.getAbsolutePath())).withType(schema)
+				.withDictionaryEncoding(false).withCompressionCodec(CompressionCodecName.UNCOMPRESSED)
+				.withWriterVersion(ParquetProperties.WriterVersion.PARQUET_2_0).build();
+		SimpleGroupFactory factory = new SimpleGroupFactory(schema);
+		for(int i = 0; i < 1000; ++i) {
+			Group group = factory.newGroup();
+			group.add("a", i);
+			for(int j = 0; j < i % 3; ++j) {
+				group.add("r", i + j);
+			}
+			writer.write(group);
+		}
+		writer.close();
+		return file;
+	}
+
+	@Test
+	public void levelsAndValuesAreChunksOfTheirOwn() throws Exception {
+		File file = writeV2();
+		System.setProperty(ParquetLevels.LEVEL_CHUNKS, "true");
+		try {
+			List<ParquetFileChunk> chunks = new NaiveParquetChunkingAlgorithm().eagerChunking(file.getAbsolutePath());
+			long position = 0;
+			Map<ParquetFileChunk.ChunkType, Integer> counts = new HashMap<ParquetFileChunk.ChunkType, Integer>();
+			for(ParquetFileChunk chunk : chunks) {
+				assertEquals(position, chunk.getStart());
+				assertTrue(chunk.getSize() > 0);
+				position += chunk.getSize();
+				Integer count = counts.get(chunk.getType());
+				counts.put(chunk.getType(), count != null? count + 1 : 1);
+			}
+			assertEquals(file.length(), position);
+			// no page is left whole, and the page of nulls has no values
+			assertNull(counts.get(ParquetFileChunk.ChunkType.DataPageV2));
+			assertEquals(3, counts.get(ParquetFileChunk.ChunkType.PageHeader).intValue());
+			assertEquals(1, counts.get(ParquetFileChunk.ChunkType.RepetitionValues).intValue());
+			assertEquals(2, counts.get(ParquetFileChunk.ChunkType.DefinitionValues).intValue());
+			assertEquals(2, counts.get(ParquetFileChunk.ChunkType.DataValues).intValue());
+		}
+		finally {
+			System.clearProperty(ParquetLevels.LEVEL_CHUNKS);
+		}
+	}
+
+	@Test
+	public void chunksCoverTheFileInOrder() throws Exception {
+		File file = write(false);
+		checkNaive(file, false);
+		checkHierarchical(file, false);
+	}
+
+	@Test
+	public void paddingBetweenRowGroupsIsRaw() throws Exception {
+		File file = write(true);
+		checkNaive(file, true);
+		checkHierarchical(file, true);
+	}
+
+}
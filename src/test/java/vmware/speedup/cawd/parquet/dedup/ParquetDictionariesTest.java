@@ -0,0 +1,68 @@
+package vmware.speedup.cawd.parquet.dedup;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class ParquetDictionariesTest {
+
+	private static byte[] signature(int i) {
+		return new byte[] { (byte)i, (byte)(i >> 8), 7 };
+	}
+
+	@Test
+	public void sessionDropsLeastRecentlyUsedDictionaries() {
+		ParquetDictionaries.Session<byte[]> session = new ParquetDictionaries.Session<byte[]>(100);
+		session.put(signature(1), new byte[40], 40);
+		session.put(signature(2), new byte[40], 40);
+		// the first one is used again, so the second goes
+		assertNotNull(session.get(signature(1)));
+		session.put(signature(3), new byte[40], 40);
+		assertNotNull(session.get(signature(1)));
+		assertNull(session.get(signature(2)));
+		assertNotNull(session.get(signature(3)));
+		assertEquals(80, session.bytes());
+		// larger than the whole session, it is not kept and nothing goes for it
+		session.put(signature(4), new byte[200], 200);
+		assertNull(session.get(signature(4)));
+		assertEquals(2, session.size());
+		assertEquals(80, session.bytes());
+		// and adding one again does not count it twice
+		session.put(signature(3), new byte[40], 40);
+		assertEquals(80, session.bytes());
+	}
+
+	@Test
+	public void streamerReferencesOnlyWhatReceiverKeeps() {
+		// each side of NaiveParquetStreamer and NaiveParquetReceiver: one knows it sent a dictionary, the other has it
+		ParquetDictionaries.Session<Boolean> streamer = new ParquetDictionaries.Session<Boolean>(4096);
+		ParquetDictionaries.Session<byte[]> receiver = new ParquetDictionaries.Session<byte[]>(4096);
+		Random random = new Random(11);
+		int references = 0;
+		for(int i = 0; i < 10000; ++i) {
+			int dictionary = random.nextInt(64);
+			byte[] content = new byte[dictionary * 31 % 700 + 1];
+			content[0] = (byte)dictionary;
+			if(streamer.get(signature(dictionary)) != null) {
+				byte[] found = receiver.get(signature(dictionary));
+				assertNotNull(found);
+				assertArrayEquals(content, found);
+				++references;
+			}
+			else {
+				streamer.put(signature(dictionary), Boolean.TRUE, content.length);
+				receiver.put(signature(dictionary), content, content.length);
+			}
+			assertTrue(receiver.bytes() <= 4096);
+			assertEquals(streamer.size(), receiver.size());
+		}
+		assertTrue(references > 0);
+	}
+
+}
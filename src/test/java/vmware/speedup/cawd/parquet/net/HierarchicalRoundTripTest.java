@@ -0,0 +1,141 @@
+package vmware.speedup.cawd.parquet.net;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.SimpleGroupFactory;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.example.ExampleParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.MessageTypeParser;
+import org.junit.jupiter.api.Test;
+
+import vmware.speedup.cawd.common.TransferStats;
+import vmware.speedup.cawd.common.TransferStats.TransferStatValue;
+import vmware.speedup.cawd.net.SpeedupReceiver;
+import vmware.speedup.cawd.net.SpeedupStreamer;
+
+public class HierarchicalRoundTripTest {
+
+	// large enough for any single message we write, so a reader never sees half of one
+	private static final int PIPE_SIZE = 1 << 22;
+
+	// a streamer and a receiver talking over pipes, the receiver on a thread of its own
+	private static class Connection {
+
+		private ExecutorService receiverThread = Executors.newSingleThreadExecutor();
+		private PipedOutputStream toReceiver = new PipedOutputStream();
+		private PipedOutputStream toStreamer = new PipedOutputStream();
+		private DataInputStream receiverIn = null;
+		private DataInputStream streamerIn = null;
+		private SpeedupReceiver receiver = null;
+
+		private Connection(SpeedupReceiver receiver) throws IOException {
+			this.receiver = receiver;
+			this.receiverIn = new DataInputStream(new PipedInputStream(toReceiver, PIPE_SIZE));
+			this.streamerIn = new DataInputStream(new PipedInputStream(toStreamer, PIPE_SIZE));
+		}
+
+		// sends the file to the destination folder, and checks it got there as it is
+		private TransferStats send(SpeedupStreamer streamer, File file, final File destination) throws Exception {
+			Future<TransferStats> received = receiverThread.submit(new Callable<TransferStats>() {
+				@Override
+				public TransferStats call() throws Exception {
+					return receiver.receiveFile(destination.getAbsolutePath(), receiverIn, toStreamer);
+				}
+			});
+			TransferStats sent = streamer.transferFile(file.getAbsolutePath(), streamerIn, toReceiver);
+			received.get(60, TimeUnit.SECONDS);
+			assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(new File(destination, file.getName()).toPath()));
+			return sent;
+		}
+
+		private void close() throws IOException {
+			receiverThread.shutdownNow();
+			receiver.close();
+		}
+
+	}
+
+	// one row group with a bigint and a string column, in small pages so each column has a few of them. The
+	// rows from changedFrom on get another bigint, so only the last pages of that column differ
+	private static File writeParquet(File dir, String name, int rows, int changedFrom) throws IOException {
+		File file = new File(dir, name);
+		MessageType schema = MessageTypeParser.parseMessageType("message test { required int64 a; required binary b (UTF8); }");
+		ParquetWriter<Group> writer = ExampleParquetWriter.builder(new Path(file.getAbsolutePath())).withType(schema)
+				.withDictionaryEncoding(false).withCompressionCodec(CompressionCodecName.UNCOMPRESSED).withPageSize(8 * 1024).build();
+		SimpleGroupFactory factory = new SimpleGroupFactory(schema);
+		for(int i = 0; i < rows; ++i) {
+			Group group = factory.newGroup();
+			group.add("a", i < changedFrom? (i * 2654435761L) % 1000003 : -i);
+			group.add("b", "value " + ((i * 40503L) % 100003));
+			writer.write(group);
+		}
+		writer.close();
+		return file;
+	}
+
+	private static double sum(TransferStats stats, TransferStatValue.Type type) {
+		double sum = 0;
+		for(TransferStatValue value : stats.getStats()) {
+			if(value.getType() == type) {
+				sum += value.getValue();
+			}
+		}
+		return sum;
+	}
+
+	@Test
+	public void rowGroupColumnAndPageHits() throws Exception {
+		File in = Files.createTempDirectory("hierarchical-in").toFile();
+		File first = Files.createTempDirectory("hierarchical-out").toFile();
+		File second = Files.createTempDirectory("hierarchical-out").toFile();
+		File base = writeParquet(in, "base.parquet", 20000, 20000);
+		File changed = writeParquet(in, "changed.parquet", 20000, 19900);
+		Connection connection = new Connection(new HierarchicalParquetReceiver());
+		try {
+			HierarchicalParquetStreamer streamer = new HierarchicalParquetStreamer();
+			// nothing there yet
+			TransferStats stats = connection.send(streamer, base, first);
+			assertEquals(1, sum(stats, TransferStatValue.Type.RowGroupMiss));
+			assertEquals(0, sum(stats, TransferStatValue.Type.ColumnHit));
+			assertEquals(0, sum(stats, TransferStatValue.Type.PageHit));
+			assertEquals(1, sum(stats, TransferStatValue.Type.FooterMiss));
+			// all of it there, the row group is found as a whole
+			stats = connection.send(streamer, base, second);
+			assertEquals(1, sum(stats, TransferStatValue.Type.RowGroupHit));
+			assertEquals(0, sum(stats, TransferStatValue.Type.RowGroupMiss));
+			assertEquals(0, sum(stats, TransferStatValue.Type.ColumnMiss));
+			assertEquals(1, sum(stats, TransferStatValue.Type.FooterHit));
+			// the row group is new: the strings are there as a column, and most pages of the bigints too
+			stats = connection.send(streamer, changed, first);
+			assertEquals(0, sum(stats, TransferStatValue.Type.RowGroupHit));
+			assertEquals(1, sum(stats, TransferStatValue.Type.RowGroupMiss));
+			assertEquals(1, sum(stats, TransferStatValue.Type.ColumnHit));
+			assertEquals(1, sum(stats, TransferStatValue.Type.ColumnMiss));
+			assertTrue(sum(stats, TransferStatValue.Type.PageHit) > 1);
+			assertTrue(sum(stats, TransferStatValue.Type.PageMiss) >= 1);
+			assertTrue(sum(stats, TransferStatValue.Type.PageHit) > sum(stats, TransferStatValue.Type.PageMiss));
+		}
+		finally {
+			connection.close();
+		}
+	}
+
+}